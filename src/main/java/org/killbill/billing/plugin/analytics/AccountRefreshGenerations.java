@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Per account and per refresh scope generation counters.
+ * <p/>
+ * A generation is bumped every time a refresh is scheduled. A running refresh is superseded
+ * if a refresh of the same scope (or a full refresh) was scheduled since it started: its result
+ * would be overwritten anyways.
+ */
+public class AccountRefreshGenerations {
+
+    public enum RefreshScope {
+        ALL,
+        SUBSCRIPTIONS,
+        ACCOUNT_TRANSITIONS,
+        INVOICES_AND_PAYMENTS,
+        FIELDS
+    }
+
+    // Accounts without any recent activity are eventually forgotten
+    private final LoadingCache<UUID, AtomicLongArray> generations = CacheBuilder.newBuilder()
+                                                                                .expireAfterAccess(1, TimeUnit.HOURS)
+                                                                                .build(new CacheLoader<UUID, AtomicLongArray>() {
+                                                                                    @Override
+                                                                                    public AtomicLongArray load(final UUID accountId) {
+                                                                                        return new AtomicLongArray(RefreshScope.values().length);
+                                                                                    }
+                                                                                });
+
+    public void bump(final UUID accountId, final RefreshScope refreshScope) {
+        generations.getUnchecked(accountId).incrementAndGet(refreshScope.ordinal());
+    }
+
+    /**
+     * Snapshot the generations of the account, when a refresh starts.
+     *
+     * @param accountId    account id
+     * @param refreshScope scope of the refresh
+     * @return a supplier returning true once the refresh has been superseded
+     */
+    public Supplier<Boolean> newSupersededCheck(final UUID accountId, final RefreshScope refreshScope) {
+        final AtomicLongArray accountGenerations = generations.getUnchecked(accountId);
+        final long scopeGeneration = accountGenerations.get(refreshScope.ordinal());
+        final long allGeneration = accountGenerations.get(RefreshScope.ALL.ordinal());
+
+        return new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                return accountGenerations.get(refreshScope.ordinal()) != scopeGeneration ||
+                       accountGenerations.get(RefreshScope.ALL.ordinal()) != allGeneration;
+            }
+        };
+    }
+}
@@ -26,7 +26,10 @@ import javax.servlet.http.HttpServlet;
 import org.killbill.billing.osgi.api.OSGIPluginProperties;
 import org.killbill.billing.plugin.analytics.api.user.AnalyticsUserApi;
 import org.killbill.billing.plugin.analytics.dao.BusinessDBIProvider;
+import org.killbill.billing.plugin.analytics.dao.PollingDao;
+import org.killbill.billing.plugin.analytics.dao.ReconciliationDao;
 import org.killbill.billing.plugin.analytics.http.ServletRouter;
+import org.killbill.billing.plugin.analytics.reports.ReportResultCache;
 import org.killbill.billing.plugin.analytics.reports.ReportsConfiguration;
 import org.killbill.billing.plugin.analytics.reports.ReportsUserApi;
 import org.killbill.billing.plugin.analytics.reports.scheduler.JobsScheduler;
@@ -49,7 +52,10 @@ public class AnalyticsActivator extends KillbillActivatorBase {
     public static final String ANALYTICS_QUEUE_SERVICE = "AnalyticsService";
 
     private AnalyticsListener analyticsListener;
+    private AnalyticsReconciliationScanner reconciliationScanner;
+    private AnalyticsPoller analyticsPoller;
     private JobsScheduler jobsScheduler;
+    private AnalyticsCircuitBreaker circuitBreaker;
     private ReportsUserApi reportsUserApi;
 
     private final Clock clock = new DefaultClock();
@@ -66,17 +72,27 @@ public class AnalyticsActivator extends KillbillActivatorBase {
         final DBI dbi = BusinessDBIProvider.get(dataSource.getDataSource());
         final DefaultNotificationQueueService notificationQueueService = new DefaultNotificationQueueService(dbi, clock, config, metricRegistry);
 
-        analyticsListener = new AnalyticsListener(logService, killbillAPI, dataSource, configProperties, executor, clock, notificationQueueService);
+        analyticsListener = new AnalyticsListener(logService, killbillAPI, dataSource, configProperties, executor, clock, notificationQueueService, metricRegistry);
         analyticsListener.start();
         dispatcher.registerEventHandler(analyticsListener);
 
-        jobsScheduler = new JobsScheduler(logService, dataSource, clock, notificationQueueService);
+        reconciliationScanner = new AnalyticsReconciliationScanner(logService, new ReconciliationDao(dataSource), configProperties, analyticsListener, clock, metricRegistry);
+        reconciliationScanner.start();
+
+        analyticsPoller = new AnalyticsPoller(logService, new PollingDao(dataSource), configProperties, analyticsListener, executor, clock, metricRegistry);
+        analyticsPoller.start();
+
+        final ReportResultCache reportResultCache = new ReportResultCache(configProperties, metricRegistry);
+        jobsScheduler = new JobsScheduler(logService, dataSource, configProperties, clock, notificationQueueService, reportResultCache);
         jobsScheduler.start();
 
+        circuitBreaker = new AnalyticsCircuitBreaker(logService, dbi, configProperties, analyticsListener, jobsScheduler, metricRegistry);
+        circuitBreaker.start();
+
         final ReportsConfiguration reportsConfiguration = new ReportsConfiguration(dataSource, jobsScheduler);
 
-        final AnalyticsUserApi analyticsUserApi = new AnalyticsUserApi(logService, killbillAPI, dataSource, configProperties, executor, clock);
-        reportsUserApi = new ReportsUserApi(logService, killbillAPI, dataSource, configProperties, reportsConfiguration, jobsScheduler);
+        final AnalyticsUserApi analyticsUserApi = new AnalyticsUserApi(logService, killbillAPI, dataSource, configProperties, executor, clock, metricRegistry);
+        reportsUserApi = new ReportsUserApi(logService, killbillAPI, dataSource, configProperties, reportsConfiguration, jobsScheduler, reportResultCache);
 
         final ServletRouter servletRouter = new ServletRouter(analyticsUserApi, reportsUserApi, logService);
         registerServlet(context, servletRouter);
@@ -84,6 +100,15 @@ public class AnalyticsActivator extends KillbillActivatorBase {
 
     @Override
     public void stop(final BundleContext context) throws Exception {
+        if (circuitBreaker != null) {
+            circuitBreaker.shutdownNow();
+        }
+        if (analyticsPoller != null) {
+            analyticsPoller.shutdownNow();
+        }
+        if (reconciliationScanner != null) {
+            reconciliationScanner.shutdownNow();
+        }
         if (analyticsListener != null) {
             analyticsListener.shutdownNow();
         }
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.analytics.reports.scheduler.JobsScheduler;
+import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
+import org.osgi.service.log.LogService;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+
+/**
+ * Load-shedding circuit breaker, to protect the Kill Bill database (shared with the plugin) when it is struggling.
+ * <p/>
+ * The database is probed at regular intervals (connection pool wait time and query latency), and the latency of the
+ * Kill Bill APIs called by the listener is monitored. If any of them goes above its threshold, the refresh and reports
+ * queues are paused: pending jobs stay in the notification queue in the meantime. The queues are resumed gradually,
+ * once all signals are back below half of their thresholds for a few consecutive probes: refreshes first (starting
+ * from the minimum concurrency), then reports.
+ * <p/>
+ * A probe which fails (e.g. no connection available, or the query times out after one interval) counts as an overloaded sample.
+ */
+public class AnalyticsCircuitBreaker {
+
+    public enum State {
+        // Normal operations
+        CLOSED,
+        // Refreshes resumed, reports still paused
+        HALF_OPEN,
+        // Refreshes and reports paused
+        OPEN,
+        // Plugin stopping: the queues are never resumed
+        STOPPED
+    }
+
+    private static final String ANALYTICS_CIRCUIT_BREAKER_PROPERTY_PREFIX = "org.killbill.billing.plugin.analytics.circuitBreaker.";
+
+    @VisibleForTesting
+    static final String ANALYTICS_CIRCUIT_BREAKER_ENABLED_PROPERTY = ANALYTICS_CIRCUIT_BREAKER_PROPERTY_PREFIX + "enabled";
+    // Delay, in seconds, between two probes
+    private static final String ANALYTICS_CIRCUIT_BREAKER_INTERVAL_PROPERTY = ANALYTICS_CIRCUIT_BREAKER_PROPERTY_PREFIX + "interval";
+    // Thresholds, in milliseconds
+    @VisibleForTesting
+    static final String ANALYTICS_CIRCUIT_BREAKER_CONNECTION_WAIT_THRESHOLD_PROPERTY = ANALYTICS_CIRCUIT_BREAKER_PROPERTY_PREFIX + "connectionWaitThreshold";
+    @VisibleForTesting
+    static final String ANALYTICS_CIRCUIT_BREAKER_QUERY_LATENCY_THRESHOLD_PROPERTY = ANALYTICS_CIRCUIT_BREAKER_PROPERTY_PREFIX + "queryLatencyThreshold";
+    @VisibleForTesting
+    static final String ANALYTICS_CIRCUIT_BREAKER_API_LATENCY_THRESHOLD_PROPERTY = ANALYTICS_CIRCUIT_BREAKER_PROPERTY_PREFIX + "apiLatencyThreshold";
+    // Number of consecutive healthy probes required for each resume step
+    @VisibleForTesting
+    static final String ANALYTICS_CIRCUIT_BREAKER_HEALTHY_PROBES_PROPERTY = ANALYTICS_CIRCUIT_BREAKER_PROPERTY_PREFIX + "healthyProbes";
+
+    // Signals need to go below that fraction of their threshold to be considered healthy again (hysteresis)
+    private static final double RESUME_RATIO = 0.5;
+    // Max time, in seconds, to wait for an in-flight probe on shutdown
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final OSGIKillbillLogService logService;
+    private final IDBI dbi;
+    private final AnalyticsListener analyticsListener;
+    private final JobsScheduler jobsScheduler;
+    private final Timer killbillApiLatency;
+    private final Counter trips;
+    private final boolean enabled;
+    private final int intervalSeconds;
+    private final long connectionWaitThresholdNanos;
+    private final long queryLatencyThresholdNanos;
+    private final long apiLatencyThresholdNanos;
+    private final int healthyProbesRequired;
+
+    private volatile State state = State.CLOSED;
+    // Only accessed by the probing thread
+    private int healthyProbes;
+    private long lastApiCallsCount;
+
+    private ScheduledExecutorService probingExecutor;
+
+    public AnalyticsCircuitBreaker(final OSGIKillbillLogService logService,
+                                   final IDBI dbi,
+                                   final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                                   final AnalyticsListener analyticsListener,
+                                   final JobsScheduler jobsScheduler,
+                                   final MetricRegistry metricRegistry) {
+        this.logService = logService;
+        this.dbi = dbi;
+        this.analyticsListener = analyticsListener;
+        this.jobsScheduler = jobsScheduler;
+
+        this.enabled = isEnabled(osgiConfigPropertiesService);
+        this.intervalSeconds = getIntProperty(osgiConfigPropertiesService, ANALYTICS_CIRCUIT_BREAKER_INTERVAL_PROPERTY, 5);
+        this.connectionWaitThresholdNanos = TimeUnit.MILLISECONDS.toNanos(getIntProperty(osgiConfigPropertiesService, ANALYTICS_CIRCUIT_BREAKER_CONNECTION_WAIT_THRESHOLD_PROPERTY, 500));
+        this.queryLatencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(getIntProperty(osgiConfigPropertiesService, ANALYTICS_CIRCUIT_BREAKER_QUERY_LATENCY_THRESHOLD_PROPERTY, 100));
+        this.apiLatencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(getIntProperty(osgiConfigPropertiesService, ANALYTICS_CIRCUIT_BREAKER_API_LATENCY_THRESHOLD_PROPERTY, 1000));
+        this.healthyProbesRequired = getIntProperty(osgiConfigPropertiesService, ANALYTICS_CIRCUIT_BREAKER_HEALTHY_PROBES_PROPERTY, 3);
+
+        // Populated by the listener
+        this.killbillApiLatency = metricRegistry.timer(AnalyticsListener.KILLBILL_API_LATENCY_METRIC);
+        this.lastApiCallsCount = killbillApiLatency.getCount();
+        this.trips = metricRegistry.counter(MetricRegistry.name(AnalyticsCircuitBreaker.class, "trips"));
+        metricRegistry.register(MetricRegistry.name(AnalyticsCircuitBreaker.class, "state"),
+                                new Gauge<String>() {
+                                    @Override
+                                    public String getValue() {
+                                        return state.toString();
+                                    }
+                                });
+    }
+
+    public static boolean isEnabled(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        return Boolean.valueOf(Strings.nullToEmpty(osgiConfigPropertiesService.getString(ANALYTICS_CIRCUIT_BREAKER_ENABLED_PROPERTY)));
+    }
+
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+
+        probingExecutor = BusinessExecutor.newSingleThreadScheduledExecutor("osgi-analytics-circuit-breaker");
+        probingExecutor.scheduleWithFixedDelay(new Runnable() {
+                                                   @Override
+                                                   public void run() {
+                                                       try {
+                                                           probe();
+                                                       } catch (RuntimeException e) {
+                                                           logService.log(LogService.LOG_WARNING, "Analytics circuit breaker probe failed", e);
+                                                       }
+                                                   }
+                                               },
+                                               intervalSeconds,
+                                               intervalSeconds,
+                                               TimeUnit.SECONDS);
+    }
+
+    public void shutdownNow() {
+        synchronized (this) {
+            // Terminal state: an in-flight probe cannot resume the queues anymore
+            state = State.STOPPED;
+        }
+
+        if (probingExecutor != null) {
+            probingExecutor.shutdownNow();
+            try {
+                if (!probingExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    logService.log(LogService.LOG_WARNING, "Analytics circuit breaker probe still running after " + SHUTDOWN_TIMEOUT_SECONDS + "s");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    @VisibleForTesting
+    void probe() {
+        final long connectionWaitNanos;
+        final long queryLatencyNanos;
+        try {
+            final long startNanos = System.nanoTime();
+            final Handle handle = dbi.open();
+            connectionWaitNanos = System.nanoTime() - startNanos;
+            try {
+                final long queryStartNanos = System.nanoTime();
+                handle.createQuery("select 1")
+                      .setQueryTimeout(intervalSeconds)
+                      .first();
+                queryLatencyNanos = System.nanoTime() - queryStartNanos;
+            } finally {
+                handle.close();
+            }
+        } catch (RuntimeException e) {
+            logService.log(LogService.LOG_WARNING, "Analytics circuit breaker probe failed", e);
+            onProbeFailure(e.toString());
+            return;
+        }
+
+        // Only look at the API latency if there were calls since the last probe, to avoid acting on stale samples
+        final Long apiLatencyNanos;
+        final long apiCallsCount = killbillApiLatency.getCount();
+        if (apiCallsCount != lastApiCallsCount) {
+            apiLatencyNanos = (long) killbillApiLatency.getSnapshot().getMedian();
+            lastApiCallsCount = apiCallsCount;
+        } else {
+            apiLatencyNanos = null;
+        }
+
+        onProbe(connectionWaitNanos, queryLatencyNanos, apiLatencyNanos);
+    }
+
+    @VisibleForTesting
+    void onProbe(final long connectionWaitNanos, final long queryLatencyNanos, @Nullable final Long apiLatencyNanos) {
+        final boolean overloaded = connectionWaitNanos > connectionWaitThresholdNanos ||
+                                   queryLatencyNanos > queryLatencyThresholdNanos ||
+                                   (apiLatencyNanos != null && apiLatencyNanos > apiLatencyThresholdNanos);
+        final boolean healthy = connectionWaitNanos <= RESUME_RATIO * connectionWaitThresholdNanos &&
+                                queryLatencyNanos <= RESUME_RATIO * queryLatencyThresholdNanos &&
+                                (apiLatencyNanos == null || apiLatencyNanos <= RESUME_RATIO * apiLatencyThresholdNanos);
+        final String signals = "connectionWait=" + TimeUnit.NANOSECONDS.toMillis(connectionWaitNanos) + "ms" +
+                               ", queryLatency=" + TimeUnit.NANOSECONDS.toMillis(queryLatencyNanos) + "ms" +
+                               ", apiLatency=" + (apiLatencyNanos == null ? "n/a" : TimeUnit.NANOSECONDS.toMillis(apiLatencyNanos) + "ms");
+
+        if (overloaded) {
+            trip(signals);
+            return;
+        } else if (!healthy) {
+            // Within the hysteresis band: stay put
+            healthyProbes = 0;
+            return;
+        }
+
+        if (state == State.CLOSED) {
+            return;
+        }
+
+        healthyProbes++;
+        if (healthyProbes >= healthyProbesRequired) {
+            healthyProbes = 0;
+            transitionTo(state == State.OPEN ? State.HALF_OPEN : State.CLOSED, signals);
+        }
+    }
+
+    @VisibleForTesting
+    void onProbeFailure(final String error) {
+        trip("probe failed: " + error);
+    }
+
+    private void trip(final String signals) {
+        healthyProbes = 0;
+        if (state == State.CLOSED || state == State.HALF_OPEN) {
+            trips.inc();
+            transitionTo(State.OPEN, signals);
+        }
+    }
+
+    private synchronized void transitionTo(final State newState, final String signals) {
+        if (state == State.STOPPED) {
+            return;
+        }
+
+        logService.log(newState == State.OPEN ? LogService.LOG_WARNING : LogService.LOG_INFO,
+                       "Analytics circuit breaker transition " + state + " -> " + newState + " (" + signals + ")");
+        state = newState;
+
+        switch (newState) {
+            case OPEN:
+                analyticsListener.pause();
+                jobsScheduler.pause();
+                break;
+            case HALF_OPEN:
+                analyticsListener.resume();
+                break;
+            case CLOSED:
+                jobsScheduler.resume();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static int getIntProperty(final OSGIConfigPropertiesService osgiConfigPropertiesService, final String property, final int defaultValue) {
+        final String valueMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(property));
+        return valueMaybeNull == null ? defaultValue : Integer.valueOf(valueMaybeNull);
+    }
+}
@@ -19,6 +19,9 @@ package org.killbill.billing.plugin.analytics;
 
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
 import org.killbill.billing.ObjectType;
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
 import org.killbill.billing.notification.plugin.api.ExtBusEventType;
@@ -33,25 +36,38 @@ public class AnalyticsJob implements NotificationEvent {
     private final UUID objectId;
     private final UUID accountId;
     private final UUID tenantId;
+    // When the job was first put in the queue (null for jobs enqueued by older versions), kept when it is re-scheduled
+    private final Long enqueuedDateMillis;
 
-    public AnalyticsJob(final ExtBusEvent extBusEvent) {
+    public AnalyticsJob(final ExtBusEvent extBusEvent, final DateTime enqueuedDate) {
         this(extBusEvent.getEventType(),
              extBusEvent.getObjectType(),
              extBusEvent.getObjectId(),
              extBusEvent.getAccountId(),
-             extBusEvent.getTenantId());
+             extBusEvent.getTenantId(),
+             enqueuedDate.getMillis());
+    }
+
+    public AnalyticsJob(final ExtBusEventType eventType,
+                        final ObjectType objectType,
+                        final UUID objectId,
+                        final UUID accountId,
+                        final UUID tenantId) {
+        this(eventType, objectType, objectId, accountId, tenantId, null);
     }
 
     public AnalyticsJob(@JsonProperty("eventType") final ExtBusEventType eventType,
                         @JsonProperty("objectType") final ObjectType objectType,
                         @JsonProperty("objectId") final UUID objectId,
                         @JsonProperty("accountId") final UUID accountId,
-                        @JsonProperty("tenantId") final UUID tenantId) {
+                        @JsonProperty("tenantId") final UUID tenantId,
+                        @JsonProperty("enqueuedDateMillis") @Nullable final Long enqueuedDateMillis) {
         this.eventType = eventType;
         this.objectType = objectType;
         this.objectId = objectId;
         this.accountId = accountId;
         this.tenantId = tenantId;
+        this.enqueuedDateMillis = enqueuedDateMillis;
     }
 
     public ExtBusEventType getEventType() {
@@ -74,6 +90,10 @@ public class AnalyticsJob implements NotificationEvent {
         return tenantId;
     }
 
+    public Long getEnqueuedDateMillis() {
+        return enqueuedDateMillis;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("AnalyticsJob{");
@@ -82,10 +102,12 @@ public class AnalyticsJob implements NotificationEvent {
         sb.append(", objectId=").append(objectId);
         sb.append(", accountId=").append(accountId);
         sb.append(", tenantId=").append(tenantId);
+        sb.append(", enqueuedDateMillis=").append(enqueuedDateMillis);
         sb.append('}');
         return sb.toString();
     }
 
+    // The enqueued date is ignored: jobs for the same change are duplicates, regardless of when they were enqueued
     @Override
     public boolean equals(final Object o) {
         if (this == o) {
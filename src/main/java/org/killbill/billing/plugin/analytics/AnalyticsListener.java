@@ -19,20 +19,29 @@ package org.killbill.billing.plugin.analytics;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.killbill.billing.ObjectType;
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.plugin.analytics.AccountRefreshGenerations.RefreshScope;
 import org.killbill.billing.plugin.analytics.dao.AllBusinessObjectsDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessAccountDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessAccountTransitionDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessFieldDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessInvoiceAndPaymentDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessSubscriptionTransitionDao;
+import org.killbill.billing.plugin.analytics.dao.InvoicePaymentDao;
+import org.killbill.billing.plugin.analytics.dao.RecordIdDao;
+import org.killbill.billing.plugin.analytics.dao.ReconciliationDao;
+import org.killbill.billing.plugin.analytics.dao.RefreshCostDao;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
 import org.killbill.billing.util.api.RecordIdApi;
 import org.killbill.billing.util.callcontext.CallContext;
@@ -52,7 +61,11 @@ import org.killbill.notificationq.api.NotificationQueueService.NotificationQueue
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
 import org.osgi.service.log.LogService;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.base.Splitter;
@@ -68,6 +81,14 @@ public class AnalyticsListener implements OSGIKillbillEventHandler {
     // when starting the refresh (since only the first event will trigger the refresh, all others are ignored).
     private static final String ANALYTICS_REFRESH_DELAY_PROPERTY = "org.killbill.billing.plugin.analytics.refreshDelay";
 
+    // Bounds of the number of concurrent account refreshes (see RefreshConcurrencyLimiter)
+    private static final String ANALYTICS_REFRESH_MIN_CONCURRENCY_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.minConcurrency";
+    private static final String ANALYTICS_REFRESH_MAX_CONCURRENCY_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.maxConcurrency";
+    private static final int ANALYTICS_REFRESH_INITIAL_CONCURRENCY = 10;
+
+    // Latency of the Kill Bill API calls made when receiving events (see AnalyticsCircuitBreaker)
+    public static final String KILLBILL_API_LATENCY_METRIC = MetricRegistry.name(AnalyticsListener.class, "killbillApiLatency");
+
     // List of account ids to ignore
     @VisibleForTesting
     static final String ANALYTICS_ACCOUNTS_BLACKLIST_PROPERTY = "org.killbill.billing.plugin.analytics.blacklist";
@@ -87,6 +108,27 @@ public class AnalyticsListener implements OSGIKillbillEventHandler {
     private final AllBusinessObjectsDao allBusinessObjectsDao;
     private final NotificationQueue jobQueue;
     private final Clock clock;
+    // Used to abort in-flight refreshes when newer ones are scheduled for the same account
+    private final AccountRefreshGenerations refreshGenerations = new AccountRefreshGenerations();
+    private final Counter supersededRefreshes;
+    // Null if reconciliation is disabled
+    private final ReconciliationDao reconciliationDao;
+    // Null if bulk lookups are disabled
+    private final RecordIdDao recordIdDao;
+    private final InvoicePaymentDao invoicePaymentDao;
+    // If true, changes are picked up by AnalyticsPoller instead
+    private final boolean ignoreBusEvents;
+    // Adapts the number of concurrent account refreshes to the database load
+    private final RefreshConcurrencyLimiter refreshConcurrencyLimiter;
+    private final Timer killbillApiLatency;
+    // Defers expensive full refreshes outside of peak hours
+    private final RefreshDeferralPolicy refreshDeferralPolicy;
+    // Fair share of the refresh queue across tenants
+    private final TenantFairScheduler tenantFairScheduler;
+    // Set when paused by AnalyticsCircuitBreaker
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+    // Set on shutdown: the queue is never restarted afterwards
+    private boolean stopped = false;
 
     public AnalyticsListener(final OSGIKillbillLogService logService,
                              final OSGIKillbillAPI osgiKillbillAPI,
@@ -94,7 +136,8 @@ public class AnalyticsListener implements OSGIKillbillEventHandler {
                              final OSGIConfigPropertiesService osgiConfigPropertiesService,
                              final Executor executor,
                              final Clock clock,
-                             final DefaultNotificationQueueService notificationQueueService) throws NotificationQueueAlreadyExists {
+                             final DefaultNotificationQueueService notificationQueueService,
+                             final MetricRegistry metricRegistry) throws NotificationQueueAlreadyExists {
         this.logService = logService;
         this.osgiKillbillAPI = osgiKillbillAPI;
         this.osgiKillbillDataSource = osgiKillbillDataSource;
@@ -106,10 +149,25 @@ public class AnalyticsListener implements OSGIKillbillEventHandler {
 
         final BusinessAccountDao bacDao = new BusinessAccountDao(logService, osgiKillbillDataSource);
         this.bstDao = new BusinessSubscriptionTransitionDao(logService, osgiKillbillDataSource, bacDao, executor);
-        this.binAndBipDao = new BusinessInvoiceAndPaymentDao(logService, osgiKillbillDataSource, bacDao, executor);
+        this.binAndBipDao = new BusinessInvoiceAndPaymentDao(logService, osgiKillbillDataSource, osgiConfigPropertiesService, bacDao, executor, metricRegistry);
         this.bosDao = new BusinessAccountTransitionDao(logService, osgiKillbillDataSource);
         this.bFieldDao = new BusinessFieldDao(logService, osgiKillbillDataSource);
-        this.allBusinessObjectsDao = new AllBusinessObjectsDao(logService, osgiKillbillAPI, osgiKillbillDataSource, executor, clock);
+        this.allBusinessObjectsDao = new AllBusinessObjectsDao(logService, osgiKillbillAPI, osgiKillbillDataSource, osgiConfigPropertiesService, executor, clock, metricRegistry);
+        this.supersededRefreshes = metricRegistry.counter(MetricRegistry.name(AnalyticsListener.class, "supersededRefreshes"));
+        this.reconciliationDao = AnalyticsReconciliationScanner.isEnabled(osgiConfigPropertiesService) ? new ReconciliationDao(osgiKillbillDataSource) : null;
+        this.recordIdDao = RecordIdDao.isEnabled(osgiConfigPropertiesService) ? new RecordIdDao(osgiKillbillDataSource) : null;
+        this.invoicePaymentDao = InvoicePaymentDao.isEnabled(osgiConfigPropertiesService) ? new InvoicePaymentDao(osgiKillbillDataSource) : null;
+        this.ignoreBusEvents = AnalyticsPoller.isEnabled(osgiConfigPropertiesService);
+
+        final String minConcurrencyMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_MIN_CONCURRENCY_PROPERTY));
+        final int minConcurrency = minConcurrencyMaybeNull == null ? 1 : Integer.valueOf(minConcurrencyMaybeNull);
+        final String maxConcurrencyMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_MAX_CONCURRENCY_PROPERTY));
+        // Default to the size of the refresh pool
+        final int maxConcurrency = maxConcurrencyMaybeNull == null ? BusinessExecutor.getNbThreads(osgiConfigPropertiesService) : Integer.valueOf(maxConcurrencyMaybeNull);
+        this.refreshConcurrencyLimiter = new RefreshConcurrencyLimiter(minConcurrency, maxConcurrency, ANALYTICS_REFRESH_INITIAL_CONCURRENCY, metricRegistry);
+        this.killbillApiLatency = metricRegistry.timer(KILLBILL_API_LATENCY_METRIC);
+        this.refreshDeferralPolicy = new RefreshDeferralPolicy(osgiConfigPropertiesService, new RefreshCostDao(osgiKillbillDataSource), metricRegistry);
+        this.tenantFairScheduler = new TenantFairScheduler(osgiConfigPropertiesService, clock, metricRegistry);
 
         final NotificationQueueHandler notificationQueueHandler = new NotificationQueueHandler() {
 
@@ -121,8 +179,25 @@ public class AnalyticsListener implements OSGIKillbillEventHandler {
                 }
 
                 final AnalyticsJob job = (AnalyticsJob) eventJson;
+
+                // Tenant over its fair share: put the job back in the queue (as is, to keep its enqueued date)
+                final DateTime enqueuedDateTime = job.getEnqueuedDateMillis() == null ? eventDateTime : new DateTime(job.getEnqueuedDateMillis(), DateTimeZone.UTC);
+                final DateTime deferredDateTime = tenantFairScheduler.admit(searchKey2, enqueuedDateTime);
+                if (deferredDateTime != null) {
+                    try {
+                        jobQueue.recordFutureNotification(deferredDateTime, job, userToken, searchKey1, searchKey2);
+                        return;
+                    } catch (IOException e) {
+                        logService.log(LogService.LOG_WARNING, "Unable to defer job " + job.toString() + ", processing it now");
+                    }
+                }
+
                 try {
-                    handleAnalyticsJob(job);
+                    handleAnalyticsJob(job, searchKey1, searchKey2);
+                } catch (AnalyticsRefreshSupersededException e) {
+                    // A newer refresh will take care of it
+                    supersededRefreshes.inc();
+                    logService.log(LogService.LOG_INFO, e.getMessage());
                 } catch (AnalyticsRefreshException e) {
                     logService.log(LogService.LOG_ERROR, "Unable to process event", e);
                 }
@@ -138,12 +213,43 @@ public class AnalyticsListener implements OSGIKillbillEventHandler {
         jobQueue.startQueue();
     }
 
-    public void shutdownNow() {
-        jobQueue.stopQueue();
+    public synchronized void shutdownNow() {
+        stopped = true;
+        // The queue is already stopped if paused
+        if (!paused.getAndSet(true)) {
+            jobQueue.stopQueue();
+        }
+    }
+
+    /**
+     * Stop dequeuing refreshes: pending jobs stay in the notification queue, and new ones are still recorded.
+     * Synchronous refreshes (polling mode) are rejected in the meantime.
+     */
+    public synchronized void pause() {
+        if (paused.compareAndSet(false, true)) {
+            jobQueue.stopQueue();
+        }
+    }
+
+    public synchronized void resume() {
+        if (!stopped && paused.compareAndSet(true, false)) {
+            // Ramp up again from the minimum concurrency
+            refreshConcurrencyLimiter.reset();
+            jobQueue.startQueue();
+        }
+    }
+
+    public boolean isPaused() {
+        return paused.get();
     }
 
     @Override
     public void handleKillbillEvent(final ExtBusEvent killbillEvent) {
+        // Polling mode
+        if (ignoreBusEvents) {
+            return;
+        }
+
         // Ignore non account-specific events (e.g. TENANT_CONFIG_CHANGE)
         if (killbillEvent.getAccountId() == null) {
             return;
@@ -154,7 +260,7 @@ public class AnalyticsListener implements OSGIKillbillEventHandler {
             return;
         }
 
-        final AnalyticsJob job = new AnalyticsJob(killbillEvent);
+        final AnalyticsJob job = new AnalyticsJob(killbillEvent, clock.getUTCNow());
 
         Long accountRecordId = null;
         Long tenantRecordId = null;
@@ -163,80 +269,236 @@ public class AnalyticsListener implements OSGIKillbillEventHandler {
             logService.log(LogService.LOG_WARNING, "Unable to retrieve the recordIdApi");
         } else {
             final CallContext callContext = new AnalyticsCallContext(job, clock);
-            accountRecordId = osgiKillbillAPI.getRecordIdApi().getRecordId(killbillEvent.getAccountId(), ObjectType.ACCOUNT, callContext);
-            tenantRecordId = osgiKillbillAPI.getRecordIdApi().getRecordId(killbillEvent.getTenantId(), ObjectType.TENANT, callContext);
+            final Timer.Context timerContext = killbillApiLatency.time();
+            try {
+                accountRecordId = osgiKillbillAPI.getRecordIdApi().getRecordId(killbillEvent.getAccountId(), ObjectType.ACCOUNT, callContext);
+                tenantRecordId = osgiKillbillAPI.getRecordIdApi().getRecordId(killbillEvent.getTenantId(), ObjectType.TENANT, callContext);
+            } finally {
+                timerContext.stop();
+            }
         }
 
+        scheduleJob(job, accountRecordId, tenantRecordId);
+    }
+
+    /**
+     * Schedule a refresh for the account, outside of any bus event (e.g. reconciliation).
+     *
+     * @param accountId       account id
+     * @param tenantId        tenant id
+     * @param accountRecordId account record id
+     * @param tenantRecordId  tenant record id
+     * @param refreshScope    data to refresh
+     */
+    public void scheduleRefresh(final UUID accountId, final UUID tenantId, final Long accountRecordId, final Long tenantRecordId, final RefreshScope refreshScope) {
+        if (isAccountBlacklisted(accountId)) {
+            return;
+        }
+
+        final AnalyticsJob job = new AnalyticsJob(getEventType(refreshScope), ObjectType.ACCOUNT, accountId, accountId, tenantId, clock.getUTCNow().getMillis());
+        scheduleJob(job, accountRecordId, tenantRecordId);
+    }
+
+    /**
+     * Refresh the account synchronously, bypassing the notification queue (e.g. polling mode).
+     *
+     * @param accountId       account id
+     * @param tenantId        tenant id
+     * @param accountRecordId account record id
+     * @param tenantRecordId  tenant record id
+     * @param refreshScope    data to refresh
+     * @throws AnalyticsRefreshException
+     * @throws AnalyticsRefreshPausedException if refreshes are paused by the circuit breaker
+     */
+    public void refresh(final UUID accountId, final UUID tenantId, final Long accountRecordId, final Long tenantRecordId, final RefreshScope refreshScope) throws AnalyticsRefreshException {
+        if (isAccountBlacklisted(accountId)) {
+            return;
+        }
+
+        // Shed the load, like the paused notification queue
+        if (paused.get()) {
+            throw new AnalyticsRefreshPausedException("Refresh for account " + accountId + " skipped: refreshes are paused");
+        }
+
+        final AnalyticsJob job = new AnalyticsJob(getEventType(refreshScope), ObjectType.ACCOUNT, accountId, accountId, tenantId);
+        // Any pending or in-flight refresh is stale
+        bumpRefreshGeneration(job);
+        handleAnalyticsJob(job, accountRecordId, tenantRecordId);
+    }
+
+    private void scheduleJob(final AnalyticsJob job, @Nullable final Long accountRecordId, @Nullable final Long tenantRecordId) {
+        final DateTime normalNotificationTime = computeFutureNotificationTime();
+
         if (accountRecordId != null) {
             // Verify if we don't have a notification for that type and account already.
             // If we do, no need to insert another one since we will do a full refresh anyways
             final List<NotificationEventWithMetadata<AnalyticsJob>> futureNotificationForSearchKeys = jobQueue.getFutureNotificationForSearchKeys(accountRecordId, tenantRecordId);
-            if (Iterables.<NotificationEventWithMetadata<AnalyticsJob>>tryFind(futureNotificationForSearchKeys,
-                                                                               new Predicate<NotificationEventWithMetadata<AnalyticsJob>>() {
-                                                                                   @Override
-                                                                                   public boolean apply(final NotificationEventWithMetadata<AnalyticsJob> notificationEvent) {
-                                                                                       return notificationEvent.getEvent().equals(job);
-                                                                                   }
-                                                                               }
-                                                                              ).isPresent()) {
-                logService.log(LogService.LOG_DEBUG, "Skipping already present notification for event " + killbillEvent.toString());
+            final Optional<NotificationEventWithMetadata<AnalyticsJob>> existingNotification = Iterables.<NotificationEventWithMetadata<AnalyticsJob>>tryFind(futureNotificationForSearchKeys,
+                                                                                                                                                              new Predicate<NotificationEventWithMetadata<AnalyticsJob>>() {
+                                                                                                                                                                  @Override
+                                                                                                                                                                  public boolean apply(final NotificationEventWithMetadata<AnalyticsJob> notificationEvent) {
+                                                                                                                                                                      return notificationEvent.getEvent().equals(job);
+                                                                                                                                                                  }
+                                                                                                                                                              });
+            if (existingNotification.isPresent()) {
+                logService.log(LogService.LOG_DEBUG, "Skipping already present notification for job " + job.toString());
+                // Any in-flight refresh is stale anyways, unless the pending one was deferred
+                if (!isDeferred(existingNotification.get().getEffectiveDate(), normalNotificationTime)) {
+                    bumpRefreshGeneration(job);
+                }
                 return;
             }
         }
 
         try {
-            jobQueue.recordFutureNotification(computeFutureNotificationTime(), job, UUID.randomUUID(), accountRecordId, tenantRecordId);
+            final DateTime futureNotificationTime;
+            if (getRefreshScope(job.getEventType()) == RefreshScope.ALL) {
+                // Expensive: might be deferred
+                futureNotificationTime = refreshDeferralPolicy.computeRefreshTime(accountRecordId, tenantRecordId, normalNotificationTime);
+            } else {
+                futureNotificationTime = normalNotificationTime;
+            }
+            jobQueue.recordFutureNotification(futureNotificationTime, job, UUID.randomUUID(), accountRecordId, tenantRecordId);
+            // Don't abort in-flight refreshes for a rebuild deferred by hours: the data would be stale until then
+            if (!isDeferred(futureNotificationTime, normalNotificationTime)) {
+                bumpRefreshGeneration(job);
+            }
         } catch (IOException e) {
-            logService.log(LogService.LOG_WARNING, "Unable to record notification for event " + killbillEvent.toString());
+            logService.log(LogService.LOG_WARNING, "Unable to record notification for job " + job.toString());
         }
     }
 
-    private void handleAnalyticsJob(final AnalyticsJob job) throws AnalyticsRefreshException {
-        if (job.getEventType() == null) {
+    private boolean isDeferred(final DateTime notificationTime, final DateTime normalNotificationTime) {
+        return notificationTime.isAfter(normalNotificationTime);
+    }
+
+    private void bumpRefreshGeneration(final AnalyticsJob job) {
+        final RefreshScope refreshScope = getRefreshScope(job.getEventType());
+        if (refreshScope != null) {
+            refreshGenerations.bump(job.getAccountId(), refreshScope);
+        }
+    }
+
+    private void handleAnalyticsJob(final AnalyticsJob job, @Nullable final Long accountRecordId, @Nullable final Long tenantRecordId) throws AnalyticsRefreshException {
+        final RefreshScope refreshScope = getRefreshScope(job.getEventType());
+        if (refreshScope == null) {
             return;
         }
 
+        final long startNanos;
+        try {
+            startNanos = refreshConcurrencyLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AnalyticsRefreshException(e);
+        }
+
+        RefreshConcurrencyLimiter.Outcome outcome = RefreshConcurrencyLimiter.Outcome.IGNORED;
+        try {
+            refreshAccount(job, refreshScope, accountRecordId, tenantRecordId);
+            outcome = RefreshConcurrencyLimiter.Outcome.SUCCESS;
+        } catch (AnalyticsRefreshException e) {
+            outcome = RefreshConcurrencyLimiter.isDropped(e) ? RefreshConcurrencyLimiter.Outcome.DROPPED : RefreshConcurrencyLimiter.Outcome.IGNORED;
+            throw e;
+        } catch (RuntimeException e) {
+            outcome = RefreshConcurrencyLimiter.isDropped(e) ? RefreshConcurrencyLimiter.Outcome.DROPPED : RefreshConcurrencyLimiter.Outcome.IGNORED;
+            throw e;
+        } finally {
+            refreshConcurrencyLimiter.release(startNanos, outcome, refreshScope);
+        }
+    }
+
+    private void refreshAccount(final AnalyticsJob job, final RefreshScope refreshScope, @Nullable final Long accountRecordId, @Nullable final Long tenantRecordId) throws AnalyticsRefreshException {
         final CallContext callContext = new AnalyticsCallContext(job, clock);
-        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(job.getAccountId(), callContext, logService, osgiKillbillAPI, osgiKillbillDataSource, osgiConfigPropertiesService, clock);
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(job.getAccountId(), callContext, recordIdDao, invoicePaymentDao, logService, osgiKillbillAPI, osgiKillbillDataSource, osgiConfigPropertiesService, clock);
+        businessContextFactory.setSupersededCheck(refreshGenerations.newSupersededCheck(job.getAccountId(), refreshScope));
+
+        // Snapshot the Kill Bill high-water marks before fetching the data, for reconciliation
+        final Map<String, Long> highWaterMarks;
+        if (reconciliationDao != null && accountRecordId != null) {
+            highWaterMarks = reconciliationDao.getKillbillHighWaterMarks(AnalyticsReconciliationScanner.getKillbillTableNames(refreshScope), accountRecordId, tenantRecordId);
+        } else {
+            highWaterMarks = null;
+        }
 
         logService.log(LogService.LOG_INFO, "Refreshing Analytics data for account " + businessContextFactory.getAccountId());
-        switch (job.getEventType()) {
+        switch (refreshScope) {
+            case ALL:
+                allBusinessObjectsDao.update(businessContextFactory);
+                break;
+            case SUBSCRIPTIONS:
+                bstDao.update(businessContextFactory);
+                break;
+            case ACCOUNT_TRANSITIONS:
+                bosDao.update(businessContextFactory);
+                break;
+            case INVOICES_AND_PAYMENTS:
+                binAndBipDao.update(businessContextFactory);
+                break;
+            case FIELDS:
+                bFieldDao.update(businessContextFactory);
+                break;
+            default:
+                break;
+        }
+
+        if (highWaterMarks != null) {
+            reconciliationDao.updateHighWaterMarks(highWaterMarks, accountRecordId, tenantRecordId, clock.getUTCNow());
+        }
+    }
+
+    @VisibleForTesting
+    static RefreshScope getRefreshScope(@Nullable final ExtBusEventType eventType) {
+        if (eventType == null) {
+            return null;
+        }
+
+        switch (eventType) {
             case ACCOUNT_CREATION:
             case ACCOUNT_CHANGE:
                 // Note: account information is denormalized across all tables, we pretty much
                 // have to refresh all objects
-                allBusinessObjectsDao.update(businessContextFactory);
-                break;
+                return RefreshScope.ALL;
             case SUBSCRIPTION_CREATION:
             case SUBSCRIPTION_CHANGE:
             case SUBSCRIPTION_CANCEL:
             case SUBSCRIPTION_PHASE:
             case SUBSCRIPTION_UNCANCEL:
-                bstDao.update(businessContextFactory);
-                break;
+                return RefreshScope.SUBSCRIPTIONS;
             case OVERDUE_CHANGE:
-                bosDao.update(businessContextFactory);
-                break;
+                return RefreshScope.ACCOUNT_TRANSITIONS;
             case INVOICE_CREATION:
             case INVOICE_ADJUSTMENT:
-                binAndBipDao.update(businessContextFactory);
-                break;
             case PAYMENT_SUCCESS:
             case PAYMENT_FAILED:
-                binAndBipDao.update(businessContextFactory);
-                break;
+                return RefreshScope.INVOICES_AND_PAYMENTS;
             case TAG_CREATION:
             case TAG_DELETION:
                 // Note: tags determine the report group. Since it is denormalized across all tables, we pretty much
                 // have to refresh all objects
-                allBusinessObjectsDao.update(businessContextFactory);
-                break;
+                return RefreshScope.ALL;
             case CUSTOM_FIELD_CREATION:
             case CUSTOM_FIELD_DELETION:
-                bFieldDao.update(businessContextFactory);
-                break;
+                return RefreshScope.FIELDS;
             default:
-                break;
+                return null;
+        }
+    }
+
+    // Event type of the jobs created outside of any bus event
+    private static ExtBusEventType getEventType(final RefreshScope refreshScope) {
+        switch (refreshScope) {
+            case SUBSCRIPTIONS:
+                return ExtBusEventType.SUBSCRIPTION_CHANGE;
+            case ACCOUNT_TRANSITIONS:
+                return ExtBusEventType.OVERDUE_CHANGE;
+            case INVOICES_AND_PAYMENTS:
+                return ExtBusEventType.INVOICE_ADJUSTMENT;
+            case FIELDS:
+                return ExtBusEventType.CUSTOM_FIELD_CREATION;
+            case ALL:
+            default:
+                return ExtBusEventType.ACCOUNT_CHANGE;
         }
     }
 
@@ -313,4 +575,9 @@ public class AnalyticsListener implements OSGIKillbillEventHandler {
     NotificationQueue getJobQueue() {
         return jobQueue;
     }
+
+    @VisibleForTesting
+    AccountRefreshGenerations getRefreshGenerations() {
+        return refreshGenerations;
+    }
 }
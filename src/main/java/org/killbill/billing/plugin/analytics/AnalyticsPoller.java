@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.AccountRefreshGenerations.RefreshScope;
+import org.killbill.billing.plugin.analytics.dao.PollingDao;
+import org.killbill.billing.plugin.analytics.dao.model.HighWaterMarkModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.ReconciliationAccountModelDao;
+import org.killbill.clock.Clock;
+import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
+import org.osgi.service.log.LogService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Polling ingestion mode, as an alternative to bus events for high-volume tenants.
+ * <p/>
+ * The Kill Bill tables are polled by record id watermark: at each interval, the accounts with new rows are computed in bulk
+ * for each table and refreshed in parallel, so the cost scales with the number of changed accounts rather than with
+ * the number of events. Watermarks are persisted once the refreshes of a batch are done.
+ * <p/>
+ * Accounts which fail to refresh are not retried by the poller (their rows are behind the watermarks already): polling
+ * requires the reconciliation scanner, which catches up on them, and stays off otherwise (bus events are processed instead).
+ * <p/>
+ * Refreshes go through the adaptive concurrency limit of the listener, but bypass the TenantFairScheduler: there is no
+ * queue to defer the jobs of a tenant over its share. Batches are consumed in record id order, so a tenant with a large
+ * backlog (e.g. a mass migration) delays the changes of the other tenants until its rows are consumed.
+ */
+public class AnalyticsPoller {
+
+    private static final String ANALYTICS_POLLING_PROPERTY_PREFIX = "org.killbill.billing.plugin.analytics.polling.";
+
+    @VisibleForTesting
+    static final String ANALYTICS_POLLING_ENABLED_PROPERTY = ANALYTICS_POLLING_PROPERTY_PREFIX + "enabled";
+    // Delay, in seconds, between two polls
+    private static final String ANALYTICS_POLLING_INTERVAL_PROPERTY = ANALYTICS_POLLING_PROPERTY_PREFIX + "interval";
+    // Max number of record ids to consume per table and per batch
+    @VisibleForTesting
+    static final String ANALYTICS_POLLING_BATCH_SIZE_PROPERTY = ANALYTICS_POLLING_PROPERTY_PREFIX + "batchSize";
+    // Rows more recent than that (in seconds) are not consumed yet, as transactions with lower record ids could still be in flight
+    @VisibleForTesting
+    static final String ANALYTICS_POLLING_LAG_PROPERTY = ANALYTICS_POLLING_PROPERTY_PREFIX + "lag";
+
+    private final OSGIKillbillLogService logService;
+    private final PollingDao pollingDao;
+    private final AnalyticsListener analyticsListener;
+    private final Executor executor;
+    private final Clock clock;
+    private final boolean enabled;
+    // Polling enabled, but not reconciliation
+    private final boolean misconfigured;
+    private final int intervalSeconds;
+    private final int batchSize;
+    private final int lagSeconds;
+    private final Counter refreshedAccounts;
+
+    private ScheduledExecutorService pollingExecutor;
+
+    public AnalyticsPoller(final OSGIKillbillLogService logService,
+                           final PollingDao pollingDao,
+                           final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                           final AnalyticsListener analyticsListener,
+                           final Executor executor,
+                           final Clock clock,
+                           final MetricRegistry metricRegistry) {
+        this.logService = logService;
+        this.pollingDao = pollingDao;
+        this.analyticsListener = analyticsListener;
+        this.executor = executor;
+        this.clock = clock;
+
+        this.enabled = isEnabled(osgiConfigPropertiesService);
+        this.misconfigured = !enabled && isPollingConfigured(osgiConfigPropertiesService);
+        this.intervalSeconds = getIntProperty(osgiConfigPropertiesService, ANALYTICS_POLLING_INTERVAL_PROPERTY, 10);
+        this.batchSize = getIntProperty(osgiConfigPropertiesService, ANALYTICS_POLLING_BATCH_SIZE_PROPERTY, 50000);
+        this.lagSeconds = getIntProperty(osgiConfigPropertiesService, ANALYTICS_POLLING_LAG_PROPERTY, 10);
+        this.refreshedAccounts = metricRegistry.counter(MetricRegistry.name(AnalyticsPoller.class, "refreshedAccounts"));
+    }
+
+    public static boolean isEnabled(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        return isPollingConfigured(osgiConfigPropertiesService) && AnalyticsReconciliationScanner.isEnabled(osgiConfigPropertiesService);
+    }
+
+    private static boolean isPollingConfigured(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        return Boolean.valueOf(Strings.nullToEmpty(osgiConfigPropertiesService.getString(ANALYTICS_POLLING_ENABLED_PROPERTY)));
+    }
+
+    public void start() {
+        if (!enabled) {
+            if (misconfigured) {
+                logService.log(LogService.LOG_ERROR, "Analytics polling requires " + AnalyticsReconciliationScanner.ANALYTICS_RECONCILIATION_ENABLED_PROPERTY + "=true, processing bus events instead");
+            }
+            return;
+        }
+
+        pollingExecutor = BusinessExecutor.newSingleThreadScheduledExecutor("osgi-analytics-polling");
+        pollingExecutor.scheduleWithFixedDelay(new Runnable() {
+                                                   @Override
+                                                   public void run() {
+                                                       try {
+                                                           // Drain the backlog, batch by batch (unless paused by the circuit breaker)
+                                                           while (!analyticsListener.isPaused() && poll() && !Thread.currentThread().isInterrupted()) {
+                                                               logService.log(LogService.LOG_DEBUG, "Analytics polling backlog not empty, polling again");
+                                                           }
+                                                       } catch (RuntimeException e) {
+                                                           logService.log(LogService.LOG_WARNING, "Analytics polling failed", e);
+                                                       }
+                                                   }
+                                               },
+                                               intervalSeconds,
+                                               intervalSeconds,
+                                               TimeUnit.SECONDS);
+    }
+
+    public void shutdownNow() {
+        if (pollingExecutor != null) {
+            pollingExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Refresh the accounts with new rows since the last poll.
+     *
+     * @return true if more rows are pending (batch size reached for at least one table)
+     */
+    @VisibleForTesting
+    boolean poll() {
+        final DateTime createdBefore = clock.getUTCNow().minusSeconds(lagSeconds);
+        final Map<String, Long> watermarks = pollingDao.getWatermarks();
+
+        final Map<String, Long> newWatermarks = new HashMap<String, Long>();
+        final SetMultimap<Long, RefreshScope> refreshScopesPerAccount = LinkedHashMultimap.<Long, RefreshScope>create();
+        boolean morePending = false;
+        for (final String tableName : AnalyticsReconciliationScanner.getKillbillTableNames(RefreshScope.ALL)) {
+            final Long maxRecordId = pollingDao.getKillbillMaxRecordId(tableName, createdBefore);
+            final Long fromRecordId = watermarks.get(tableName);
+            if (fromRecordId == null) {
+                // First poll: don't replay the history (see the reconciliation scanner or the refresh API for the initial load)
+                newWatermarks.put(tableName, maxRecordId);
+                continue;
+            }
+            if (maxRecordId <= fromRecordId) {
+                continue;
+            }
+
+            final Long toRecordId = Math.min(fromRecordId + batchSize, maxRecordId);
+            morePending = morePending || toRecordId < maxRecordId;
+            for (final HighWaterMarkModelDao changedAccount : pollingDao.getKillbillChangedAccounts(tableName, fromRecordId, toRecordId)) {
+                refreshScopesPerAccount.put(changedAccount.getAccountRecordId(), AnalyticsReconciliationScanner.getRefreshScope(tableName));
+            }
+            newWatermarks.put(tableName, toRecordId);
+        }
+
+        // Keep the watermarks if the batch couldn't be fully processed: it will be polled again
+        if (!refresh(refreshScopesPerAccount)) {
+            return false;
+        }
+
+        // Failed refreshes are only logged: the reconciliation scanner will pick them up (see isEnabled)
+        if (!newWatermarks.isEmpty()) {
+            pollingDao.updateWatermarks(newWatermarks, clock.getUTCNow());
+        }
+
+        return morePending;
+    }
+
+    // Return false if interrupted or paused by the circuit breaker
+    private boolean refresh(final SetMultimap<Long, RefreshScope> refreshScopesPerAccount) {
+        final List<FutureTask<Void>> tasks = new LinkedList<FutureTask<Void>>();
+        for (final ReconciliationAccountModelDao account : pollingDao.getKillbillAccounts(refreshScopesPerAccount.keySet())) {
+            final Iterable<RefreshScope> refreshScopes = refreshScopesPerAccount.get(account.getAccountRecordId()).contains(RefreshScope.ALL) ?
+                                                         ImmutableSet.<RefreshScope>of(RefreshScope.ALL) :
+                                                         refreshScopesPerAccount.get(account.getAccountRecordId());
+            final FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // Refreshes of a given account are done sequentially
+                    for (final RefreshScope refreshScope : refreshScopes) {
+                        analyticsListener.refresh(account.getAccountId(), account.getTenantId(), account.getAccountRecordId(), account.getTenantRecordId(), refreshScope);
+                    }
+                    return null;
+                }
+            });
+            tasks.add(task);
+            executor.execute(task);
+        }
+
+        boolean paused = false;
+        for (final FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+                refreshedAccounts.inc();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logService.log(LogService.LOG_WARNING, "Interrupted while waiting for Analytics refreshes", e);
+                return false;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof AnalyticsRefreshPausedException) {
+                    paused = true;
+                } else {
+                    logService.log(LogService.LOG_WARNING, "Unable to refresh Analytics data", e);
+                }
+            }
+        }
+
+        if (paused) {
+            logService.log(LogService.LOG_INFO, "Analytics refreshes paused, polling the batch again once resumed");
+        }
+        return !paused;
+    }
+
+    private static int getIntProperty(final OSGIConfigPropertiesService osgiConfigPropertiesService, final String property, final int defaultValue) {
+        final String valueMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(property));
+        return valueMaybeNull == null ? defaultValue : Integer.valueOf(valueMaybeNull);
+    }
+}
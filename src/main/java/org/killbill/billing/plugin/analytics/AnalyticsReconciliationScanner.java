@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.AccountRefreshGenerations.RefreshScope;
+import org.killbill.billing.plugin.analytics.dao.ReconciliationDao;
+import org.killbill.billing.plugin.analytics.dao.model.HighWaterMarkModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.ReconciliationAccountModelDao;
+import org.killbill.clock.Clock;
+import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
+import org.osgi.service.log.LogService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Predicates;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Background scanner catching up on accounts which drifted (plugin downtime, dropped bus events, failed refreshes, etc.).
+ * <p/>
+ * The Kill Bill tables are scanned incrementally, by record id ranges: for each account found, the max record id is compared
+ * against the high-water mark recorded by the last successful refresh, and a refresh is scheduled if newer rows exist.
+ * Each step only scans one range per table, and steps are spaced out to keep the load low.
+ */
+public class AnalyticsReconciliationScanner {
+
+    private static final String ANALYTICS_RECONCILIATION_PROPERTY_PREFIX = "org.killbill.billing.plugin.analytics.reconciliation.";
+
+    static final String ANALYTICS_RECONCILIATION_ENABLED_PROPERTY = ANALYTICS_RECONCILIATION_PROPERTY_PREFIX + "enabled";
+    // Number of record ids to scan, per table and per step
+    @VisibleForTesting
+    static final String ANALYTICS_RECONCILIATION_CHUNK_SIZE_PROPERTY = ANALYTICS_RECONCILIATION_PROPERTY_PREFIX + "chunkSize";
+    // Delay, in seconds, between two steps
+    private static final String ANALYTICS_RECONCILIATION_DELAY_PROPERTY = ANALYTICS_RECONCILIATION_PROPERTY_PREFIX + "delay";
+    // Rows more recent than that (in seconds) are ignored, as their refresh is most likely pending
+    @VisibleForTesting
+    static final String ANALYTICS_RECONCILIATION_GRACE_PERIOD_PROPERTY = ANALYTICS_RECONCILIATION_PROPERTY_PREFIX + "gracePeriod";
+
+    // Kill Bill tables to watch, with the refresh to trigger when new rows are found
+    private static final Map<String, RefreshScope> KILLBILL_TABLES = ImmutableMap.<String, RefreshScope>builder()
+                                                                                 .put("subscription_events", RefreshScope.SUBSCRIPTIONS)
+                                                                                 .put("blocking_states", RefreshScope.ACCOUNT_TRANSITIONS)
+                                                                                 .put("invoice_items", RefreshScope.INVOICES_AND_PAYMENTS)
+                                                                                 .put("invoice_payments", RefreshScope.INVOICES_AND_PAYMENTS)
+                                                                                 .put("payment_transactions", RefreshScope.INVOICES_AND_PAYMENTS)
+                                                                                 // Tags determine the report group, which is denormalized across all tables
+                                                                                 .put("tags", RefreshScope.ALL)
+                                                                                 .put("custom_fields", RefreshScope.FIELDS)
+                                                                                 .build();
+
+    private final OSGIKillbillLogService logService;
+    private final ReconciliationDao reconciliationDao;
+    private final AnalyticsListener analyticsListener;
+    private final Clock clock;
+    private final boolean enabled;
+    private final int chunkSize;
+    private final int delaySeconds;
+    private final int gracePeriodSeconds;
+    private final Counter driftedAccounts;
+    // Next record id to scan, for each table (only accessed by the scanner thread)
+    private final Map<String, Long> cursors = new HashMap<String, Long>();
+
+    private ScheduledExecutorService executor;
+
+    public AnalyticsReconciliationScanner(final OSGIKillbillLogService logService,
+                                          final ReconciliationDao reconciliationDao,
+                                          final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                                          final AnalyticsListener analyticsListener,
+                                          final Clock clock,
+                                          final MetricRegistry metricRegistry) {
+        this.logService = logService;
+        this.reconciliationDao = reconciliationDao;
+        this.analyticsListener = analyticsListener;
+        this.clock = clock;
+
+        this.enabled = isEnabled(osgiConfigPropertiesService);
+        this.chunkSize = getIntProperty(osgiConfigPropertiesService, ANALYTICS_RECONCILIATION_CHUNK_SIZE_PROPERTY, 10000);
+        this.delaySeconds = getIntProperty(osgiConfigPropertiesService, ANALYTICS_RECONCILIATION_DELAY_PROPERTY, 5);
+        this.gracePeriodSeconds = getIntProperty(osgiConfigPropertiesService, ANALYTICS_RECONCILIATION_GRACE_PERIOD_PROPERTY, 3600);
+        this.driftedAccounts = metricRegistry.counter(MetricRegistry.name(AnalyticsReconciliationScanner.class, "driftedAccounts"));
+
+        for (final String tableName : KILLBILL_TABLES.keySet()) {
+            cursors.put(tableName, 0L);
+        }
+    }
+
+    public static boolean isEnabled(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        return Boolean.valueOf(Strings.nullToEmpty(osgiConfigPropertiesService.getString(ANALYTICS_RECONCILIATION_ENABLED_PROPERTY)));
+    }
+
+    // Kill Bill tables whose rows are mirrored by that refresh
+    public static Set<String> getKillbillTableNames(final RefreshScope refreshScope) {
+        if (refreshScope == RefreshScope.ALL) {
+            return KILLBILL_TABLES.keySet();
+        } else {
+            return Maps.filterValues(KILLBILL_TABLES, Predicates.equalTo(refreshScope)).keySet();
+        }
+    }
+
+    // Refresh needed when new rows are found in that Kill Bill table
+    public static RefreshScope getRefreshScope(final String killbillTableName) {
+        return KILLBILL_TABLES.get(killbillTableName);
+    }
+
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+
+        executor = BusinessExecutor.newSingleThreadScheduledExecutor("osgi-analytics-reconciliation");
+        executor.scheduleWithFixedDelay(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                try {
+                                                    scan();
+                                                } catch (RuntimeException e) {
+                                                    logService.log(LogService.LOG_WARNING, "Analytics reconciliation step failed", e);
+                                                }
+                                            }
+                                        },
+                                        delaySeconds,
+                                        delaySeconds,
+                                        TimeUnit.SECONDS);
+    }
+
+    public void shutdownNow() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Scan the next range of each table and schedule refreshes for the accounts which drifted.
+     *
+     * @return the number of accounts refreshed
+     */
+    @VisibleForTesting
+    int scan() {
+        final DateTime createdBefore = clock.getUTCNow().minusSeconds(gracePeriodSeconds);
+
+        final Map<Long, Map<String, Long>> highWaterMarksPerAccount = new HashMap<Long, Map<String, Long>>();
+        final SetMultimap<Long, RefreshScope> refreshScopesPerAccount = LinkedHashMultimap.<Long, RefreshScope>create();
+        for (final String tableName : KILLBILL_TABLES.keySet()) {
+            for (final HighWaterMarkModelDao killbillHighWaterMark : scanNextRange(tableName, createdBefore)) {
+                final Long accountRecordId = killbillHighWaterMark.getAccountRecordId();
+                if (highWaterMarksPerAccount.get(accountRecordId) == null) {
+                    highWaterMarksPerAccount.put(accountRecordId, reconciliationDao.getHighWaterMarks(accountRecordId, killbillHighWaterMark.getTenantRecordId()));
+                }
+
+                final RefreshScope refreshScope = getRefreshScope(killbillHighWaterMark, highWaterMarksPerAccount.get(accountRecordId));
+                if (refreshScope != null) {
+                    refreshScopesPerAccount.put(accountRecordId, refreshScope);
+                }
+            }
+        }
+
+        for (final Long accountRecordId : refreshScopesPerAccount.keySet()) {
+            final ReconciliationAccountModelDao account = reconciliationDao.getKillbillAccount(accountRecordId);
+            if (account == null) {
+                continue;
+            }
+
+            final Set<RefreshScope> refreshScopes = refreshScopesPerAccount.get(accountRecordId);
+            logService.log(LogService.LOG_INFO, "Analytics data for account " + account.getAccountId() + " drifted, scheduling refreshes " + refreshScopes);
+            for (final RefreshScope refreshScope : refreshScopes.contains(RefreshScope.ALL) ? ImmutableSet.<RefreshScope>of(RefreshScope.ALL) : refreshScopes) {
+                analyticsListener.scheduleRefresh(account.getAccountId(), account.getTenantId(), accountRecordId, account.getTenantRecordId(), refreshScope);
+            }
+            driftedAccounts.inc();
+        }
+
+        return refreshScopesPerAccount.keySet().size();
+    }
+
+    private List<HighWaterMarkModelDao> scanNextRange(final String tableName, final DateTime createdBefore) {
+        final Long fromRecordId = cursors.get(tableName);
+
+        final Long maxRecordId = reconciliationDao.getKillbillMaxRecordId(tableName);
+        if (maxRecordId == null || fromRecordId >= maxRecordId) {
+            // Pass completed, start over
+            cursors.put(tableName, 0L);
+            return ImmutableList.<HighWaterMarkModelDao>of();
+        }
+
+        final Long toRecordId = fromRecordId + chunkSize;
+        cursors.put(tableName, toRecordId);
+        return reconciliationDao.getKillbillHighWaterMarks(tableName, fromRecordId, toRecordId, createdBefore);
+    }
+
+    private RefreshScope getRefreshScope(final HighWaterMarkModelDao killbillHighWaterMark, final Map<String, Long> highWaterMarks) {
+        final String tableName = killbillHighWaterMark.getTableName();
+        final Long accountRecordId = killbillHighWaterMark.getAccountRecordId();
+        final Long tenantRecordId = killbillHighWaterMark.getTenantRecordId();
+
+        final Long highWaterMark = highWaterMarks.get(tableName);
+        if (highWaterMark != null) {
+            return killbillHighWaterMark.getHighWaterMark() > highWaterMark ? KILLBILL_TABLES.get(tableName) : null;
+        }
+
+        if (!reconciliationDao.isAccountMirrored(accountRecordId, tenantRecordId)) {
+            // Never mirrored (or the initial refresh failed)
+            return RefreshScope.ALL;
+        }
+
+        // Mirrored before reconciliation was enabled: assume the data is up-to-date and record the current high-water mark
+        final Map<String, Long> currentHighWaterMark = reconciliationDao.getKillbillHighWaterMarks(ImmutableList.<String>of(tableName), accountRecordId, tenantRecordId);
+        reconciliationDao.updateHighWaterMarks(currentHighWaterMark, accountRecordId, tenantRecordId, clock.getUTCNow());
+        highWaterMarks.putAll(currentHighWaterMark);
+        return null;
+    }
+
+    private static int getIntProperty(final OSGIConfigPropertiesService osgiConfigPropertiesService, final String property, final int defaultValue) {
+        final String valueMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(property));
+        return valueMaybeNull == null ? defaultValue : Integer.valueOf(valueMaybeNull);
+    }
+}
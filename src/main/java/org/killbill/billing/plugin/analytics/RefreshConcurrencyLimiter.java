@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.sql.SQLTransactionRollbackException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.analytics.AccountRefreshGenerations.RefreshScope;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * AIMD (additive increase, multiplicative decrease) limiter of the number of concurrent account refreshes.
+ * <p/>
+ * The limit grows by one after a full window of successful refreshes, as long as it is used. It shrinks when a refresh
+ * fails because of a deadlock (or lock wait timeout), or when latencies stay above their long-term baseline: this protects
+ * the shared database during peaks, while letting the backlog drain as fast as possible off-peak.
+ * <p/>
+ * Latencies of a full rebuild and of a fields refresh are not comparable, so a baseline is kept per refresh scope. Within a
+ * scope, a single slow refresh usually means a large account rather than an overloaded database: only consecutive slow
+ * refreshes are taken as a sign of overload.
+ */
+public class RefreshConcurrencyLimiter {
+
+    public enum Outcome {
+        SUCCESS,
+        // Deadlock, lock wait timeout, etc.
+        DROPPED,
+        // Failures unrelated to the load (e.g. superseded refreshes), which don't say anything about the database
+        IGNORED
+    }
+
+    // Multiplicative decrease factor
+    private static final double BACKOFF_RATIO = 0.9;
+    // Latency, as a multiple of the baseline, above which the database is considered overloaded
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // Smoothing factor of the baseline latency (exponentially weighted moving average)
+    private static final double BASELINE_SMOOTHING = 0.05;
+    // Number of consecutive slow refreshes (in a given scope) before backing off
+    private static final int SLOW_REFRESHES_THRESHOLD = 3;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Lock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Histogram latencies;
+    private final Counter drops;
+
+    // Guarded by lock
+    private double limit;
+    private int inFlight;
+    private final Map<RefreshScope, LatencyBaseline> latencyBaselines = new HashMap<RefreshScope, LatencyBaseline>();
+    // Null until the first decrease (nanoTime values can't be compared against a sentinel without overflowing)
+    private Long lastDecreaseNanos = null;
+
+    public RefreshConcurrencyLimiter(final int minLimit, final int maxLimit, final int initialLimit, final MetricRegistry metricRegistry) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+
+        this.latencies = metricRegistry.histogram(MetricRegistry.name(RefreshConcurrencyLimiter.class, "latencyMs"));
+        this.drops = metricRegistry.counter(MetricRegistry.name(RefreshConcurrencyLimiter.class, "drops"));
+        metricRegistry.register(MetricRegistry.name(RefreshConcurrencyLimiter.class, "limit"),
+                                new Gauge<Integer>() {
+                                    @Override
+                                    public Integer getValue() {
+                                        return getLimit();
+                                    }
+                                });
+        metricRegistry.register(MetricRegistry.name(RefreshConcurrencyLimiter.class, "inFlight"),
+                                new Gauge<Integer>() {
+                                    @Override
+                                    public Integer getValue() {
+                                        return getInFlight();
+                                    }
+                                });
+    }
+
+    /**
+     * Wait for a slot.
+     *
+     * @return start time of the refresh, to pass to release
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public long acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                available.await();
+            }
+            inFlight++;
+            return System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(final long startNanos, final Outcome outcome) {
+        release(startNanos, outcome, null);
+    }
+
+    /**
+     * Release a slot.
+     *
+     * @param startNanos start time of the refresh, as returned by acquire
+     * @param outcome    outcome of the refresh
+     * @param scope      scope of the refresh, latencies are only compared within a scope
+     */
+    public void release(final long startNanos, final Outcome outcome, @Nullable final RefreshScope scope) {
+        final long nowNanos = System.nanoTime();
+        final long latencyNanos = nowNanos - startNanos;
+
+        lock.lock();
+        try {
+            // Was the limit reached (or close to), before this refresh completed?
+            final boolean saturated = 2 * inFlight >= (int) limit;
+            inFlight--;
+
+            if (outcome == Outcome.DROPPED) {
+                drops.inc();
+                decrease(startNanos, nowNanos);
+            } else if (outcome == Outcome.SUCCESS) {
+                latencies.update(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+
+                LatencyBaseline latencyBaseline = latencyBaselines.get(scope);
+                if (latencyBaseline == null) {
+                    latencyBaseline = new LatencyBaseline(latencyNanos);
+                    latencyBaselines.put(scope, latencyBaseline);
+                }
+
+                if (latencyNanos > LATENCY_TOLERANCE * latencyBaseline.baselineNanos) {
+                    latencyBaseline.slowRefreshes++;
+                    if (latencyBaseline.slowRefreshes >= SLOW_REFRESHES_THRESHOLD) {
+                        decrease(startNanos, nowNanos);
+                    }
+                } else {
+                    latencyBaseline.slowRefreshes = 0;
+                    if (saturated) {
+                        limit = Math.min(maxLimit, limit + 1.0 / limit);
+                    }
+                }
+                latencyBaseline.baselineNanos += BASELINE_SMOOTHING * (latencyNanos - latencyBaseline.baselineNanos);
+            }
+
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Start over from the minimum limit (e.g. after a pause)
+    public void reset() {
+        lock.lock();
+        try {
+            limit = minLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether the failure is a sign of contention in the database
+    public static boolean isDropped(@Nullable final Throwable throwable) {
+        Throwable cur = throwable;
+        while (cur != null) {
+            if (cur instanceof SQLTransactionRollbackException) {
+                return true;
+            }
+            final String message = cur.getMessage();
+            if (message != null && (message.contains("Deadlock found") || message.contains("Lock wait timeout exceeded"))) {
+                return true;
+            }
+            cur = cur.getCause();
+        }
+        return false;
+    }
+
+    @VisibleForTesting
+    double getBaselineLatencyNanos(@Nullable final RefreshScope scope) {
+        lock.lock();
+        try {
+            final LatencyBaseline latencyBaseline = latencyBaselines.get(scope);
+            return latencyBaseline == null ? -1 : latencyBaseline.baselineNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease(final long startNanos, final long nowNanos) {
+        // Back off at most once per window: refreshes started before the last decrease reflect the previous limit
+        if (lastDecreaseNanos != null && startNanos - lastDecreaseNanos < 0) {
+            return;
+        }
+        limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        lastDecreaseNanos = nowNanos;
+    }
+
+    private static final class LatencyBaseline {
+
+        private double baselineNanos;
+        private int slowRefreshes;
+
+        private LatencyBaseline(final double baselineNanos) {
+            this.baselineNanos = baselineNanos;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.analytics.dao.RefreshCostDao;
+import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+
+/**
+ * Defer expensive full account refreshes (ACCOUNT_CHANGE and TAG_* events) outside of peak hours.
+ * <p/>
+ * The cost of a rebuild is estimated from the number of rows the account currently has. Cheap rebuilds, as well as
+ * all rebuilds during the off-peak window, go through immediately. Expensive ones are run within an hourly cost budget,
+ * and deferred to the next hour with enough budget left, or to the next off-peak window (spread out across it),
+ * whichever comes first.
+ * <p/>
+ * Explicit rebuilds (see AnalyticsUserApi) are never deferred.
+ */
+public class RefreshDeferralPolicy {
+
+    private static final String ANALYTICS_DEFERRAL_PROPERTY_PREFIX = "org.killbill.billing.plugin.analytics.deferral.";
+
+    @VisibleForTesting
+    static final String ANALYTICS_DEFERRAL_ENABLED_PROPERTY = ANALYTICS_DEFERRAL_PROPERTY_PREFIX + "enabled";
+    // Rebuilds of accounts with less rows than that are never deferred
+    @VisibleForTesting
+    static final String ANALYTICS_DEFERRAL_THRESHOLD_PROPERTY = ANALYTICS_DEFERRAL_PROPERTY_PREFIX + "threshold";
+    // Off-peak window, as UTC hours (start included, end excluded). The window can span midnight. Set both to the same value to disable it.
+    @VisibleForTesting
+    static final String ANALYTICS_DEFERRAL_OFF_PEAK_START_HOUR_PROPERTY = ANALYTICS_DEFERRAL_PROPERTY_PREFIX + "offPeakStartHour";
+    @VisibleForTesting
+    static final String ANALYTICS_DEFERRAL_OFF_PEAK_END_HOUR_PROPERTY = ANALYTICS_DEFERRAL_PROPERTY_PREFIX + "offPeakEndHour";
+    // Max number of rows to rebuild per hour, outside of the off-peak window
+    @VisibleForTesting
+    static final String ANALYTICS_DEFERRAL_HOURLY_BUDGET_PROPERTY = ANALYTICS_DEFERRAL_PROPERTY_PREFIX + "hourlyBudget";
+
+    // Don't defer rebuilds more than a week
+    private static final int MAX_DEFERRAL_HOURS = 24 * 7;
+
+    private final RefreshCostDao refreshCostDao;
+    private final boolean enabled;
+    private final long threshold;
+    private final int offPeakStartHour;
+    private final int offPeakEndHour;
+    private final long hourlyBudget;
+    private final Counter deferredRefreshes;
+    private final Random random = new Random();
+
+    // Budget spent (or reserved) per hour. Guarded by this
+    private final Map<DateTime, Long> spentBudgets = new HashMap<DateTime, Long>();
+
+    public RefreshDeferralPolicy(final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                                 final RefreshCostDao refreshCostDao,
+                                 final MetricRegistry metricRegistry) {
+        this.refreshCostDao = refreshCostDao;
+
+        this.enabled = Boolean.valueOf(Strings.nullToEmpty(osgiConfigPropertiesService.getString(ANALYTICS_DEFERRAL_ENABLED_PROPERTY)));
+        this.threshold = getIntProperty(osgiConfigPropertiesService, ANALYTICS_DEFERRAL_THRESHOLD_PROPERTY, 10000);
+        this.offPeakStartHour = getIntProperty(osgiConfigPropertiesService, ANALYTICS_DEFERRAL_OFF_PEAK_START_HOUR_PROPERTY, 0);
+        this.offPeakEndHour = getIntProperty(osgiConfigPropertiesService, ANALYTICS_DEFERRAL_OFF_PEAK_END_HOUR_PROPERTY, 6);
+        this.hourlyBudget = getIntProperty(osgiConfigPropertiesService, ANALYTICS_DEFERRAL_HOURLY_BUDGET_PROPERTY, 100000);
+        this.deferredRefreshes = metricRegistry.counter(MetricRegistry.name(RefreshDeferralPolicy.class, "deferredRefreshes"));
+    }
+
+    /**
+     * Compute when to start the full refresh of an account.
+     *
+     * @param accountRecordId    account record id, if known
+     * @param tenantRecordId     tenant record id
+     * @param defaultRefreshTime earliest refresh time
+     * @return refresh time, no earlier than defaultRefreshTime
+     */
+    public DateTime computeRefreshTime(@Nullable final Long accountRecordId, @Nullable final Long tenantRecordId, final DateTime defaultRefreshTime) {
+        if (!enabled || accountRecordId == null) {
+            return defaultRefreshTime;
+        }
+
+        final long cost = refreshCostDao.getRowCount(accountRecordId, tenantRecordId);
+        return computeRefreshTime(cost, defaultRefreshTime);
+    }
+
+    @VisibleForTesting
+    synchronized DateTime computeRefreshTime(final long cost, final DateTime defaultRefreshTime) {
+        if (cost < threshold || isOffPeak(defaultRefreshTime)) {
+            return defaultRefreshTime;
+        }
+
+        final DateTime currentHour = defaultRefreshTime.toDateTime(DateTimeZone.UTC).hourOfDay().roundFloorCopy();
+        // Forget about past hours
+        final Iterator<DateTime> iterator = spentBudgets.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isBefore(currentHour)) {
+                iterator.remove();
+            }
+        }
+
+        DateTime hour = currentHour;
+        for (int i = 0; i < MAX_DEFERRAL_HOURS; i++) {
+            if (isOffPeak(hour)) {
+                // Beginning of the off-peak window: spread the deferred rebuilds across it
+                deferredRefreshes.inc();
+                return hour.plusSeconds(random.nextInt(getOffPeakWindowHours() * 3600));
+            }
+
+            final long spent = spentBudgets.containsKey(hour) ? spentBudgets.get(hour) : 0L;
+            // Rebuilds above the budget can only run off-peak, unless there is no off-peak window
+            if (spent + cost <= hourlyBudget || (spent == 0 && getOffPeakWindowHours() == 0)) {
+                spentBudgets.put(hour, spent + cost);
+                if (hour.equals(currentHour)) {
+                    return defaultRefreshTime;
+                } else {
+                    deferredRefreshes.inc();
+                    return hour.plusSeconds(random.nextInt(3600));
+                }
+            }
+
+            hour = hour.plusHours(1);
+        }
+
+        deferredRefreshes.inc();
+        return hour;
+    }
+
+    @VisibleForTesting
+    boolean isOffPeak(final DateTime dateTime) {
+        final int hourOfDay = dateTime.toDateTime(DateTimeZone.UTC).getHourOfDay();
+        if (offPeakStartHour == offPeakEndHour) {
+            return false;
+        } else if (offPeakStartHour < offPeakEndHour) {
+            return hourOfDay >= offPeakStartHour && hourOfDay < offPeakEndHour;
+        } else {
+            // Window spanning midnight
+            return hourOfDay >= offPeakStartHour || hourOfDay < offPeakEndHour;
+        }
+    }
+
+    private int getOffPeakWindowHours() {
+        return (offPeakEndHour - offPeakStartHour + 24) % 24;
+    }
+
+    private static int getIntProperty(final OSGIConfigPropertiesService osgiConfigPropertiesService, final String property, final int defaultValue) {
+        final String valueMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(property));
+        return valueMaybeNull == null ? defaultValue : Integer.valueOf(valueMaybeNull);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.clock.Clock;
+import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+/**
+ * Deficit round-robin across tenants, in front of the refresh queue.
+ * <p/>
+ * The notification queue is FIFO by effective date, so a tenant with a large backlog (e.g. a mass migration) would
+ * delay everybody else. Time is divided into rounds: in each round, a tenant can run up to quantum * weight refreshes
+ * (and never more than its cap). When the quota is exhausted and other tenants are active, the job is put back in the
+ * notification queue, in the next round with room for that tenant. If a single tenant is active, it gets all the capacity
+ * (caps still apply).
+ */
+public class TenantFairScheduler {
+
+    private static final String ANALYTICS_FAIRNESS_PROPERTY_PREFIX = "org.killbill.billing.plugin.analytics.fairness.";
+
+    @VisibleForTesting
+    static final String ANALYTICS_FAIRNESS_ENABLED_PROPERTY = ANALYTICS_FAIRNESS_PROPERTY_PREFIX + "enabled";
+    // Duration of a round, in milliseconds
+    @VisibleForTesting
+    static final String ANALYTICS_FAIRNESS_ROUND_PROPERTY = ANALYTICS_FAIRNESS_PROPERTY_PREFIX + "round";
+    // Number of refreshes per round, for a weight of 1
+    @VisibleForTesting
+    static final String ANALYTICS_FAIRNESS_QUANTUM_PROPERTY = ANALYTICS_FAIRNESS_PROPERTY_PREFIX + "quantum";
+    // Per-tenant weights (default 1), e.g. 1:5,2:0.5 (tenantRecordId:weight)
+    @VisibleForTesting
+    static final String ANALYTICS_FAIRNESS_WEIGHTS_PROPERTY = ANALYTICS_FAIRNESS_PROPERTY_PREFIX + "weights";
+    // Per-tenant max number of refreshes per round (no cap by default), e.g. 1:100 (tenantRecordId:cap)
+    @VisibleForTesting
+    static final String ANALYTICS_FAIRNESS_CAPS_PROPERTY = ANALYTICS_FAIRNESS_PROPERTY_PREFIX + "caps";
+
+    private static final Splitter.MapSplitter TENANTS_SPLITTER = Splitter.on(',')
+                                                                         .trimResults()
+                                                                         .omitEmptyStrings()
+                                                                         .withKeyValueSeparator(':');
+
+    private final Clock clock;
+    private final MetricRegistry metricRegistry;
+    private final boolean enabled;
+    private final long roundMillis;
+    private final int quantum;
+    private final Map<Long, Double> weights = new HashMap<Long, Double>();
+    private final Map<Long, Integer> caps = new HashMap<Long, Integer>();
+
+    // Guarded by this
+    private final Map<Long, TenantState> tenants = new HashMap<Long, TenantState>();
+
+    public TenantFairScheduler(final OSGIConfigPropertiesService osgiConfigPropertiesService, final Clock clock, final MetricRegistry metricRegistry) {
+        this.clock = clock;
+        this.metricRegistry = metricRegistry;
+
+        this.enabled = Boolean.valueOf(Strings.nullToEmpty(osgiConfigPropertiesService.getString(ANALYTICS_FAIRNESS_ENABLED_PROPERTY)));
+        final String roundMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_FAIRNESS_ROUND_PROPERTY));
+        this.roundMillis = roundMaybeNull == null ? 1000L : Long.valueOf(roundMaybeNull);
+        final String quantumMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_FAIRNESS_QUANTUM_PROPERTY));
+        this.quantum = quantumMaybeNull == null ? 10 : Integer.valueOf(quantumMaybeNull);
+
+        for (final Map.Entry<String, String> entry : TENANTS_SPLITTER.split(Strings.nullToEmpty(osgiConfigPropertiesService.getString(ANALYTICS_FAIRNESS_WEIGHTS_PROPERTY))).entrySet()) {
+            weights.put(Long.valueOf(entry.getKey()), Double.valueOf(entry.getValue()));
+        }
+        for (final Map.Entry<String, String> entry : TENANTS_SPLITTER.split(Strings.nullToEmpty(osgiConfigPropertiesService.getString(ANALYTICS_FAIRNESS_CAPS_PROPERTY))).entrySet()) {
+            caps.put(Long.valueOf(entry.getKey()), Integer.valueOf(entry.getValue()));
+        }
+    }
+
+    /**
+     * Decide whether a refresh job can run now.
+     *
+     * @param tenantRecordId tenant record id of the job
+     * @param enqueuedDate   date the job was first enqueued at, before any deferral (the admission latency is measured from it)
+     * @return null if the job can run now, the date to re-schedule it at otherwise
+     */
+    public synchronized DateTime admit(@Nullable final Long tenantRecordId, final DateTime enqueuedDate) {
+        if (!enabled || tenantRecordId == null) {
+            return null;
+        }
+
+        final DateTime now = clock.getUTCNow();
+        final long currentRound = now.getMillis() / roundMillis;
+        final TenantState tenant = getTenantState(tenantRecordId);
+        tenant.lastSeenRound = currentRound;
+        if (tenant.round != currentRound) {
+            // New round: replenish the deficit (unused credit isn't carried over)
+            tenant.round = currentRound;
+            tenant.deficit = tenant.quota;
+            tenant.admittedInRound = 0;
+        }
+
+        final boolean capReached = tenant.cap != null && tenant.admittedInRound >= tenant.cap;
+        if (!capReached && (tenant.deficit >= 1 || !isOtherTenantActive(tenantRecordId, currentRound))) {
+            tenant.deficit--;
+            tenant.admittedInRound++;
+            tenant.latency.update(Math.max(0, now.getMillis() - enqueuedDate.getMillis()));
+            return null;
+        }
+
+        // Reserve a slot in the next round with room for that tenant
+        final int perRound = tenant.cap == null ? tenant.quota : Math.min(tenant.quota, tenant.cap);
+        if (tenant.reservedRound <= currentRound) {
+            tenant.reservedRound = currentRound + 1;
+            tenant.reservedInRound = 0;
+        } else if (tenant.reservedInRound >= perRound) {
+            tenant.reservedRound++;
+            tenant.reservedInRound = 0;
+        }
+        // Space out the jobs within the round
+        final long offsetMillis = tenant.reservedInRound * roundMillis / perRound;
+        tenant.reservedInRound++;
+        tenant.deferred.inc();
+
+        return new DateTime(tenant.reservedRound * roundMillis + offsetMillis, DateTimeZone.UTC);
+    }
+
+    // Number of jobs put back in the queue, for future rounds
+    @VisibleForTesting
+    synchronized long getBacklog(final Long tenantRecordId) {
+        final TenantState tenant = tenants.get(tenantRecordId);
+        if (tenant == null) {
+            return 0;
+        }
+
+        final long currentRound = clock.getUTCNow().getMillis() / roundMillis;
+        if (tenant.reservedRound <= currentRound) {
+            return 0;
+        }
+        final int perRound = tenant.cap == null ? tenant.quota : Math.min(tenant.quota, tenant.cap);
+        return (tenant.reservedRound - currentRound - 1) * perRound + tenant.reservedInRound;
+    }
+
+    private boolean isOtherTenantActive(final Long tenantRecordId, final long currentRound) {
+        for (final Map.Entry<Long, TenantState> entry : tenants.entrySet()) {
+            if (entry.getKey().equals(tenantRecordId)) {
+                continue;
+            }
+            // Seen recently, or with jobs put back in the queue
+            if (entry.getValue().lastSeenRound >= currentRound - 1 || entry.getValue().reservedRound >= currentRound) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TenantState getTenantState(final Long tenantRecordId) {
+        TenantState tenant = tenants.get(tenantRecordId);
+        if (tenant == null) {
+            final Double weight = weights.get(tenantRecordId);
+            final int quota = Math.max(1, (int) (quantum * (weight == null ? 1.0 : weight)));
+            tenant = new TenantState(quota,
+                                     caps.get(tenantRecordId),
+                                     metricRegistry.counter(MetricRegistry.name(TenantFairScheduler.class, "tenant", tenantRecordId.toString(), "deferred")),
+                                     metricRegistry.histogram(MetricRegistry.name(TenantFairScheduler.class, "tenant", tenantRecordId.toString(), "latencyMs")));
+            metricRegistry.register(MetricRegistry.name(TenantFairScheduler.class, "tenant", tenantRecordId.toString(), "backlog"),
+                                    new Gauge<Long>() {
+                                        @Override
+                                        public Long getValue() {
+                                            return getBacklog(tenantRecordId);
+                                        }
+                                    });
+            tenants.put(tenantRecordId, tenant);
+        }
+        return tenant;
+    }
+
+    private static final class TenantState {
+
+        // Max number of refreshes per round (quantum * weight)
+        private final int quota;
+        private final Integer cap;
+        private final Counter deferred;
+        // Delay between the notification effective date and the refresh
+        private final Histogram latency;
+
+        private long round = -1;
+        private double deficit;
+        private int admittedInRound;
+        private long lastSeenRound = -1;
+        // Last round with jobs put back in the queue, and number of jobs in that round
+        private long reservedRound = -1;
+        private int reservedInRound;
+
+        private TenantState(final int quota, @Nullable final Integer cap, final Counter deferred, final Histogram latency) {
+            this.quota = quota;
+            this.cap = cap;
+            this.deferred = deferred;
+            this.latency = latency;
+        }
+    }
+}
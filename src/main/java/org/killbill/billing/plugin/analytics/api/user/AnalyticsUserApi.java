@@ -33,6 +33,8 @@ import org.killbill.billing.plugin.analytics.api.BusinessSubscriptionTransition;
 import org.killbill.billing.plugin.analytics.api.BusinessTag;
 import org.killbill.billing.plugin.analytics.dao.AllBusinessObjectsDao;
 import org.killbill.billing.plugin.analytics.dao.AnalyticsDao;
+import org.killbill.billing.plugin.analytics.dao.InvoicePaymentDao;
+import org.killbill.billing.plugin.analytics.dao.RecordIdDao;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
@@ -43,6 +45,8 @@ import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 import org.osgi.service.log.LogService;
 
+import com.codahale.metrics.MetricRegistry;
+
 public class AnalyticsUserApi {
 
     private final OSGIKillbillLogService logService;
@@ -52,20 +56,26 @@ public class AnalyticsUserApi {
     private final Clock clock;
     private final AnalyticsDao analyticsDao;
     private final AllBusinessObjectsDao allBusinessObjectsDao;
+    // Null if bulk lookups are disabled
+    private final RecordIdDao recordIdDao;
+    private final InvoicePaymentDao invoicePaymentDao;
 
     public AnalyticsUserApi(final OSGIKillbillLogService logService,
                             final OSGIKillbillAPI osgiKillbillAPI,
                             final OSGIKillbillDataSource osgiKillbillDataSource,
                             final OSGIConfigPropertiesService osgiConfigPropertiesService,
                             final Executor executor,
-                            final Clock clock) {
+                            final Clock clock,
+                            final MetricRegistry metricRegistry) {
         this.logService = logService;
         this.osgiKillbillAPI = osgiKillbillAPI;
         this.osgiKillbillDataSource = osgiKillbillDataSource;
         this.osgiConfigPropertiesService = osgiConfigPropertiesService;
         this.clock = clock;
         this.analyticsDao = new AnalyticsDao(logService, osgiKillbillAPI, osgiKillbillDataSource);
-        this.allBusinessObjectsDao = new AllBusinessObjectsDao(logService, osgiKillbillAPI, osgiKillbillDataSource, executor, clock);
+        this.allBusinessObjectsDao = new AllBusinessObjectsDao(logService, osgiKillbillAPI, osgiKillbillDataSource, osgiConfigPropertiesService, executor, clock, metricRegistry);
+        this.recordIdDao = RecordIdDao.isEnabled(osgiConfigPropertiesService) ? new RecordIdDao(osgiKillbillDataSource) : null;
+        this.invoicePaymentDao = InvoicePaymentDao.isEnabled(osgiConfigPropertiesService) ? new InvoicePaymentDao(osgiKillbillDataSource) : null;
     }
 
     public BusinessSnapshot getBusinessSnapshot(final UUID accountId, final TenantContext context) {
@@ -102,10 +112,11 @@ public class AnalyticsUserApi {
     }
 
     public void rebuildAnalyticsForAccount(final UUID accountId, final CallContext context) throws AnalyticsRefreshException {
-        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(accountId, context, logService, osgiKillbillAPI, osgiKillbillDataSource, osgiConfigPropertiesService, clock);
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(accountId, context, recordIdDao, invoicePaymentDao, logService, osgiKillbillAPI, osgiKillbillDataSource, osgiConfigPropertiesService, clock);
         logService.log(LogService.LOG_INFO, "Starting Analytics refresh for account " + businessContextFactory.getAccountId());
         // TODO Should we take the account lock?
-        allBusinessObjectsDao.update(businessContextFactory);
+        // Explicit rebuild: don't trust the fingerprints
+        allBusinessObjectsDao.update(businessContextFactory, true);
         logService.log(LogService.LOG_INFO, "Finished Analytics refresh for account " + businessContextFactory.getAccountId());
     }
 }
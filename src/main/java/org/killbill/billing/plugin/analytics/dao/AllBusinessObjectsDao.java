@@ -22,11 +22,14 @@ import java.util.concurrent.Executor;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
 import org.killbill.clock.Clock;
+import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 import org.osgi.service.log.LogService;
 
+import com.codahale.metrics.MetricRegistry;
+
 public class AllBusinessObjectsDao {
 
     private final LogService logService;
@@ -39,13 +42,15 @@ public class AllBusinessObjectsDao {
     public AllBusinessObjectsDao(final OSGIKillbillLogService logService,
                                  final OSGIKillbillAPI osgiKillbillAPI,
                                  final OSGIKillbillDataSource osgiKillbillDataSource,
+                                 final OSGIConfigPropertiesService osgiConfigPropertiesService,
                                  final Executor executor,
-                                 final Clock clock) {
+                                 final Clock clock,
+                                 final MetricRegistry metricRegistry) {
         this.logService = logService;
 
         final BusinessAccountDao bacDao = new BusinessAccountDao(logService, osgiKillbillDataSource);
         this.bstDao = new BusinessSubscriptionTransitionDao(logService, osgiKillbillDataSource, bacDao, executor);
-        this.binAndBipDao = new BusinessInvoiceAndPaymentDao(logService, osgiKillbillDataSource, bacDao, executor);
+        this.binAndBipDao = new BusinessInvoiceAndPaymentDao(logService, osgiKillbillDataSource, osgiConfigPropertiesService, bacDao, executor, metricRegistry);
         this.bosDao = new BusinessAccountTransitionDao(logService, osgiKillbillDataSource);
         this.bFieldDao = new BusinessFieldDao(logService, osgiKillbillDataSource);
         this.bTagDao = new BusinessTagDao(logService, osgiKillbillDataSource);
@@ -53,10 +58,15 @@ public class AllBusinessObjectsDao {
 
     // TODO: each refresh is done in a transaction - do we want to share a long running transaction across all refreshes?
     public void update(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        update(businessContextFactory, false);
+    }
+
+    // force: rewrite the records, even if the Kill Bill data didn't change since the last refresh
+    public void update(final BusinessContextFactory businessContextFactory, final boolean force) throws AnalyticsRefreshException {
         logService.log(LogService.LOG_DEBUG, "Starting rebuild of Analytics for account " + businessContextFactory.getAccountId());
 
         // Refresh invoices and payments. This will automatically trigger a refresh of account
-        binAndBipDao.update(businessContextFactory);
+        binAndBipDao.update(businessContextFactory, force);
 
         // Refresh subscription transitions
         bstDao.update(businessContextFactory);
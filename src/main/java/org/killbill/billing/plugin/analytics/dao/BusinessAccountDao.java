@@ -44,6 +44,8 @@ public class BusinessAccountDao extends BusinessAnalyticsDaoBase {
         // Recompute the account record
         final BusinessAccountModelDao bac = bacFactory.createBusinessAccount(businessContextFactory);
 
+        businessContextFactory.checkNotSuperseded("write");
+
         executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
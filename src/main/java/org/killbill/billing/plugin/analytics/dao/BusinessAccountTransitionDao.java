@@ -47,6 +47,8 @@ public class BusinessAccountTransitionDao extends BusinessAnalyticsDaoBase {
 
         final Collection<BusinessAccountTransitionModelDao> businessAccountTransitions = bosFactory.createBusinessAccountTransitions(businessContextFactory);
 
+        businessContextFactory.checkNotSuperseded("write");
+
         executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
@@ -17,19 +17,39 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionIsolationLevel;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+
+import com.google.common.base.Joiner;
 
 public class BusinessAnalyticsDaoBase {
 
+    private static final String RECORD_ID_COLUMN_NAME = "record_id";
+    private static final Joiner COLUMN_NAMES_JOINER = Joiner.on(',');
+
     protected final OSGIKillbillLogService logService;
     protected final BusinessAnalyticsSqlDao sqlDao;
 
+    private final DBI dbi;
+    // Table name -> comma-separated list of the columns copied from the staging table
+    private final ConcurrentMap<String, String> stagedColumnNames = new ConcurrentHashMap<String, String>();
+
     public BusinessAnalyticsDaoBase(final OSGIKillbillLogService logService, final OSGIKillbillDataSource osgiKillbillDataSource) {
-        final DBI dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
+        dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
         sqlDao = dbi.onDemand(BusinessAnalyticsSqlDao.class);
         this.logService = logService;
     }
@@ -42,4 +62,56 @@ public class BusinessAnalyticsDaoBase {
         // and accounts are not updated in parallel (not enforced, but we try hard not to).
         sqlDao.inTransaction(TransactionIsolationLevel.READ_COMMITTED, transaction);
     }
+
+    /**
+     * Copy the rows of a refresh from the staging table to the table, and remove them from the staging table.
+     *
+     * @param transactional   current transaction
+     * @param tableName       table to copy to (e.g. analytics_invoices)
+     * @param refreshId       id of the refresh which staged the rows
+     * @param accountRecordId account record id
+     * @param tenantRecordId  tenant record id
+     * @param context         call context
+     */
+    protected void publishStagedRowsInTransaction(final BusinessAnalyticsSqlDao transactional,
+                                                  final String tableName,
+                                                  final String refreshId,
+                                                  final Long accountRecordId,
+                                                  final Long tenantRecordId,
+                                                  final CallContext context) {
+        final String stagingTableName = BusinessDBIProvider.getStagingTableName(tableName);
+        transactional.publishStagedRows(tableName, stagingTableName, getStagedColumnNames(tableName), refreshId, accountRecordId, tenantRecordId, context);
+        transactional.deleteStagedRows(stagingTableName, refreshId, accountRecordId, tenantRecordId, context);
+    }
+
+    // All columns but the record id, which is generated again
+    private String getStagedColumnNames(final String tableName) {
+        String columnNames = stagedColumnNames.get(tableName);
+        if (columnNames == null) {
+            columnNames = dbi.withHandle(new HandleCallback<String>() {
+                @Override
+                public String withHandle(final Handle handle) throws Exception {
+                    final List<String> columnNames = new LinkedList<String>();
+                    final Connection connection = handle.getConnection();
+                    final DatabaseMetaData metaData = connection.getMetaData();
+                    // Underscores are wildcards in table name patterns
+                    final String tableNamePattern = tableName.replace("_", metaData.getSearchStringEscape() + "_");
+                    final ResultSet columns = metaData.getColumns(connection.getCatalog(), null, tableNamePattern, null);
+                    try {
+                        while (columns.next()) {
+                            final String columnName = columns.getString("COLUMN_NAME");
+                            if (!RECORD_ID_COLUMN_NAME.equalsIgnoreCase(columnName)) {
+                                columnNames.add(columnName);
+                            }
+                        }
+                    } finally {
+                        columns.close();
+                    }
+                    return COLUMN_NAMES_JOINER.join(columnNames);
+                }
+            });
+            stagedColumnNames.put(tableName, columnNames);
+        }
+        return columnNames;
+    }
 }
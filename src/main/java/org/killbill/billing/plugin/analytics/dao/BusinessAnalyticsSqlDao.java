@@ -19,6 +19,7 @@ package org.killbill.billing.plugin.analytics.dao;
 
 import java.util.List;
 
+import org.joda.time.DateTime;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountFieldModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountTagModelDao;
@@ -43,6 +44,7 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentCreditMode
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentPurchaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentRefundModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.RefreshFingerprintModelDao;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.commons.jdbi.binder.SmartBindBean;
@@ -67,6 +69,38 @@ public interface BusinessAnalyticsSqlDao extends Transactional<BusinessAnalytics
                                         @Bind("tenantRecordId") final Long tenantRecordId,
                                         final CallContext callContext);
 
+    // Insert into the staging table of the entity (see BusinessDBIProvider)
+    @SqlUpdate
+    public void createStaged(final String tableName,
+                             @Bind("refreshId") final String refreshId,
+                             @Bind("stagedDate") final DateTime stagedDate,
+                             @SmartBindBean final BusinessModelDaoBase entity,
+                             final CallContext callContext);
+
+    // Note: columnNames is a comma-separated list of columns, inlined in the statement (see BusinessAnalyticsDaoBase)
+    @SqlUpdate
+    public void publishStagedRows(@Define("tableName") final String tableName,
+                                  @Define("stagingTableName") final String stagingTableName,
+                                  @Define("columnNames") final String columnNames,
+                                  @Bind("refreshId") final String refreshId,
+                                  @Bind("accountRecordId") final Long accountRecordId,
+                                  @Bind("tenantRecordId") final Long tenantRecordId,
+                                  final CallContext callContext);
+
+    @SqlUpdate
+    public void deleteStagedRows(@Define("stagingTableName") final String stagingTableName,
+                                 @Bind("refreshId") final String refreshId,
+                                 @Bind("accountRecordId") final Long accountRecordId,
+                                 @Bind("tenantRecordId") final Long tenantRecordId,
+                                 final CallContext callContext);
+
+    @SqlUpdate
+    public void deleteStagedRowsBefore(@Define("stagingTableName") final String stagingTableName,
+                                       @Bind("stagedDate") final DateTime stagedDate,
+                                       @Bind("accountRecordId") final Long accountRecordId,
+                                       @Bind("tenantRecordId") final Long tenantRecordId,
+                                       final CallContext callContext);
+
     @SqlQuery
     public BusinessAccountModelDao getAccountByAccountRecordId(@Bind("accountRecordId") final Long accountRecordId,
                                                                @Bind("tenantRecordId") final Long tenantRecordId,
@@ -181,4 +215,24 @@ public interface BusinessAnalyticsSqlDao extends Transactional<BusinessAnalytics
     public List<BusinessInvoicePaymentTagModelDao> getInvoicePaymentTagsByAccountRecordId(@Bind("accountRecordId") final Long accountRecordId,
                                                                                           @Bind("tenantRecordId") final Long tenantRecordId,
                                                                                           final TenantContext tenantContext);
+
+    @SqlQuery
+    public RefreshFingerprintModelDao getRefreshFingerprint(@Bind("domain") final String domain,
+                                                            @Bind("accountRecordId") final Long accountRecordId,
+                                                            @Bind("tenantRecordId") final Long tenantRecordId,
+                                                            final TenantContext tenantContext);
+
+    @SqlUpdate
+    public void deleteRefreshFingerprint(@Bind("domain") final String domain,
+                                         @Bind("accountRecordId") final Long accountRecordId,
+                                         @Bind("tenantRecordId") final Long tenantRecordId,
+                                         final CallContext callContext);
+
+    @SqlUpdate
+    public void createRefreshFingerprint(@Bind("domain") final String domain,
+                                         @Bind("fingerprint") final String fingerprint,
+                                         @Bind("createdDate") final DateTime createdDate,
+                                         @Bind("accountRecordId") final Long accountRecordId,
+                                         @Bind("tenantRecordId") final Long tenantRecordId,
+                                         final CallContext callContext);
 }
@@ -44,7 +44,13 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentPurchaseMo
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentRefundModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.CurrencyConversionModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.HighWaterMarkModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.ReconciliationAccountModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.RecordIdModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.RefreshFingerprintModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.RowCountModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+import org.killbill.billing.plugin.analytics.reports.scheduler.ReportWatermarkModelDao;
 import org.killbill.commons.jdbi.ReusableStringTemplate3StatementLocator;
 import org.killbill.commons.jdbi.argument.DateTimeArgumentFactory;
 import org.killbill.commons.jdbi.argument.DateTimeZoneArgumentFactory;
@@ -67,8 +73,15 @@ import com.google.common.base.CharMatcher;
 
 public class BusinessDBIProvider {
 
+    private static final String STAGING_TABLE_SUFFIX = "_staging";
+
     private BusinessDBIProvider() {}
 
+    // Rows of large accounts are written there first, see BusinessInvoiceAndPaymentDao
+    public static String getStagingTableName(final String tableName) {
+        return tableName + STAGING_TABLE_SUFFIX;
+    }
+
     public static DBI get(final DataSource dataSource) {
         final DBI dbi = new DBI(dataSource);
 
@@ -96,7 +109,13 @@ public class BusinessDBIProvider {
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessBundleFieldModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessBundleTagModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(CurrencyConversionModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(HighWaterMarkModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(ReconciliationAccountModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(RecordIdModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(RefreshFingerprintModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(ReportsConfigurationModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(ReportWatermarkModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(RowCountModelDao.class));
 
         dbi.registerMapper(new UUIDMapper());
 
@@ -125,15 +144,22 @@ public class BusinessDBIProvider {
         @Override
         public String locate(final String name, final StatementContext ctx) throws Exception {
             // Rewrite create to createBac, createBin, createBiia, etc.
-            if ("create".equals(name)) {
+            if ("create".equals(name) || "createStaged".equals(name)) {
                 final Binding binding = ctx.getBinding();
                 if (binding != null) {
                     final Argument tableNameArgument = binding.forName("tableName");
                     if (tableNameArgument != null) {
                         // Lame, rely on toString (tableNameArgument will be a org.skife.jdbi.v2.StringArgument)
                         final String tableName = CharMatcher.anyOf("'").removeFrom(tableNameArgument.toString());
-                        final String newQueryName = name + CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, tableName);
-                        return super.locate(newQueryName, ctx);
+                        final String newQueryName = "create" + CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, tableName);
+                        final String sql = super.locate(newQueryName, ctx);
+                        if ("create".equals(name)) {
+                            return sql;
+                        } else {
+                            // Same insert, in the staging table, which has two more columns
+                            return sql.replaceFirst("insert into " + tableName + " \\(", "insert into " + getStagingTableName(tableName) + " (refresh_id, staged_date, ")
+                                      .replaceFirst("\\) values \\(", ") values (:refreshId, :stagedDate, ");
+                        }
                     }
                 }
             }
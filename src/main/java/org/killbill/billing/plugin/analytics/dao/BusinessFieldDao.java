@@ -44,6 +44,8 @@ public class BusinessFieldDao extends BusinessAnalyticsDaoBase {
 
         final BusinessModelDaosWithAccountAndTenantRecordId<BusinessFieldModelDao> fieldModelDaos = bFieldFactory.createBusinessFields(businessContextFactory);
 
+        businessContextFactory.checkNotSuperseded("write");
+
         executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
@@ -23,23 +23,34 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executor;
 
+import org.joda.time.DateTime;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.payment.api.Payment;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessAccountFactory;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessFingerprintFactory;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessInvoiceFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessModelDaosHandler;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessPaymentFactory;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentBaseModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.RefreshFingerprintModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.RefreshFingerprintModelDao.Domain;
 import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 import org.osgi.service.log.LogService;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionStatus;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
@@ -52,43 +63,94 @@ import com.google.common.collect.Multimap;
  */
 public class BusinessInvoiceAndPaymentDao extends BusinessAnalyticsDaoBase {
 
+    @VisibleForTesting
+    static final String ANALYTICS_STREAMING_THRESHOLD_PROPERTY = "org.killbill.billing.plugin.analytics.streaming.threshold";
+    @VisibleForTesting
+    static final String ANALYTICS_STREAMING_BATCH_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.streaming.batchSize";
+
+    private final int streamingThreshold;
+    private final int streamingBatchSize;
     private final BusinessAccountDao businessAccountDao;
     private final BusinessInvoiceDao businessInvoiceDao;
     private final BusinessPaymentDao businessPaymentDao;
     private final BusinessAccountFactory bacFactory;
     private final BusinessInvoiceFactory binFactory;
     private final BusinessPaymentFactory bipFactory;
+    private final BusinessFingerprintFactory fingerprintFactory;
+    private final Counter skippedRefreshes;
 
     public BusinessInvoiceAndPaymentDao(final OSGIKillbillLogService logService,
                                         final OSGIKillbillDataSource osgiKillbillDataSource,
+                                        final OSGIConfigPropertiesService osgiConfigPropertiesService,
                                         final BusinessAccountDao businessAccountDao,
-                                        final Executor executor) {
+                                        final Executor executor,
+                                        final MetricRegistry metricRegistry) {
         super(logService, osgiKillbillDataSource);
+
+        final String streamingThresholdMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_STREAMING_THRESHOLD_PROPERTY));
+        this.streamingThreshold = streamingThresholdMaybeNull == null ? 10000 : Integer.valueOf(streamingThresholdMaybeNull);
+        final String streamingBatchSizeMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_STREAMING_BATCH_SIZE_PROPERTY));
+        this.streamingBatchSize = streamingBatchSizeMaybeNull == null ? 1000 : Integer.valueOf(streamingBatchSizeMaybeNull);
+
         this.businessAccountDao = businessAccountDao;
         this.businessInvoiceDao = new BusinessInvoiceDao(logService, osgiKillbillDataSource);
         this.businessPaymentDao = new BusinessPaymentDao(logService, osgiKillbillDataSource);
         bacFactory = new BusinessAccountFactory();
         binFactory = new BusinessInvoiceFactory(executor);
         bipFactory = new BusinessPaymentFactory();
+        fingerprintFactory = new BusinessFingerprintFactory();
+        skippedRefreshes = metricRegistry.counter(MetricRegistry.name(BusinessInvoiceAndPaymentDao.class, "skippedRefreshes"));
     }
 
     public void update(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        update(businessContextFactory, false);
+    }
+
+    /**
+     * Rebuild the invoices and payments records of the account.
+     *
+     * @param businessContextFactory context for the account
+     * @param force                  true to rewrite the records even if the Kill Bill data didn't change since the last refresh
+     * @throws AnalyticsRefreshException
+     */
+    public void update(final BusinessContextFactory businessContextFactory, final boolean force) throws AnalyticsRefreshException {
         logService.log(LogService.LOG_DEBUG, "Starting rebuild of Analytics invoices and payments for account " + businessContextFactory.getAccountId());
 
         // Recompute the account record
         final BusinessAccountModelDao bac = bacFactory.createBusinessAccount(businessContextFactory);
 
+        // Don't rewrite the records if the source data is the same as during the last successful refresh
+        final String fingerprint = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+        if (!force && fingerprint.equals(getLastFingerprint(bac, businessContextFactory))) {
+            skippedRefreshes.inc();
+            logService.log(LogService.LOG_DEBUG, "Skipping rebuild of Analytics invoices and payments for account " + businessContextFactory.getAccountId() + ": no change");
+            return;
+        }
+
+        // Fetching is done: bail out if a newer refresh is pending, before building the records
+        businessContextFactory.checkNotSuperseded("build");
+
+        if (shouldStream(businessContextFactory)) {
+            logService.log(LogService.LOG_DEBUG, "Streaming rebuild of Analytics invoices and payments for account " + businessContextFactory.getAccountId());
+            updateInBatches(bac, fingerprint, businessContextFactory);
+            logService.log(LogService.LOG_DEBUG, "Finished rebuild of Analytics invoices and payments for account " + businessContextFactory.getAccountId());
+            return;
+        }
+
         // Recompute invoice, invoice items and invoice payments records
         final Map<UUID, BusinessInvoiceModelDao> invoices = new HashMap<UUID, BusinessInvoiceModelDao>();
         final Multimap<UUID, BusinessInvoiceItemBaseModelDao> invoiceItems = ArrayListMultimap.<UUID, BusinessInvoiceItemBaseModelDao>create();
         final Multimap<UUID, BusinessPaymentBaseModelDao> invoicePayments = ArrayListMultimap.<UUID, BusinessPaymentBaseModelDao>create();
         createBusinessPojos(businessContextFactory, invoices, invoiceItems, invoicePayments);
 
+        businessContextFactory.checkNotSuperseded("write");
+
         // Delete and recreate all items in the transaction
         executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
                 updateInTransaction(bac, invoices, invoiceItems, invoicePayments, transactional, businessContextFactory.getCallContext());
+                updateFingerprintInTransaction(bac, fingerprint, transactional, businessContextFactory.getCallContext());
                 return null;
             }
         });
@@ -96,6 +158,139 @@ public class BusinessInvoiceAndPaymentDao extends BusinessAnalyticsDaoBase {
         logService.log(LogService.LOG_DEBUG, "Finished rebuild of Analytics invoices and payments for account " + businessContextFactory.getAccountId());
     }
 
+    @VisibleForTesting
+    boolean shouldStream(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        if (streamingThreshold <= 0) {
+            return false;
+        }
+
+        // Both are needed anyways to rebuild the records
+        int nbRecords = 0;
+        for (final Invoice invoice : businessContextFactory.getAccountInvoices()) {
+            nbRecords += invoice.getInvoiceItems().size();
+        }
+        for (final Payment payment : businessContextFactory.getAccountPayments()) {
+            nbRecords += payment.getTransactions().size();
+        }
+        return nbRecords >= streamingThreshold;
+    }
+
+    /**
+     * Refresh the records of large accounts, without materializing all of them in memory.
+     * <p/>
+     * Records are built batch by batch, outside of any transaction, and each batch is written in the staging tables
+     * in its own short transaction. Readers keep seeing the previous records until the last transaction, which replaces
+     * them with the staged ones and updates the account record and the fingerprint. If the refresh is superseded or fails,
+     * its staged records are deleted (staged records left over by a crash are deleted by the next successful refresh).
+     *
+     * @param bac                    current, fully populated, BusinessAccountModelDao record
+     * @param fingerprint            fingerprint of the Kill Bill data
+     * @param businessContextFactory context for the account
+     */
+    private void updateInBatches(final BusinessAccountModelDao bac, final String fingerprint, final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        final CallContext context = businessContextFactory.getCallContext();
+        final String refreshId = UUID.randomUUID().toString();
+
+        boolean published = false;
+        try {
+            // Stage invoice and invoice items records
+            binFactory.createBusinessInvoicesAndInvoiceItems(businessContextFactory,
+                                                             streamingBatchSize,
+                                                             new BusinessModelDaosHandler<Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>>>() {
+                                                                 @Override
+                                                                 public void handle(final Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> batch) throws AnalyticsRefreshException {
+                                                                     // Stop early if a newer refresh is pending
+                                                                     businessContextFactory.checkNotSuperseded("invoices batch");
+
+                                                                     executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                                                                         @Override
+                                                                         public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                                                                             businessInvoiceDao.stageInTransaction(refreshId, batch, transactional, context);
+                                                                             return null;
+                                                                         }
+                                                                     });
+                                                                 }
+                                                             });
+
+            // Stage payment records
+            bipFactory.createBusinessPayments(businessContextFactory,
+                                              streamingBatchSize,
+                                              new BusinessModelDaosHandler<Collection<BusinessPaymentBaseModelDao>>() {
+                                                  @Override
+                                                  public void handle(final Collection<BusinessPaymentBaseModelDao> batch) throws AnalyticsRefreshException {
+                                                      businessContextFactory.checkNotSuperseded("payments batch");
+
+                                                      executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                                                          @Override
+                                                          public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                                                              businessPaymentDao.stageInTransaction(refreshId, batch, transactional, context);
+                                                              return null;
+                                                          }
+                                                      });
+                                                  }
+                                              });
+
+            businessContextFactory.checkNotSuperseded("write");
+
+            executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                @Override
+                public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                    // Replace the current records with the staged ones
+                    businessInvoiceDao.publishStagedInTransaction(bac, refreshId, transactional, context);
+                    businessPaymentDao.publishStagedInTransaction(bac, refreshId, transactional, context);
+
+                    // Update denormalized invoice and payment details in BAC
+                    businessAccountDao.updateInTransaction(bac, transactional, context);
+
+                    updateFingerprintInTransaction(bac, fingerprint, transactional, context);
+
+                    // Cleanup records staged by refreshes which died (no refresh of the account runs for that long)
+                    final DateTime staleStagedDate = context.getCreatedDate().minusDays(1);
+                    businessInvoiceDao.deleteStagedBeforeInTransaction(bac, staleStagedDate, transactional, context);
+                    businessPaymentDao.deleteStagedBeforeInTransaction(bac, staleStagedDate, transactional, context);
+                    return null;
+                }
+            });
+            published = true;
+        } finally {
+            if (!published) {
+                deleteStagedRecords(bac, refreshId, context);
+            }
+        }
+    }
+
+    private void deleteStagedRecords(final BusinessAccountModelDao bac, final String refreshId, final CallContext context) {
+        try {
+            executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                @Override
+                public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                    businessInvoiceDao.deleteStagedInTransaction(bac, refreshId, transactional, context);
+                    businessPaymentDao.deleteStagedInTransaction(bac, refreshId, transactional, context);
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            // Don't hide the original error, these records will be deleted by the next successful refresh anyways
+            logService.log(LogService.LOG_WARNING, "Unable to delete staged Analytics records for account " + bac.getAccountId(), e);
+        }
+    }
+
+    private String getLastFingerprint(final BusinessAccountModelDao bac, final BusinessContextFactory businessContextFactory) {
+        final RefreshFingerprintModelDao lastFingerprint = sqlDao.getRefreshFingerprint(Domain.INVOICES_AND_PAYMENTS.toString(),
+                                                                                         bac.getAccountRecordId(),
+                                                                                         bac.getTenantRecordId(),
+                                                                                         businessContextFactory.getCallContext());
+        return lastFingerprint == null ? null : lastFingerprint.getFingerprint();
+    }
+
+    private void updateFingerprintInTransaction(final BusinessAccountModelDao bac,
+                                                final String fingerprint,
+                                                final BusinessAnalyticsSqlDao transactional,
+                                                final CallContext context) {
+        transactional.deleteRefreshFingerprint(Domain.INVOICES_AND_PAYMENTS.toString(), bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+        transactional.createRefreshFingerprint(Domain.INVOICES_AND_PAYMENTS.toString(), fingerprint, context.getCreatedDate(), bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+    }
+
     @VisibleForTesting
     void createBusinessPojos(final BusinessContextFactory businessContextFactory,
                              final Map<UUID, BusinessInvoiceModelDao> invoices,
@@ -18,9 +18,11 @@
 package org.killbill.billing.plugin.analytics.dao;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import org.joda.time.DateTime;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
@@ -28,6 +30,7 @@ import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 
 public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
@@ -62,6 +65,84 @@ public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
         // Invoice and payment details in BAC will be updated by BusinessInvoiceAndInvoicePaymentDao
     }
 
+    /**
+     * Insert a batch of invoice and invoice item records in the staging tables. Used when streaming the new records in batches.
+     *
+     * @param refreshId       id of the refresh
+     * @param businessRecords mapping of BusinessInvoiceModelDao -> BusinessInvoiceItemBaseModelDao records
+     * @param transactional   current transaction
+     * @param context         call context
+     */
+    public void stageInTransaction(final String refreshId,
+                                   final Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> businessRecords,
+                                   final BusinessAnalyticsSqlDao transactional,
+                                   final CallContext context) {
+        for (final BusinessInvoiceModelDao businessInvoice : businessRecords.keySet()) {
+            transactional.createStaged(businessInvoice.getTableName(), refreshId, context.getCreatedDate(), businessInvoice, context);
+            for (final BusinessInvoiceItemBaseModelDao invoiceItem : businessRecords.get(businessInvoice)) {
+                transactional.createStaged(invoiceItem.getTableName(), refreshId, context.getCreatedDate(), invoiceItem, context);
+            }
+        }
+    }
+
+    /**
+     * Delete all invoice and invoice item records and replace them with the ones staged by the specified refresh.
+     *
+     * @param bac           current, fully populated, BusinessAccountModelDao record
+     * @param refreshId     id of the refresh
+     * @param transactional current transaction
+     * @param context       call context
+     */
+    public void publishStagedInTransaction(final BusinessAccountModelDao bac,
+                                           final String refreshId,
+                                           final BusinessAnalyticsSqlDao transactional,
+                                           final CallContext context) {
+        deleteInvoicesAndInvoiceItemsForAccountInTransaction(transactional, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+
+        publishStagedRowsInTransaction(transactional, BusinessInvoiceModelDao.INVOICES_TABLE_NAME, refreshId, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+        for (final String tableName : BusinessInvoiceItemBaseModelDao.ALL_INVOICE_ITEMS_TABLE_NAMES) {
+            publishStagedRowsInTransaction(transactional, tableName, refreshId, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+        }
+    }
+
+    /**
+     * Delete the invoice and invoice item records staged by the specified refresh (e.g. because it has been superseded).
+     *
+     * @param bac           current, fully populated, BusinessAccountModelDao record
+     * @param refreshId     id of the refresh
+     * @param transactional current transaction
+     * @param context       call context
+     */
+    public void deleteStagedInTransaction(final BusinessAccountModelDao bac,
+                                          final String refreshId,
+                                          final BusinessAnalyticsSqlDao transactional,
+                                          final CallContext context) {
+        for (final String tableName : getAllTableNames()) {
+            transactional.deleteStagedRows(BusinessDBIProvider.getStagingTableName(tableName), refreshId, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+        }
+    }
+
+    /**
+     * Delete the invoice and invoice item records staged before the specified date (leftovers of refreshes which never completed).
+     *
+     * @param bac           current, fully populated, BusinessAccountModelDao record
+     * @param stagedDate    cutoff date
+     * @param transactional current transaction
+     * @param context       call context
+     */
+    public void deleteStagedBeforeInTransaction(final BusinessAccountModelDao bac,
+                                                final DateTime stagedDate,
+                                                final BusinessAnalyticsSqlDao transactional,
+                                                final CallContext context) {
+        for (final String tableName : getAllTableNames()) {
+            transactional.deleteStagedRowsBefore(BusinessDBIProvider.getStagingTableName(tableName), stagedDate, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+        }
+    }
+
+    private List<String> getAllTableNames() {
+        return Lists.<String>asList(BusinessInvoiceModelDao.INVOICES_TABLE_NAME, BusinessInvoiceItemBaseModelDao.ALL_INVOICE_ITEMS_TABLE_NAMES);
+    }
+
     private void deleteInvoicesAndInvoiceItemsForAccountInTransaction(final BusinessAnalyticsSqlDao transactional,
                                                                       final Long accountRecordId,
                                                                       final Long tenantRecordId,
@@ -18,6 +18,7 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import org.joda.time.DateTime;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentBaseModelDao;
 import org.killbill.billing.util.callcontext.CallContext;
@@ -45,11 +46,92 @@ public class BusinessPaymentDao extends BusinessAnalyticsDaoBase {
         for (final String tableName : BusinessPaymentBaseModelDao.ALL_PAYMENTS_TABLE_NAMES) {
             transactional.deleteByAccountRecordId(tableName, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
         }
+        createInTransaction(businessInvoicePayments, transactional, context);
 
+        // Invoice and payment details in BAC will be updated by BusinessInvoiceAndInvoicePaymentDao
+    }
+
+    /**
+     * Insert a batch of invoice payment records in the staging tables. Used when streaming the new records in batches.
+     *
+     * @param refreshId               id of the refresh
+     * @param businessInvoicePayments BusinessInvoicePaymentBaseModelDao records
+     * @param transactional           current transaction
+     * @param context                 call context
+     */
+    public void stageInTransaction(final String refreshId,
+                                   final Iterable<BusinessPaymentBaseModelDao> businessInvoicePayments,
+                                   final BusinessAnalyticsSqlDao transactional,
+                                   final CallContext context) {
         for (final BusinessPaymentBaseModelDao invoicePayment : businessInvoicePayments) {
-            transactional.create(invoicePayment.getTableName(), invoicePayment, context);
+            transactional.createStaged(invoicePayment.getTableName(), refreshId, context.getCreatedDate(), invoicePayment, context);
         }
+    }
 
-        // Invoice and payment details in BAC will be updated by BusinessInvoiceAndInvoicePaymentDao
+    /**
+     * Delete all invoice payment records and replace them with the ones staged by the specified refresh.
+     *
+     * @param bac           current, fully populated, BusinessAccountModelDao record
+     * @param refreshId     id of the refresh
+     * @param transactional current transaction
+     * @param context       call context
+     */
+    public void publishStagedInTransaction(final BusinessAccountModelDao bac,
+                                           final String refreshId,
+                                           final BusinessAnalyticsSqlDao transactional,
+                                           final CallContext context) {
+        for (final String tableName : BusinessPaymentBaseModelDao.ALL_PAYMENTS_TABLE_NAMES) {
+            transactional.deleteByAccountRecordId(tableName, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+            publishStagedRowsInTransaction(transactional, tableName, refreshId, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+        }
+    }
+
+    /**
+     * Delete the invoice payment records staged by the specified refresh (e.g. because it has been superseded).
+     *
+     * @param bac           current, fully populated, BusinessAccountModelDao record
+     * @param refreshId     id of the refresh
+     * @param transactional current transaction
+     * @param context       call context
+     */
+    public void deleteStagedInTransaction(final BusinessAccountModelDao bac,
+                                          final String refreshId,
+                                          final BusinessAnalyticsSqlDao transactional,
+                                          final CallContext context) {
+        for (final String tableName : BusinessPaymentBaseModelDao.ALL_PAYMENTS_TABLE_NAMES) {
+            transactional.deleteStagedRows(BusinessDBIProvider.getStagingTableName(tableName), refreshId, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+        }
+    }
+
+    /**
+     * Delete the invoice payment records staged before the specified date (leftovers of refreshes which never completed).
+     *
+     * @param bac           current, fully populated, BusinessAccountModelDao record
+     * @param stagedDate    cutoff date
+     * @param transactional current transaction
+     * @param context       call context
+     */
+    public void deleteStagedBeforeInTransaction(final BusinessAccountModelDao bac,
+                                                final DateTime stagedDate,
+                                                final BusinessAnalyticsSqlDao transactional,
+                                                final CallContext context) {
+        for (final String tableName : BusinessPaymentBaseModelDao.ALL_PAYMENTS_TABLE_NAMES) {
+            transactional.deleteStagedRowsBefore(BusinessDBIProvider.getStagingTableName(tableName), stagedDate, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+        }
+    }
+
+    /**
+     * Insert a batch of invoice payment records. Existing records are expected to have been deleted already.
+     *
+     * @param businessInvoicePayments BusinessInvoicePaymentBaseModelDao records
+     * @param transactional           current transaction
+     * @param context                 call context
+     */
+    public void createInTransaction(final Iterable<BusinessPaymentBaseModelDao> businessInvoicePayments,
+                                    final BusinessAnalyticsSqlDao transactional,
+                                    final CallContext context) {
+        for (final BusinessPaymentBaseModelDao invoicePayment : businessInvoicePayments) {
+            transactional.create(invoicePayment.getTableName(), invoicePayment, context);
+        }
     }
 }
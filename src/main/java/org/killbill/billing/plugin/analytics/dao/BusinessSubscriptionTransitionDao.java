@@ -52,7 +52,7 @@ public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase
         this.businessBundleDao = new BusinessBundleDao(logService, osgiKillbillDataSource);
         bacFactory = new BusinessAccountFactory();
         bbsFactory = new BusinessBundleFactory(executor);
-        bstFactory = new BusinessSubscriptionTransitionFactory();
+        bstFactory = new BusinessSubscriptionTransitionFactory(executor);
     }
 
     public void update(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
@@ -66,6 +66,9 @@ public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase
 
         // Recompute the bundle summary records
         final Collection<BusinessBundleModelDao> bbss = bbsFactory.createBusinessBundles(businessContextFactory, bsts);
+
+        businessContextFactory.checkNotSuperseded("write");
+
         executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
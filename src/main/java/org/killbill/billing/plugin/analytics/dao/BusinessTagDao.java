@@ -44,6 +44,8 @@ public class BusinessTagDao extends BusinessAnalyticsDaoBase {
 
         final BusinessModelDaosWithAccountAndTenantRecordId<BusinessTagModelDao> tagModelDaos = bTagFactory.createBusinessTags(businessContextFactory);
 
+        businessContextFactory.checkNotSuperseded("write");
+
         executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
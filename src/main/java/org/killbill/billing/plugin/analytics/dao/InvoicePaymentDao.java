@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.invoice.api.InvoicePayment;
+import org.killbill.billing.plugin.analytics.dao.model.InvoicePaymentModelDao;
+import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.skife.jdbi.v2.DBI;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+
+/**
+ * Bulk lookups of invoice payments, directly against the Kill Bill tables (read-only).
+ * <p/>
+ * This avoids one InvoicePaymentApi round-trip per payment when refreshing large accounts.
+ */
+public class InvoicePaymentDao {
+
+    // Whether to look up invoice payments in bulk (enabled by default)
+    private static final String ANALYTICS_INVOICE_PAYMENTS_BULK_LOOKUP_PROPERTY = "org.killbill.billing.plugin.analytics.invoicePayments.bulkLookup";
+
+    private final InvoicePaymentSqlDao sqlDao;
+
+    public InvoicePaymentDao(final OSGIKillbillDataSource osgiKillbillDataSource) {
+        final DBI dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
+        this.sqlDao = dbi.onDemand(InvoicePaymentSqlDao.class);
+    }
+
+    public static boolean isEnabled(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        return Boolean.valueOf(Objects.firstNonNull(Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_INVOICE_PAYMENTS_BULK_LOOKUP_PROPERTY)), "true"));
+    }
+
+    // Return all invoice payments (including refunds and chargebacks) for the account, grouped by payment id
+    public Map<UUID, List<InvoicePayment>> getInvoicePaymentsByPaymentId(final Long accountRecordId, final Long tenantRecordId) {
+        final Map<UUID, List<InvoicePayment>> invoicePaymentsByPaymentId = new HashMap<UUID, List<InvoicePayment>>();
+        for (final InvoicePaymentModelDao invoicePayment : sqlDao.getInvoicePaymentsForAccount(accountRecordId, tenantRecordId)) {
+            if (invoicePaymentsByPaymentId.get(invoicePayment.getPaymentId()) == null) {
+                invoicePaymentsByPaymentId.put(invoicePayment.getPaymentId(), new LinkedList<InvoicePayment>());
+            }
+            invoicePaymentsByPaymentId.get(invoicePayment.getPaymentId()).add(invoicePayment);
+        }
+        return invoicePaymentsByPaymentId;
+    }
+}
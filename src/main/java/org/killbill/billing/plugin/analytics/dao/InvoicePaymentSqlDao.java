@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.InvoicePaymentType;
+import org.killbill.billing.plugin.analytics.dao.model.InvoicePaymentModelDao;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.customizers.Mapper;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+// Read-only queries against the Kill Bill tables
+@UseStringTemplate3StatementLocator
+public interface InvoicePaymentSqlDao {
+
+    @SqlQuery
+    @Mapper(InvoicePaymentModelDaoMapper.class)
+    public List<InvoicePaymentModelDao> getInvoicePaymentsForAccount(@Bind("accountRecordId") Long accountRecordId,
+                                                                     @Bind("tenantRecordId") Long tenantRecordId);
+
+    public static final class InvoicePaymentModelDaoMapper implements ResultSetMapper<InvoicePaymentModelDao> {
+
+        @Override
+        public InvoicePaymentModelDao map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+            return new InvoicePaymentModelDao(getUUID(r, "id"),
+                                              r.getString("type") == null ? null : InvoicePaymentType.valueOf(r.getString("type")),
+                                              getUUID(r, "invoice_id"),
+                                              getUUID(r, "payment_id"),
+                                              getDateTime(r, "payment_date"),
+                                              r.getBigDecimal("amount"),
+                                              r.getString("currency") == null ? null : Currency.valueOf(r.getString("currency")),
+                                              r.getString("processed_currency") == null ? null : Currency.valueOf(r.getString("processed_currency")),
+                                              r.getString("payment_cookie_id"),
+                                              getUUID(r, "linked_invoice_payment_id"),
+                                              getDateTime(r, "created_date"));
+        }
+
+        private UUID getUUID(final ResultSet r, final String column) throws SQLException {
+            final String value = r.getString(column);
+            return value == null ? null : UUID.fromString(value);
+        }
+
+        private DateTime getDateTime(final ResultSet r, final String column) throws SQLException {
+            // Kill Bill stores all dates in UTC
+            final Timestamp value = r.getTimestamp(column);
+            return value == null ? null : new DateTime(value.getTime(), DateTimeZone.UTC);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.dao.model.HighWaterMarkModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.ReconciliationAccountModelDao;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionIsolationLevel;
+import org.skife.jdbi.v2.TransactionStatus;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Change data capture of the Kill Bill tables, by record id watermark.
+ */
+public class PollingDao {
+
+    private static final Joiner RECORD_IDS_JOINER = Joiner.on(',');
+
+    private final PollingSqlDao sqlDao;
+
+    public PollingDao(final OSGIKillbillDataSource osgiKillbillDataSource) {
+        final DBI dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
+        this.sqlDao = dbi.onDemand(PollingSqlDao.class);
+    }
+
+    // Return the max record id of rows created before that date (i.e. most likely committed), 0 if none
+    public Long getKillbillMaxRecordId(final String tableName, final DateTime createdBefore) {
+        final HighWaterMarkModelDao maxRecordId = sqlDao.getKillbillMaxRecordIdCreatedBefore(tableName, createdBefore);
+        return maxRecordId == null || maxRecordId.getHighWaterMark() == null ? 0L : maxRecordId.getHighWaterMark();
+    }
+
+    // Return the accounts having rows in that range (fromRecordId excluded)
+    public List<HighWaterMarkModelDao> getKillbillChangedAccounts(final String tableName, final Long fromRecordId, final Long toRecordId) {
+        return sqlDao.getKillbillChangedAccounts(tableName, fromRecordId, toRecordId);
+    }
+
+    public List<ReconciliationAccountModelDao> getKillbillAccounts(final Iterable<Long> accountRecordIds) {
+        final String accountRecordIdsList = RECORD_IDS_JOINER.join(accountRecordIds);
+        if (accountRecordIdsList.isEmpty()) {
+            return ImmutableList.<ReconciliationAccountModelDao>of();
+        }
+        return sqlDao.getKillbillAccounts(accountRecordIdsList);
+    }
+
+    // Return the last record id processed, for each table
+    public Map<String, Long> getWatermarks() {
+        final Map<String, Long> watermarks = new HashMap<String, Long>();
+        for (final HighWaterMarkModelDao watermark : sqlDao.getWatermarks()) {
+            watermarks.put(watermark.getTableName(), watermark.getHighWaterMark());
+        }
+        return watermarks;
+    }
+
+    public void updateWatermarks(final Map<String, Long> watermarks, final DateTime updatedDate) {
+        sqlDao.inTransaction(TransactionIsolationLevel.READ_COMMITTED,
+                             new Transaction<Void, PollingSqlDao>() {
+                                 @Override
+                                 public Void inTransaction(final PollingSqlDao transactional, final TransactionStatus status) throws Exception {
+                                     for (final String tableName : watermarks.keySet()) {
+                                         transactional.deleteWatermark(tableName);
+                                         transactional.createWatermark(tableName, watermarks.get(tableName), updatedDate);
+                                     }
+                                     return null;
+                                 }
+                             });
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.dao.model.HighWaterMarkModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.ReconciliationAccountModelDao;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.Define;
+import org.skife.jdbi.v2.sqlobject.mixins.Transactional;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+
+@UseStringTemplate3StatementLocator
+public interface PollingSqlDao extends Transactional<PollingSqlDao> {
+
+    // Read-only queries against the Kill Bill tables
+
+    @SqlQuery
+    public HighWaterMarkModelDao getKillbillMaxRecordIdCreatedBefore(@Define("tableName") String tableName,
+                                                                     @Bind("createdBefore") DateTime createdBefore);
+
+    @SqlQuery
+    public List<HighWaterMarkModelDao> getKillbillChangedAccounts(@Define("tableName") String tableName,
+                                                                  @Bind("fromRecordId") Long fromRecordId,
+                                                                  @Bind("toRecordId") Long toRecordId);
+
+    // Note: accountRecordIds is a comma-separated list of record ids
+    @SqlQuery
+    public List<ReconciliationAccountModelDao> getKillbillAccounts(@Define("accountRecordIds") String accountRecordIds);
+
+    // Analytics tables
+
+    @SqlQuery
+    public List<HighWaterMarkModelDao> getWatermarks();
+
+    @SqlUpdate
+    public void deleteWatermark(@Bind("tableName") String tableName);
+
+    @SqlUpdate
+    public void createWatermark(@Bind("tableName") String tableName,
+                                @Bind("highWaterMark") Long highWaterMark,
+                                @Bind("updatedDate") DateTime updatedDate);
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.dao.model.HighWaterMarkModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.ReconciliationAccountModelDao;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionIsolationLevel;
+import org.skife.jdbi.v2.TransactionStatus;
+
+/**
+ * High-water marks (max record ids) of the Kill Bill tables, as seen by the last successful refresh of each account.
+ * <p/>
+ * Comparing them with the current Kill Bill high-water marks detects accounts which drifted (downtime, dropped
+ * events, failed refreshes, etc.).
+ */
+public class ReconciliationDao {
+
+    private final ReconciliationSqlDao sqlDao;
+
+    public ReconciliationDao(final OSGIKillbillDataSource osgiKillbillDataSource) {
+        final DBI dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
+        this.sqlDao = dbi.onDemand(ReconciliationSqlDao.class);
+    }
+
+    // Return the max record id of that Kill Bill table, null if empty
+    public Long getKillbillMaxRecordId(final String tableName) {
+        final HighWaterMarkModelDao maxRecordId = sqlDao.getKillbillMaxRecordId(tableName);
+        return maxRecordId == null ? null : maxRecordId.getHighWaterMark();
+    }
+
+    // Return the high-water mark of each account having rows in that range (fromRecordId excluded), ignoring the most recent rows
+    public List<HighWaterMarkModelDao> getKillbillHighWaterMarks(final String tableName, final Long fromRecordId, final Long toRecordId, final DateTime createdBefore) {
+        return sqlDao.getKillbillHighWaterMarksForRange(tableName, fromRecordId, toRecordId, createdBefore);
+    }
+
+    // Return the current high-water mark of each table for the account (0 if the account doesn't have any row)
+    public Map<String, Long> getKillbillHighWaterMarks(final Iterable<String> tableNames, final Long accountRecordId, final Long tenantRecordId) {
+        final Map<String, Long> highWaterMarks = new HashMap<String, Long>();
+        for (final String tableName : tableNames) {
+            final HighWaterMarkModelDao highWaterMark = sqlDao.getKillbillHighWaterMarkForAccount(tableName, accountRecordId, tenantRecordId);
+            highWaterMarks.put(tableName, highWaterMark == null || highWaterMark.getHighWaterMark() == null ? 0L : highWaterMark.getHighWaterMark());
+        }
+        return highWaterMarks;
+    }
+
+    public ReconciliationAccountModelDao getKillbillAccount(final Long accountRecordId) {
+        return sqlDao.getKillbillAccount(accountRecordId);
+    }
+
+    public boolean isAccountMirrored(final Long accountRecordId, final Long tenantRecordId) {
+        return sqlDao.getMirroredAccount(accountRecordId, tenantRecordId) != null;
+    }
+
+    // Return the high-water mark of each table, as of the last successful refresh
+    public Map<String, Long> getHighWaterMarks(final Long accountRecordId, final Long tenantRecordId) {
+        final Map<String, Long> highWaterMarks = new HashMap<String, Long>();
+        for (final HighWaterMarkModelDao highWaterMark : sqlDao.getHighWaterMarks(accountRecordId, tenantRecordId)) {
+            highWaterMarks.put(highWaterMark.getTableName(), highWaterMark.getHighWaterMark());
+        }
+        return highWaterMarks;
+    }
+
+    public void updateHighWaterMarks(final Map<String, Long> highWaterMarks, final Long accountRecordId, final Long tenantRecordId, final DateTime createdDate) {
+        sqlDao.inTransaction(TransactionIsolationLevel.READ_COMMITTED,
+                             new Transaction<Void, ReconciliationSqlDao>() {
+                                 @Override
+                                 public Void inTransaction(final ReconciliationSqlDao transactional, final TransactionStatus status) throws Exception {
+                                     for (final String tableName : highWaterMarks.keySet()) {
+                                         transactional.deleteHighWaterMark(tableName, accountRecordId, tenantRecordId);
+                                         transactional.createHighWaterMark(tableName, highWaterMarks.get(tableName), createdDate, accountRecordId, tenantRecordId);
+                                     }
+                                     return null;
+                                 }
+                             });
+    }
+}
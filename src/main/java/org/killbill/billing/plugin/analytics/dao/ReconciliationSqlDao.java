@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.dao.model.HighWaterMarkModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.ReconciliationAccountModelDao;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.Define;
+import org.skife.jdbi.v2.sqlobject.mixins.Transactional;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+
+@UseStringTemplate3StatementLocator
+public interface ReconciliationSqlDao extends Transactional<ReconciliationSqlDao> {
+
+    // Read-only queries against the Kill Bill tables
+
+    @SqlQuery
+    public HighWaterMarkModelDao getKillbillMaxRecordId(@Define("tableName") String tableName);
+
+    @SqlQuery
+    public List<HighWaterMarkModelDao> getKillbillHighWaterMarksForRange(@Define("tableName") String tableName,
+                                                                         @Bind("fromRecordId") Long fromRecordId,
+                                                                         @Bind("toRecordId") Long toRecordId,
+                                                                         @Bind("createdBefore") DateTime createdBefore);
+
+    @SqlQuery
+    public HighWaterMarkModelDao getKillbillHighWaterMarkForAccount(@Define("tableName") String tableName,
+                                                                    @Bind("accountRecordId") Long accountRecordId,
+                                                                    @Bind("tenantRecordId") Long tenantRecordId);
+
+    @SqlQuery
+    public ReconciliationAccountModelDao getKillbillAccount(@Bind("accountRecordId") Long accountRecordId);
+
+    // Analytics tables
+
+    @SqlQuery
+    public ReconciliationAccountModelDao getMirroredAccount(@Bind("accountRecordId") Long accountRecordId,
+                                                            @Bind("tenantRecordId") Long tenantRecordId);
+
+    @SqlQuery
+    public List<HighWaterMarkModelDao> getHighWaterMarks(@Bind("accountRecordId") Long accountRecordId,
+                                                         @Bind("tenantRecordId") Long tenantRecordId);
+
+    @SqlUpdate
+    public void deleteHighWaterMark(@Bind("tableName") String tableName,
+                                    @Bind("accountRecordId") Long accountRecordId,
+                                    @Bind("tenantRecordId") Long tenantRecordId);
+
+    @SqlUpdate
+    public void createHighWaterMark(@Bind("tableName") String tableName,
+                                    @Bind("highWaterMark") Long highWaterMark,
+                                    @Bind("createdDate") DateTime createdDate,
+                                    @Bind("accountRecordId") Long accountRecordId,
+                                    @Bind("tenantRecordId") Long tenantRecordId);
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.plugin.analytics.dao.model.RecordIdModelDao;
+import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.skife.jdbi.v2.DBI;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Bulk lookups of record ids, directly against the Kill Bill tables (read-only).
+ * <p/>
+ * This avoids one RecordIdApi round-trip per object when refreshing large accounts.
+ */
+public class RecordIdDao {
+
+    // Whether to look up record ids in bulk (enabled by default)
+    private static final String ANALYTICS_RECORD_IDS_BULK_LOOKUP_PROPERTY = "org.killbill.billing.plugin.analytics.recordIds.bulkLookup";
+
+    private static final Map<ObjectType, String> TABLE_NAMES = ImmutableMap.<ObjectType, String>builder()
+                                                                           .put(ObjectType.BUNDLE, "bundles")
+                                                                           .put(ObjectType.SUBSCRIPTION_EVENT, "subscription_events")
+                                                                           .put(ObjectType.BLOCKING_STATES, "blocking_states")
+                                                                           .put(ObjectType.INVOICE, "invoices")
+                                                                           .put(ObjectType.INVOICE_ITEM, "invoice_items")
+                                                                           .put(ObjectType.INVOICE_PAYMENT, "invoice_payments")
+                                                                           .put(ObjectType.PAYMENT, "payments")
+                                                                           .put(ObjectType.TAG, "tags")
+                                                                           .put(ObjectType.CUSTOM_FIELD, "custom_fields")
+                                                                           .build();
+
+    private final RecordIdSqlDao sqlDao;
+
+    public RecordIdDao(final OSGIKillbillDataSource osgiKillbillDataSource) {
+        final DBI dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
+        this.sqlDao = dbi.onDemand(RecordIdSqlDao.class);
+    }
+
+    public static boolean isEnabled(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        return Boolean.valueOf(Objects.firstNonNull(Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_RECORD_IDS_BULK_LOOKUP_PROPERTY)), "true"));
+    }
+
+    public static boolean supports(final ObjectType objectType) {
+        return TABLE_NAMES.containsKey(objectType);
+    }
+
+    // Return the mapping id -> record_id for all objects of that type for the account
+    public Map<UUID, Long> getRecordIdsForAccount(final ObjectType objectType, final Long accountRecordId, final Long tenantRecordId) {
+        final String tableName = TABLE_NAMES.get(objectType);
+        if (tableName == null) {
+            throw new IllegalArgumentException("Bulk record id lookups are not supported for object type " + objectType);
+        }
+
+        final Map<UUID, Long> recordIds = new HashMap<UUID, Long>();
+        for (final RecordIdModelDao recordIdModelDao : sqlDao.getRecordIdsForAccount(tableName, accountRecordId, tenantRecordId)) {
+            recordIds.put(recordIdModelDao.getId(), recordIdModelDao.getRecordId());
+        }
+        return recordIds;
+    }
+}
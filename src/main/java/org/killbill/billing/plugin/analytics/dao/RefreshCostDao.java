@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import org.killbill.billing.plugin.analytics.dao.model.RowCountModelDao;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.skife.jdbi.v2.DBI;
+
+/**
+ * Estimate the cost of a full refresh, from the number of rows the account currently has in the main analytics tables.
+ */
+public class RefreshCostDao {
+
+    private final RefreshCostSqlDao sqlDao;
+
+    public RefreshCostDao(final OSGIKillbillDataSource osgiKillbillDataSource) {
+        final DBI dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
+        this.sqlDao = dbi.onDemand(RefreshCostSqlDao.class);
+    }
+
+    // Return the number of rows of the account (0 if never refreshed)
+    public long getRowCount(final Long accountRecordId, final Long tenantRecordId) {
+        final RowCountModelDao rowCount = sqlDao.getRowCount(accountRecordId, tenantRecordId);
+        return rowCount == null || rowCount.getRowCount() == null ? 0L : rowCount.getRowCount();
+    }
+}
@@ -84,12 +84,11 @@ public class BusinessBundleFactory {
         final CompletionService<BusinessBundleModelDao> completionService = new ExecutorCompletionService<BusinessBundleModelDao>(executor);
         final Collection<BusinessBundleModelDao> bbss = new LinkedList<BusinessBundleModelDao>();
         for (final BusinessSubscriptionTransitionModelDao bst : bstForBundle.values()) {
-            // Fetch audit logs in the main thread as AccountAuditLogs is not thread safe
-            final AuditLog creationAuditLog = businessContextFactory.getBundleCreationAuditLog(bst.getBundleId());
-
             completionService.submit(new Callable<BusinessBundleModelDao>() {
                 @Override
                 public BusinessBundleModelDao call() throws Exception {
+                    // Creation audit logs are snapshotted once for the account, so this doesn't serialize the workers
+                    final AuditLog creationAuditLog = businessContextFactory.getBundleCreationAuditLog(bst.getBundleId());
                     return buildBBS(businessContextFactory,
                                     account,
                                     creationAuditLog,
@@ -22,6 +22,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
 
 import org.joda.time.LocalDate;
 import org.killbill.billing.ObjectType;
@@ -36,6 +40,9 @@ import org.killbill.billing.invoice.api.InvoicePayment;
 import org.killbill.billing.payment.api.Payment;
 import org.killbill.billing.payment.api.PaymentMethod;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
+import org.killbill.billing.plugin.analytics.AnalyticsRefreshSupersededException;
+import org.killbill.billing.plugin.analytics.dao.InvoicePaymentDao;
+import org.killbill.billing.plugin.analytics.dao.RecordIdDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase;
 import org.killbill.billing.plugin.analytics.utils.CurrencyConverter;
 import org.killbill.billing.util.audit.AccountAuditLogs;
@@ -49,6 +56,11 @@ import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
+import org.osgi.service.log.LogService;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
 
 public class BusinessContextFactory extends BusinessFactoryBase {
 
@@ -71,33 +83,27 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     private Map<UUID, PaymentMethod> accountPaymentMethods;
     private Iterable<Tag> accountTags;
     private Iterable<CustomField> accountCustomFields;
+    // Creation audit logs, snapshotted once per object type and then read concurrently by the factories workers
+    private final ConcurrentMap<ObjectType, CreationAuditLogsSnapshot> creationAuditLogsSnapshots = new ConcurrentHashMap<ObjectType, CreationAuditLogsSnapshot>();
     // Cheap lookups, as all audit logs have been pre-fetched
     private AuditLog accountCreationAuditLog;
-    private Map<UUID, AuditLog> bundleCreationAuditLogs = new HashMap<UUID, AuditLog>();
     private Map<UUID, AuditLog> subscriptionEventCreationAuditLogs = new HashMap<UUID, AuditLog>();
     private Map<UUID, AuditLog> blockingStateCreationAuditLogs = new HashMap<UUID, AuditLog>();
-    private Map<UUID, AuditLog> invoiceCreationAuditLogs = new HashMap<UUID, AuditLog>();
-    private Map<UUID, AuditLog> invoiceItemCreationAuditLogs = new HashMap<UUID, AuditLog>();
-    private Map<UUID, AuditLog> invoicePaymentCreationAuditLogs = new HashMap<UUID, AuditLog>();
-    private Map<UUID, AuditLog> paymentCreationAuditLogs = new HashMap<UUID, AuditLog>();
-    private Map<UUID, AuditLog> tagCreationAuditLogs = new HashMap<UUID, AuditLog>();
-    private Map<UUID, AuditLog> customFieldCreationAuditLogs = new HashMap<UUID, AuditLog>();
-    // Cheap lookups (should be in Ehcache)
-    private Map<UUID, Long> bundleRecordIds = new HashMap<UUID, Long>();
-    private Map<UUID, Long> subscriptionEventRecordIds = new HashMap<UUID, Long>();
-    private Map<UUID, Long> blockingStateRecordIds = new HashMap<UUID, Long>();
-    private Map<UUID, Long> invoiceRecordIds = new HashMap<UUID, Long>();
-    private Map<UUID, Long> invoiceItemRecordIds = new HashMap<UUID, Long>();
-    private Map<UUID, Long> invoicePaymentRecordIds = new HashMap<UUID, Long>();
-    private Map<UUID, Long> paymentRecordIds = new HashMap<UUID, Long>();
-    private Map<UUID, Long> tagRecordIds = new HashMap<UUID, Long>();
-    private Map<UUID, Long> customFieldRecordIds = new HashMap<UUID, Long>();
+    // Cheap lookups (should be in Ehcache), pre-filled in bulk per object type when possible
+    private final Map<ObjectType, Map<UUID, Long>> recordIds = new HashMap<ObjectType, Map<UUID, Long>>();
+    // Null if bulk lookups are disabled
+    private final RecordIdDao recordIdDao;
+    private final InvoicePaymentDao invoicePaymentDao;
     // Others
     private Map<String, SubscriptionBundle> latestSubscriptionBundleForExternalKeys = new HashMap<String, SubscriptionBundle>();
     private Map<UUID, TagDefinition> tagDefinitions = new HashMap<UUID, TagDefinition>();
+    // Whether a newer refresh is pending for that account
+    private volatile Supplier<Boolean> supersededCheck = Suppliers.ofInstance(Boolean.FALSE);
 
     public BusinessContextFactory(final UUID accountId,
                                   final CallContext callContext,
+                                  @Nullable final RecordIdDao recordIdDao,
+                                  @Nullable final InvoicePaymentDao invoicePaymentDao,
                                   final OSGIKillbillLogService logService,
                                   final OSGIKillbillAPI osgiKillbillAPI,
                                   final OSGIKillbillDataSource osgiKillbillDataSource,
@@ -106,6 +112,8 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         super(logService, osgiKillbillAPI, osgiKillbillDataSource, osgiConfigPropertiesService, clock);
         this.accountId = accountId;
         this.callContext = callContext;
+        this.recordIdDao = recordIdDao;
+        this.invoicePaymentDao = invoicePaymentDao;
 
         // Always needed
         this.accountRecordId = getAccountRecordId(accountId, callContext);
@@ -118,6 +126,22 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         return accountId;
     }
 
+    public void setSupersededCheck(final Supplier<Boolean> supersededCheck) {
+        this.supersededCheck = supersededCheck;
+    }
+
+    /**
+     * Abort the refresh if it has been superseded by a newer one, to avoid fetching, building or writing stale data.
+     *
+     * @param phase name of the next phase, for logging
+     * @throws AnalyticsRefreshSupersededException if a newer refresh is pending
+     */
+    public void checkNotSuperseded(final String phase) throws AnalyticsRefreshSupersededException {
+        if (supersededCheck.get()) {
+            throw new AnalyticsRefreshSupersededException("Refresh for account " + accountId + " superseded before " + phase);
+        }
+    }
+
     public Long getAccountRecordId() {
         return accountRecordId;
     }
@@ -182,12 +206,39 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     }
 
     public synchronized Map<UUID, List<InvoicePayment>> getAccountInvoicePayments() throws AnalyticsRefreshException {
+        if (accountInvoicePayments == null) {
+            accountInvoicePayments = getAccountInvoicePaymentsInBulk();
+        }
         if (accountInvoicePayments == null) {
             accountInvoicePayments = getAccountInvoicePayments(getAccountPayments(), callContext);
         }
         return accountInvoicePayments;
     }
 
+    // Needs to be called with the lock held. Return null if the bulk lookup isn't available
+    private Map<UUID, List<InvoicePayment>> getAccountInvoicePaymentsInBulk() throws AnalyticsRefreshException {
+        if (invoicePaymentDao == null) {
+            return null;
+        }
+
+        final Map<UUID, List<InvoicePayment>> invoicePaymentsByPaymentId;
+        try {
+            invoicePaymentsByPaymentId = invoicePaymentDao.getInvoicePaymentsByPaymentId(accountRecordId, tenantRecordId);
+        } catch (RuntimeException e) {
+            logService.log(LogService.LOG_WARNING, "Unable to bulk lookup invoice payments for accountRecordId " + accountRecordId, e);
+            return null;
+        }
+
+        // Same contract as the InvoicePaymentApi lookups: one entry per payment
+        final Map<UUID, List<InvoicePayment>> allInvoicePaymentsByPaymentId = new HashMap<UUID, List<InvoicePayment>>(invoicePaymentsByPaymentId);
+        for (final Payment payment : getAccountPayments()) {
+            if (allInvoicePaymentsByPaymentId.get(payment.getId()) == null) {
+                allInvoicePaymentsByPaymentId.put(payment.getId(), ImmutableList.<InvoicePayment>of());
+            }
+        }
+        return allInvoicePaymentsByPaymentId;
+    }
+
     public synchronized Iterable<Payment> getAccountPayments() throws AnalyticsRefreshException {
         if (accountPayments == null) {
             accountPayments = getPaymentsWithPluginInfoByAccountId(accountId, callContext);
@@ -226,11 +277,82 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         return accountCreationAuditLog;
     }
 
-    public synchronized AuditLog getBundleCreationAuditLog(final UUID bundleId) throws AnalyticsRefreshException {
-        if (bundleCreationAuditLogs.get(bundleId) == null) {
-            bundleCreationAuditLogs.put(bundleId, getBundleCreationAuditLog(bundleId, accountAuditLogs));
+    public CreationAuditLogsSnapshot getCreationAuditLogsSnapshot(final ObjectType objectType) throws AnalyticsRefreshException {
+        CreationAuditLogsSnapshot snapshot = creationAuditLogsSnapshots.get(objectType);
+        if (snapshot == null) {
+            synchronized (this) {
+                snapshot = creationAuditLogsSnapshots.get(objectType);
+                if (snapshot == null) {
+                    snapshot = new CreationAuditLogsSnapshot(objectType, buildCreationAuditLogs(objectType));
+                    creationAuditLogsSnapshots.put(objectType, snapshot);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    // Needs to be called with the lock held, as AccountAuditLogs is not thread safe
+    private Map<UUID, AuditLog> buildCreationAuditLogs(final ObjectType objectType) throws AnalyticsRefreshException {
+        final Map<UUID, AuditLog> creationAuditLogs = new HashMap<UUID, AuditLog>();
+        switch (objectType) {
+            case BUNDLE:
+                for (final SubscriptionBundle bundle : getAccountBundles()) {
+                    creationAuditLogs.put(bundle.getId(), getBundleCreationAuditLog(bundle.getId(), accountAuditLogs));
+                }
+                break;
+            case INVOICE:
+                for (final Invoice invoice : getAccountInvoices()) {
+                    creationAuditLogs.put(invoice.getId(), getInvoiceCreationAuditLog(invoice.getId(), accountAuditLogs));
+                }
+                break;
+            case INVOICE_ITEM:
+                for (final Invoice invoice : getAccountInvoices()) {
+                    for (final InvoiceItem invoiceItem : invoice.getInvoiceItems()) {
+                        if (invoiceItem.getId() != null) {
+                            creationAuditLogs.put(invoiceItem.getId(), getInvoiceItemCreationAuditLog(invoiceItem.getId(), accountAuditLogs));
+                        }
+                    }
+                }
+                break;
+            case INVOICE_PAYMENT:
+                for (final List<InvoicePayment> invoicePayments : getAccountInvoicePayments().values()) {
+                    for (final InvoicePayment invoicePayment : invoicePayments) {
+                        creationAuditLogs.put(invoicePayment.getId(), getInvoicePaymentCreationAuditLog(invoicePayment.getId(), accountAuditLogs));
+                    }
+                }
+                break;
+            case PAYMENT:
+                for (final Payment payment : getAccountPayments()) {
+                    creationAuditLogs.put(payment.getId(), getPaymentCreationAuditLog(payment.getId(), accountAuditLogs));
+                }
+                break;
+            case TAG:
+                for (final Tag tag : getAccountTags()) {
+                    creationAuditLogs.put(tag.getId(), getTagCreationAuditLog(tag.getId(), accountAuditLogs));
+                }
+                break;
+            case CUSTOM_FIELD:
+                for (final CustomField customField : getAccountCustomFields()) {
+                    creationAuditLogs.put(customField.getId(), getFieldCreationAuditLog(customField.getId(), accountAuditLogs));
+                }
+                break;
+            default:
+                // Not snapshotted, lookups will go directly to AccountAuditLogs
+                break;
+        }
+        return creationAuditLogs;
+    }
+
+    public AuditLog getBundleCreationAuditLog(final UUID bundleId) throws AnalyticsRefreshException {
+        final CreationAuditLogsSnapshot snapshot = getCreationAuditLogsSnapshot(ObjectType.BUNDLE);
+        if (snapshot.contains(bundleId)) {
+            return snapshot.get(bundleId);
+        }
+
+        // Object not known when the snapshot was taken
+        synchronized (this) {
+            return getBundleCreationAuditLog(bundleId, accountAuditLogs);
         }
-        return bundleCreationAuditLogs.get(bundleId);
     }
 
     public synchronized AuditLog getSubscriptionEventCreationAuditLog(final UUID subscriptionEventId, final ObjectType objectType) throws AnalyticsRefreshException {
@@ -247,49 +369,80 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         return blockingStateCreationAuditLogs.get(blockingStateId);
     }
 
-    public synchronized AuditLog getInvoiceCreationAuditLog(final UUID invoiceId) throws AnalyticsRefreshException {
-        if (invoiceCreationAuditLogs.get(invoiceId) == null) {
-            invoiceCreationAuditLogs.put(invoiceId, getInvoiceCreationAuditLog(invoiceId, accountAuditLogs));
+    public AuditLog getInvoiceCreationAuditLog(final UUID invoiceId) throws AnalyticsRefreshException {
+        final CreationAuditLogsSnapshot snapshot = getCreationAuditLogsSnapshot(ObjectType.INVOICE);
+        if (snapshot.contains(invoiceId)) {
+            return snapshot.get(invoiceId);
+        }
+
+        // Object not known when the snapshot was taken
+        synchronized (this) {
+            return getInvoiceCreationAuditLog(invoiceId, accountAuditLogs);
         }
-        return invoiceCreationAuditLogs.get(invoiceId);
     }
 
-    public synchronized AuditLog getInvoiceItemCreationAuditLog(final UUID invoiceItemId) throws AnalyticsRefreshException {
-        if (invoiceItemCreationAuditLogs.get(invoiceItemId) == null) {
-            invoiceItemCreationAuditLogs.put(invoiceItemId, getInvoiceItemCreationAuditLog(invoiceItemId, accountAuditLogs));
+    public AuditLog getInvoiceItemCreationAuditLog(final UUID invoiceItemId) throws AnalyticsRefreshException {
+        final CreationAuditLogsSnapshot snapshot = getCreationAuditLogsSnapshot(ObjectType.INVOICE_ITEM);
+        if (snapshot.contains(invoiceItemId)) {
+            return snapshot.get(invoiceItemId);
+        }
+
+        // Object not known when the snapshot was taken
+        synchronized (this) {
+            return getInvoiceItemCreationAuditLog(invoiceItemId, accountAuditLogs);
         }
-        return invoiceItemCreationAuditLogs.get(invoiceItemId);
     }
 
-    public synchronized AuditLog getInvoicePaymentCreationAuditLog(final UUID invoicePaymentId) throws AnalyticsRefreshException {
-        if (invoicePaymentCreationAuditLogs.get(invoicePaymentId) == null) {
-            invoicePaymentCreationAuditLogs.put(invoicePaymentId, getInvoicePaymentCreationAuditLog(invoicePaymentId, accountAuditLogs));
+    public AuditLog getInvoicePaymentCreationAuditLog(final UUID invoicePaymentId) throws AnalyticsRefreshException {
+        final CreationAuditLogsSnapshot snapshot = getCreationAuditLogsSnapshot(ObjectType.INVOICE_PAYMENT);
+        if (snapshot.contains(invoicePaymentId)) {
+            return snapshot.get(invoicePaymentId);
+        }
+
+        // Object not known when the snapshot was taken
+        synchronized (this) {
+            return getInvoicePaymentCreationAuditLog(invoicePaymentId, accountAuditLogs);
         }
-        return invoicePaymentCreationAuditLogs.get(invoicePaymentId);
     }
 
-    public synchronized AuditLog getPaymentCreationAuditLog(final UUID paymentId) throws AnalyticsRefreshException {
-        if (paymentCreationAuditLogs.get(paymentId) == null) {
-            paymentCreationAuditLogs.put(paymentId, getPaymentCreationAuditLog(paymentId, accountAuditLogs));
+    public AuditLog getPaymentCreationAuditLog(final UUID paymentId) throws AnalyticsRefreshException {
+        final CreationAuditLogsSnapshot snapshot = getCreationAuditLogsSnapshot(ObjectType.PAYMENT);
+        if (snapshot.contains(paymentId)) {
+            return snapshot.get(paymentId);
+        }
+
+        // Object not known when the snapshot was taken
+        synchronized (this) {
+            return getPaymentCreationAuditLog(paymentId, accountAuditLogs);
         }
-        return paymentCreationAuditLogs.get(paymentId);
     }
 
-    public synchronized AuditLog getTagCreationAuditLog(final UUID tagId) throws AnalyticsRefreshException {
-        if (tagCreationAuditLogs.get(tagId) == null) {
-            tagCreationAuditLogs.put(tagId, getTagCreationAuditLog(tagId, accountAuditLogs));
+    public AuditLog getTagCreationAuditLog(final UUID tagId) throws AnalyticsRefreshException {
+        final CreationAuditLogsSnapshot snapshot = getCreationAuditLogsSnapshot(ObjectType.TAG);
+        if (snapshot.contains(tagId)) {
+            return snapshot.get(tagId);
+        }
+
+        // Object not known when the snapshot was taken
+        synchronized (this) {
+            return getTagCreationAuditLog(tagId, accountAuditLogs);
         }
-        return tagCreationAuditLogs.get(tagId);
     }
 
-    public synchronized AuditLog getCustomFieldCreationAuditLog(final UUID customFieldId) throws AnalyticsRefreshException {
-        if (customFieldCreationAuditLogs.get(customFieldId) == null) {
-            customFieldCreationAuditLogs.put(customFieldId, getFieldCreationAuditLog(customFieldId, accountAuditLogs));
+    public AuditLog getCustomFieldCreationAuditLog(final UUID customFieldId) throws AnalyticsRefreshException {
+        final CreationAuditLogsSnapshot snapshot = getCreationAuditLogsSnapshot(ObjectType.CUSTOM_FIELD);
+        if (snapshot.contains(customFieldId)) {
+            return snapshot.get(customFieldId);
+        }
+
+        // Object not known when the snapshot was taken
+        synchronized (this) {
+            return getFieldCreationAuditLog(customFieldId, accountAuditLogs);
         }
-        return customFieldCreationAuditLogs.get(customFieldId);
     }
 
     public synchronized Long getBundleRecordId(final UUID bundleId) throws AnalyticsRefreshException {
+        final Map<UUID, Long> bundleRecordIds = getRecordIds(ObjectType.BUNDLE);
         if (bundleRecordIds.get(bundleId) == null) {
             bundleRecordIds.put(bundleId, getBundleRecordId(bundleId, callContext));
         }
@@ -297,6 +450,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     }
 
     public synchronized Long getSubscriptionEventRecordId(final UUID subscriptionEventId, final ObjectType objectType) throws AnalyticsRefreshException {
+        final Map<UUID, Long> subscriptionEventRecordIds = getRecordIds(objectType);
         if (subscriptionEventRecordIds.get(subscriptionEventId) == null) {
             subscriptionEventRecordIds.put(subscriptionEventId, getSubscriptionEventRecordId(subscriptionEventId, objectType, callContext));
         }
@@ -304,6 +458,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     }
 
     public synchronized Long getBlockingStateRecordId(final UUID blockingStateId) throws AnalyticsRefreshException {
+        final Map<UUID, Long> blockingStateRecordIds = getRecordIds(ObjectType.BLOCKING_STATES);
         if (blockingStateRecordIds.get(blockingStateId) == null) {
             blockingStateRecordIds.put(blockingStateId, getBlockingStateRecordId(blockingStateId, callContext));
         }
@@ -311,6 +466,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     }
 
     public synchronized Long getInvoiceRecordId(final UUID invoiceId) throws AnalyticsRefreshException {
+        final Map<UUID, Long> invoiceRecordIds = getRecordIds(ObjectType.INVOICE);
         if (invoiceRecordIds.get(invoiceId) == null) {
             invoiceRecordIds.put(invoiceId, getInvoiceRecordId(invoiceId, callContext));
         }
@@ -318,6 +474,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     }
 
     public synchronized Long getInvoiceItemRecordId(final UUID invoiceItemId) throws AnalyticsRefreshException {
+        final Map<UUID, Long> invoiceItemRecordIds = getRecordIds(ObjectType.INVOICE_ITEM);
         if (invoiceItemRecordIds.get(invoiceItemId) == null) {
             invoiceItemRecordIds.put(invoiceItemId, getInvoiceItemRecordId(invoiceItemId, callContext));
         }
@@ -325,6 +482,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     }
 
     public synchronized Long getInvoicePaymentRecordId(final UUID invoicePaymentId) throws AnalyticsRefreshException {
+        final Map<UUID, Long> invoicePaymentRecordIds = getRecordIds(ObjectType.INVOICE_PAYMENT);
         if (invoicePaymentRecordIds.get(invoicePaymentId) == null) {
             invoicePaymentRecordIds.put(invoicePaymentId, getInvoicePaymentRecordId(invoicePaymentId, callContext));
         }
@@ -332,6 +490,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     }
 
     public synchronized Long getPaymentRecordId(final UUID paymentId) throws AnalyticsRefreshException {
+        final Map<UUID, Long> paymentRecordIds = getRecordIds(ObjectType.PAYMENT);
         if (paymentRecordIds.get(paymentId) == null) {
             paymentRecordIds.put(paymentId, getPaymentRecordId(paymentId, callContext));
         }
@@ -339,6 +498,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     }
 
     public synchronized Long getTagRecordId(final UUID tagId) throws AnalyticsRefreshException {
+        final Map<UUID, Long> tagRecordIds = getRecordIds(ObjectType.TAG);
         if (tagRecordIds.get(tagId) == null) {
             tagRecordIds.put(tagId, getTagRecordId(tagId, callContext));
         }
@@ -346,12 +506,31 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     }
 
     public synchronized Long getCustomFieldRecordId(final UUID customFieldId) throws AnalyticsRefreshException {
+        final Map<UUID, Long> customFieldRecordIds = getRecordIds(ObjectType.CUSTOM_FIELD);
         if (customFieldRecordIds.get(customFieldId) == null) {
             customFieldRecordIds.put(customFieldId, getFieldRecordId(customFieldId, callContext));
         }
         return customFieldRecordIds.get(customFieldId);
     }
 
+    // Needs to be called with the lock held
+    private Map<UUID, Long> getRecordIds(final ObjectType objectType) {
+        Map<UUID, Long> recordIdsForObjectType = recordIds.get(objectType);
+        if (recordIdsForObjectType == null) {
+            recordIdsForObjectType = new HashMap<UUID, Long>();
+            if (recordIdDao != null && RecordIdDao.supports(objectType)) {
+                try {
+                    recordIdsForObjectType.putAll(recordIdDao.getRecordIdsForAccount(objectType, accountRecordId, tenantRecordId));
+                } catch (RuntimeException e) {
+                    // Missing entries will be looked-up one by one via the RecordIdApi
+                    logService.log(LogService.LOG_WARNING, "Unable to bulk lookup " + objectType + " record ids for accountRecordId " + accountRecordId, e);
+                }
+            }
+            recordIds.put(objectType, recordIdsForObjectType);
+        }
+        return recordIdsForObjectType;
+    }
+
     public synchronized SubscriptionBundle getLatestSubscriptionBundleForExternalKey(final String externalKey) throws AnalyticsRefreshException {
         if (latestSubscriptionBundleForExternalKeys.get(externalKey) == null) {
             latestSubscriptionBundleForExternalKeys.put(externalKey, getLatestSubscriptionBundleForExternalKey(externalKey, callContext));
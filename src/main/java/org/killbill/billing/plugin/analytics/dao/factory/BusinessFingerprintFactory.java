@@ -0,0 +1,344 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.catalog.api.Plan;
+import org.killbill.billing.catalog.api.PlanPhase;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.entitlement.api.SubscriptionBundle;
+import org.killbill.billing.entitlement.api.SubscriptionEvent;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoicePayment;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
+import org.killbill.billing.plugin.analytics.utils.CurrencyConverter;
+import org.killbill.billing.plugin.analytics.utils.PaymentUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Compute fingerprints of the Kill Bill data a refresh depends on.
+ * <p/>
+ * If the fingerprint of a domain didn't change since the last successful refresh, the records
+ * wouldn't change either and don't need to be rewritten. Every field a record is built from (including
+ * the updated dates, catalog lookups and currency conversions) needs to be part of the fingerprint.
+ */
+public class BusinessFingerprintFactory {
+
+    // Payment method plugin properties denormalized in the payment records (see BusinessPaymentBaseModelDao)
+    private static final List<String> PAYMENT_METHOD_PROPERTIES = ImmutableList.<String>of("type",
+                                                                                        "ccLastName",
+                                                                                        "ccType",
+                                                                                        "ccExpirationMonth",
+                                                                                        "ccExpirationYear",
+                                                                                        "ccVerificationValue",
+                                                                                        "address1",
+                                                                                        "address2",
+                                                                                        "city",
+                                                                                        "state",
+                                                                                        "zip",
+                                                                                        "country");
+
+    /**
+     * Fingerprint of the invoices, invoice items, invoice payments and payments of the account.
+     *
+     * @param bac                    current, fully populated, BusinessAccountModelDao record (denormalized in all rows)
+     * @param businessContextFactory context for the account
+     * @return md5 of the data, as an hexadecimal string
+     * @throws AnalyticsRefreshException
+     */
+    public String createInvoicesAndPaymentsFingerprint(final BusinessAccountModelDao bac, final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        final Hasher hasher = Hashing.md5().newHasher();
+        final CurrencyConverter currencyConverter = businessContextFactory.getCurrencyConverter();
+
+        // Account record, updated as part of the refresh, as well as the fields denormalized in all rows
+        putAccount(hasher, bac);
+        put(hasher, currencyConverter.getConvertedCurrency());
+
+        // Bundle external keys and subscriptions are denormalized in the invoice items
+        final Map<UUID, SubscriptionBundle> bundles = new HashMap<UUID, SubscriptionBundle>();
+        for (final SubscriptionBundle bundle : businessContextFactory.getAccountBundles()) {
+            bundles.put(bundle.getId(), bundle);
+            putBundle(hasher, bundle);
+        }
+
+        // Catalog lookups are expensive: only do them once per distinct plan, phase and dates
+        final Map<String, String> catalogNamesCache = new HashMap<String, String>();
+        final Map<UUID, Invoice> invoices = new HashMap<UUID, Invoice>();
+        for (final Invoice invoice : businessContextFactory.getAccountInvoices()) {
+            invoices.put(invoice.getId(), invoice);
+            putInvoice(hasher, invoice, currencyConverter);
+            for (final InvoiceItem invoiceItem : invoice.getInvoiceItems()) {
+                putInvoiceItem(hasher, invoiceItem, invoice, currencyConverter);
+                put(hasher, getCatalogNames(invoiceItem, bundles, catalogNamesCache, businessContextFactory));
+            }
+        }
+
+        final Map<UUID, List<InvoicePayment>> invoicePayments = businessContextFactory.getAccountInvoicePayments();
+        for (final Payment payment : businessContextFactory.getAccountPayments()) {
+            putPayment(hasher, payment);
+            putPaymentMethod(hasher, businessContextFactory.getPaymentMethod(payment.getPaymentMethodId()));
+            final List<InvoicePayment> invoicePaymentsForPayment = invoicePayments.get(payment.getId());
+            if (invoicePaymentsForPayment != null) {
+                for (final InvoicePayment invoicePayment : invoicePaymentsForPayment) {
+                    putInvoicePayment(hasher, invoicePayment, invoices.get(invoicePayment.getInvoiceId()), currencyConverter);
+                }
+            }
+            for (final PaymentTransaction paymentTransaction : payment.getTransactions()) {
+                putPaymentTransaction(hasher, paymentTransaction);
+            }
+        }
+
+        return hasher.hash().toString();
+    }
+
+    private void putAccount(final Hasher hasher, final BusinessAccountModelDao bac) {
+        put(hasher, bac.getAccountId());
+        put(hasher, bac.getAccountName());
+        put(hasher, bac.getAccountExternalKey());
+        put(hasher, bac.getReportGroup());
+        put(hasher, bac.getEmail());
+        put(hasher, bac.getFirstNameLength());
+        put(hasher, bac.getCurrency());
+        put(hasher, bac.getBillingCycleDayLocal());
+        put(hasher, bac.getPaymentMethodId());
+        put(hasher, bac.getTimeZone());
+        put(hasher, bac.getLocale());
+        put(hasher, bac.getAddress1());
+        put(hasher, bac.getAddress2());
+        put(hasher, bac.getCompanyName());
+        put(hasher, bac.getCity());
+        put(hasher, bac.getStateOrProvince());
+        put(hasher, bac.getCountry());
+        put(hasher, bac.getPostalCode());
+        put(hasher, bac.getPhone());
+        put(hasher, bac.getMigrated());
+        put(hasher, bac.getNotifiedForInvoices());
+        put(hasher, bac.getUpdatedDate());
+        put(hasher, bac.getBalance());
+        put(hasher, bac.getConvertedBalance());
+        put(hasher, bac.getOldestUnpaidInvoiceDate());
+        put(hasher, bac.getOldestUnpaidInvoiceBalance());
+        put(hasher, bac.getOldestUnpaidInvoiceCurrency());
+        put(hasher, bac.getConvertedOldestUnpaidInvoiceBalance());
+        put(hasher, bac.getOldestUnpaidInvoiceId());
+        put(hasher, bac.getLastInvoiceDate());
+        put(hasher, bac.getLastInvoiceBalance());
+        put(hasher, bac.getLastInvoiceCurrency());
+        put(hasher, bac.getConvertedLastInvoiceBalance());
+        put(hasher, bac.getLastInvoiceId());
+        put(hasher, bac.getLastPaymentDate());
+        put(hasher, bac.getLastPaymentStatus());
+        put(hasher, bac.getNbActiveBundles());
+        put(hasher, bac.getConvertedCurrency());
+    }
+
+    private void putBundle(final Hasher hasher, final SubscriptionBundle bundle) {
+        put(hasher, bundle.getId());
+        put(hasher, bundle.getExternalKey());
+        put(hasher, bundle.getUpdatedDate());
+        if (bundle.getSubscriptions() != null) {
+            for (final Subscription subscription : bundle.getSubscriptions()) {
+                put(hasher, subscription.getId());
+                put(hasher, subscription.getEffectiveStartDate());
+            }
+        }
+        // Used to compute the service period of fixed items
+        if (bundle.getTimeline() != null) {
+            for (final SubscriptionEvent subscriptionEvent : bundle.getTimeline().getSubscriptionEvents()) {
+                put(hasher, subscriptionEvent.getId());
+                put(hasher, subscriptionEvent.getEntitlementId());
+                put(hasher, subscriptionEvent.getEffectiveDate());
+                put(hasher, subscriptionEvent.getPrevPhase() == null ? null : subscriptionEvent.getPrevPhase().getName());
+                put(hasher, subscriptionEvent.getNextPhase() == null ? null : subscriptionEvent.getNextPhase().getName());
+            }
+        }
+    }
+
+    private void putInvoice(final Hasher hasher, final Invoice invoice, final CurrencyConverter currencyConverter) {
+        put(hasher, invoice.getId());
+        put(hasher, invoice.getInvoiceNumber());
+        put(hasher, invoice.getCreatedDate());
+        put(hasher, invoice.getUpdatedDate());
+        put(hasher, invoice.getInvoiceDate());
+        put(hasher, invoice.getTargetDate());
+        put(hasher, invoice.getCurrency());
+        put(hasher, invoice.getBalance());
+        put(hasher, currencyConverter.getConvertedValue(invoice.getBalance(), invoice));
+        put(hasher, invoice.getPaidAmount());
+        put(hasher, currencyConverter.getConvertedValue(invoice.getPaidAmount(), invoice));
+        put(hasher, invoice.getChargedAmount());
+        put(hasher, currencyConverter.getConvertedValue(invoice.getChargedAmount(), invoice));
+        put(hasher, invoice.getOriginalChargedAmount());
+        put(hasher, currencyConverter.getConvertedValue(invoice.getOriginalChargedAmount(), invoice));
+        put(hasher, invoice.getCreditedAmount());
+        put(hasher, currencyConverter.getConvertedValue(invoice.getCreditedAmount(), invoice));
+        put(hasher, invoice.getRefundedAmount());
+        put(hasher, currencyConverter.getConvertedValue(invoice.getRefundedAmount(), invoice));
+    }
+
+    private void putInvoiceItem(final Hasher hasher, final InvoiceItem invoiceItem, final Invoice invoice, final CurrencyConverter currencyConverter) {
+        put(hasher, invoiceItem.getId());
+        put(hasher, invoiceItem.getInvoiceItemType());
+        put(hasher, invoiceItem.getBundleId());
+        put(hasher, invoiceItem.getSubscriptionId());
+        put(hasher, invoiceItem.getPlanName());
+        put(hasher, invoiceItem.getPhaseName());
+        put(hasher, invoiceItem.getStartDate());
+        put(hasher, invoiceItem.getEndDate());
+        put(hasher, invoiceItem.getAmount());
+        put(hasher, currencyConverter.getConvertedValue(invoiceItem, invoice));
+        put(hasher, invoiceItem.getCurrency());
+        put(hasher, invoiceItem.getLinkedItemId());
+        put(hasher, invoiceItem.getCreatedDate());
+        put(hasher, invoiceItem.getUpdatedDate());
+    }
+
+    private void putInvoicePayment(final Hasher hasher, final InvoicePayment invoicePayment, @Nullable final Invoice invoice, final CurrencyConverter currencyConverter) {
+        put(hasher, invoicePayment.getId());
+        put(hasher, invoicePayment.getInvoiceId());
+        put(hasher, invoicePayment.getType());
+        put(hasher, invoicePayment.getAmount());
+        put(hasher, invoicePayment.getCurrency());
+        put(hasher, invoicePayment.getLinkedInvoicePaymentId());
+        put(hasher, invoicePayment.getCreatedDate());
+        put(hasher, invoicePayment.getUpdatedDate());
+        if (invoice != null && invoicePayment.getCurrency() != null) {
+            put(hasher, currencyConverter.getConvertedValue(invoicePayment.getAmount(), invoicePayment.getCurrency().toString(), invoice.getInvoiceDate()));
+        }
+    }
+
+    private void putPayment(final Hasher hasher, final Payment payment) {
+        put(hasher, payment.getId());
+        put(hasher, payment.getPaymentNumber());
+        put(hasher, payment.getExternalKey());
+        put(hasher, payment.getPaymentMethodId());
+        put(hasher, payment.getCreatedDate());
+        put(hasher, payment.getUpdatedDate());
+    }
+
+    private void putPaymentMethod(final Hasher hasher, @Nullable final PaymentMethod paymentMethod) {
+        if (paymentMethod == null) {
+            put(hasher, null);
+            return;
+        }
+
+        put(hasher, paymentMethod.getId());
+        put(hasher, paymentMethod.getPluginName());
+        put(hasher, paymentMethod.getUpdatedDate());
+        if (paymentMethod.getPluginDetail() != null) {
+            put(hasher, paymentMethod.getPluginDetail().getExternalPaymentMethodId());
+            put(hasher, paymentMethod.getPluginDetail().isDefaultPaymentMethod());
+            for (final String propertyKey : PAYMENT_METHOD_PROPERTIES) {
+                put(hasher, PaymentUtils.getPropertyValue(paymentMethod.getPluginDetail().getProperties(), propertyKey));
+            }
+        }
+    }
+
+    private void putPaymentTransaction(final Hasher hasher, final PaymentTransaction paymentTransaction) {
+        put(hasher, paymentTransaction.getId());
+        put(hasher, paymentTransaction.getExternalKey());
+        put(hasher, paymentTransaction.getTransactionType());
+        put(hasher, paymentTransaction.getTransactionStatus());
+        put(hasher, paymentTransaction.getAmount());
+        put(hasher, paymentTransaction.getCurrency());
+        put(hasher, paymentTransaction.getEffectiveDate());
+        put(hasher, paymentTransaction.getCreatedDate());
+        put(hasher, paymentTransaction.getUpdatedDate());
+        final PaymentTransactionInfoPlugin paymentInfoPlugin = paymentTransaction.getPaymentInfoPlugin();
+        if (paymentInfoPlugin != null) {
+            put(hasher, paymentInfoPlugin.getCreatedDate());
+            put(hasher, paymentInfoPlugin.getEffectiveDate());
+            put(hasher, paymentInfoPlugin.getStatus());
+            put(hasher, paymentInfoPlugin.getGatewayError());
+            put(hasher, paymentInfoPlugin.getGatewayErrorCode());
+            put(hasher, paymentInfoPlugin.getFirstPaymentReferenceId());
+            put(hasher, paymentInfoPlugin.getSecondPaymentReferenceId());
+        }
+    }
+
+    // Product and phase details looked up from the catalog, the same way BusinessInvoiceFactory does
+    private String getCatalogNames(final InvoiceItem invoiceItem,
+                                   final Map<UUID, SubscriptionBundle> bundles,
+                                   final Map<String, String> catalogNamesCache,
+                                   final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        if (Strings.emptyToNull(invoiceItem.getPlanName()) == null || invoiceItem.getStartDate() == null) {
+            return null;
+        }
+
+        final LocalDate subscriptionStartDate = getSubscriptionStartDate(invoiceItem, bundles);
+        final String cacheKey = invoiceItem.getPlanName() + "|" + invoiceItem.getPhaseName() + "|" + invoiceItem.getStartDate() + "|" + subscriptionStartDate;
+        if (!catalogNamesCache.containsKey(cacheKey)) {
+            final Plan plan = businessContextFactory.getPlanFromInvoiceItem(invoiceItem);
+            PlanPhase planPhase = null;
+            if (subscriptionStartDate != null && Strings.emptyToNull(invoiceItem.getPhaseName()) != null) {
+                planPhase = businessContextFactory.getPlanPhaseFromInvoiceItem(invoiceItem, subscriptionStartDate);
+            }
+
+            final StringBuilder catalogNames = new StringBuilder();
+            if (plan != null && plan.getProduct() != null) {
+                catalogNames.append(plan.getProduct().getName()).append('|')
+                            .append(plan.getProduct().getCatalogName()).append('|')
+                            .append(plan.getProduct().getCategory()).append('|');
+            }
+            if (planPhase != null) {
+                catalogNames.append(planPhase.getName()).append('|')
+                            .append(planPhase.getPhaseType()).append('|')
+                            .append(planPhase.getRecurring() == null ? null : planPhase.getRecurring().getBillingPeriod());
+            }
+            catalogNamesCache.put(cacheKey, catalogNames.toString());
+        }
+        return catalogNamesCache.get(cacheKey);
+    }
+
+    private LocalDate getSubscriptionStartDate(final InvoiceItem invoiceItem, final Map<UUID, SubscriptionBundle> bundles) {
+        final SubscriptionBundle bundle = invoiceItem.getBundleId() == null ? null : bundles.get(invoiceItem.getBundleId());
+        if (bundle == null || invoiceItem.getSubscriptionId() == null || bundle.getSubscriptions() == null) {
+            return null;
+        }
+        for (final Subscription subscription : bundle.getSubscriptions()) {
+            if (invoiceItem.getSubscriptionId().equals(subscription.getId())) {
+                return subscription.getEffectiveStartDate();
+            }
+        }
+        return null;
+    }
+
+    // Only used for simple values (ids, enums, dates, amounts, strings): entities need to be hashed field by field
+    private void put(final Hasher hasher, @Nullable final Object value) {
+        // Separator, to avoid collisions between adjacent values
+        hasher.putString(value == null ? "<null>|" : value.toString() + "|", Charsets.UTF_8);
+    }
+}
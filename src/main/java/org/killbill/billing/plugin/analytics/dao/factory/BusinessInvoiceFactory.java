@@ -17,16 +17,18 @@
 
 package org.killbill.billing.plugin.analytics.dao.factory;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.FutureTask;
 
 import javax.annotation.Nullable;
 
@@ -54,6 +56,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 
 import static org.killbill.billing.plugin.analytics.utils.BusinessInvoiceUtils.isAccountCreditItem;
@@ -64,6 +67,13 @@ import static org.killbill.billing.plugin.analytics.utils.BusinessInvoiceUtils.i
 
 public class BusinessInvoiceFactory {
 
+    // Minimum number of invoice items per task, to amortize the scheduling overhead
+    @VisibleForTesting
+    static final int MIN_CHUNK_SIZE = 50;
+    // Target number of tasks per core, to absorb the imbalance between chunks
+    @VisibleForTesting
+    static final int TASKS_PER_CORE = 4;
+
     private final Executor executor;
 
     public BusinessInvoiceFactory(final Executor executor) {
@@ -77,6 +87,32 @@ public class BusinessInvoiceFactory {
      * @throws org.killbill.billing.plugin.analytics.AnalyticsRefreshException
      */
     public Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> createBusinessInvoicesAndInvoiceItems(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        final Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> businessRecords = new HashMap<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>>();
+        createBusinessInvoicesAndInvoiceItems(businessContextFactory,
+                                              Integer.MAX_VALUE,
+                                              new BusinessModelDaosHandler<Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>>>() {
+                                                  @Override
+                                                  public void handle(final Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> batch) {
+                                                      businessRecords.putAll(batch);
+                                                  }
+                                              });
+        return businessRecords;
+    }
+
+    /**
+     * Create current business invoices and invoice items, in batches of whole invoices.
+     * <p/>
+     * Each batch is handed off to the handler as soon as it has been built, so only one batch of business records
+     * needs to be kept in memory at a time.
+     *
+     * @param businessContextFactory context for the account
+     * @param batchSize              minimum number of invoice items per batch (the last batch can be smaller)
+     * @param handler                handler for each batch of business invoice and invoice items to create
+     * @throws org.killbill.billing.plugin.analytics.AnalyticsRefreshException
+     */
+    public void createBusinessInvoicesAndInvoiceItems(final BusinessContextFactory businessContextFactory,
+                                                      final int batchSize,
+                                                      final BusinessModelDaosHandler<Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>>> handler) throws AnalyticsRefreshException {
         // Pre-fetch these, to avoid contention on BusinessContextFactory
         final Account account = businessContextFactory.getAccount();
         final Long accountRecordId = businessContextFactory.getAccountRecordId();
@@ -103,36 +139,85 @@ public class BusinessInvoiceFactory {
             bundles.put(bundle.getId(), bundle);
         }
 
-        // Create the business invoice items
-        // We build them in parallel as invoice items are directly proportional to subscriptions (@see BusinessSubscriptionTransitionFactory)
-        final CompletionService<BusinessInvoiceItemBaseModelDao> completionService = new ExecutorCompletionService<BusinessInvoiceItemBaseModelDao>(executor);
-        final Multimap<UUID, BusinessInvoiceItemBaseModelDao> businessInvoiceItemsForInvoiceId = ArrayListMultimap.<UUID, BusinessInvoiceItemBaseModelDao>create();
-        for (final InvoiceItem invoiceItem : allInvoiceItems.values()) {
-            // Fetch audit logs in the main thread as AccountAuditLogs is not thread safe
-            final AuditLog creationAuditLog = invoiceItem.getId() != null ? businessContextFactory.getInvoiceItemCreationAuditLog(invoiceItem.getId()) : null;
+        List<Invoice> invoicesBatch = new LinkedList<Invoice>();
+        int nbInvoiceItemsInBatch = 0;
+        for (final Invoice invoice : invoiceIdToInvoiceMappings.values()) {
+            invoicesBatch.add(invoice);
+            nbInvoiceItemsInBatch += allInvoiceItems.get(invoice.getId()).size();
+            if (nbInvoiceItemsInBatch >= batchSize) {
+                handler.handle(createBusinessInvoicesAndInvoiceItems(businessContextFactory, invoicesBatch, allInvoiceItems, invoiceIdToInvoiceMappings, account, bundles, currencyConverter, accountRecordId, tenantRecordId, reportGroup));
+                invoicesBatch = new LinkedList<Invoice>();
+                nbInvoiceItemsInBatch = 0;
+            }
+        }
+        if (!invoicesBatch.isEmpty()) {
+            handler.handle(createBusinessInvoicesAndInvoiceItems(businessContextFactory, invoicesBatch, allInvoiceItems, invoiceIdToInvoiceMappings, account, bundles, currencyConverter, accountRecordId, tenantRecordId, reportGroup));
+        }
+    }
 
-            completionService.submit(new Callable<BusinessInvoiceItemBaseModelDao>() {
+    private Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> createBusinessInvoicesAndInvoiceItems(final BusinessContextFactory businessContextFactory,
+                                                                                                                          final Iterable<Invoice> invoices,
+                                                                                                                          final Multimap<UUID, InvoiceItem> allInvoiceItems,
+                                                                                                                          final Map<UUID, Invoice> invoiceIdToInvoiceMappings,
+                                                                                                                          final Account account,
+                                                                                                                          final Map<UUID, SubscriptionBundle> bundles,
+                                                                                                                          final CurrencyConverter currencyConverter,
+                                                                                                                          final Long accountRecordId,
+                                                                                                                          final Long tenantRecordId,
+                                                                                                                          final ReportGroup reportGroup) throws AnalyticsRefreshException {
+        // Create the business invoice items
+        // We build them in parallel as invoice items are directly proportional to subscriptions (@see BusinessSubscriptionTransitionFactory).
+        // Items are processed in chunks (rather than one task per item) to keep the scheduling overhead low on large accounts.
+        final List<InvoiceItem> invoiceItemsToProcess = new ArrayList<InvoiceItem>();
+        for (final Invoice invoice : invoices) {
+            invoiceItemsToProcess.addAll(allInvoiceItems.get(invoice.getId()));
+        }
+        final int chunkSize = computeChunkSize(invoiceItemsToProcess.size(), Runtime.getRuntime().availableProcessors());
+        final List<FutureTask<List<BusinessInvoiceItemBaseModelDao>>> tasks = new LinkedList<FutureTask<List<BusinessInvoiceItemBaseModelDao>>>();
+        for (final List<InvoiceItem> invoiceItemsChunk : Lists.<InvoiceItem>partition(invoiceItemsToProcess, chunkSize)) {
+            final FutureTask<List<BusinessInvoiceItemBaseModelDao>> task = new FutureTask<List<BusinessInvoiceItemBaseModelDao>>(new Callable<List<BusinessInvoiceItemBaseModelDao>>() {
                 @Override
-                public BusinessInvoiceItemBaseModelDao call() throws Exception {
-                    return createBusinessInvoiceItem(businessContextFactory,
-                                                     invoiceItem,
-                                                     allInvoiceItems,
-                                                     invoiceIdToInvoiceMappings,
-                                                     account,
-                                                     bundles,
-                                                     currencyConverter,
-                                                     creationAuditLog,
-                                                     accountRecordId,
-                                                     tenantRecordId,
-                                                     reportGroup);
+                public List<BusinessInvoiceItemBaseModelDao> call() throws Exception {
+                    final List<BusinessInvoiceItemBaseModelDao> businessInvoiceItems = new ArrayList<BusinessInvoiceItemBaseModelDao>(invoiceItemsChunk.size());
+                    for (final InvoiceItem invoiceItem : invoiceItemsChunk) {
+                        // Creation audit logs are snapshotted once for the account, so this doesn't serialize the workers
+                        final AuditLog creationAuditLog = invoiceItem.getId() != null ? businessContextFactory.getInvoiceItemCreationAuditLog(invoiceItem.getId()) : null;
+                        final BusinessInvoiceItemBaseModelDao businessInvoiceItem = createBusinessInvoiceItem(businessContextFactory,
+                                                                                                              invoiceItem,
+                                                                                                              allInvoiceItems,
+                                                                                                              invoiceIdToInvoiceMappings,
+                                                                                                              account,
+                                                                                                              bundles,
+                                                                                                              currencyConverter,
+                                                                                                              creationAuditLog,
+                                                                                                              accountRecordId,
+                                                                                                              tenantRecordId,
+                                                                                                              reportGroup);
+                        if (businessInvoiceItem != null) {
+                            businessInvoiceItems.add(businessInvoiceItem);
+                        }
+                    }
+                    return businessInvoiceItems;
                 }
             });
+            tasks.add(task);
+        }
+
+        // No need to hand off the work if there is a single chunk
+        if (tasks.size() == 1) {
+            tasks.get(0).run();
+        } else {
+            for (final FutureTask<List<BusinessInvoiceItemBaseModelDao>> task : tasks) {
+                executor.execute(task);
+            }
         }
-        for (int i = 0; i < allInvoiceItems.values().size(); ++i) {
+
+        // Merge the results of each chunk, in order, from the main thread
+        final Multimap<UUID, BusinessInvoiceItemBaseModelDao> businessInvoiceItemsForInvoiceId = ArrayListMultimap.<UUID, BusinessInvoiceItemBaseModelDao>create();
+        for (final FutureTask<List<BusinessInvoiceItemBaseModelDao>> task : tasks) {
             try {
-                final BusinessInvoiceItemBaseModelDao businessInvoiceItemModelDao = completionService.take().get();
-                if (businessInvoiceItemModelDao != null) {
-                    businessInvoiceItemsForInvoiceId.get(businessInvoiceItemModelDao.getInvoiceId()).add(businessInvoiceItemModelDao);
+                for (final BusinessInvoiceItemBaseModelDao businessInvoiceItemModelDao : task.get()) {
+                    businessInvoiceItemsForInvoiceId.put(businessInvoiceItemModelDao.getInvoiceId(), businessInvoiceItemModelDao);
                 }
             } catch (InterruptedException e) {
                 throw new AnalyticsRefreshException(e);
@@ -167,6 +252,21 @@ public class BusinessInvoiceFactory {
         return businessRecords;
     }
 
+    /**
+     * Compute the number of invoice items each task should process: we want a few tasks per core
+     * (to balance the load between threads), but not so many that the scheduling overhead dominates.
+     *
+     * @param nbItems total number of invoice items to process
+     * @param nbCores number of available processors
+     * @return the chunk size, always strictly positive
+     */
+    @VisibleForTesting
+    static int computeChunkSize(final int nbItems, final int nbCores) {
+        final int nbTasks = Math.max(1, nbCores) * TASKS_PER_CORE;
+        final int chunkSize = (nbItems + nbTasks - 1) / nbTasks;
+        return Math.max(MIN_CHUNK_SIZE, chunkSize);
+    }
+
     private BusinessInvoiceItemBaseModelDao createBusinessInvoiceItem(final BusinessContextFactory businessContextFactory,
                                                                       final InvoiceItem invoiceItem,
                                                                       final Multimap<UUID, InvoiceItem> allInvoiceItems,
@@ -40,6 +40,29 @@ import org.killbill.billing.util.audit.AuditLog;
 public class BusinessPaymentFactory {
 
     public Collection<BusinessPaymentBaseModelDao> createBusinessPayments(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        final Collection<BusinessPaymentBaseModelDao> businessPayments = new LinkedList<BusinessPaymentBaseModelDao>();
+        createBusinessPayments(businessContextFactory,
+                               Integer.MAX_VALUE,
+                               new BusinessModelDaosHandler<Collection<BusinessPaymentBaseModelDao>>() {
+                                   @Override
+                                   public void handle(final Collection<BusinessPaymentBaseModelDao> batch) {
+                                       businessPayments.addAll(batch);
+                                   }
+                               });
+        return businessPayments;
+    }
+
+    /**
+     * Create current business payments, in batches of whole payments.
+     *
+     * @param businessContextFactory context for the account
+     * @param batchSize              minimum number of business payments per batch (the last batch can be smaller)
+     * @param handler                handler for each batch of business payments to create
+     * @throws AnalyticsRefreshException
+     */
+    public void createBusinessPayments(final BusinessContextFactory businessContextFactory,
+                                       final int batchSize,
+                                       final BusinessModelDaosHandler<Collection<BusinessPaymentBaseModelDao>> handler) throws AnalyticsRefreshException {
         final Account account = businessContextFactory.getAccount();
         final Long accountRecordId = businessContextFactory.getAccountRecordId();
         final Long tenantRecordId = businessContextFactory.getTenantRecordId();
@@ -58,7 +81,7 @@ public class BusinessPaymentFactory {
 
         final Iterable<Payment> paymentsForAccount = businessContextFactory.getAccountPayments();
 
-        final Collection<BusinessPaymentBaseModelDao> businessPayments = new LinkedList<BusinessPaymentBaseModelDao>();
+        Collection<BusinessPaymentBaseModelDao> businessPayments = new LinkedList<BusinessPaymentBaseModelDao>();
         for (final Payment payment : paymentsForAccount) {
             final List<InvoicePayment> invoicePaymentsForPayment = allInvoicePaymentsByPaymentId.get(payment.getId());
             // TODO - we will remove invoicePayment information from payment tables, we only care about the associated invoice id
@@ -86,8 +109,14 @@ public class BusinessPaymentFactory {
                     businessPayments.add(businessPayment);
                 }
             }
-        }
 
-        return businessPayments;
+            if (businessPayments.size() >= batchSize) {
+                handler.handle(businessPayments);
+                businessPayments = new LinkedList<BusinessPaymentBaseModelDao>();
+            }
+        }
+        if (!businessPayments.isEmpty()) {
+            handler.handle(businessPayments);
+        }
     }
 }
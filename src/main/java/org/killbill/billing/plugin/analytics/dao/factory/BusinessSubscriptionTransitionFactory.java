@@ -24,6 +24,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import javax.annotation.Nullable;
 
@@ -48,6 +52,12 @@ public class BusinessSubscriptionTransitionFactory {
     public static final String BILLING_SERVICE_NAME = "billing-service";
     public static final String ENTITLEMENT_BILLING_SERVICE_NAME = "entitlement+billing-service";
 
+    private final Executor executor;
+
+    public BusinessSubscriptionTransitionFactory(final Executor executor) {
+        this.executor = executor;
+    }
+
     public Collection<BusinessSubscriptionTransitionModelDao> createBusinessSubscriptionTransitions(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         final Account account = businessContextFactory.getAccount();
         final Long accountRecordId = businessContextFactory.getAccountRecordId();
@@ -57,9 +67,38 @@ public class BusinessSubscriptionTransitionFactory {
 
         final Iterable<SubscriptionBundle> bundles = businessContextFactory.getAccountBundles();
 
-        final Collection<BusinessSubscriptionTransitionModelDao> bsts = new LinkedList<BusinessSubscriptionTransitionModelDao>();
+        // We build the transitions in parallel, one task per bundle, as bundles can be very large on a per account basis.
+        // Each task also fetches the timeline for its bundle.
+        final List<FutureTask<Collection<BusinessSubscriptionTransitionModelDao>>> tasks = new LinkedList<FutureTask<Collection<BusinessSubscriptionTransitionModelDao>>>();
         for (final SubscriptionBundle bundle : bundles) {
-            bsts.addAll(buildTransitionsForBundle(businessContextFactory, account, bundle, currencyConverter, accountRecordId, tenantRecordId, reportGroup));
+            final FutureTask<Collection<BusinessSubscriptionTransitionModelDao>> task = new FutureTask<Collection<BusinessSubscriptionTransitionModelDao>>(new Callable<Collection<BusinessSubscriptionTransitionModelDao>>() {
+                @Override
+                public Collection<BusinessSubscriptionTransitionModelDao> call() throws Exception {
+                    return buildTransitionsForBundle(businessContextFactory, account, bundle, currencyConverter, accountRecordId, tenantRecordId, reportGroup);
+                }
+            });
+            tasks.add(task);
+        }
+
+        // No need to hand off the work if there is a single bundle
+        if (tasks.size() == 1) {
+            tasks.get(0).run();
+        } else {
+            for (final FutureTask<Collection<BusinessSubscriptionTransitionModelDao>> task : tasks) {
+                executor.execute(task);
+            }
+        }
+
+        // Merge the results bundle by bundle, in the original order (BusinessBundleFactory relies on it)
+        final Collection<BusinessSubscriptionTransitionModelDao> bsts = new LinkedList<BusinessSubscriptionTransitionModelDao>();
+        for (final FutureTask<Collection<BusinessSubscriptionTransitionModelDao>> task : tasks) {
+            try {
+                bsts.addAll(task.get());
+            } catch (InterruptedException e) {
+                throw new AnalyticsRefreshException(e);
+            } catch (ExecutionException e) {
+                throw new AnalyticsRefreshException(e);
+            }
         }
 
         return bsts;
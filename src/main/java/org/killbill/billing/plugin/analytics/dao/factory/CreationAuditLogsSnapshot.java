@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.util.audit.AuditLog;
+
+/**
+ * Immutable view of the creation audit logs of all objects of a given type for an account.
+ * <p/>
+ * AccountAuditLogs is not thread safe: the snapshot is built once, from a single thread,
+ * and can then be read concurrently by the factories workers.
+ */
+public class CreationAuditLogsSnapshot {
+
+    private final ObjectType objectType;
+    // Values can be null, if the creation audit log couldn't be found
+    private final Map<UUID, AuditLog> creationAuditLogs;
+
+    public CreationAuditLogsSnapshot(final ObjectType objectType, final Map<UUID, AuditLog> creationAuditLogs) {
+        this.objectType = objectType;
+        this.creationAuditLogs = Collections.unmodifiableMap(new HashMap<UUID, AuditLog>(creationAuditLogs));
+    }
+
+    public ObjectType getObjectType() {
+        return objectType;
+    }
+
+    public boolean contains(final UUID objectId) {
+        return creationAuditLogs.containsKey(objectId);
+    }
+
+    public AuditLog get(final UUID objectId) {
+        return creationAuditLogs.get(objectId);
+    }
+
+    public int size() {
+        return creationAuditLogs.size();
+    }
+}
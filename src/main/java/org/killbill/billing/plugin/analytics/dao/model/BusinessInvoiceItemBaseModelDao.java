@@ -36,6 +36,8 @@ import org.killbill.billing.util.audit.AuditLog;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import static org.killbill.billing.plugin.analytics.utils.BusinessModelInterner.intern;
+
 public abstract class BusinessInvoiceItemBaseModelDao extends BusinessModelDaoBase {
 
     protected static final String INVOICE_ADJUSTMENTS_TABLE_NAME = "analytics_invoice_adjustments";
@@ -251,7 +253,7 @@ public abstract class BusinessInvoiceItemBaseModelDao extends BusinessModelDaoBa
         this.invoiceCreatedDate = invoiceCreatedDate;
         this.invoiceDate = invoiceDate;
         this.invoiceTargetDate = invoiceTargetDate;
-        this.invoiceCurrency = invoiceCurrency;
+        this.invoiceCurrency = intern(invoiceCurrency);
         this.invoiceBalance = invoiceBalance;
         this.convertedInvoiceBalance = convertedInvoiceBalance;
         this.invoiceAmountPaid = invoiceAmountPaid;
@@ -264,23 +266,23 @@ public abstract class BusinessInvoiceItemBaseModelDao extends BusinessModelDaoBa
         this.convertedInvoiceAmountCredited = convertedInvoiceAmountCredited;
         this.invoiceAmountRefunded = invoiceAmountRefunded;
         this.convertedInvoiceAmountRefunded = convertedInvoiceAmountRefunded;
-        this.itemType = itemType;
+        this.itemType = intern(itemType);
         this.itemSource = itemSource == null ? DEFAULT_ITEM_SOURCE : itemSource.toString();
         this.bundleId = bundleId;
         this.bundleExternalKey = bundleExternalKey;
-        this.productName = productName;
-        this.productType = productType;
-        this.productCategory = productCategory;
-        this.slug = slug;
-        this.phase = phase;
-        this.billingPeriod = billingPeriod;
+        this.productName = intern(productName);
+        this.productType = intern(productType);
+        this.productCategory = intern(productCategory);
+        this.slug = intern(slug);
+        this.phase = intern(phase);
+        this.billingPeriod = intern(billingPeriod);
         this.startDate = startDate;
         this.endDate = endDate;
         this.amount = amount;
         this.convertedAmount = convertedAmount;
-        this.currency = currency;
+        this.currency = intern(currency);
         this.linkedItemId = linkedItemId;
-        this.convertedCurrency = convertedCurrency;
+        this.convertedCurrency = intern(convertedCurrency);
     }
 
     public BusinessInvoiceItemBaseModelDao(final Account account,
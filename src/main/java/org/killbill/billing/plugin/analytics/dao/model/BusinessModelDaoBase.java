@@ -26,7 +26,7 @@ import org.joda.time.DateTime;
 public abstract class BusinessModelDaoBase {
 
     // See ddl.sql
-    private final String DEFAULT_REPORT_GROUP = "default";
+    private static final String DEFAULT_REPORT_GROUP = "default";
 
     // See ddl.sql
     public enum ReportGroup {
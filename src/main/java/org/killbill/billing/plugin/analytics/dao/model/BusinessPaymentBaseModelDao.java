@@ -38,6 +38,8 @@ import org.killbill.billing.util.audit.AuditLog;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import static org.killbill.billing.plugin.analytics.utils.BusinessModelInterner.intern;
+
 public abstract class BusinessPaymentBaseModelDao extends BusinessModelDaoBase {
 
     @VisibleForTesting
@@ -301,7 +303,7 @@ public abstract class BusinessPaymentBaseModelDao extends BusinessModelDaoBase {
         this.invoiceCreatedDate = invoiceCreatedDate;
         this.invoiceDate = invoiceDate;
         this.invoiceTargetDate = invoiceTargetDate;
-        this.invoiceCurrency = invoiceCurrency;
+        this.invoiceCurrency = intern(invoiceCurrency);
         this.invoiceBalance = invoiceBalance;
         this.convertedInvoiceBalance = convertedInvoiceBalance;
         this.invoiceAmountPaid = invoiceAmountPaid;
@@ -314,31 +316,31 @@ public abstract class BusinessPaymentBaseModelDao extends BusinessModelDaoBase {
         this.convertedInvoiceAmountCredited = convertedInvoiceAmountCredited;
         this.invoiceAmountRefunded = invoiceAmountRefunded;
         this.convertedInvoiceAmountRefunded = convertedInvoiceAmountRefunded;
-        this.invoicePaymentType = invoicePaymentType;
+        this.invoicePaymentType = intern(invoicePaymentType);
         this.paymentId = paymentId;
         this.refundId = refundId;
         this.paymentNumber = paymentNumber;
         this.paymentExternalKey = paymentExternalKey;
         this.paymentTransactionId = paymentTransactionId;
         this.paymentTransactionExternalKey = paymentTransactionExternalKey;
-        this.paymentTransactionStatus = paymentTransactionStatus;
+        this.paymentTransactionStatus = intern(paymentTransactionStatus);
         this.linkedInvoicePaymentId = linkedInvoicePaymentId;
         this.amount = amount;
         this.convertedAmount = convertedAmount;
-        this.currency = currency;
-        this.pluginName = pluginName;
+        this.currency = intern(currency);
+        this.pluginName = intern(pluginName);
         this.pluginCreatedDate = pluginCreatedDate;
         this.pluginEffectiveDate = pluginEffectiveDate;
-        this.pluginStatus = pluginStatus;
+        this.pluginStatus = intern(pluginStatus);
         this.pluginGatewayError = pluginGatewayError;
         this.pluginGatewayErrorCode = pluginGatewayErrorCode;
         this.pluginFirstReferenceId = pluginFirstReferenceId;
         this.pluginSecondReferenceId = pluginSecondReferenceId;
         this.pluginPmId = pluginPmId;
         this.pluginPmIsDefault = pluginPmIsDefault;
-        this.pluginPmType = pluginPmType;
+        this.pluginPmType = intern(pluginPmType);
         this.pluginPmCcName = pluginPmCcName;
-        this.pluginPmCcType = pluginPmCcType;
+        this.pluginPmCcType = intern(pluginPmCcType);
         this.pluginPmCcExpirationMonth = pluginPmCcExpirationMonth;
         this.pluginPmCcExpirationYear = pluginPmCcExpirationYear;
         this.pluginPmCcLast4 = pluginPmCcLast4;
@@ -348,7 +350,7 @@ public abstract class BusinessPaymentBaseModelDao extends BusinessModelDaoBase {
         this.pluginPmState = pluginPmState;
         this.pluginPmZip = pluginPmZip;
         this.pluginPmCountry = pluginPmCountry;
-        this.convertedCurrency = convertedCurrency;
+        this.convertedCurrency = intern(convertedCurrency);
     }
 
     protected BusinessPaymentBaseModelDao(final Account account,
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao.model;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.InvoicePayment;
+import org.killbill.billing.invoice.api.InvoicePaymentType;
+
+/**
+ * Invoice payment, as read directly from the Kill Bill invoice_payments table (see InvoicePaymentSqlDao)
+ */
+public class InvoicePaymentModelDao implements InvoicePayment {
+
+    private final UUID id;
+    private final InvoicePaymentType type;
+    private final UUID invoiceId;
+    private final UUID paymentId;
+    private final DateTime paymentDate;
+    private final BigDecimal amount;
+    private final Currency currency;
+    private final Currency processedCurrency;
+    private final String paymentCookieId;
+    private final UUID linkedInvoicePaymentId;
+    private final DateTime createdDate;
+
+    public InvoicePaymentModelDao(final UUID id,
+                                  final InvoicePaymentType type,
+                                  final UUID invoiceId,
+                                  final UUID paymentId,
+                                  final DateTime paymentDate,
+                                  final BigDecimal amount,
+                                  final Currency currency,
+                                  final Currency processedCurrency,
+                                  final String paymentCookieId,
+                                  final UUID linkedInvoicePaymentId,
+                                  final DateTime createdDate) {
+        this.id = id;
+        this.type = type;
+        this.invoiceId = invoiceId;
+        this.paymentId = paymentId;
+        this.paymentDate = paymentDate;
+        this.amount = amount;
+        this.currency = currency;
+        this.processedCurrency = processedCurrency;
+        this.paymentCookieId = paymentCookieId;
+        this.linkedInvoicePaymentId = linkedInvoicePaymentId;
+        this.createdDate = createdDate;
+    }
+
+    @Override
+    public UUID getId() {
+        return id;
+    }
+
+    @Override
+    public DateTime getCreatedDate() {
+        return createdDate;
+    }
+
+    @Override
+    public DateTime getUpdatedDate() {
+        // Invoice payments are never updated
+        return createdDate;
+    }
+
+    @Override
+    public UUID getPaymentId() {
+        return paymentId;
+    }
+
+    @Override
+    public InvoicePaymentType getType() {
+        return type;
+    }
+
+    @Override
+    public UUID getInvoiceId() {
+        return invoiceId;
+    }
+
+    @Override
+    public DateTime getPaymentDate() {
+        return paymentDate;
+    }
+
+    @Override
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    @Override
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    @Override
+    public UUID getLinkedInvoicePaymentId() {
+        return linkedInvoicePaymentId;
+    }
+
+    @Override
+    public String getPaymentCookieId() {
+        return paymentCookieId;
+    }
+
+    @Override
+    public Currency getProcessedCurrency() {
+        return processedCurrency;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("InvoicePaymentModelDao{");
+        sb.append("id=").append(id);
+        sb.append(", type=").append(type);
+        sb.append(", invoiceId=").append(invoiceId);
+        sb.append(", paymentId=").append(paymentId);
+        sb.append(", paymentDate=").append(paymentDate);
+        sb.append(", amount=").append(amount);
+        sb.append(", currency=").append(currency);
+        sb.append(", processedCurrency=").append(processedCurrency);
+        sb.append(", paymentCookieId='").append(paymentCookieId).append('\'');
+        sb.append(", linkedInvoicePaymentId=").append(linkedInvoicePaymentId);
+        sb.append(", createdDate=").append(createdDate);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.model;
+
+public class RefreshFingerprintModelDao {
+
+    // See ddl.sql
+    public enum Domain {
+        INVOICES_AND_PAYMENTS
+    }
+
+    private String domain;
+    private String fingerprint;
+    private Long accountRecordId;
+    private Long tenantRecordId;
+
+    public RefreshFingerprintModelDao() { /* When reading from the database */ }
+
+    public RefreshFingerprintModelDao(final Domain domain, final String fingerprint, final Long accountRecordId, final Long tenantRecordId) {
+        this.domain = domain.toString();
+        this.fingerprint = fingerprint;
+        this.accountRecordId = accountRecordId;
+        this.tenantRecordId = tenantRecordId;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public Long getAccountRecordId() {
+        return accountRecordId;
+    }
+
+    public Long getTenantRecordId() {
+        return tenantRecordId;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("RefreshFingerprintModelDao{");
+        sb.append("domain='").append(domain).append('\'');
+        sb.append(", fingerprint='").append(fingerprint).append('\'');
+        sb.append(", accountRecordId=").append(accountRecordId);
+        sb.append(", tenantRecordId=").append(tenantRecordId);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final RefreshFingerprintModelDao that = (RefreshFingerprintModelDao) o;
+
+        if (domain != null ? !domain.equals(that.domain) : that.domain != null) {
+            return false;
+        }
+        if (fingerprint != null ? !fingerprint.equals(that.fingerprint) : that.fingerprint != null) {
+            return false;
+        }
+        if (accountRecordId != null ? !accountRecordId.equals(that.accountRecordId) : that.accountRecordId != null) {
+            return false;
+        }
+        if (tenantRecordId != null ? !tenantRecordId.equals(that.tenantRecordId) : that.tenantRecordId != null) {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = domain != null ? domain.hashCode() : 0;
+        result = 31 * result + (fingerprint != null ? fingerprint.hashCode() : 0);
+        result = 31 * result + (accountRecordId != null ? accountRecordId.hashCode() : 0);
+        result = 31 * result + (tenantRecordId != null ? tenantRecordId.hashCode() : 0);
+        return result;
+    }
+}
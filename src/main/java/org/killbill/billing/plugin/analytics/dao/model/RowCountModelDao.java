@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.model;
+
+public class RowCountModelDao {
+
+    private Long rowCount;
+
+    public RowCountModelDao() { /* When reading from the database */ }
+
+    public RowCountModelDao(final Long rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    public Long getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("RowCountModelDao{");
+        sb.append("rowCount=").append(rowCount);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final RowCountModelDao that = (RowCountModelDao) o;
+
+        if (rowCount != null ? !rowCount.equals(that.rowCount) : that.rowCount != null) {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return rowCount != null ? rowCount.hashCode() : 0;
+    }
+}
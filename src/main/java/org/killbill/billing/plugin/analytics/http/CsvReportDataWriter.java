@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.killbill.billing.plugin.analytics.json.CSVNamedXYTimeSeries;
+import org.killbill.billing.plugin.analytics.json.CounterChart;
+import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.ReportDataWriter;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+// Write the time series incrementally, in the same format as ReportsServlet#writeAsCSV (counters are skipped)
+class CsvReportDataWriter implements ReportDataWriter {
+
+    private final ObjectWriter csvMapper;
+    private final OutputStream out;
+
+    CsvReportDataWriter(final ObjectWriter csvMapper, final OutputStream out) {
+        this.csvMapper = csvMapper;
+        this.out = out;
+    }
+
+    @Override
+    public void startChart(final ReportType type, final String title) throws IOException {
+    }
+
+    @Override
+    public void writeCounter(final CounterChart counter) throws IOException {
+    }
+
+    @Override
+    public void writeTimeSeriesValue(final String seriesName, final XY value) throws IOException {
+        out.write(csvMapper.writeValueAsBytes(new CSVNamedXYTimeSeries(seriesName, value)));
+    }
+
+    @Override
+    public void endChart() throws IOException {
+        out.flush();
+    }
+}
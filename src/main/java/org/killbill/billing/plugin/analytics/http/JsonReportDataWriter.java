@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.killbill.billing.plugin.analytics.json.CounterChart;
+import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.ReportDataWriter;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Write the charts incrementally, in the same format as the serialized List<Chart>
+class JsonReportDataWriter implements ReportDataWriter, Closeable {
+
+    private final JsonGenerator generator;
+
+    private String currentSeriesName = null;
+
+    JsonReportDataWriter(final ObjectMapper jsonMapper, final OutputStream out) throws IOException {
+        this.generator = jsonMapper.getFactory().createGenerator(out);
+        // The servlet container owns the stream
+        this.generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        this.generator.writeStartArray();
+    }
+
+    @Override
+    public void startChart(final ReportType type, final String title) throws IOException {
+        generator.writeStartObject();
+        generator.writeObjectField("type", type);
+        generator.writeStringField("title", title);
+        generator.writeArrayFieldStart("data");
+    }
+
+    @Override
+    public void writeCounter(final CounterChart counter) throws IOException {
+        generator.writeObject(counter);
+    }
+
+    @Override
+    public void writeTimeSeriesValue(final String seriesName, final XY value) throws IOException {
+        if (!seriesName.equals(currentSeriesName)) {
+            endSeriesIfNeeded();
+            generator.writeStartObject();
+            generator.writeStringField("name", seriesName);
+            generator.writeArrayFieldStart("values");
+            currentSeriesName = seriesName;
+        }
+        generator.writeObject(value);
+    }
+
+    @Override
+    public void endChart() throws IOException {
+        endSeriesIfNeeded();
+        generator.writeEndArray();
+        generator.writeEndObject();
+        // Send what we have so far
+        generator.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        generator.writeEndArray();
+        generator.close();
+    }
+
+    private void endSeriesIfNeeded() throws IOException {
+        if (currentSeriesName != null) {
+            generator.writeEndArray();
+            generator.writeEndObject();
+            currentSeriesName = null;
+        }
+    }
+}
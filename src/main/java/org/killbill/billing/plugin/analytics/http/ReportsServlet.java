@@ -24,6 +24,7 @@ import java.nio.charset.Charset;
 import java.sql.SQLException;
 import java.util.List;
 
+import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -39,6 +40,7 @@ import org.killbill.billing.plugin.analytics.json.NamedXYTimeSeries;
 import org.killbill.billing.plugin.analytics.json.ReportConfigurationJson;
 import org.killbill.billing.plugin.analytics.json.XY;
 import org.killbill.billing.plugin.analytics.reports.ReportsUserApi;
+import org.killbill.billing.plugin.analytics.reports.analysis.Downsampler;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
 import org.killbill.billing.util.callcontext.CallContext;
@@ -62,8 +64,12 @@ public class ReportsServlet extends BaseServlet {
     private static final String REPORTS_QUERY_START_DATE = "startDate";
     private static final String REPORTS_QUERY_END_DATE = "endDate";
     private static final String REPORTS_SMOOTHER_NAME = "smooth";
+    // Downsample each time series to at most that many points
+    private static final String REPORTS_MAX_POINTS = "maxPoints";
     private static final String REPORTS_DATA_FORMAT = "format";
     private static final String REPORT_QUERY_SQL_ONLY = "sqlOnly";
+    // Stream the raw (non-normalized) data, when no smoother is specified
+    private static final String REPORTS_QUERY_STREAM = "stream";
 
     public ReportsServlet(final AnalyticsUserApi analyticsUserApi, final ReportsUserApi reportsUserApi, final LogService logService) {
         super(analyticsUserApi, reportsUserApi, logService);
@@ -165,11 +171,23 @@ public class ReportsServlet extends BaseServlet {
             resp.setContentType("text/plain");
         } else {
             final SmootherType smootherType = Smoother.fromString(Strings.emptyToNull(req.getParameter(REPORTS_SMOOTHER_NAME)));
+            final String format = Objects.firstNonNull(Strings.emptyToNull(req.getParameter(REPORTS_DATA_FORMAT)), JSON_DATA_FORMAT);
 
-            // TODO PIERRE Switch to an equivalent of StreamingOutputStream?
-            final List<Chart> results = reportsUserApi.getDataForReport(rawReportNames, startDate, endDate, smootherType, context);
+            final Integer maxPoints;
+            try {
+                maxPoints = getMaxPoints(req);
+            } catch (IllegalArgumentException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+
+            if (smootherType == null && maxPoints == null && req.getParameter(REPORTS_QUERY_STREAM) != null) {
+                streamReports(rawReportNames, startDate, endDate, format, resp, context);
+                return;
+            }
+
+            final List<Chart> results = reportsUserApi.getDataForReport(rawReportNames, startDate, endDate, smootherType, maxPoints, context);
 
-            final String format = Objects.firstNonNull(Strings.emptyToNull(req.getParameter(REPORTS_DATA_FORMAT)), JSON_DATA_FORMAT);
             if (CSV_DATA_FORMAT.equals(format)) {
                 final OutputStream out = resp.getOutputStream();
                 writeAsCSV(results, out);
@@ -181,6 +199,38 @@ public class ReportsServlet extends BaseServlet {
         }
     }
 
+    private Integer getMaxPoints(final HttpServletRequest req) {
+        final String maxPointsString = Strings.emptyToNull(req.getParameter(REPORTS_MAX_POINTS));
+        if (maxPointsString == null) {
+            return null;
+        }
+
+        final Integer maxPoints = Integer.valueOf(maxPointsString);
+        if (maxPoints < Downsampler.MIN_POINTS) {
+            throw new IllegalArgumentException("Invalid " + REPORTS_MAX_POINTS + ", should be at least " + Downsampler.MIN_POINTS + ": " + maxPointsString);
+        }
+        return maxPoints;
+    }
+
+    private void streamReports(final String[] rawReportNames,
+                               @Nullable final LocalDate startDate,
+                               @Nullable final LocalDate endDate,
+                               final String format,
+                               final HttpServletResponse resp,
+                               final TenantContext context) throws IOException {
+        // The content type needs to be set before the response is committed
+        final OutputStream out = resp.getOutputStream();
+        if (CSV_DATA_FORMAT.equals(format)) {
+            resp.setContentType("text/csv");
+            reportsUserApi.streamDataForReport(rawReportNames, startDate, endDate, new CsvReportDataWriter(csvMapper, out), context);
+        } else {
+            resp.setContentType("application/json");
+            final JsonReportDataWriter writer = new JsonReportDataWriter(jsonMapper, out);
+            reportsUserApi.streamDataForReport(rawReportNames, startDate, endDate, writer, context);
+            writer.close();
+        }
+    }
+
     private void listReports(final HttpServletRequest req, final HttpServletResponse resp, final TenantContext context) throws ServletException, IOException {
         final List<ReportConfigurationJson> reports = reportsUserApi.getReports(context);
         resp.getOutputStream().write(jsonMapper.writeValueAsBytes(reports));
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.io.IOException;
+
+import org.killbill.billing.plugin.analytics.json.CounterChart;
+import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
+
+/**
+ * Sink for the report data streamed from the database (see ReportsUserApi#streamDataForReport).
+ * <p/>
+ * Values of a time series are written contiguously, sorted by day.
+ */
+public interface ReportDataWriter {
+
+    public void startChart(ReportType type, String title) throws IOException;
+
+    public void writeCounter(CounterChart counter) throws IOException;
+
+    public void writeTimeSeriesValue(String seriesName, XY value) throws IOException;
+
+    public void endChart() throws IOException;
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDate;
+import org.jooq.SQLDialect;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compiled timeline report: the parsed specification and the rendered statements.
+ * <p/>
+ * The date range, the tenant and the filter values are named parameters (see getBindParameters), so a plan only
+ * depends on the source table, the specification and the presence of the dates, and is shared across requests.
+ * Immutable.
+ */
+public class ReportPlan {
+
+    private final String tableName;
+    private final ReportSpecification reportSpecification;
+    private final String sql;
+    // Empty if the metrics cannot be aggregated in the database
+    private final Map<DateGranularity, String> aggregatedSqls = new EnumMap<DateGranularity, String>(DateGranularity.class);
+    // Null if the pivots cannot be ranked
+    private final String topPivotsSql;
+    private final Map<String, Object> filterBindParameters;
+
+    public ReportPlan(final String tableName,
+                      final ReportSpecification reportSpecification,
+                      @Nullable final LocalDate startDate,
+                      @Nullable final LocalDate endDate,
+                      final Long tenantRecordId) {
+        this.tableName = tableName;
+        this.reportSpecification = reportSpecification;
+
+        final SqlReportDataExtractor sqlReportDataExtractor = newSqlReportDataExtractor(startDate, endDate, tenantRecordId);
+        this.sql = sqlReportDataExtractor.toString();
+        if (sqlReportDataExtractor.canAggregateByDateGranularity()) {
+            for (final DateGranularity dateGranularity : DateGranularity.values()) {
+                aggregatedSqls.put(dateGranularity, sqlReportDataExtractor.toAggregatedString(dateGranularity));
+            }
+        }
+        this.topPivotsSql = sqlReportDataExtractor.canRankPivots() ? sqlReportDataExtractor.toTopPivotsString() : null;
+        this.filterBindParameters = ImmutableMap.<String, Object>copyOf(sqlReportDataExtractor.getFilterBindParameters());
+    }
+
+    /**
+     * Values of the named parameters of the statements
+     *
+     * @param startDate      optional start date
+     * @param endDate        optional end date
+     * @param tenantRecordId tenant record id
+     * @return the parameters to bind
+     */
+    public Map<String, Object> getBindParameters(@Nullable final LocalDate startDate, @Nullable final LocalDate endDate, final Long tenantRecordId) {
+        final Map<String, Object> bindParameters = SqlReportDataExtractor.getBindParameters(startDate, endDate, tenantRecordId);
+        bindParameters.putAll(filterBindParameters);
+        return bindParameters;
+    }
+
+    /**
+     * Extractor rendering statements with bind parameters, e.g. for the second pass of top N queries (which depends
+     * on the data and cannot be compiled ahead of time)
+     *
+     * @param startDate      optional start date
+     * @param endDate        optional end date
+     * @param tenantRecordId tenant record id
+     * @return a new extractor
+     */
+    public SqlReportDataExtractor newSqlReportDataExtractor(@Nullable final LocalDate startDate,
+                                                            @Nullable final LocalDate endDate,
+                                                            final Long tenantRecordId) {
+        return new SqlReportDataExtractor(tableName, reportSpecification, startDate, endDate, SQLDialect.MYSQL, tenantRecordId, true);
+    }
+
+    public ReportSpecification getReportSpecification() {
+        return reportSpecification;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public boolean canAggregateByDateGranularity() {
+        return !aggregatedSqls.isEmpty();
+    }
+
+    public String getAggregatedSql(final DateGranularity dateGranularity) {
+        return aggregatedSqls.get(dateGranularity);
+    }
+
+    public boolean canRankPivots() {
+        return topPivotsSql != null;
+    }
+
+    public String getTopPivotsSql() {
+        return topPivotsSql;
+    }
+}
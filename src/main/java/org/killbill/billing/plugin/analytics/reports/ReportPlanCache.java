@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDate;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Cache of the parsed report specifications (by raw specification) and of the compiled report plans.
+ * <p/>
+ * Dashboards keep requesting the same reports: this avoids parsing the specifications (filters, groupings, metrics)
+ * and rendering the SQL statements on each request. Neither depends on the report data, only the plans depend on
+ * the report configuration (source table).
+ */
+public class ReportPlanCache {
+
+    private final LoadingCache<String, ReportSpecification> reportSpecifications;
+    private final Cache<Key, ReportPlan> reportPlans;
+
+    public ReportPlanCache(final long maxSize) {
+        this.reportSpecifications = CacheBuilder.newBuilder()
+                                                .maximumSize(maxSize)
+                                                .build(new CacheLoader<String, ReportSpecification>() {
+                                                    @Override
+                                                    public ReportSpecification load(final String rawReportName) {
+                                                        return new ReportSpecification(rawReportName);
+                                                    }
+                                                });
+        this.reportPlans = CacheBuilder.newBuilder()
+                                       .maximumSize(maxSize)
+                                       .build();
+    }
+
+    public ReportSpecification getReportSpecification(final String rawReportName) {
+        try {
+            return reportSpecifications.getUnchecked(rawReportName);
+        } catch (UncheckedExecutionException e) {
+            // Invalid specification
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public ReportPlan getReportPlan(final String tableName,
+                                    final ReportSpecification reportSpecification,
+                                    @Nullable final LocalDate startDate,
+                                    @Nullable final LocalDate endDate,
+                                    final Long tenantRecordId) {
+        final Key key = new Key(tableName, reportSpecification.getNormalizedSpecification(), startDate != null, endDate != null);
+        try {
+            return reportPlans.get(key, new Callable<ReportPlan>() {
+                @Override
+                public ReportPlan call() {
+                    return new ReportPlan(tableName, reportSpecification, startDate, endDate, tenantRecordId);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public void invalidateAll() {
+        reportSpecifications.invalidateAll();
+        reportPlans.invalidateAll();
+    }
+
+    private static final class Key {
+
+        private final String tableName;
+        private final String normalizedSpecification;
+        // The statements only depend on the presence of the dates
+        private final boolean withStartDate;
+        private final boolean withEndDate;
+
+        private Key(final String tableName, final String normalizedSpecification, final boolean withStartDate, final boolean withEndDate) {
+            this.tableName = tableName;
+            this.normalizedSpecification = normalizedSpecification;
+            this.withStartDate = withStartDate;
+            this.withEndDate = withEndDate;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final Key that = (Key) o;
+            return Objects.equal(tableName, that.tableName) &&
+                   Objects.equal(normalizedSpecification, that.normalizedSpecification) &&
+                   withStartDate == that.withStartDate &&
+                   withEndDate == that.withEndDate;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(tableName, normalizedSpecification, withStartDate, withEndDate);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.json.Chart;
+import org.killbill.billing.plugin.analytics.json.DataMarker;
+import org.killbill.billing.plugin.analytics.json.NamedXYTimeSeries;
+import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Cache of the report data returned to the dashboards.
+ * <p/>
+ * The report tables only change when their refresh procedure runs (see JobsScheduler), so results are cached until then
+ * (or until the report configuration changes). Reports without a refresh procedure (e.g. views on top of the analytics
+ * tables) reflect the latest account refreshes and are never cached. The cache is bounded by the number of data points (least recently used
+ * entries are evicted first). Since the refresh job may run on another node, entries also expire after a configurable TTL.
+ */
+public class ReportResultCache {
+
+    private static final String ANALYTICS_REPORTS_CACHE_PROPERTY_PREFIX = "org.killbill.billing.plugin.analytics.dashboard.cache.";
+
+    // Max number of data points in the cache (0 to disable the cache)
+    private static final String ANALYTICS_REPORTS_CACHE_MAX_SIZE_PROPERTY = ANALYTICS_REPORTS_CACHE_PROPERTY_PREFIX + "maxSize";
+    // Time to live of the entries, in seconds
+    private static final String ANALYTICS_REPORTS_CACHE_TTL_PROPERTY = ANALYTICS_REPORTS_CACHE_PROPERTY_PREFIX + "ttl";
+
+    private final Cache<Key, List<Chart>> cache;
+    private final boolean enabled;
+    // Incremented on each invalidation, to avoid caching results computed concurrently with a report refresh
+    private final AtomicLong generation = new AtomicLong();
+    private final Counter hits;
+    private final Counter misses;
+
+    public ReportResultCache(final OSGIConfigPropertiesService osgiConfigPropertiesService, final MetricRegistry metricRegistry) {
+        final String maxSizeMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_CACHE_MAX_SIZE_PROPERTY));
+        final long maxSize = maxSizeMaybeNull == null ? 1000000L : Long.valueOf(maxSizeMaybeNull);
+        final String ttlMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_CACHE_TTL_PROPERTY));
+        final long ttlSeconds = ttlMaybeNull == null ? 600L : Long.valueOf(ttlMaybeNull);
+
+        this.enabled = maxSize > 0;
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumWeight(maxSize)
+                                 .weigher(new Weigher<Key, List<Chart>>() {
+                                     @Override
+                                     public int weigh(final Key key, final List<Chart> charts) {
+                                         return getNbDataPoints(charts);
+                                     }
+                                 })
+                                 .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                 .build();
+
+        this.hits = metricRegistry.counter(MetricRegistry.name(ReportResultCache.class, "hits"));
+        this.misses = metricRegistry.counter(MetricRegistry.name(ReportResultCache.class, "misses"));
+        metricRegistry.register(MetricRegistry.name(ReportResultCache.class, "size"),
+                                new Gauge<Long>() {
+                                    @Override
+                                    public Long getValue() {
+                                        return cache.size();
+                                    }
+                                });
+    }
+
+    public static Key newKey(final Long tenantRecordId,
+                             final Iterable<ReportSpecification> reportSpecifications,
+                             @Nullable final LocalDate startDate,
+                             @Nullable final LocalDate endDate,
+                             @Nullable final SmootherType smootherType,
+                             @Nullable final Integer maxPoints) {
+        final ImmutableList.Builder<String> normalizedSpecifications = ImmutableList.<String>builder();
+        final ImmutableSet.Builder<String> reportNames = ImmutableSet.<String>builder();
+        for (final ReportSpecification reportSpecification : reportSpecifications) {
+            normalizedSpecifications.add(reportSpecification.getNormalizedSpecification());
+            reportNames.add(reportSpecification.getReportName());
+        }
+        return new Key(tenantRecordId, normalizedSpecifications.build(), reportNames.build(), startDate, endDate, smootherType, maxPoints);
+    }
+
+    /**
+     * @param reportConfigurations configurations of the requested reports
+     * @return true if the data only changes when the reports are refreshed
+     */
+    public static boolean isCacheable(final Iterable<ReportsConfigurationModelDao> reportConfigurations) {
+        for (final ReportsConfigurationModelDao reportConfiguration : reportConfigurations) {
+            if (reportConfiguration.getRefreshProcedureName() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param key cache key
+     * @return the cached data, null if not cached
+     */
+    public List<Chart> getIfPresent(final Key key) {
+        final List<Chart> charts = enabled ? cache.getIfPresent(key) : null;
+        if (charts == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return charts;
+    }
+
+    // Current generation, to retrieve before computing the data
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @param key        cache key
+     * @param generation generation, as returned by getGeneration before computing the data
+     * @param charts     data
+     */
+    public void put(final Key key, final long generation, final List<Chart> charts) {
+        if (!enabled) {
+            return;
+        }
+
+        cache.put(key, charts);
+        // Invalidated in the meantime? The data may be stale
+        if (this.generation.get() != generation) {
+            cache.invalidate(key);
+        }
+    }
+
+    // The report data (or its configuration) changed
+    public void invalidate(final String reportName) {
+        generation.incrementAndGet();
+        for (final Key key : cache.asMap().keySet()) {
+            if (key.reportNames.contains(reportName)) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    private static int getNbDataPoints(final List<Chart> charts) {
+        int nbDataPoints = 1;
+        for (final Chart chart : charts) {
+            if (chart.getData() == null) {
+                continue;
+            }
+            for (final DataMarker dataMarker : chart.getData()) {
+                if (dataMarker instanceof NamedXYTimeSeries && ((NamedXYTimeSeries) dataMarker).getValues() != null) {
+                    nbDataPoints += ((NamedXYTimeSeries) dataMarker).getValues().size();
+                } else {
+                    nbDataPoints++;
+                }
+            }
+        }
+        return nbDataPoints;
+    }
+
+    public static final class Key {
+
+        private final Long tenantRecordId;
+        private final List<String> normalizedSpecifications;
+        // Not part of the identity (derived from normalizedSpecifications), used for invalidation
+        private final ImmutableSet<String> reportNames;
+        private final LocalDate startDate;
+        private final LocalDate endDate;
+        private final SmootherType smootherType;
+        private final Integer maxPoints;
+
+        private Key(final Long tenantRecordId,
+                    final List<String> normalizedSpecifications,
+                    final ImmutableSet<String> reportNames,
+                    @Nullable final LocalDate startDate,
+                    @Nullable final LocalDate endDate,
+                    @Nullable final SmootherType smootherType,
+                    @Nullable final Integer maxPoints) {
+            this.tenantRecordId = tenantRecordId;
+            this.normalizedSpecifications = normalizedSpecifications;
+            this.reportNames = reportNames;
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.smootherType = smootherType;
+            this.maxPoints = maxPoints;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final Key that = (Key) o;
+            return Objects.equal(tenantRecordId, that.tenantRecordId) &&
+                   Objects.equal(normalizedSpecifications, that.normalizedSpecifications) &&
+                   Objects.equal(startDate, that.startDate) &&
+                   Objects.equal(endDate, that.endDate) &&
+                   smootherType == that.smootherType &&
+                   Objects.equal(maxPoints, that.maxPoints);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(tenantRecordId, normalizedSpecifications, startDate, endDate, smootherType, maxPoints);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("Key{");
+            sb.append("tenantRecordId=").append(tenantRecordId);
+            sb.append(", normalizedSpecifications=").append(normalizedSpecifications);
+            sb.append(", startDate=").append(startDate);
+            sb.append(", endDate=").append(endDate);
+            sb.append(", smootherType=").append(smootherType);
+            sb.append(", maxPoints=").append(maxPoints);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.killbill.billing.plugin.analytics.reports;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -49,22 +50,31 @@ public class ReportSpecification {
     private final List<String> dimensions = new LinkedList<String>();
     private final List<String> dimensionsWithGrouping = new LinkedList<String>();
     private final List<String> metrics = new LinkedList<String>();
+    // Read-only views, as instances are shared
+    private final List<String> dimensionsView = Collections.unmodifiableList(dimensions);
+    private final List<String> dimensionsWithGroupingView = Collections.unmodifiableList(dimensionsWithGrouping);
+    private final List<String> metricsView = Collections.unmodifiableList(metrics);
     private Expression<String> filterExpression = null;
+    private Integer topN = null;
 
     private enum ValidKeywords {
         DIMENSION,
         METRIC,
-        FILTER
+        FILTER,
+        TOPN
     }
 
     private final String rawReportName;
 
     private String reportName;
     private String legend;
+    private final String normalizedSpecification;
 
+    // Instances are immutable once parsed, and can be shared across requests (see ReportPlanCache)
     public ReportSpecification(final String rawReportName) {
         this.rawReportName = rawReportName;
         parseRawReportName();
+        this.normalizedSpecification = buildNormalizedSpecification();
     }
 
     public String getReportName() {
@@ -76,23 +86,53 @@ public class ReportSpecification {
     }
 
     public List<String> getDimensions() {
-        return dimensions;
+        return dimensionsView;
     }
 
     public List<String> getDimensionsWithGrouping() {
-        return dimensionsWithGrouping;
+        return dimensionsWithGroupingView;
     }
 
     public List<String> getMetrics() {
-        return metrics;
+        return metricsView;
     }
 
     public Expression<String> getFilterExpression() {
         return filterExpression;
     }
 
+    // Number of pivots to keep, the others are folded into the Other series
+    public Integer getTopN() {
+        return topN;
+    }
+
+    // Canonical form of the specification (whitespaces, keywords case and order, etc. don't matter), e.g. for caching
+    public String getNormalizedSpecification() {
+        return normalizedSpecification;
+    }
+
+    private String buildNormalizedSpecification() {
+        final StringBuilder normalizedSpecificationBuilder = new StringBuilder(reportName);
+        if (legend != null) {
+            normalizedSpecificationBuilder.append("(").append(legend).append(")");
+        }
+        for (final String dimension : dimensionsWithGrouping) {
+            normalizedSpecificationBuilder.append("^dimension:").append(dimension);
+        }
+        for (final String metric : metrics) {
+            normalizedSpecificationBuilder.append("^metric:").append(metric);
+        }
+        if (filterExpression != null) {
+            normalizedSpecificationBuilder.append("^filter:").append(filterExpression.toString());
+        }
+        if (topN != null) {
+            normalizedSpecificationBuilder.append("^topN:").append(topN);
+        }
+        return normalizedSpecificationBuilder.toString();
+    }
+
     private void parseRawReportName() {
-        // rawReportName is in the form: payments_per_day(Currency report)^filter:currency=AUD^filter:currency=EUR^dimension:currency^dimension:state^metric:amount^metric:fee
+        // rawReportName is in the form: payments_per_day(Currency report)^filter:currency=AUD^filter:currency=EUR^dimension:currency^dimension:state^metric:amount^metric:fee^topN:10
         final Iterator<String> reportIterator = REPORT_SPECIFICATIONS_SPLITTER.split(rawReportName).iterator();
 
         boolean isFirst = true;
@@ -152,6 +192,18 @@ public class ReportSpecification {
                         filterExpression = Or.of(filterExpression, thisFilterExpression);
                     }
                     break;
+                case TOPN:
+                    // value is something like: 10
+                    try {
+                        topN = Integer.valueOf(value);
+                    } catch (final NumberFormatException e) {
+                        // Be lenient
+                        continue;
+                    }
+                    if (topN <= 0) {
+                        topN = null;
+                    }
+                    break;
             }
         }
     }
@@ -18,10 +18,10 @@
 
 package org.killbill.billing.plugin.analytics.reports;
 
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -34,6 +34,7 @@ import java.util.concurrent.Future;
 import javax.annotation.Nullable;
 
 import org.joda.time.LocalDate;
+import org.jooq.Field;
 import org.killbill.billing.ObjectType;
 import org.killbill.billing.plugin.analytics.BusinessExecutor;
 import org.killbill.billing.plugin.analytics.dao.BusinessDBIProvider;
@@ -43,12 +44,16 @@ import org.killbill.billing.plugin.analytics.json.DataMarker;
 import org.killbill.billing.plugin.analytics.json.NamedXYTimeSeries;
 import org.killbill.billing.plugin.analytics.json.ReportConfigurationJson;
 import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+import org.killbill.billing.plugin.analytics.reports.analysis.Downsampler;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
+import org.killbill.billing.plugin.analytics.reports.analysis.TimeSeriesData;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
 import org.killbill.billing.plugin.analytics.reports.scheduler.JobsScheduler;
 import org.killbill.billing.plugin.analytics.reports.sql.Metadata;
+import org.killbill.billing.plugin.analytics.reports.sql.TableMetadata;
 import org.killbill.billing.util.api.RecordIdApi;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
@@ -58,20 +63,28 @@ import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.exceptions.CallbackFailedException;
 import org.skife.jdbi.v2.tweak.HandleCallback;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Objects;
-import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
 
 public class ReportsUserApi {
 
     private static final String ANALYTICS_REPORTS_NB_THREADS_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.nbThreads";
+    // Max number of parsed report specifications and compiled report plans kept around
+    private static final String ANALYTICS_REPORTS_PLANS_MAX_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.plans.maxSize";
+
+    // Fetch size for drivers which honor it (MySQL streams row by row, see getStreamingFetchSize)
+    private static final int STREAMING_FETCH_SIZE = 1000;
 
     // Part of the public API
     public static final String DAY_COLUMN_NAME = "day";
@@ -84,21 +97,28 @@ public class ReportsUserApi {
     private final ReportsConfiguration reportsConfiguration;
     private final JobsScheduler jobsScheduler;
     private final Metadata sqlMetadata;
+    private final ReportResultCache reportResultCache;
+    private final ReportPlanCache reportPlanCache;
 
     public ReportsUserApi(final OSGIKillbillLogService logService,
                           final OSGIKillbillAPI killbillAPI,
                           final OSGIKillbillDataSource osgiKillbillDataSource,
                           final OSGIConfigPropertiesService osgiConfigPropertiesService,
                           final ReportsConfiguration reportsConfiguration,
-                          final JobsScheduler jobsScheduler) {
+                          final JobsScheduler jobsScheduler,
+                          final ReportResultCache reportResultCache) {
         this.killbillAPI = killbillAPI;
         this.reportsConfiguration = reportsConfiguration;
         this.jobsScheduler = jobsScheduler;
+        this.reportResultCache = reportResultCache;
         dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
 
         final String nbThreadsMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_NB_THREADS_PROPERTY));
         this.dbiThreadsExecutor = BusinessExecutor.newCachedThreadPool(nbThreadsMaybeNull == null ? 10 : Integer.valueOf(nbThreadsMaybeNull), "osgi-analytics-dashboard");
 
+        final String plansMaxSizeMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_PLANS_MAX_SIZE_PROPERTY));
+        this.reportPlanCache = new ReportPlanCache(plansMaxSizeMaybeNull == null ? 1000L : Long.valueOf(plansMaxSizeMaybeNull));
+
         this.sqlMetadata = new Metadata(Sets.<String>newHashSet(Iterables.transform(reportsConfiguration.getAllReportConfigurations(null).values(),
                                                                                     new Function<ReportsConfigurationModelDao, String>() {
                                                                                         @Override
@@ -119,6 +139,8 @@ public class ReportsUserApi {
     // TODO Cache per tenant
     public void clearCaches(final CallContext context) {
         sqlMetadata.clearCaches();
+        reportResultCache.invalidateAll();
+        reportPlanCache.invalidateAll();
     }
 
     public ReportConfigurationJson getReportConfiguration(final String reportName, final TenantContext context) throws SQLException {
@@ -135,6 +157,7 @@ public class ReportsUserApi {
         final Long tenantRecordId = getTenantRecordId(context);
         final ReportsConfigurationModelDao reportsConfigurationModelDao = new ReportsConfigurationModelDao(reportConfigurationJson);
         reportsConfiguration.createReportConfiguration(reportsConfigurationModelDao, tenantRecordId);
+        reportResultCache.invalidate(reportsConfigurationModelDao.getReportName());
     }
 
     public void updateReport(final String reportName, final ReportConfigurationJson reportConfigurationJson, final CallContext context) {
@@ -142,11 +165,13 @@ public class ReportsUserApi {
         final ReportsConfigurationModelDao currentReportsConfigurationModelDao = reportsConfiguration.getReportConfigurationForReport(reportName, tenantRecordId);
         final ReportsConfigurationModelDao reportsConfigurationModelDao = new ReportsConfigurationModelDao(reportConfigurationJson, currentReportsConfigurationModelDao);
         reportsConfiguration.updateReportConfiguration(reportsConfigurationModelDao, tenantRecordId);
+        reportResultCache.invalidate(reportName);
     }
 
     public void deleteReport(final String reportName, final CallContext context) {
         final Long tenantRecordId = getTenantRecordId(context);
         reportsConfiguration.deleteReportConfiguration(reportName, tenantRecordId);
+        reportResultCache.invalidate(reportName);
     }
 
     public void refreshReport(final String reportName, final CallContext context) {
@@ -190,7 +215,7 @@ public class ReportsUserApi {
 
         final List<String> sqlQueries = new LinkedList<String>();
         for (final String rawReportName : rawReportNames) {
-            final ReportSpecification reportSpecification = new ReportSpecification(rawReportName);
+            final ReportSpecification reportSpecification = reportPlanCache.getReportSpecification(rawReportName);
             final ReportsConfigurationModelDao reportConfigurationForReport = reportsConfiguration.getReportConfigurationForReport(reportSpecification.getReportName(), tenantRecordId);
             if (reportConfigurationForReport != null) {
                 final SqlReportDataExtractor sqlReportDataExtractor = new SqlReportDataExtractor(reportConfigurationForReport.getSourceTableName(),
@@ -209,20 +234,52 @@ public class ReportsUserApi {
                                         @Nullable final LocalDate startDate,
                                         @Nullable final LocalDate endDate,
                                         @Nullable final SmootherType smootherType,
+                                        @Nullable final Integer maxPoints,
                                         final TenantContext context) {
         final Long tenantRecordId = getTenantRecordId(context);
 
-        final List<Chart> result = new LinkedList<Chart>();
-        final Map<String, Map<String, List<XY>>> timeSeriesData = new ConcurrentHashMap<String, Map<String, List<XY>>>();
-
         // Parse the reports
         final List<ReportSpecification> reportSpecifications = new ArrayList<ReportSpecification>();
         for (final String rawReportName : rawReportNames) {
-            reportSpecifications.add(new ReportSpecification(rawReportName));
+            reportSpecifications.add(reportPlanCache.getReportSpecification(rawReportName));
         }
 
         // Fetch the latest reports configurations
         final Map<String, ReportsConfigurationModelDao> reportsConfigurations = reportsConfiguration.getAllReportConfigurations(tenantRecordId);
+        final List<ReportsConfigurationModelDao> reportConfigurations = new ArrayList<ReportsConfigurationModelDao>();
+        for (final ReportSpecification reportSpecification : reportSpecifications) {
+            reportConfigurations.add(getReportConfiguration(reportSpecification.getReportName(), reportsConfigurations));
+        }
+
+        // Reports without a refresh procedure read live data
+        if (!ReportResultCache.isCacheable(reportConfigurations)) {
+            return getDataForReport(reportSpecifications, startDate, endDate, smootherType, maxPoints, reportsConfigurations, tenantRecordId);
+        }
+
+        // The report tables only change when refreshed
+        final ReportResultCache.Key cacheKey = ReportResultCache.newKey(tenantRecordId, reportSpecifications, startDate, endDate, smootherType, maxPoints);
+        final List<Chart> cachedResult = reportResultCache.getIfPresent(cacheKey);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        final long cacheGeneration = reportResultCache.getGeneration();
+        final List<Chart> result = getDataForReport(reportSpecifications, startDate, endDate, smootherType, maxPoints, reportsConfigurations, tenantRecordId);
+        reportResultCache.put(cacheKey, cacheGeneration, result);
+        return result;
+    }
+
+    private List<Chart> getDataForReport(final List<ReportSpecification> reportSpecifications,
+                                         @Nullable final LocalDate startDate,
+                                         @Nullable final LocalDate endDate,
+                                         @Nullable final SmootherType smootherType,
+                                         @Nullable final Integer maxPoints,
+                                         final Map<String, ReportsConfigurationModelDao> reportsConfigurations,
+                                         final Long tenantRecordId) {
+        final List<Chart> result = new LinkedList<Chart>();
+        final Map<String, TimeSeriesData.Builder> timeSeriesData = new ConcurrentHashMap<String, TimeSeriesData.Builder>();
+        // Time series already aggregated by week or month by the database
+        final Map<String, TimeSeriesData.Builder> aggregatedTimeSeriesData = new ConcurrentHashMap<String, TimeSeriesData.Builder>();
 
         final List<Future> jobs = new LinkedList<Future>();
         for (final ReportSpecification reportSpecification : reportSpecifications) {
@@ -242,8 +299,15 @@ public class ReportsUserApi {
                             break;
 
                         case TIMELINE:
-                            final Map<String, List<XY>> data = getTimeSeriesData(tableName, reportSpecification, reportConfiguration, startDate, endDate, tenantRecordId);
-                            timeSeriesData.put(reportName, data);
+                            final ReportPlan reportPlan = reportPlanCache.getReportPlan(tableName, reportSpecification, startDate, endDate, tenantRecordId);
+                            if (smootherType != null && reportPlan.canAggregateByDateGranularity()) {
+                                // Sums and counts can be aggregated by week or month directly in the database
+                                final TimeSeriesData.Builder data = getTimeSeriesData(reportPlan, startDate, endDate, tenantRecordId, smootherType.getDateGranularity());
+                                aggregatedTimeSeriesData.put(reportName, data);
+                            } else {
+                                final TimeSeriesData.Builder data = getTimeSeriesData(reportPlan, startDate, endDate, tenantRecordId, null);
+                                timeSeriesData.put(reportName, data);
+                            }
                             break;
                         default:
                             throw new RuntimeException("Unknown reportType " + reportType);
@@ -254,29 +318,87 @@ public class ReportsUserApi {
         waitForJobCompletion(jobs);
 
         //
-        // Normalization and smoothing of time series if needed
+        // Normalization, smoothing and downsampling of time series if needed
         //
-        normalizeAndSortXValues(timeSeriesData, startDate, endDate);
+        final Range<Integer> dayRange = getDayRange(Iterables.<TimeSeriesData.Builder>concat(timeSeriesData.values(), aggregatedTimeSeriesData.values()), startDate, endDate);
+        final Map<String, TimeSeriesData> normalizedTimeSeriesData = normalizeAndSortXValues(timeSeriesData, dayRange);
+        final Downsampler downsampler = maxPoints == null ? null : new Downsampler(maxPoints);
         if (smootherType != null) {
-            final Smoother smoother = smootherType.createSmoother(timeSeriesData);
+            final Smoother smoother = smootherType.createSmoother(normalizedTimeSeriesData);
             smoother.smooth();
-            result.addAll(buildNamedXYTimeSeries(smoother.getDataForReports(), reportsConfigurations));
+
+            final Map<String, TimeSeriesData> smoothedTimeSeriesData = smoother.getDataForReports();
+            for (final String reportName : aggregatedTimeSeriesData.keySet()) {
+                smoothedTimeSeriesData.put(reportName, smoother.smooth(aggregatedTimeSeriesData.get(reportName), dayRange.lowerEndpoint(), dayRange.upperEndpoint()));
+            }
+            result.addAll(buildNamedXYTimeSeries(smoothedTimeSeriesData, downsampler, reportsConfigurations));
         } else {
-            result.addAll(buildNamedXYTimeSeries(timeSeriesData, reportsConfigurations));
+            result.addAll(buildNamedXYTimeSeries(normalizedTimeSeriesData, downsampler, reportsConfigurations));
         }
 
         return result;
     }
 
-    private List<Chart> buildNamedXYTimeSeries(final Map<String, Map<String, List<XY>>> dataForReports, final Map<String, ReportsConfigurationModelDao> reportsConfigurations) {
+    /**
+     * Stream the raw data of the reports, as it is read from the database.
+     * <p/>
+     * The time series are neither normalized (missing days aren't filled) nor smoothed, and results aren't cached:
+     * in return, rows are never all loaded in memory.
+     *
+     * @param rawReportNames reports specifications
+     * @param startDate      optional start date
+     * @param endDate        optional end date
+     * @param writer         sink for the data
+     * @param context        tenant context
+     * @throws IOException if the data couldn't be written
+     */
+    public void streamDataForReport(final String[] rawReportNames,
+                                    @Nullable final LocalDate startDate,
+                                    @Nullable final LocalDate endDate,
+                                    final ReportDataWriter writer,
+                                    final TenantContext context) throws IOException {
+        final Long tenantRecordId = getTenantRecordId(context);
+
+        // Fetch the latest reports configurations
+        final Map<String, ReportsConfigurationModelDao> reportsConfigurations = reportsConfiguration.getAllReportConfigurations(tenantRecordId);
+
+        // Reports are streamed one after the other, on the caller thread
+        for (final String rawReportName : rawReportNames) {
+            final ReportSpecification reportSpecification = reportPlanCache.getReportSpecification(rawReportName);
+            final ReportsConfigurationModelDao reportConfiguration = getReportConfiguration(reportSpecification.getReportName(), reportsConfigurations);
+            final String tableName = reportConfiguration.getSourceTableName();
+            final ReportType reportType = reportConfiguration.getReportType();
+
+            writer.startChart(reportType, reportConfiguration.getReportPrettyName());
+            switch (reportType) {
+                case COUNTERS:
+                    streamCountersData(tableName, tenantRecordId, writer);
+                    break;
+                case TIMELINE:
+                    streamTimeSeriesData(tableName, reportSpecification, startDate, endDate, tenantRecordId, writer);
+                    break;
+                default:
+                    throw new RuntimeException("Unknown reportType " + reportType);
+            }
+            writer.endChart();
+        }
+    }
+
+    private List<Chart> buildNamedXYTimeSeries(final Map<String, TimeSeriesData> dataForReports,
+                                               @Nullable final Downsampler downsampler,
+                                               final Map<String, ReportsConfigurationModelDao> reportsConfigurations) {
         final List<Chart> results = new LinkedList<Chart>();
         final List<DataMarker> timeSeries = new LinkedList<DataMarker>();
         for (final String reportName : dataForReports.keySet()) {
             final ReportsConfigurationModelDao reportConfiguration = getReportConfiguration(reportName, reportsConfigurations);
 
             // Sort the pivots by name for a consistent display in the dashboard
-            for (final String timeSeriesName : Ordering.natural().sortedCopy(dataForReports.get(reportName).keySet())) {
-                final List<XY> dataForReport = dataForReports.get(reportName).get(timeSeriesName);
+            final TimeSeriesData data = dataForReports.get(reportName);
+            for (final String timeSeriesName : Ordering.natural().sortedCopy(data.getSeriesNames())) {
+                // Each series keeps its own points: peaks don't happen on the same days across pivots
+                final int[] indexes = downsampler == null ? null : downsampler.downsample(data.getDays(), data.getValues(timeSeriesName));
+                // XY objects are created on the fly, when serialized
+                final List<XY> dataForReport = data.getXYValues(timeSeriesName, indexes);
                 timeSeries.add(new NamedXYTimeSeries(timeSeriesName, dataForReport));
             }
             results.add(new Chart(ReportType.TIMELINE, reportConfiguration.getReportPrettyName(), timeSeries));
@@ -284,75 +406,51 @@ public class ReportsUserApi {
         return results;
     }
 
-    // TODO PIERRE Naive implementation
-    private void normalizeAndSortXValues(final Map<String, Map<String, List<XY>>> dataForReports, @Nullable final LocalDate startDate, @Nullable final LocalDate endDate) {
-        LocalDate minDate = null;
+    // All time series are aligned on the same axis of days, missing values are set to 0
+    @VisibleForTesting
+    static Map<String, TimeSeriesData> normalizeAndSortXValues(final Map<String, TimeSeriesData.Builder> dataForReports, @Nullable final LocalDate startDate, @Nullable final LocalDate endDate) {
+        return normalizeAndSortXValues(dataForReports, getDayRange(dataForReports.values(), startDate, endDate));
+    }
+
+    private static Map<String, TimeSeriesData> normalizeAndSortXValues(final Map<String, TimeSeriesData.Builder> dataForReports, final Range<Integer> dayRange) {
+        final Map<String, TimeSeriesData> normalizedDataForReports = new LinkedHashMap<String, TimeSeriesData>();
+        for (final String reportName : dataForReports.keySet()) {
+            normalizedDataForReports.put(reportName, dataForReports.get(reportName).build(dayRange.lowerEndpoint(), dayRange.upperEndpoint()));
+        }
+        return normalizedDataForReports;
+    }
+
+    private static Range<Integer> getDayRange(final Iterable<TimeSeriesData.Builder> dataForReports, @Nullable final LocalDate startDate, @Nullable final LocalDate endDate) {
+        Integer minDay = null;
         if (startDate != null) {
-            minDate = startDate;
+            minDay = TimeSeriesData.toEpochDay(startDate);
         }
 
-        LocalDate maxDate = null;
+        Integer maxDay = null;
         if (endDate != null) {
-            maxDate = endDate;
+            maxDay = TimeSeriesData.toEpochDay(endDate);
         }
 
         // If no min and/or max was specified, infer them from the data
-        if (minDate == null || maxDate == null) {
-            for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
-                for (final List<XY> dataForPivot : dataForReport.values()) {
-                    for (final XY xy : dataForPivot) {
-                        if (minDate == null || xy.getxDate().isBefore(minDate)) {
-                            minDate = xy.getxDate();
-                        }
-                        if (maxDate == null || xy.getxDate().isAfter(maxDate)) {
-                            maxDate = xy.getxDate();
-                        }
-                    }
+        if (minDay == null || maxDay == null) {
+            for (final TimeSeriesData.Builder dataForReport : dataForReports) {
+                if (dataForReport.isEmpty()) {
+                    continue;
                 }
-            }
-        }
-
-        if (minDate == null || maxDate == null) {
-            throw new IllegalStateException();
-        }
-
-        // Add 0 for missing days
-        LocalDate curDate = minDate;
-        while (!curDate.isAfter(maxDate)) {
-            for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
-                for (final List<XY> dataForPivot : dataForReport.values()) {
-                    addMissingValueForDateIfNeeded(curDate, dataForPivot);
+                if (minDay == null || dataForReport.getMinDay() < minDay) {
+                    minDay = dataForReport.getMinDay();
+                }
+                if (maxDay == null || dataForReport.getMaxDay() > maxDay) {
+                    maxDay = dataForReport.getMaxDay();
                 }
             }
-            curDate = curDate.plusDays(1);
         }
 
-        // Sort the data for the dashboard
-        for (final String reportName : dataForReports.keySet()) {
-            for (final String pivotName : dataForReports.get(reportName).keySet()) {
-                Collections.sort(dataForReports.get(reportName).get(pivotName),
-                                 new Comparator<XY>() {
-                                     @Override
-                                     public int compare(final XY o1, final XY o2) {
-                                         return o1.getxDate().compareTo(o2.getxDate());
-                                     }
-                                 }
-                                );
-            }
+        if (minDay == null || maxDay == null) {
+            throw new IllegalStateException();
         }
-    }
-
-    private void addMissingValueForDateIfNeeded(final LocalDate curDate, final List<XY> dataForPivot) {
-        final XY valueForCurrentDate = Iterables.tryFind(dataForPivot, new Predicate<XY>() {
-            @Override
-            public boolean apply(final XY xy) {
-                return xy.getxDate().compareTo(curDate) == 0;
-            }
-        }).orNull();
 
-        if (valueForCurrentDate == null) {
-            dataForPivot.add(new XY(curDate, (float) 0));
-        }
+        return Range.closed(minDay, maxDay);
     }
 
     private List<DataMarker> getCountersData(final String tableName, final Long tenantRecordId) {
@@ -383,45 +481,55 @@ public class ReportsUserApi {
         });
     }
 
-    private Map<String, List<XY>> getTimeSeriesData(final String tableName,
-                                                    final ReportSpecification reportSpecification,
-                                                    final ReportsConfigurationModelDao reportsConfiguration,
-                                                    @Nullable final LocalDate startDate,
-                                                    @Nullable final LocalDate endDate,
-                                                    final Long tenantRecordId) {
-        final SqlReportDataExtractor sqlReportDataExtractor = new SqlReportDataExtractor(tableName,
-                                                                                         reportSpecification,
-                                                                                         startDate,
-                                                                                         endDate,
-                                                                                         tenantRecordId);
-        return dbi.withHandle(new HandleCallback<Map<String, List<XY>>>() {
+    private TimeSeriesData.Builder getTimeSeriesData(final ReportPlan reportPlan,
+                                                     @Nullable final LocalDate startDate,
+                                                     @Nullable final LocalDate endDate,
+                                                     final Long tenantRecordId,
+                                                     @Nullable final DateGranularity dateGranularity) {
+        final ReportSpecification reportSpecification = reportPlan.getReportSpecification();
+        final Map<String, Object> bindParameters = reportPlan.getBindParameters(startDate, endDate, tenantRecordId);
+        return dbi.withHandle(new HandleCallback<TimeSeriesData.Builder>() {
             @Override
-            public Map<String, List<XY>> withHandle(final Handle handle) throws Exception {
-                final List<Map<String, Object>> results = handle.select(sqlReportDataExtractor.toString());
+            public TimeSeriesData.Builder withHandle(final Handle handle) throws Exception {
+                final String sql;
+                if (reportPlan.canRankPivots()) {
+                    // Two passes: rank the pivots first, then let the database fold the other ones into a single series
+                    final SqlReportDataExtractor sqlReportDataExtractor = reportPlan.newSqlReportDataExtractor(startDate, endDate, tenantRecordId);
+                    sqlReportDataExtractor.setTopPivots(handle.createQuery(reportPlan.getTopPivotsSql()).bindFromMap(bindParameters).list());
+                    sql = dateGranularity == null ? sqlReportDataExtractor.toString() : sqlReportDataExtractor.toAggregatedString(dateGranularity);
+                } else {
+                    sql = dateGranularity == null ? reportPlan.getSql() : reportPlan.getAggregatedSql(dateGranularity);
+                }
+
+                // The SQL text doesn't depend on the request: the driver statement cache can reuse it (see README)
+                final List<Map<String, Object>> results = handle.createQuery(sql).bindFromMap(bindParameters).list();
                 if (results.size() == 0) {
                     Collections.emptyMap();
                 }
 
-                final Map<String, List<XY>> timeSeries = new LinkedHashMap<String, List<XY>>();
+                final TimeSeriesData.Builder timeSeries = new TimeSeriesData.Builder();
                 for (final Map<String, Object> row : results) {
+                    // Range of days aggregated in the row, if aggregated by week or month
+                    final Object minDateObject = row.remove(SqlReportDataExtractor.MIN_DAY_COLUMN_NAME);
+                    final Object maxDateObject = row.remove(SqlReportDataExtractor.MAX_DAY_COLUMN_NAME);
+
                     final Object dateObject = row.get(DAY_COLUMN_NAME);
                     if (dateObject == null) {
                         continue;
                     }
-                    final String date = dateObject.toString();
+                    final LocalDate date = new LocalDate(dateObject.toString());
 
                     final String legendWithDimensions = createLegendWithDimensionsForSeries(row, reportSpecification);
                     for (final String column : row.keySet()) {
                         if (isMetric(column, reportSpecification)) {
-                            // Create a unique name for that result set
-                            final String seriesName = Objects.firstNonNull(reportSpecification.getLegend(), column) + (legendWithDimensions == null ? "" : (": " + legendWithDimensions));
-                            if (timeSeries.get(seriesName) == null) {
-                                timeSeries.put(seriesName, new LinkedList<XY>());
-                            }
-
+                            final String seriesName = createSeriesName(column, legendWithDimensions, reportSpecification);
                             final Object value = row.get(column);
                             final Float valueAsFloat = value == null ? 0f : Float.valueOf(value.toString());
-                            timeSeries.get(seriesName).add(new XY(date, valueAsFloat));
+                            if (dateGranularity == null) {
+                                timeSeries.addValue(seriesName, date, valueAsFloat);
+                            } else {
+                                timeSeries.addAggregatedValue(seriesName, date, new LocalDate(minDateObject.toString()), new LocalDate(maxDateObject.toString()), valueAsFloat);
+                            }
                         }
                     }
                 }
@@ -431,6 +539,172 @@ public class ReportsUserApi {
         });
     }
 
+    private void streamCountersData(final String tableName, final Long tenantRecordId, final ReportDataWriter writer) throws IOException {
+        streamRows("select * from " + tableName + " where tenant_record_id = " + tenantRecordId,
+                   new RowHandler() {
+                       @Override
+                       public void handle(final Map<String, Object> row) throws IOException {
+                           final Object labelObject = row.get(LABEL);
+                           final Object countObject = row.get(COUNT_COLUMN_NAME);
+                           if (labelObject == null || countObject == null) {
+                               return;
+                           }
+
+                           writer.writeCounter(new CounterChart(labelObject.toString(), Float.valueOf(countObject.toString())));
+                       }
+
+                       @Override
+                       public void done() {
+                       }
+                   });
+    }
+
+    private void streamTimeSeriesData(final String tableName,
+                                      final ReportSpecification reportSpecification,
+                                      @Nullable final LocalDate startDate,
+                                      @Nullable final LocalDate endDate,
+                                      final Long tenantRecordId,
+                                      final ReportDataWriter writer) throws IOException {
+        final SqlReportDataExtractor sqlReportDataExtractor = new SqlReportDataExtractor(tableName,
+                                                                                         reportSpecification,
+                                                                                         startDate,
+                                                                                         endDate,
+                                                                                         tenantRecordId);
+        final String sql = sqlReportDataExtractor.toSeriesOrderedString(getSeriesColumns(tableName, reportSpecification));
+
+        streamRows(sql,
+                   new RowHandler() {
+
+                       // Rows are sorted by series: only the values of the additional metrics for the current dimensions are kept around
+                       private final Map<String, List<XY>> pendingTimeSeries = new LinkedHashMap<String, List<XY>>();
+                       private String currentLegendWithDimensions = null;
+
+                       @Override
+                       public void handle(final Map<String, Object> row) throws IOException {
+                           final Object dateObject = row.get(DAY_COLUMN_NAME);
+                           if (dateObject == null) {
+                               return;
+                           }
+                           final String date = dateObject.toString();
+
+                           final String legendWithDimensions = createLegendWithDimensionsForSeries(row, reportSpecification);
+                           if (!Objects.equal(legendWithDimensions, currentLegendWithDimensions)) {
+                               done();
+                               currentLegendWithDimensions = legendWithDimensions;
+                           }
+
+                           boolean firstMetric = true;
+                           for (final String column : row.keySet()) {
+                               if (isMetric(column, reportSpecification)) {
+                                   final String seriesName = createSeriesName(column, legendWithDimensions, reportSpecification);
+                                   final Object value = row.get(column);
+                                   final XY xy = new XY(date, value == null ? 0f : Float.valueOf(value.toString()));
+
+                                   if (firstMetric) {
+                                       writer.writeTimeSeriesValue(seriesName, xy);
+                                       firstMetric = false;
+                                   } else {
+                                       if (pendingTimeSeries.get(seriesName) == null) {
+                                           pendingTimeSeries.put(seriesName, new LinkedList<XY>());
+                                       }
+                                       pendingTimeSeries.get(seriesName).add(xy);
+                                   }
+                               }
+                           }
+                       }
+
+                       @Override
+                       public void done() throws IOException {
+                           for (final String seriesName : pendingTimeSeries.keySet()) {
+                               for (final XY xy : pendingTimeSeries.get(seriesName)) {
+                                   writer.writeTimeSeriesValue(seriesName, xy);
+                               }
+                           }
+                           pendingTimeSeries.clear();
+                       }
+                   });
+    }
+
+    // Columns the series are multiplexed on (see createLegendWithDimensionsForSeries)
+    private List<String> getSeriesColumns(final String tableName, final ReportSpecification reportSpecification) {
+        final List<String> seriesColumns = new LinkedList<String>();
+        if (reportSpecification.getDimensions().isEmpty() && reportSpecification.getMetrics().isEmpty()) {
+            // "select *": look at the columns of the table
+            final TableMetadata tableMetadata;
+            try {
+                tableMetadata = sqlMetadata.getTable(tableName);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+
+            if (tableMetadata != null) {
+                for (final Field field : tableMetadata.getTable().fields()) {
+                    final String column = field.getName();
+                    if (shouldUseColumnAsDimensionMultiplexer(column, reportSpecification)) {
+                        seriesColumns.add(column);
+                    }
+                }
+            }
+        } else {
+            for (final String column : reportSpecification.getDimensions()) {
+                if (shouldUseColumnAsDimensionMultiplexer(column, reportSpecification)) {
+                    seriesColumns.add(column);
+                }
+            }
+        }
+        return seriesColumns;
+    }
+
+    private void streamRows(final String sql, final RowHandler rowHandler) throws IOException {
+        try {
+            dbi.withHandle(new HandleCallback<Void>() {
+                @Override
+                public Void withHandle(final Handle handle) throws Exception {
+                    // Forward-only, read-only, cursor
+                    final ResultIterator<Map<String, Object>> rows = handle.createQuery(sql)
+                                                                           .setFetchSize(getStreamingFetchSize(handle))
+                                                                           .iterator();
+                    try {
+                        while (rows.hasNext()) {
+                            rowHandler.handle(rows.next());
+                        }
+                        rowHandler.done();
+                    } finally {
+                        rows.close();
+                    }
+                    return null;
+                }
+            });
+        } catch (CallbackFailedException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private int getStreamingFetchSize(final Handle handle) throws SQLException {
+        // Connector/J only streams the result set (instead of loading it fully in memory) with this magic value
+        if ("MySQL".equalsIgnoreCase(handle.getConnection().getMetaData().getDatabaseProductName())) {
+            return Integer.MIN_VALUE;
+        } else {
+            return STREAMING_FETCH_SIZE;
+        }
+    }
+
+    private interface RowHandler {
+
+        public void handle(Map<String, Object> row) throws IOException;
+
+        // Called once all rows have been handled
+        public void done() throws IOException;
+    }
+
+    private String createSeriesName(final String column, @Nullable final String legendWithDimensions, final ReportSpecification reportSpecification) {
+        // Create a unique name for that result set
+        return Objects.firstNonNull(reportSpecification.getLegend(), column) + (legendWithDimensions == null ? "" : (": " + legendWithDimensions));
+    }
+
     private String createLegendWithDimensionsForSeries(final Map<String, Object> row, final ReportSpecification reportSpecification) {
         int i = 0;
         final StringBuilder seriesNameBuilder = new StringBuilder();
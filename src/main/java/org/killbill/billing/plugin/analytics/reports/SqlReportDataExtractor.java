@@ -19,7 +19,11 @@
 package org.killbill.billing.plugin.analytics.reports;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -27,13 +31,18 @@ import org.joda.time.LocalDate;
 import org.jooq.Condition;
 import org.jooq.DSLContext;
 import org.jooq.Field;
+import org.jooq.Query;
 import org.jooq.Record;
 import org.jooq.SQLDialect;
 import org.jooq.SelectConditionStep;
+import org.jooq.SelectHavingStep;
 import org.jooq.SelectSelectStep;
+import org.jooq.conf.ParamType;
 import org.jooq.conf.Settings;
 import org.jooq.conf.StatementType;
 import org.jooq.impl.DSL;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+import org.killbill.billing.plugin.analytics.reports.sql.Aggregates;
 import org.killbill.billing.plugin.analytics.reports.sql.Cases;
 import org.killbill.billing.plugin.analytics.reports.sql.Filters;
 import org.killbill.billing.plugin.analytics.reports.sql.MetricExpressionParser;
@@ -41,23 +50,43 @@ import org.killbill.billing.plugin.analytics.reports.sql.MetricExpressionParser;
 import com.bpodgursky.jbool_expressions.And;
 import com.bpodgursky.jbool_expressions.Expression;
 import com.bpodgursky.jbool_expressions.Variable;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 
 public class SqlReportDataExtractor {
 
     // Part of the public API
     private static final String DAY_COLUMN_NAME = "day";
 
+    // Range of days aggregated in each row, see toAggregatedString
+    public static final String MIN_DAY_COLUMN_NAME = "min_day";
+    public static final String MAX_DAY_COLUMN_NAME = "max_day";
+
+    // Named parameters, when the statements are rendered with bind parameters (see getBindParameters)
+    public static final String START_DATE_PARAMETER = "startDate";
+    public static final String END_DATE_PARAMETER = "endDate";
+    public static final String TENANT_RECORD_ID_PARAMETER = "tenantRecordId";
+    private static final String TENANT_RECORD_ID_COLUMN_NAME = "tenant_record_id";
+
     private final String tableName;
     private final ReportSpecification reportSpecification;
     private final LocalDate startDate;
     private final LocalDate endDate;
     private final DSLContext context;
     private final Long tenantRecordId;
+    private final boolean withBindParameters;
 
     private Collection<Field<Object>> dimensions = ImmutableList.<Field<Object>>of();
+    // Same as dimensions, without the aliases (MySQL resolves names in GROUP BY against the table columns first)
+    private Collection<Field<Object>> groupByDimensions = ImmutableList.<Field<Object>>of();
+    // Dimensions (without grouping) the pivots are ranked on, see toTopPivotsString
+    private List<String> rankedDimensions = ImmutableList.<String>of();
     private Collection<Field<Object>> metrics = ImmutableList.<Field<Object>>of();
     private Expression<String> filters = null;
+    // Values of the filters, when rendered with bind parameters
+    private final Map<String, Object> filterBindParameters = new HashMap<String, Object>();
+    private Condition boundFilters = null;
     private Condition condition = null;
     private boolean shouldGroupBy = false;
 
@@ -75,11 +104,27 @@ public class SqlReportDataExtractor {
                                   @Nullable final LocalDate endDate,
                                   final SQLDialect sqlDialect,
                                   final Long tenantRecordId) {
+        this(tableName, reportSpecification, startDate, endDate, sqlDialect, tenantRecordId, false);
+    }
+
+    /**
+     * @param withBindParameters if true, the date range, the tenant and the filter values are rendered as named
+     *                           parameters instead of literals: the statements only depend on the shape of the report
+     *                           and can be prepared once (see ReportPlan, getBindParameters and getFilterBindParameters)
+     */
+    public SqlReportDataExtractor(final String tableName,
+                                  final ReportSpecification reportSpecification,
+                                  @Nullable final LocalDate startDate,
+                                  @Nullable final LocalDate endDate,
+                                  final SQLDialect sqlDialect,
+                                  final Long tenantRecordId,
+                                  final boolean withBindParameters) {
         this.tableName = tableName;
         this.reportSpecification = reportSpecification;
         this.startDate = startDate;
         this.endDate = endDate;
         this.tenantRecordId = tenantRecordId;
+        this.withBindParameters = withBindParameters;
 
         final Settings settings = new Settings();
         settings.withStatementType(StatementType.STATIC_STATEMENT);
@@ -91,29 +136,217 @@ public class SqlReportDataExtractor {
 
     @Override
     public String toString() {
+        return render(buildStatement());
+    }
+
+    /**
+     * Values of the named parameters for the filters, when rendered with bind parameters
+     *
+     * @return the parameters to bind
+     */
+    public Map<String, Object> getFilterBindParameters() {
+        return filterBindParameters;
+    }
+
+    /**
+     * Values of the named parameters of statements rendered with bind parameters
+     *
+     * @param startDate      optional start date
+     * @param endDate        optional end date
+     * @param tenantRecordId tenant record id
+     * @return the parameters to bind
+     */
+    public static Map<String, Object> getBindParameters(@Nullable final LocalDate startDate, @Nullable final LocalDate endDate, final Long tenantRecordId) {
+        final Map<String, Object> bindParameters = new HashMap<String, Object>();
+        // Compared as strings, like the literals
+        if (startDate != null) {
+            bindParameters.put(START_DATE_PARAMETER, startDate.toString());
+        }
+        if (endDate != null) {
+            bindParameters.put(END_DATE_PARAMETER, endDate.toString());
+        }
+        bindParameters.put(TENANT_RECORD_ID_PARAMETER, tenantRecordId);
+        return bindParameters;
+    }
+
+    /**
+     * Same query, with the rows sorted by series, then by day, so that each time series can be streamed contiguously
+     *
+     * @param seriesColumns columns used to build the series names
+     * @return the SQL query
+     */
+    public String toSeriesOrderedString(final Iterable<String> seriesColumns) {
+        final List<Field<Object>> orderByFields = new LinkedList<Field<Object>>();
+        for (final String seriesColumn : seriesColumns) {
+            orderByFields.add(DSL.fieldByName(seriesColumn));
+        }
+        orderByFields.add(DSL.fieldByName(DAY_COLUMN_NAME));
+
+        return render(buildStatement().orderBy(orderByFields.toArray(new Field<?>[orderByFields.size()])));
+    }
+
+    /**
+     * Whether the metrics can be aggregated by week or month in the database (see toAggregatedString)
+     *
+     * @return true if all metrics are sums or counts
+     */
+    public boolean canAggregateByDateGranularity() {
+        if (reportSpecification.getMetrics().isEmpty() || reportSpecification.getDimensions().contains(DAY_COLUMN_NAME)) {
+            return false;
+        }
+
+        for (final String metric : reportSpecification.getMetrics()) {
+            if (!Aggregates.isDecomposable(metric)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same query, with the metrics aggregated by week or month instead of by day.
+     * <p/>
+     * The day column contains the first day of the week (Monday) or month, and each row also contains the first and last
+     * days it was aggregated from (see MIN_DAY_COLUMN_NAME and MAX_DAY_COLUMN_NAME).
+     *
+     * @param dateGranularity week or month
+     * @return the SQL query
+     */
+    public String toAggregatedString(final DateGranularity dateGranularity) {
+        Preconditions.checkState(canAggregateByDateGranularity(), "Metrics cannot be aggregated: " + reportSpecification.getMetrics());
+
+        final Field<Object> day = DSL.fieldByName(DAY_COLUMN_NAME);
+        final Field<Object> truncatedDay;
+        switch (dateGranularity) {
+            case WEEKLY:
+                truncatedDay = DSL.field("date_sub({0}, interval weekday({0}) day)", Object.class, day);
+                break;
+            case MONTHLY:
+                truncatedDay = DSL.field("date_sub({0}, interval (dayofmonth({0}) - 1) day)", Object.class, day);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported date granularity " + dateGranularity);
+        }
+
+        // The first dimension is the day (see setupDimensions)
+        final List<Field<?>> selectedFields = new LinkedList<Field<?>>();
+        selectedFields.add(truncatedDay.as(DAY_COLUMN_NAME));
+        Iterables.addAll(selectedFields, Iterables.skip(dimensions, 1));
+        final List<Field<Object>> groupByFields = new LinkedList<Field<Object>>();
+        groupByFields.add(truncatedDay);
+        Iterables.addAll(groupByFields, Iterables.skip(groupByDimensions, 1));
+        selectedFields.addAll(metrics);
+        selectedFields.add(DSL.min(day).as(MIN_DAY_COLUMN_NAME));
+        selectedFields.add(DSL.max(day).as(MAX_DAY_COLUMN_NAME));
+
+        return render(buildStatement(context.select(selectedFields), groupByFields));
+    }
+
+    /**
+     * Whether the pivots can be ranked, to keep the top N ones only (see toTopPivotsString and setTopPivots)
+     *
+     * @return true if topN is specified, with at least one dimension and aggregated metrics
+     */
+    public boolean canRankPivots() {
+        return reportSpecification.getTopN() != null && !rankedDimensions.isEmpty() && shouldGroupBy;
+    }
+
+    /**
+     * First pass of the top N query: the top N pivots over the whole date range, ranked by the first metric.
+     * <p/>
+     * Only dimensions without grouping are ranked (grouped ones already have a bounded number of values).
+     *
+     * @return the SQL query
+     */
+    public String toTopPivotsString() {
+        Preconditions.checkState(canRankPivots(), "Pivots cannot be ranked: " + reportSpecification.getNormalizedSpecification());
+
+        final List<Field<Object>> rankedFields = new LinkedList<Field<Object>>();
+        for (final String rankedDimension : rankedDimensions) {
+            rankedFields.add(DSL.fieldByName(rankedDimension));
+        }
+
+        return render(buildStatement(context.select(rankedFields), rankedFields).orderBy(metrics.iterator().next().desc())
+                                                                               .limit(reportSpecification.getTopN()));
+    }
+
+    /**
+     * Second pass of the top N query: values of the ranked dimensions outside of the top pivots are replaced by Other,
+     * so that the database aggregates them in a single series.
+     *
+     * @param topPivots rows returned by the query from toTopPivotsString
+     */
+    public void setTopPivots(final Iterable<Map<String, Object>> topPivots) {
+        Condition isTopPivot = null;
+        for (final Map<String, Object> topPivot : topPivots) {
+            Condition pivotCondition = null;
+            for (final String rankedDimension : rankedDimensions) {
+                final Field<Object> field = DSL.fieldByName(rankedDimension);
+                final Object value = topPivot.get(rankedDimension);
+                final Condition valueCondition = value == null ? field.isNull() : field.eq(value);
+                pivotCondition = pivotCondition == null ? valueCondition : pivotCondition.and(valueCondition);
+            }
+            isTopPivot = isTopPivot == null ? pivotCondition : isTopPivot.or(pivotCondition);
+        }
+
+        if (isTopPivot == null) {
+            // No data
+            return;
+        }
+
+        final List<Field<Object>> newDimensions = new LinkedList<Field<Object>>();
+        final List<Field<Object>> newGroupByDimensions = new LinkedList<Field<Object>>();
+        final Iterator<Field<Object>> groupByDimensionsIterator = groupByDimensions.iterator();
+        for (final Field<Object> dimension : dimensions) {
+            final Field<Object> groupByDimension = groupByDimensionsIterator.next();
+            if (rankedDimensions.contains(dimension.getName())) {
+                final Field<Object> rankedDimension = DSL.decode().when(isTopPivot, groupByDimension).otherwise(Cases.OTHER);
+                newDimensions.add(rankedDimension.as(dimension.getName()));
+                newGroupByDimensions.add(rankedDimension);
+            } else {
+                newDimensions.add(dimension);
+                newGroupByDimensions.add(groupByDimension);
+            }
+        }
+        dimensions = newDimensions;
+        groupByDimensions = newGroupByDimensions;
+    }
+
+    private String render(final Query query) {
+        // Named parameters are bound by JDBI, other values (e.g. in case statements) are still inlined
+        return withBindParameters ? query.getSQL(ParamType.NAMED_OR_INLINED) : query.getSQL();
+    }
+
+    private SelectHavingStep<? extends Record> buildStatement() {
         // Generate "select *" if no dimension or metric is precised
         final SelectSelectStep<? extends Record> initialSelect = dimensions.size() == 1 && metrics.isEmpty() ? context.select()
                                                                                                              : context.select(dimensions)
                                                                                                                       .select(metrics);
+        return buildStatement(initialSelect, groupByDimensions);
+    }
 
+    private SelectHavingStep<? extends Record> buildStatement(final SelectSelectStep<? extends Record> initialSelect, final Collection<Field<Object>> groupByFields) {
         SelectConditionStep<? extends Record> statement = initialSelect.from(tableName)
                                                                        .where();
 
 
         if (filters != null) {
-            statement = statement.and(Filters.of(filters));
+            statement = statement.and(withBindParameters ? boundFilters : Filters.of(filters));
         }
         if (condition != null) {
             statement = statement.and(condition);
         }
 
-        statement.and(DSL.fieldByName("tenant_record_id").eq(tenantRecordId));
+        if (withBindParameters) {
+            statement.and(DSL.condition(TENANT_RECORD_ID_COLUMN_NAME + " = :" + TENANT_RECORD_ID_PARAMETER));
+        } else {
+            statement.and(DSL.fieldByName(TENANT_RECORD_ID_COLUMN_NAME).eq(tenantRecordId));
+        }
 
         if (shouldGroupBy) {
-            return statement.groupBy(dimensions)
-                            .getSQL();
+            return statement.groupBy(groupByFields);
         } else {
-            return statement.getSQL();
+            return statement;
         }
     }
 
@@ -132,14 +365,19 @@ public class SqlReportDataExtractor {
         }
 
         // Add all other dimensions, potential building case statements as we go
+        rankedDimensions = new LinkedList<String>();
         for (final String dimensionWithGrouping : reportSpecification.getDimensionsWithGrouping()) {
             final Cases.FieldWithMetadata fieldWithMetadata = Cases.of(dimensionWithGrouping);
             dimensions.add(fieldWithMetadata.getField());
+            if (!DAY_COLUMN_NAME.equals(dimensionWithGrouping) && reportSpecification.getDimensions().contains(dimensionWithGrouping)) {
+                rankedDimensions.add(dimensionWithGrouping);
+            }
 
             if (fieldWithMetadata.getCondition() != null) {
                 condition = condition == null ? fieldWithMetadata.getCondition() : condition.and(fieldWithMetadata.getCondition());
             }
         }
+        groupByDimensions = dimensions;
     }
 
     private void setupMetrics() {
@@ -154,6 +392,23 @@ public class SqlReportDataExtractor {
     private void setupFilters() {
         filters = reportSpecification.getFilterExpression();
 
+        if (withBindParameters) {
+            if (filters != null) {
+                boundFilters = Filters.of(filters, filterBindParameters);
+            }
+
+            // Plain SQL without substitutes: the named parameters are bound by JDBI when the statement is executed
+            if (startDate != null) {
+                final Condition dateCheck = DSL.condition(DAY_COLUMN_NAME + " >= :" + START_DATE_PARAMETER);
+                condition = condition == null ? dateCheck : condition.and(dateCheck);
+            }
+            if (endDate != null) {
+                final Condition dateCheck = DSL.condition(DAY_COLUMN_NAME + " <= :" + END_DATE_PARAMETER);
+                condition = condition == null ? dateCheck : condition.and(dateCheck);
+            }
+            return;
+        }
+
         // Deal with dates (as yet another, specific, filter)
         if (startDate != null) {
             final Variable<String> dateCheck = Variable.of(String.format("%s>=%s", DAY_COLUMN_NAME, startDate));
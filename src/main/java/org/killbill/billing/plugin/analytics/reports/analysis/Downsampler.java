@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.analysis;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling (Sveinn Steinarsson, 2013).
+ * <p/>
+ * The first and last points are always kept. The other points are split in maxPoints - 2 buckets and, in each
+ * bucket, the point forming the largest triangle with the previously selected point and the average of the next
+ * bucket is selected: peaks and troughs are preserved, so the downsampled series keeps its visual shape.
+ */
+public class Downsampler {
+
+    // Two points can't describe the shape of a series
+    public static final int MIN_POINTS = 3;
+
+    private final int maxPoints;
+
+    public Downsampler(final int maxPoints) {
+        if (maxPoints < MIN_POINTS) {
+            throw new IllegalArgumentException("maxPoints must be at least " + MIN_POINTS + ", got " + maxPoints);
+        }
+        this.maxPoints = maxPoints;
+    }
+
+    /**
+     * Select the points to keep.
+     *
+     * @param days   sorted x values (epoch days)
+     * @param values y values, aligned on days
+     * @return the sorted indexes of the points to keep, or null if the series doesn't need to be downsampled
+     */
+    public int[] downsample(final int[] days, final float[] values) {
+        final int nbPoints = values.length;
+        if (nbPoints <= maxPoints) {
+            return null;
+        }
+
+        final int[] selected = new int[maxPoints];
+        int nbSelected = 0;
+
+        // Bucket size, the first and last points being in their own bucket
+        final double every = (double) (nbPoints - 2) / (maxPoints - 2);
+
+        int a = 0;
+        selected[nbSelected++] = a;
+        for (int i = 0; i < maxPoints - 2; i++) {
+            // Average point of the next bucket (the last point, for the last bucket)
+            final int nextBucketStart = (int) Math.floor((i + 1) * every) + 1;
+            final int nextBucketEnd = Math.min((int) Math.floor((i + 2) * every) + 1, nbPoints);
+            double avgDay = 0;
+            double avgValue = 0;
+            for (int j = nextBucketStart; j < nextBucketEnd; j++) {
+                avgDay += days[j];
+                avgValue += values[j];
+            }
+            avgDay /= (nextBucketEnd - nextBucketStart);
+            avgValue /= (nextBucketEnd - nextBucketStart);
+
+            // Point of the current bucket forming the largest triangle
+            final int bucketStart = (int) Math.floor(i * every) + 1;
+            final int bucketEnd = (int) Math.floor((i + 1) * every) + 1;
+            double maxArea = -1;
+            int maxAreaIndex = bucketStart;
+            for (int j = bucketStart; j < bucketEnd; j++) {
+                // Twice the area, which doesn't change the comparison
+                final double area = Math.abs((days[a] - avgDay) * (values[j] - values[a]) - (days[a] - days[j]) * (avgValue - values[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    maxAreaIndex = j;
+                }
+            }
+
+            a = maxAreaIndex;
+            selected[nbSelected++] = a;
+        }
+        selected[nbSelected] = nbPoints - 1;
+
+        return selected;
+    }
+}
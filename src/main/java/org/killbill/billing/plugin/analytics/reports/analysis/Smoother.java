@@ -17,21 +17,19 @@
 
 package org.killbill.billing.plugin.analytics.reports.analysis;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTimeConstants;
 import org.joda.time.LocalDate;
-import org.killbill.billing.plugin.analytics.json.XY;
 
 import com.google.common.base.Function;
 
 public abstract class Smoother {
 
-    private final Map<String, Map<String, List<XY>>> dataForReports;
+    private final Map<String, TimeSeriesData> dataForReports;
     private final DateGranularity dateGranularity;
 
     public static enum SmootherType {
@@ -40,7 +38,7 @@ public abstract class Smoother {
         SUM_WEEKLY,
         SUM_MONTHLY;
 
-        public Smoother createSmoother(final Map<String, Map<String, List<XY>>> dataForReports) {
+        public Smoother createSmoother(final Map<String, TimeSeriesData> dataForReports) {
             switch (this) {
                 case AVERAGE_WEEKLY:
                     return new AverageSmoother(dataForReports, DateGranularity.WEEKLY);
@@ -54,6 +52,19 @@ public abstract class Smoother {
                     return null;
             }
         }
+
+        public DateGranularity getDateGranularity() {
+            switch (this) {
+                case AVERAGE_WEEKLY:
+                case SUM_WEEKLY:
+                    return DateGranularity.WEEKLY;
+                case AVERAGE_MONTHLY:
+                case SUM_MONTHLY:
+                    return DateGranularity.MONTHLY;
+                default:
+                    return null;
+            }
+        }
     }
 
     public static SmootherType fromString(@Nullable final String smootherName) {
@@ -64,7 +75,7 @@ public abstract class Smoother {
         }
     }
 
-    public Smoother(final Map<String, Map<String, List<XY>>> dataForReports, final DateGranularity dateGranularity) {
+    public Smoother(final Map<String, TimeSeriesData> dataForReports, final DateGranularity dateGranularity) {
         this.dataForReports = dataForReports;
         this.dateGranularity = dateGranularity;
     }
@@ -73,64 +84,145 @@ public abstract class Smoother {
 
     // Assume the data is already sorted
     public void smooth() {
-        for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
-            for (final String pivotName : dataForReport.keySet()) {
-                final List<XY> dataForPivot = dataForReport.get(pivotName);
-                final List<XY> smoothedData = smooth(dataForPivot);
-                dataForReport.put(pivotName, smoothedData);
-            }
+        for (final String reportName : dataForReports.keySet()) {
+            final TimeSeriesData dataForReport = dataForReports.get(reportName);
+            final TimeSeriesData smoothedData = smooth(dataForReport);
+            dataForReports.put(reportName, smoothedData);
         }
     }
 
-    public Map<String, Map<String, List<XY>>> getDataForReports() {
+    public Map<String, TimeSeriesData> getDataForReports() {
         return dataForReports;
     }
 
-    private List<XY> smooth(final List<XY> inputData) {
-        switch (dateGranularity) {
-            case WEEKLY:
-                return smooth(inputData,
-                              new Function<XY, LocalDate>() {
-                                  @Override
-                                  public LocalDate apply(final XY input) {
-                                      return input.getxDate().withDayOfWeek(DateTimeConstants.MONDAY);
-                                  }
-                              }
-                             );
-            case MONTHLY:
-                return smooth(inputData,
-                              new Function<XY, LocalDate>() {
-                                  @Override
-                                  public LocalDate apply(final XY input) {
-                                      return input.getxDate().withDayOfMonth(1);
-                                  }
-                              }
-                             );
-            default:
-                return inputData;
+    /**
+     * Smooth values already summed by bucket (e.g. by the database): the result is the same as smoothing the daily values.
+     *
+     * @param aggregatedData sums by first day of the bucket, with the range of days they were computed from
+     * @param firstDay       first epoch day of the axis
+     * @param lastDay        last epoch day of the axis
+     * @return the smoothed data
+     */
+    public TimeSeriesData smooth(final TimeSeriesData.Builder aggregatedData, final int firstDay, final int lastDay) {
+        final Function<LocalDate, LocalDate> truncator = getTruncator();
+
+        // Daily axis, as it would have been built from the daily values
+        final int axisStart = aggregatedData.isEmpty() ? firstDay : Math.min(firstDay, aggregatedData.getMinDay());
+        final int axisEnd = aggregatedData.isEmpty() ? lastDay : Math.max(lastDay, aggregatedData.getMaxDay());
+        final LocalDate[] dates = new LocalDate[axisEnd - axisStart + 1];
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = TimeSeriesData.fromEpochDay(axisStart + i);
         }
+
+        final int[] truncatedDays = truncate(dates, truncator);
+        final int[] smoothedDays = getBuckets(truncatedDays);
+
+        // Number of days of the axis in each bucket
+        final int[] bucketSizes = new int[smoothedDays.length];
+        for (int i = 0, bucket = 0; i < truncatedDays.length; i++) {
+            if (i > 0 && truncatedDays[i] != truncatedDays[i - 1]) {
+                bucket++;
+            }
+            if (bucket == smoothedDays.length) {
+                break;
+            }
+            bucketSizes[bucket]++;
+        }
+
+        // Dense sums, indexed from the first bucket
+        final TimeSeriesData sums = aggregatedData.build(truncatedDays[0], axisEnd);
+
+        final Map<String, float[]> smoothedValues = new LinkedHashMap<String, float[]>();
+        for (final String seriesName : sums.getSeriesNames()) {
+            final float[] sumsForSeries = sums.getValues(seriesName);
+            final float[] smoothedValuesForSeries = new float[smoothedDays.length];
+            for (int bucket = 0; bucket < smoothedDays.length; bucket++) {
+                smoothedValuesForSeries[bucket] = computeSmoothedValue(sumsForSeries[smoothedDays[bucket] - truncatedDays[0]], bucketSizes[bucket]);
+            }
+            smoothedValues.put(seriesName, smoothedValuesForSeries);
+        }
+
+        return new TimeSeriesData(smoothedDays, smoothedValues);
     }
 
-    private List<XY> smooth(final List<XY> inputData, final Function<XY, LocalDate> truncator) {
-        final List<XY> smoothedData = new LinkedList<XY>();
-
-        LocalDate currentTruncatedDate = truncator.apply(inputData.get(0));
-        Float accumulator = (float) 0;
-        int accumulatorSize = 0;
-        for (final XY xy : inputData) {
-            final LocalDate zeTruncatedDate = truncator.apply(xy);
-            //noinspection ConstantConditions
-            if (zeTruncatedDate.compareTo(currentTruncatedDate) != 0) {
-                smoothedData.add(new XY(currentTruncatedDate, computeSmoothedValue(accumulator, accumulatorSize)));
-                accumulator = (float) 0;
-                accumulatorSize = 0;
+    private TimeSeriesData smooth(final TimeSeriesData inputData) {
+        final Function<LocalDate, LocalDate> truncator = getTruncator();
+        final LocalDate[] dates = inputData.getDates();
+        if (truncator == null || dates.length == 0) {
+            return inputData;
+        }
+
+        // The buckets are the same for all series: compute them once
+        final int[] truncatedDays = truncate(dates, truncator);
+        final int[] smoothedDays = getBuckets(truncatedDays);
+
+        final Map<String, float[]> smoothedValues = new LinkedHashMap<String, float[]>();
+        for (final String seriesName : inputData.getSeriesNames()) {
+            final float[] values = inputData.getValues(seriesName);
+            final float[] smoothedValuesForSeries = new float[smoothedDays.length];
+
+            float accumulator = (float) 0;
+            int accumulatorSize = 0;
+            for (int i = 0, bucket = 0; i < values.length; i++) {
+                if (i > 0 && truncatedDays[i] != truncatedDays[i - 1]) {
+                    smoothedValuesForSeries[bucket++] = computeSmoothedValue(accumulator, accumulatorSize);
+                    accumulator = (float) 0;
+                    accumulatorSize = 0;
+                }
+
+                accumulator += values[i];
+                accumulatorSize++;
             }
+            smoothedValues.put(seriesName, smoothedValuesForSeries);
+        }
 
-            accumulator += xy.getY();
-            accumulatorSize++;
-            currentTruncatedDate = zeTruncatedDate;
+        return new TimeSeriesData(smoothedDays, smoothedValues);
+    }
+
+    private int[] truncate(final LocalDate[] dates, final Function<LocalDate, LocalDate> truncator) {
+        final int[] truncatedDays = new int[dates.length];
+        for (int i = 0; i < dates.length; i++) {
+            truncatedDays[i] = TimeSeriesData.toEpochDay(truncator.apply(dates[i]));
         }
+        return truncatedDays;
+    }
 
-        return smoothedData;
+    // Note: the last (likely incomplete) bucket is skipped
+    private int[] getBuckets(final int[] truncatedDays) {
+        int nbBuckets = 0;
+        for (int i = 1; i < truncatedDays.length; i++) {
+            if (truncatedDays[i] != truncatedDays[i - 1]) {
+                nbBuckets++;
+            }
+        }
+
+        final int[] buckets = new int[nbBuckets];
+        for (int i = 1, bucket = 0; i < truncatedDays.length; i++) {
+            if (truncatedDays[i] != truncatedDays[i - 1]) {
+                buckets[bucket++] = truncatedDays[i - 1];
+            }
+        }
+        return buckets;
+    }
+
+    private Function<LocalDate, LocalDate> getTruncator() {
+        switch (dateGranularity) {
+            case WEEKLY:
+                return new Function<LocalDate, LocalDate>() {
+                    @Override
+                    public LocalDate apply(final LocalDate input) {
+                        return input.withDayOfWeek(DateTimeConstants.MONDAY);
+                    }
+                };
+            case MONTHLY:
+                return new Function<LocalDate, LocalDate>() {
+                    @Override
+                    public LocalDate apply(final LocalDate input) {
+                        return input.withDayOfMonth(1);
+                    }
+                };
+            default:
+                return null;
+        }
     }
 }
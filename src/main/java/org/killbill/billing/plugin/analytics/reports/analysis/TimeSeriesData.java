@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.analysis;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.json.XY;
+
+/**
+ * Columnar representation of the time series of a report.
+ * <p/>
+ * All series share the same sorted axis of days and keep their values in a primitive array aligned on it.
+ * XY objects are only created when the data is returned to the client (see #getXYValues).
+ * <p/>
+ * Hence, there is at most one value per day and series (values for the same day are summed), and every series
+ * of the report is padded with 0 over the whole axis, including the days outside of the requested range.
+ */
+public class TimeSeriesData {
+
+    private static final LocalDate EPOCH = new LocalDate(1970, 1, 1);
+
+    // Epoch days
+    private final int[] days;
+    private final LocalDate[] dates;
+    private final Map<String, float[]> values;
+
+    public TimeSeriesData(final int[] days, final Map<String, float[]> values) {
+        this.days = days;
+        this.values = values;
+
+        this.dates = new LocalDate[days.length];
+        for (int i = 0; i < days.length; i++) {
+            dates[i] = fromEpochDay(days[i]);
+        }
+    }
+
+    public static int toEpochDay(final LocalDate date) {
+        return Days.daysBetween(EPOCH, date).getDays();
+    }
+
+    public static LocalDate fromEpochDay(final int epochDay) {
+        return EPOCH.plusDays(epochDay);
+    }
+
+    public int[] getDays() {
+        return days;
+    }
+
+    public LocalDate[] getDates() {
+        return dates;
+    }
+
+    public Set<String> getSeriesNames() {
+        return values.keySet();
+    }
+
+    public float[] getValues(final String seriesName) {
+        return values.get(seriesName);
+    }
+
+    // Read-only view, for the API
+    public List<XY> getXYValues(final String seriesName) {
+        return new XYList(dates, values.get(seriesName), null);
+    }
+
+    // Read-only view of a subset of the points (e.g. after downsampling), for the API
+    public List<XY> getXYValues(final String seriesName, @Nullable final int[] indexes) {
+        return new XYList(dates, values.get(seriesName), indexes);
+    }
+
+    private static final class XYList extends AbstractList<XY> implements RandomAccess {
+
+        private final LocalDate[] dates;
+        private final float[] values;
+        // Indexes of the points in the view, null for all of them
+        private final int[] indexes;
+
+        private XYList(final LocalDate[] dates, final float[] values, @Nullable final int[] indexes) {
+            this.dates = dates;
+            this.values = values;
+            this.indexes = indexes;
+        }
+
+        @Override
+        public XY get(final int index) {
+            final int i = indexes == null ? index : indexes[index];
+            return new XY(dates[i], values[i]);
+        }
+
+        @Override
+        public int size() {
+            return indexes == null ? values.length : indexes.length;
+        }
+    }
+
+    /**
+     * Collect the values of the time series, as they are read from the database (unsorted, with gaps).
+     */
+    public static class Builder {
+
+        private final Map<String, SparseValues> series = new LinkedHashMap<String, SparseValues>();
+
+        private int minDay = Integer.MAX_VALUE;
+        private int maxDay = Integer.MIN_VALUE;
+
+        public void addValue(final String seriesName, final LocalDate date, final float value) {
+            final int day = toEpochDay(date);
+            getSparseValues(seriesName).add(day, value);
+            extendRange(day);
+        }
+
+        // For values already summed by bucket: the range covers the days the sums were computed from
+        public void addAggregatedValue(final String seriesName, final LocalDate bucketDate, final LocalDate firstDate, final LocalDate lastDate, final float value) {
+            getSparseValues(seriesName).add(toEpochDay(bucketDate), value);
+            extendRange(toEpochDay(firstDate));
+            extendRange(toEpochDay(lastDate));
+        }
+
+        private SparseValues getSparseValues(final String seriesName) {
+            SparseValues sparseValues = series.get(seriesName);
+            if (sparseValues == null) {
+                sparseValues = new SparseValues();
+                series.put(seriesName, sparseValues);
+            }
+            return sparseValues;
+        }
+
+        private void extendRange(final int day) {
+            minDay = Math.min(minDay, day);
+            maxDay = Math.max(maxDay, day);
+        }
+
+        public boolean isEmpty() {
+            return series.isEmpty();
+        }
+
+        public int getMinDay() {
+            return minDay;
+        }
+
+        public int getMaxDay() {
+            return maxDay;
+        }
+
+        /**
+         * Build the dense representation: the axis covers all days between firstDay and lastDay (extended to
+         * the values outside of it, if any), missing values are 0 and values for the same day are summed.
+         *
+         * @param firstDay first epoch day of the axis
+         * @param lastDay  last epoch day of the axis
+         * @return the time series data
+         */
+        public TimeSeriesData build(final int firstDay, final int lastDay) {
+            final int axisStart = isEmpty() ? firstDay : Math.min(firstDay, minDay);
+            final int axisEnd = isEmpty() ? lastDay : Math.max(lastDay, maxDay);
+
+            final int[] days = new int[axisEnd - axisStart + 1];
+            for (int i = 0; i < days.length; i++) {
+                days[i] = axisStart + i;
+            }
+
+            final Map<String, float[]> values = new LinkedHashMap<String, float[]>();
+            for (final String seriesName : series.keySet()) {
+                final SparseValues sparseValues = series.get(seriesName);
+                final float[] denseValues = new float[days.length];
+                for (int i = 0; i < sparseValues.size; i++) {
+                    denseValues[sparseValues.days[i] - axisStart] += sparseValues.values[i];
+                }
+                values.put(seriesName, denseValues);
+            }
+
+            return new TimeSeriesData(days, values);
+        }
+    }
+
+    private static final class SparseValues {
+
+        private int[] days = new int[16];
+        private float[] values = new float[16];
+        private int size = 0;
+
+        private void add(final int day, final float value) {
+            if (size == days.length) {
+                days = Arrays.copyOf(days, 2 * size);
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            days[size] = day;
+            values[size] = value;
+            size++;
+        }
+    }
+}
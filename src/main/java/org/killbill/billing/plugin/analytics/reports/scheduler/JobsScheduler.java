@@ -20,13 +20,17 @@ package org.killbill.billing.plugin.analytics.reports.scheduler;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Ordering;
 import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.analytics.dao.BusinessDBIProvider;
+import org.killbill.billing.plugin.analytics.reports.ReportResultCache;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
 import org.killbill.clock.Clock;
+import org.killbill.killbill.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillLogService;
 import org.killbill.notificationq.DefaultNotificationQueueService;
@@ -39,14 +43,19 @@ import org.osgi.service.log.LogService;
 import org.skife.jdbi.v2.Call;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.tweak.HandleCallback;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.killbill.billing.plugin.analytics.AnalyticsActivator.ANALYTICS_QUEUE_SERVICE;
 
@@ -56,6 +65,18 @@ public class JobsScheduler {
     // This is useful to retrieve all currently scheduled ones
     private static final Long JOBS_SCHEDULER_VERSION = 1L;
 
+    private static final String ANALYTICS_REPORTS_INCREMENTAL_PROPERTY_PREFIX = "org.killbill.billing.plugin.analytics.reports.incremental.";
+
+    // Whether to only recompute the recent days of the reports whose procedure supports it (see INCREMENTAL_PROCEDURE_SUFFIX)
+    private static final String ANALYTICS_REPORTS_INCREMENTAL_ENABLED_PROPERTY = ANALYTICS_REPORTS_INCREMENTAL_PROPERTY_PREFIX + "enabled";
+    // Number of days before the watermark to recompute, to pick up late data
+    private static final String ANALYTICS_REPORTS_INCREMENTAL_LOOK_BACK_DAYS_PROPERTY = ANALYTICS_REPORTS_INCREMENTAL_PROPERTY_PREFIX + "lookBackDays";
+    // Number of days between two full rebuilds, to pick up older corrections
+    private static final String ANALYTICS_REPORTS_INCREMENTAL_FULL_REFRESH_DAYS_PROPERTY = ANALYTICS_REPORTS_INCREMENTAL_PROPERTY_PREFIX + "fullRefreshDays";
+
+    // Incremental variant of the refresh procedure, taking the first day to recompute as argument
+    private static final String INCREMENTAL_PROCEDURE_SUFFIX = "_incremental";
+
     private static final Ordering<AnalyticsReportJob> ANALYTICS_REPORT_JOB_ORDERING = Ordering.from(new Comparator<AnalyticsReportJob>() {
         @Override
         public int compare(AnalyticsReportJob o1, AnalyticsReportJob o2) {
@@ -67,15 +88,35 @@ public class JobsScheduler {
     private final IDBI dbi;
     private final Clock clock;
     private final NotificationQueue jobQueue;
+    private final ReportResultCache reportResultCache;
+    private final ReportWatermarksSqlDao watermarksSqlDao;
+    private final boolean incrementalRefreshEnabled;
+    private final int lookBackDays;
+    private final int fullRefreshDays;
+    // Set when paused by AnalyticsCircuitBreaker
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+    // Set on shutdown: the queue is never restarted afterwards
+    private boolean stopped = false;
 
     public JobsScheduler(final OSGIKillbillLogService logService,
                          final OSGIKillbillDataSource osgiKillbillDataSource,
+                         final OSGIConfigPropertiesService osgiConfigPropertiesService,
                          final Clock clock,
-                         final DefaultNotificationQueueService notificationQueueService) throws NotificationQueueAlreadyExists {
+                         final DefaultNotificationQueueService notificationQueueService,
+                         final ReportResultCache reportResultCache) throws NotificationQueueAlreadyExists {
         this.logService = logService;
         this.clock = clock;
+        this.reportResultCache = reportResultCache;
+
+        final String incrementalRefreshEnabledMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_INCREMENTAL_ENABLED_PROPERTY));
+        this.incrementalRefreshEnabled = incrementalRefreshEnabledMaybeNull != null && Boolean.valueOf(incrementalRefreshEnabledMaybeNull);
+        final String lookBackDaysMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_INCREMENTAL_LOOK_BACK_DAYS_PROPERTY));
+        this.lookBackDays = lookBackDaysMaybeNull == null ? 7 : Integer.valueOf(lookBackDaysMaybeNull);
+        final String fullRefreshDaysMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_INCREMENTAL_FULL_REFRESH_DAYS_PROPERTY));
+        this.fullRefreshDays = fullRefreshDaysMaybeNull == null ? 7 : Integer.valueOf(fullRefreshDaysMaybeNull);
 
         dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
+        watermarksSqlDao = dbi.onDemand(ReportWatermarksSqlDao.class);
         final NotificationQueueHandler notificationQueueHandler = new NotificationQueueHandler() {
 
             @Override
@@ -89,7 +130,9 @@ public class JobsScheduler {
                 logService.log(LogService.LOG_INFO, "Starting job for " + job.getReportName());
 
                 try {
-                    callStoredProcedure(job.getRefreshProcedureName());
+                    refresh(job);
+                    // The report data changed
+                    reportResultCache.invalidate(job.getReportName());
                 } finally {
                     schedule(job, null);
                     logService.log(LogService.LOG_INFO, "Ending job for " + job.getReportName());
@@ -105,11 +148,35 @@ public class JobsScheduler {
         jobQueue.startQueue();
     }
 
-    public void shutdownNow() {
-        jobQueue.stopQueue();
+    public synchronized void shutdownNow() {
+        stopped = true;
+        // The queue is already stopped if paused
+        if (!paused.getAndSet(true)) {
+            jobQueue.stopQueue();
+        }
+    }
+
+    /**
+     * Stop dequeuing report jobs: pending jobs stay in the notification queue.
+     */
+    public synchronized void pause() {
+        if (paused.compareAndSet(false, true)) {
+            jobQueue.stopQueue();
+        }
+    }
+
+    public synchronized void resume() {
+        if (!stopped && paused.compareAndSet(true, false)) {
+            jobQueue.startQueue();
+        }
     }
 
     public void scheduleNow(final ReportsConfigurationModelDao report) {
+        if (incrementalRefreshEnabled) {
+            // Manual refreshes always rebuild the whole report (e.g. to pick up corrections)
+            watermarksSqlDao.deleteWatermark(report.getReportName());
+        }
+
         final AnalyticsReportJob eventJson = new AnalyticsReportJob(report);
         schedule(eventJson, clock.getUTCNow(), null);
     }
@@ -208,11 +275,92 @@ public class JobsScheduler {
         }
     }
 
-    private void callStoredProcedure(final String storedProcedureName) {
+    @VisibleForTesting
+    @Nullable
+    LocalDate computeIncrementalRefreshStartDay(final AnalyticsReportJob report, @Nullable final ReportWatermarkModelDao watermark, final DateTime now) {
+        if (watermark == null || watermark.getWatermark() == null || watermark.getLastFullRefreshDate() == null) {
+            // Never refreshed (or the watermark was reset)
+            return null;
+        } else if (!watermark.getRefreshProcedureName().equals(report.getRefreshProcedureName())) {
+            // The report configuration changed
+            return null;
+        } else if (!watermark.getLastFullRefreshDate().plusDays(fullRefreshDays).isAfter(now)) {
+            // Time for the periodic full rebuild
+            return null;
+        } else {
+            return watermark.getWatermark().minusDays(lookBackDays);
+        }
+    }
+
+    private void refresh(final AnalyticsReportJob job) {
+        if (!incrementalRefreshEnabled) {
+            callStoredProcedure(job.getRefreshProcedureName(), null);
+            return;
+        }
+
+        final DateTime now = clock.getUTCNow();
+        final ReportWatermarkModelDao watermark = watermarksSqlDao.getWatermark(job.getReportName());
+        final String incrementalProcedureName = job.getRefreshProcedureName() + INCREMENTAL_PROCEDURE_SUFFIX;
+        LocalDate fromDay = computeIncrementalRefreshStartDay(job, watermark, now);
+        if (fromDay != null && !hasStoredProcedure(incrementalProcedureName)) {
+            fromDay = null;
+        }
+
+        final DateTime lastFullRefreshDate;
+        if (fromDay == null) {
+            logService.log(LogService.LOG_INFO, "Full refresh for report " + job.getReportName());
+            callStoredProcedure(job.getRefreshProcedureName(), null);
+            lastFullRefreshDate = now;
+        } else {
+            logService.log(LogService.LOG_INFO, "Incremental refresh for report " + job.getReportName() + " starting at " + fromDay);
+            callStoredProcedure(incrementalProcedureName, fromDay);
+            lastFullRefreshDate = watermark.getLastFullRefreshDate();
+        }
+
+        // The report is up-to-date as of the start of the run
+        updateWatermark(new ReportWatermarkModelDao(job.getReportName(), job.getRefreshProcedureName(), now.toLocalDate(), lastFullRefreshDate), now);
+    }
+
+    private void updateWatermark(final ReportWatermarkModelDao watermark, final DateTime now) {
+        watermarksSqlDao.inTransaction(new Transaction<Void, ReportWatermarksSqlDao>() {
+            @Override
+            public Void inTransaction(final ReportWatermarksSqlDao transactional, final TransactionStatus status) throws Exception {
+                transactional.deleteWatermark(watermark.getReportName());
+                transactional.createWatermark(watermark, now);
+                return null;
+            }
+        });
+    }
+
+    private boolean hasStoredProcedure(final String storedProcedureName) {
+        return dbi.withHandle(new HandleCallback<Boolean>() {
+            @Override
+            public Boolean withHandle(final Handle handle) throws Exception {
+                final Connection connection = handle.getConnection();
+                ResultSet procedures = null;
+                try {
+                    procedures = connection.getMetaData().getProcedures(connection.getCatalog(), null, storedProcedureName);
+                    return procedures.next();
+                } finally {
+                    if (procedures != null) {
+                        procedures.close();
+                    }
+                }
+            }
+        });
+    }
+
+    private void callStoredProcedure(final String storedProcedureName, @Nullable final LocalDate fromDay) {
         Handle handle = null;
         try {
             handle = dbi.open();
-            final Call call = handle.createCall("call " + storedProcedureName);
+            final Call call;
+            if (fromDay == null) {
+                call = handle.createCall("call " + storedProcedureName);
+            } else {
+                call = handle.createCall("call " + storedProcedureName + "(:fromDay)");
+                call.bind("fromDay", fromDay.toString());
+            }
             call.invoke();
         } finally {
             if (handle != null) {
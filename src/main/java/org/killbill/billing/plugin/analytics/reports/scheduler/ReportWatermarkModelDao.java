@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+public class ReportWatermarkModelDao {
+
+    private String reportName;
+    private String refreshProcedureName;
+    // Last day processed by the refresh procedure
+    private LocalDate watermark;
+    private DateTime lastFullRefreshDate;
+
+    public ReportWatermarkModelDao() { /* When reading from the database */ }
+
+    public ReportWatermarkModelDao(final String reportName, final String refreshProcedureName, final LocalDate watermark, final DateTime lastFullRefreshDate) {
+        this.reportName = reportName;
+        this.refreshProcedureName = refreshProcedureName;
+        this.watermark = watermark;
+        this.lastFullRefreshDate = lastFullRefreshDate;
+    }
+
+    public String getReportName() {
+        return reportName;
+    }
+
+    public String getRefreshProcedureName() {
+        return refreshProcedureName;
+    }
+
+    public LocalDate getWatermark() {
+        return watermark;
+    }
+
+    public DateTime getLastFullRefreshDate() {
+        return lastFullRefreshDate;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("ReportWatermarkModelDao{");
+        sb.append("reportName='").append(reportName).append('\'');
+        sb.append(", refreshProcedureName='").append(refreshProcedureName).append('\'');
+        sb.append(", watermark=").append(watermark);
+        sb.append(", lastFullRefreshDate=").append(lastFullRefreshDate);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final ReportWatermarkModelDao that = (ReportWatermarkModelDao) o;
+
+        if (reportName != null ? !reportName.equals(that.reportName) : that.reportName != null) {
+            return false;
+        }
+        if (refreshProcedureName != null ? !refreshProcedureName.equals(that.refreshProcedureName) : that.refreshProcedureName != null) {
+            return false;
+        }
+        if (watermark != null ? !watermark.equals(that.watermark) : that.watermark != null) {
+            return false;
+        }
+        if (lastFullRefreshDate != null ? lastFullRefreshDate.compareTo(that.lastFullRefreshDate) != 0 : that.lastFullRefreshDate != null) {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = reportName != null ? reportName.hashCode() : 0;
+        result = 31 * result + (refreshProcedureName != null ? refreshProcedureName.hashCode() : 0);
+        result = 31 * result + (watermark != null ? watermark.hashCode() : 0);
+        result = 31 * result + (lastFullRefreshDate != null ? lastFullRefreshDate.hashCode() : 0);
+        return result;
+    }
+}
@@ -47,6 +47,17 @@ public abstract class Aggregates {
         return buildAggregateFunction(field, sqlOp, isDistinct);
     }
 
+    // Whether the expression is a single aggregate whose values can be summed across groups (e.g. days into weeks)
+    public static boolean isDecomposable(final String input) {
+        final Matcher matcher = MAGIC_REGEXP.matcher(input.trim().toLowerCase());
+        if (!matcher.matches() || matcher.group(2) != null) {
+            return false;
+        }
+
+        final String sqlOp = matcher.group(1).toUpperCase();
+        return SqlMapping.SUM.name().equals(sqlOp) || SqlMapping.COUNT.name().equals(sqlOp);
+    }
+
     private static AggregateFunction<?> buildAggregateFunction(final Field<? extends Number> field,
                                                                final SqlMapping sqlOp,
                                                                final boolean isDistinct) {
@@ -43,7 +43,7 @@ public abstract class Cases {
                                                                      .omitEmptyStrings();
     private static final String VALUES_IN_GROUP_ALIAS_TOKEN = "=";
     private static final String SKIP_OTHER_TOKEN = "-";
-    private static final String OTHER = "Other";
+    public static final String OTHER = "Other";
 
     // For grouping, input is in the form: currency(USD|BRL,GBP,EUR,MXN,AUD)
     public static FieldWithMetadata of(final String input) {
@@ -18,6 +18,9 @@
 package org.killbill.billing.plugin.analytics.reports.sql;
 
 import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
 
 import org.jooq.Condition;
 import org.jooq.Field;
@@ -35,10 +38,25 @@ import com.google.common.collect.ImmutableList;
 
 public abstract class Filters {
 
+    // Prefix of the named parameters, see of(Expression, Map)
+    public static final String FILTER_PARAMETER_PREFIX = "filter";
+
     public static Condition of(final Expression<String> expression) {
         return buildConditionFromExpression(expression);
     }
 
+    /**
+     * Build the condition with the values as named parameters (filter0, filter1, etc.) instead of literals: the SQL
+     * doesn't depend on the values anymore, and the values don't need to be escaped.
+     *
+     * @param expression     filter expression
+     * @param bindParameters map to collect the values of the parameters into
+     * @return the condition
+     */
+    public static Condition of(final Expression<String> expression, final Map<String, Object> bindParameters) {
+        return buildConditionFromExpression(expression, bindParameters);
+    }
+
     private enum SqlMapping {
         // Order matters! See below
         GE(">="),
@@ -67,7 +85,7 @@ public abstract class Filters {
         }
     }
 
-    private static Condition buildConditionFromVariable(final Variable<String> input) {
+    private static Condition buildConditionFromVariable(final Variable<String> input, @Nullable final Map<String, Object> bindParameters) {
         SqlMapping sqlOp = null;
         String column = null;
         String expression = null;
@@ -91,6 +109,12 @@ public abstract class Filters {
             expression = expression.replaceFirst("[\"']$", "");
 
             final Field<Object> field = DSL.fieldByName(column);
+            if (bindParameters != null) {
+                final String parameterName = FILTER_PARAMETER_PREFIX + bindParameters.size();
+                bindParameters.put(parameterName, expression);
+                return buildCondition(field, sqlOp, DSL.param(parameterName, expression));
+            }
+
             switch (sqlOp) {
                 case EQ:
                     return field.eq(expression);
@@ -116,12 +140,40 @@ public abstract class Filters {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private static Condition buildCondition(final Field<Object> field, final SqlMapping sqlOp, final Field value) {
+        switch (sqlOp) {
+            case EQ:
+                return field.eq(value);
+            case NE:
+                return field.ne(value);
+            case GT:
+                return field.gt(value);
+            case LT:
+                return field.lt(value);
+            case GE:
+                return field.ge(value);
+            case LE:
+                return field.le(value);
+            case LIKE:
+                return field.like(value);
+            case NOT_LIKE:
+                return field.notLike(value);
+            default:
+                throw new IllegalStateException("Unknown operation " + sqlOp);
+        }
+    }
+
     @VisibleForTesting
     static Condition buildConditionFromExpression(final Expression<String> expression) {
+        return buildConditionFromExpression(expression, null);
+    }
+
+    private static Condition buildConditionFromExpression(final Expression<String> expression, @Nullable final Map<String, Object> bindParameters) {
         if (expression instanceof And) {
             Condition condition = null;
             for (final Expression<String> childExpression : ((And<String>) expression).getChildren()) {
-                final Condition newCondition = buildConditionFromExpression(childExpression);
+                final Condition newCondition = buildConditionFromExpression(childExpression, bindParameters);
                 condition = condition == null ? newCondition : condition.and(newCondition);
             }
             return condition;
@@ -133,16 +185,16 @@ public abstract class Filters {
                 return DSL.falseCondition();
             }
         } else if (expression instanceof Not) {
-            return DSL.trueCondition().andNot(buildConditionFromExpression(((Not<String>) expression).getE()));
+            return DSL.trueCondition().andNot(buildConditionFromExpression(((Not<String>) expression).getE(), bindParameters));
         } else if (expression instanceof Or) {
             Condition condition = null;
             for (final Expression<String> childExpression : ((Or<String>) expression).getChildren()) {
-                final Condition newCondition = buildConditionFromExpression(childExpression);
+                final Condition newCondition = buildConditionFromExpression(childExpression, bindParameters);
                 condition = condition == null ? newCondition : condition.or(newCondition);
             }
             return condition;
         } else if (expression instanceof Variable) {
-            return buildConditionFromVariable((Variable<String>) expression);
+            return buildConditionFromVariable((Variable<String>) expression, bindParameters);
         } else {
             throw new IllegalStateException();
         }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.utils;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Canonicalize the low-cardinality values denormalized across business records.
+ * <p/>
+ * Currencies, catalog names (product, plan, phase, billing period), item and transaction types and statuses
+ * are repeated in every row of an account: sharing a single instance per value reduces the footprint of
+ * large accounts during a refresh. Entries are weakly referenced and go away once the records have been written.
+ * <p/>
+ * Only use it for values with a handful of distinct instances per tenant: interning unique values (external keys,
+ * names, addresses, amounts, dates) costs an interner entry per value without any sharing, and would keep
+ * customer data in a global table.
+ */
+public class BusinessModelInterner {
+
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+    // Only disabled by tests, to measure the footprint without sharing
+    private static volatile boolean enabled = true;
+
+    // Static only
+    private BusinessModelInterner() {
+    }
+
+    public static String intern(@Nullable final String value) {
+        return value == null || !enabled ? value : STRINGS.intern(value);
+    }
+
+    @VisibleForTesting
+    static void setEnabled(final boolean enabled) {
+        BusinessModelInterner.enabled = enabled;
+    }
+}
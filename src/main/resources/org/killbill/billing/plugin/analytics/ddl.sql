@@ -1017,6 +1017,68 @@ create index analytics_payment_voids_account_id on analytics_payment_voids(accou
 create index analytics_payment_voids_account_record_id on analytics_payment_voids(account_record_id);
 create index analytics_payment_voids_tenant_account_record_id on analytics_payment_voids(tenant_record_id, account_record_id);
 
+-- Staging tables for the invoices and payments records of large accounts, which are refreshed in batches
+
+drop table if exists analytics_invoices_staging;
+create table analytics_invoices_staging like analytics_invoices;
+alter table analytics_invoices_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_invoices_staging_refresh_id on analytics_invoices_staging(refresh_id);
+
+drop table if exists analytics_invoice_adjustments_staging;
+create table analytics_invoice_adjustments_staging like analytics_invoice_adjustments;
+alter table analytics_invoice_adjustments_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_invoice_adjustments_staging_refresh_id on analytics_invoice_adjustments_staging(refresh_id);
+
+drop table if exists analytics_invoice_items_staging;
+create table analytics_invoice_items_staging like analytics_invoice_items;
+alter table analytics_invoice_items_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_invoice_items_staging_refresh_id on analytics_invoice_items_staging(refresh_id);
+
+drop table if exists analytics_invoice_item_adjustments_staging;
+create table analytics_invoice_item_adjustments_staging like analytics_invoice_item_adjustments;
+alter table analytics_invoice_item_adjustments_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_invoice_item_adjustments_staging_refresh_id on analytics_invoice_item_adjustments_staging(refresh_id);
+
+drop table if exists analytics_invoice_credits_staging;
+create table analytics_invoice_credits_staging like analytics_invoice_credits;
+alter table analytics_invoice_credits_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_invoice_credits_staging_refresh_id on analytics_invoice_credits_staging(refresh_id);
+
+drop table if exists analytics_payment_auths_staging;
+create table analytics_payment_auths_staging like analytics_payment_auths;
+alter table analytics_payment_auths_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_payment_auths_staging_refresh_id on analytics_payment_auths_staging(refresh_id);
+
+drop table if exists analytics_payment_captures_staging;
+create table analytics_payment_captures_staging like analytics_payment_captures;
+alter table analytics_payment_captures_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_payment_captures_staging_refresh_id on analytics_payment_captures_staging(refresh_id);
+
+drop table if exists analytics_payment_purchases_staging;
+create table analytics_payment_purchases_staging like analytics_payment_purchases;
+alter table analytics_payment_purchases_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_payment_purchases_staging_refresh_id on analytics_payment_purchases_staging(refresh_id);
+
+drop table if exists analytics_payment_refunds_staging;
+create table analytics_payment_refunds_staging like analytics_payment_refunds;
+alter table analytics_payment_refunds_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_payment_refunds_staging_refresh_id on analytics_payment_refunds_staging(refresh_id);
+
+drop table if exists analytics_payment_credits_staging;
+create table analytics_payment_credits_staging like analytics_payment_credits;
+alter table analytics_payment_credits_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_payment_credits_staging_refresh_id on analytics_payment_credits_staging(refresh_id);
+
+drop table if exists analytics_payment_chargebacks_staging;
+create table analytics_payment_chargebacks_staging like analytics_payment_chargebacks;
+alter table analytics_payment_chargebacks_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_payment_chargebacks_staging_refresh_id on analytics_payment_chargebacks_staging(refresh_id);
+
+drop table if exists analytics_payment_voids_staging;
+create table analytics_payment_voids_staging like analytics_payment_voids;
+alter table analytics_payment_voids_staging add column refresh_id char(36) not null, add column staged_date datetime not null;
+create index analytics_payment_voids_staging_refresh_id on analytics_payment_voids_staging(refresh_id);
+
 -- Tags
 
 drop table if exists analytics_account_tags;
@@ -1259,6 +1321,40 @@ create table analytics_currency_conversion (
 );
 create index idx_comp_where on analytics_currency_conversion(start_date, end_date, currency, reference_currency);
 
+drop table if exists analytics_refresh_fingerprints;
+create table analytics_refresh_fingerprints (
+  record_id int(11) unsigned not null auto_increment
+, domain varchar(50) not null
+, fingerprint char(32) not null
+, created_date datetime not null
+, account_record_id int(11) unsigned default null
+, tenant_record_id int(11) unsigned default null
+, primary key(record_id)
+);
+create unique index analytics_refresh_fingerprints_account_domain on analytics_refresh_fingerprints(account_record_id, tenant_record_id, domain);
+
+drop table if exists analytics_high_water_marks;
+create table analytics_high_water_marks (
+  record_id int(11) unsigned not null auto_increment
+, table_name varchar(50) not null
+, high_water_mark int(11) unsigned not null
+, created_date datetime not null
+, account_record_id int(11) unsigned default null
+, tenant_record_id int(11) unsigned default null
+, primary key(record_id)
+);
+create unique index analytics_high_water_marks_account_table_name on analytics_high_water_marks(account_record_id, tenant_record_id, table_name);
+
+drop table if exists analytics_polling_watermarks;
+create table analytics_polling_watermarks (
+  record_id int(11) unsigned not null auto_increment
+, table_name varchar(50) not null
+, high_water_mark int(11) unsigned not null
+, updated_date datetime not null
+, primary key(record_id)
+);
+create unique index analytics_polling_watermarks_table_name on analytics_polling_watermarks(table_name);
+
 drop table if exists analytics_reports;
 create table analytics_reports (
   record_id int(11) unsigned not null auto_increment
@@ -1272,3 +1368,15 @@ create table analytics_reports (
 , primary key(record_id)
 );
 create unique index analytics_reports_report_name on analytics_reports(report_name(100));
+
+drop table if exists analytics_reports_watermarks;
+create table analytics_reports_watermarks (
+  record_id int(11) unsigned not null auto_increment
+, report_name varchar(100) not null
+, refresh_procedure_name varchar(256) not null
+, watermark date not null
+, last_full_refresh_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+);
+create unique index analytics_reports_watermarks_report_name on analytics_reports_watermarks(report_name);
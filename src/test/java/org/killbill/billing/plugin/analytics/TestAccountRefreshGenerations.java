@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.UUID;
+
+import org.killbill.billing.plugin.analytics.AccountRefreshGenerations.RefreshScope;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Supplier;
+
+public class TestAccountRefreshGenerations extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testSupersededCheck() throws Exception {
+        final AccountRefreshGenerations refreshGenerations = new AccountRefreshGenerations();
+        final UUID accountId = UUID.randomUUID();
+
+        final Supplier<Boolean> invoicesCheck = refreshGenerations.newSupersededCheck(accountId, RefreshScope.INVOICES_AND_PAYMENTS);
+        final Supplier<Boolean> fieldsCheck = refreshGenerations.newSupersededCheck(accountId, RefreshScope.FIELDS);
+        Assert.assertFalse(invoicesCheck.get());
+        Assert.assertFalse(fieldsCheck.get());
+
+        // Other accounts and other scopes don't matter
+        refreshGenerations.bump(UUID.randomUUID(), RefreshScope.ALL);
+        refreshGenerations.bump(accountId, RefreshScope.SUBSCRIPTIONS);
+        Assert.assertFalse(invoicesCheck.get());
+        Assert.assertFalse(fieldsCheck.get());
+
+        refreshGenerations.bump(accountId, RefreshScope.INVOICES_AND_PAYMENTS);
+        Assert.assertTrue(invoicesCheck.get());
+        Assert.assertFalse(fieldsCheck.get());
+
+        // The next refresh isn't superseded
+        final Supplier<Boolean> nextInvoicesCheck = refreshGenerations.newSupersededCheck(accountId, RefreshScope.INVOICES_AND_PAYMENTS);
+        Assert.assertFalse(nextInvoicesCheck.get());
+
+        // A full refresh supersedes everything
+        refreshGenerations.bump(accountId, RefreshScope.ALL);
+        Assert.assertTrue(nextInvoicesCheck.get());
+        Assert.assertTrue(fieldsCheck.get());
+    }
+}
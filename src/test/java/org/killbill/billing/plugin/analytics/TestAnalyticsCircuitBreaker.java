@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.analytics.AnalyticsCircuitBreaker.State;
+import org.killbill.billing.plugin.analytics.reports.scheduler.JobsScheduler;
+import org.mockito.Mockito;
+import org.skife.jdbi.v2.IDBI;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TestAnalyticsCircuitBreaker extends AnalyticsTestSuiteNoDB {
+
+    private static final long FAST_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test(groups = "fast")
+    public void testTransitions() throws Exception {
+        final AnalyticsListener analyticsListener = Mockito.mock(AnalyticsListener.class);
+        final JobsScheduler jobsScheduler = Mockito.mock(JobsScheduler.class);
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        // Defaults: 500ms connection wait, 100ms query latency, 1s API latency, 3 healthy probes
+        final AnalyticsCircuitBreaker circuitBreaker = new AnalyticsCircuitBreaker(logService, null, osgiConfigPropertiesService, analyticsListener, jobsScheduler, metricRegistry);
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+
+        circuitBreaker.onProbe(FAST_NANOS, FAST_NANOS, null);
+        circuitBreaker.onProbe(FAST_NANOS, FAST_NANOS, TimeUnit.MILLISECONDS.toNanos(900));
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+        Mockito.verifyZeroInteractions(analyticsListener, jobsScheduler);
+
+        // Kill Bill is struggling
+        circuitBreaker.onProbe(TimeUnit.SECONDS.toNanos(2), FAST_NANOS, null);
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+        Assert.assertEquals(metricRegistry.getGauges().get(MetricRegistry.name(AnalyticsCircuitBreaker.class, "state")).getValue(), "OPEN");
+        Mockito.verify(analyticsListener).pause();
+        Mockito.verify(jobsScheduler).pause();
+
+        // Hysteresis: below the threshold, but not healthy enough
+        for (int i = 0; i < 5; i++) {
+            circuitBreaker.onProbe(FAST_NANOS, TimeUnit.MILLISECONDS.toNanos(80), null);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+
+        // Consecutive healthy probes are required
+        circuitBreaker.onProbe(FAST_NANOS, FAST_NANOS, null);
+        circuitBreaker.onProbe(FAST_NANOS, FAST_NANOS, null);
+        circuitBreaker.onProbe(FAST_NANOS, TimeUnit.MILLISECONDS.toNanos(80), null);
+        circuitBreaker.onProbe(FAST_NANOS, FAST_NANOS, null);
+        circuitBreaker.onProbe(FAST_NANOS, FAST_NANOS, null);
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+        circuitBreaker.onProbe(FAST_NANOS, FAST_NANOS, null);
+        Assert.assertEquals(circuitBreaker.getState(), State.HALF_OPEN);
+        Mockito.verify(analyticsListener).resume();
+        Mockito.verify(jobsScheduler, Mockito.never()).resume();
+
+        // Trips again while resuming
+        circuitBreaker.onProbe(FAST_NANOS, FAST_NANOS, TimeUnit.SECONDS.toNanos(5));
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+        Mockito.verify(analyticsListener, Mockito.times(2)).pause();
+
+        // Full recovery
+        for (int i = 0; i < 6; i++) {
+            circuitBreaker.onProbe(FAST_NANOS, FAST_NANOS, null);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+        Mockito.verify(analyticsListener, Mockito.times(2)).resume();
+        Mockito.verify(jobsScheduler).resume();
+        Assert.assertEquals(metricRegistry.getCounters().get(MetricRegistry.name(AnalyticsCircuitBreaker.class, "trips")).getCount(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testProbeFailure() throws Exception {
+        final IDBI dbi = Mockito.mock(IDBI.class);
+        Mockito.when(dbi.open()).thenThrow(new RuntimeException("Timeout waiting for a connection"));
+        final AnalyticsListener analyticsListener = Mockito.mock(AnalyticsListener.class);
+        final JobsScheduler jobsScheduler = Mockito.mock(JobsScheduler.class);
+        final AnalyticsCircuitBreaker circuitBreaker = new AnalyticsCircuitBreaker(logService, dbi, osgiConfigPropertiesService, analyticsListener, jobsScheduler, new MetricRegistry());
+
+        // Not being able to probe the database is a sign of overload, not of health
+        circuitBreaker.probe();
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+        Mockito.verify(analyticsListener).pause();
+        Mockito.verify(jobsScheduler).pause();
+    }
+
+    @Test(groups = "fast")
+    public void testNoResumeAfterShutdown() throws Exception {
+        final AnalyticsListener analyticsListener = Mockito.mock(AnalyticsListener.class);
+        final JobsScheduler jobsScheduler = Mockito.mock(JobsScheduler.class);
+        final AnalyticsCircuitBreaker circuitBreaker = new AnalyticsCircuitBreaker(logService, null, osgiConfigPropertiesService, analyticsListener, jobsScheduler, new MetricRegistry());
+
+        circuitBreaker.onProbe(TimeUnit.SECONDS.toNanos(2), FAST_NANOS, null);
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+
+        circuitBreaker.shutdownNow();
+        Assert.assertEquals(circuitBreaker.getState(), State.STOPPED);
+
+        // Late probes (e.g. in flight during the shutdown) don't restart the queues
+        for (int i = 0; i < 6; i++) {
+            circuitBreaker.onProbe(FAST_NANOS, FAST_NANOS, null);
+        }
+        circuitBreaker.onProbeFailure("Connection refused");
+        Assert.assertEquals(circuitBreaker.getState(), State.STOPPED);
+        Mockito.verify(analyticsListener, Mockito.never()).resume();
+        Mockito.verify(jobsScheduler, Mockito.never()).resume();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TestAnalyticsJob extends AnalyticsTestSuiteNoDB {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test(groups = "fast")
+    public void testEnqueuedDate() throws Exception {
+        final UUID accountId = UUID.randomUUID();
+        final UUID tenantId = UUID.randomUUID();
+        final DateTime enqueuedDate = new DateTime(2014, 1, 1, 10, 0, 0, DateTimeZone.UTC);
+        final AnalyticsJob job = new AnalyticsJob(ExtBusEventType.ACCOUNT_CHANGE, ObjectType.ACCOUNT, accountId, accountId, tenantId, enqueuedDate.getMillis());
+
+        // Survives the round-trip through the notification queue
+        final AnalyticsJob deserializedJob = mapper.readValue(mapper.writeValueAsString(job), AnalyticsJob.class);
+        Assert.assertEquals(deserializedJob, job);
+        Assert.assertEquals(deserializedJob.getEnqueuedDateMillis(), (Long) enqueuedDate.getMillis());
+
+        // Jobs enqueued at different times are still duplicates
+        final AnalyticsJob laterJob = new AnalyticsJob(ExtBusEventType.ACCOUNT_CHANGE, ObjectType.ACCOUNT, accountId, accountId, tenantId, enqueuedDate.plusHours(1).getMillis());
+        Assert.assertEquals(laterJob, job);
+        Assert.assertEquals(laterJob.hashCode(), job.hashCode());
+    }
+
+    @Test(groups = "fast")
+    public void testJobEnqueuedByOlderVersions() throws Exception {
+        final UUID accountId = UUID.randomUUID();
+        final String json = "{\"eventType\":\"ACCOUNT_CHANGE\",\"objectType\":\"ACCOUNT\",\"objectId\":\"" + accountId + "\",\"accountId\":\"" + accountId + "\",\"tenantId\":null}";
+        final AnalyticsJob job = mapper.readValue(json, AnalyticsJob.class);
+        Assert.assertEquals(job.getAccountId(), accountId);
+        Assert.assertNull(job.getEnqueuedDateMillis());
+    }
+}
@@ -19,19 +19,31 @@ package org.killbill.billing.plugin.analytics;
 
 import java.util.UUID;
 
+import org.joda.time.DateTime;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.plugin.analytics.AccountRefreshGenerations.RefreshScope;
+import org.killbill.notificationq.api.NotificationEventWithMetadata;
+import org.killbill.notificationq.api.NotificationQueue;
+import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
+import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+
 public class TestAnalyticsListener extends AnalyticsTestSuiteNoDB {
 
     @Test(groups = "fast")
     public void testBlacklist() throws Exception {
-        AnalyticsListener analyticsListener = new AnalyticsListener(logService, killbillAPI, killbillDataSource, osgiConfigPropertiesService, null, clock, notificationQueueService);
+        AnalyticsListener analyticsListener = new AnalyticsListener(logService, killbillAPI, killbillDataSource, osgiConfigPropertiesService, null, clock, notificationQueueService, new MetricRegistry());
 
         // No account is blacklisted
         Assert.assertFalse(analyticsListener.isAccountBlacklisted(UUID.randomUUID()));
 
-        analyticsListener = new AnalyticsListener(logService, killbillAPI, killbillDataSource, osgiConfigPropertiesService, null, clock, notificationQueueService);
+        analyticsListener = new AnalyticsListener(logService, killbillAPI, killbillDataSource, osgiConfigPropertiesService, null, clock, notificationQueueService, new MetricRegistry());
 
         // Other accounts are blacklisted
         Assert.assertFalse(analyticsListener.isAccountBlacklisted(UUID.randomUUID()));
@@ -39,4 +51,83 @@ public class TestAnalyticsListener extends AnalyticsTestSuiteNoDB {
         // Blacklist
         Assert.assertTrue(analyticsListener.isAccountBlacklisted(blackListedAccountId));
     }
+
+    @Test(groups = "fast")
+    public void testRefreshScope() throws Exception {
+        Assert.assertNull(AnalyticsListener.getRefreshScope(null));
+        Assert.assertEquals(AnalyticsListener.getRefreshScope(ExtBusEventType.ACCOUNT_CHANGE), RefreshScope.ALL);
+        Assert.assertEquals(AnalyticsListener.getRefreshScope(ExtBusEventType.TAG_CREATION), RefreshScope.ALL);
+        Assert.assertEquals(AnalyticsListener.getRefreshScope(ExtBusEventType.SUBSCRIPTION_PHASE), RefreshScope.SUBSCRIPTIONS);
+        Assert.assertEquals(AnalyticsListener.getRefreshScope(ExtBusEventType.OVERDUE_CHANGE), RefreshScope.ACCOUNT_TRANSITIONS);
+        Assert.assertEquals(AnalyticsListener.getRefreshScope(ExtBusEventType.INVOICE_CREATION), RefreshScope.INVOICES_AND_PAYMENTS);
+        Assert.assertEquals(AnalyticsListener.getRefreshScope(ExtBusEventType.PAYMENT_FAILED), RefreshScope.INVOICES_AND_PAYMENTS);
+        Assert.assertEquals(AnalyticsListener.getRefreshScope(ExtBusEventType.CUSTOM_FIELD_DELETION), RefreshScope.FIELDS);
+    }
+
+    @Test(groups = "fast")
+    public void testDeferredRefreshDoesNotSupersedeInFlightRefreshes() throws Exception {
+        final NotificationQueue jobQueue = Mockito.mock(NotificationQueue.class);
+        Mockito.when(notificationQueueService.createNotificationQueue(Mockito.anyString(), Mockito.anyString(), Mockito.<NotificationQueueHandler>any())).thenReturn(jobQueue);
+        final AnalyticsListener analyticsListener = new AnalyticsListener(logService, killbillAPI, killbillDataSource, osgiConfigPropertiesService, null, clock, notificationQueueService, new MetricRegistry());
+
+        final UUID accountId = account.getId();
+        final UUID tenantId = callContext.getTenantId();
+        final AnalyticsJob fullRefreshJob = new AnalyticsJob(ExtBusEventType.ACCOUNT_CHANGE, ObjectType.ACCOUNT, accountId, accountId, tenantId);
+
+        // In-flight invoices and payments refresh
+        final Supplier<Boolean> supersededCheck = analyticsListener.getRefreshGenerations().newSupersededCheck(accountId, RefreshScope.INVOICES_AND_PAYMENTS);
+
+        // A full refresh is already pending, but deferred off-peak
+        Mockito.when(jobQueue.getFutureNotificationForSearchKeys(accountRecordId, tenantRecordId)).thenReturn(ImmutableList.<NotificationEventWithMetadata<AnalyticsJob>>of(createNotification(fullRefreshJob, clock.getUTCNow().plusHours(5))));
+        analyticsListener.scheduleRefresh(accountId, tenantId, accountRecordId, tenantRecordId, RefreshScope.ALL);
+        Assert.assertFalse(supersededCheck.get());
+
+        // The pending full refresh runs at the normal delay
+        Mockito.when(jobQueue.getFutureNotificationForSearchKeys(accountRecordId, tenantRecordId)).thenReturn(ImmutableList.<NotificationEventWithMetadata<AnalyticsJob>>of(createNotification(fullRefreshJob, clock.getUTCNow().plusSeconds(5))));
+        analyticsListener.scheduleRefresh(accountId, tenantId, accountRecordId, tenantRecordId, RefreshScope.ALL);
+        Assert.assertTrue(supersededCheck.get());
+
+        // Not deferred (deferral is disabled by default)
+        final Supplier<Boolean> otherSupersededCheck = analyticsListener.getRefreshGenerations().newSupersededCheck(accountId, RefreshScope.INVOICES_AND_PAYMENTS);
+        Mockito.when(jobQueue.getFutureNotificationForSearchKeys(accountRecordId, tenantRecordId)).thenReturn(ImmutableList.<NotificationEventWithMetadata<AnalyticsJob>>of());
+        analyticsListener.scheduleRefresh(accountId, tenantId, accountRecordId, tenantRecordId, RefreshScope.INVOICES_AND_PAYMENTS);
+        Mockito.verify(jobQueue).recordFutureNotification(Mockito.<DateTime>any(), Mockito.<AnalyticsJob>any(), Mockito.<UUID>any(), Mockito.eq(accountRecordId), Mockito.eq(tenantRecordId));
+        Assert.assertTrue(otherSupersededCheck.get());
+    }
+
+    @Test(groups = "fast")
+    public void testPauseAndShutdown() throws Exception {
+        final NotificationQueue jobQueue = Mockito.mock(NotificationQueue.class);
+        Mockito.when(notificationQueueService.createNotificationQueue(Mockito.anyString(), Mockito.anyString(), Mockito.<NotificationQueueHandler>any())).thenReturn(jobQueue);
+        final AnalyticsListener analyticsListener = new AnalyticsListener(logService, killbillAPI, killbillDataSource, osgiConfigPropertiesService, null, clock, notificationQueueService, new MetricRegistry());
+
+        analyticsListener.pause();
+        Mockito.verify(jobQueue).stopQueue();
+
+        // Synchronous refreshes (polling mode) are shed too
+        try {
+            analyticsListener.refresh(account.getId(), callContext.getTenantId(), accountRecordId, tenantRecordId, RefreshScope.ALL);
+            Assert.fail();
+        } catch (AnalyticsRefreshPausedException e) {
+            // Expected
+        }
+
+        analyticsListener.resume();
+        Mockito.verify(jobQueue).startQueue();
+
+        // Once stopped, the queue is never restarted
+        analyticsListener.shutdownNow();
+        analyticsListener.resume();
+        Mockito.verify(jobQueue, Mockito.times(2)).stopQueue();
+        Mockito.verify(jobQueue).startQueue();
+        Assert.assertTrue(analyticsListener.isPaused());
+    }
+
+    @SuppressWarnings("unchecked")
+    private NotificationEventWithMetadata<AnalyticsJob> createNotification(final AnalyticsJob job, final DateTime effectiveDate) {
+        final NotificationEventWithMetadata<AnalyticsJob> notification = Mockito.mock(NotificationEventWithMetadata.class);
+        Mockito.when(notification.getEvent()).thenReturn(job);
+        Mockito.when(notification.getEffectiveDate()).thenReturn(effectiveDate);
+        return notification;
+    }
 }
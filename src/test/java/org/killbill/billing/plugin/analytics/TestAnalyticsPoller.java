@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.UUID;
+
+import org.killbill.billing.plugin.analytics.AccountRefreshGenerations.RefreshScope;
+import org.killbill.billing.plugin.analytics.dao.PollingDao;
+import org.mockito.Mockito;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TestAnalyticsPoller extends AnalyticsTestSuiteWithEmbeddedDB {
+
+    private static final String OLD_DATE = "2014-01-01 00:00:00";
+
+    @Test(groups = "slow")
+    public void testPoll() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final UUID accountId1 = UUID.randomUUID();
+        final UUID accountId2 = UUID.randomUUID();
+
+        // Minimal version of the Kill Bill tables
+        final Handle handle = dbi.open();
+        try {
+            handle.execute("drop table if exists tenants");
+            handle.execute("create table tenants (record_id int(11) unsigned not null auto_increment, id char(36) not null, primary key(record_id))");
+            handle.execute("insert into tenants (id) values (?)", tenantId.toString());
+            handle.execute("drop table if exists accounts");
+            handle.execute("create table accounts (record_id int(11) unsigned not null auto_increment, id char(36) not null, tenant_record_id int(11) unsigned not null default 0, primary key(record_id))");
+            handle.execute("insert into accounts (id, tenant_record_id) values (?, ?)", accountId1.toString(), 1L);
+            handle.execute("insert into accounts (id, tenant_record_id) values (?, ?)", accountId2.toString(), 1L);
+            for (final String tableName : AnalyticsReconciliationScanner.getKillbillTableNames(RefreshScope.ALL)) {
+                handle.execute("drop table if exists " + tableName);
+                handle.execute("create table " + tableName + " (record_id int(11) unsigned not null auto_increment, account_record_id int(11) unsigned not null, tenant_record_id int(11) unsigned not null default 0, created_date datetime not null, primary key(record_id))");
+            }
+            // History
+            insert(handle, "invoice_items", 1L);
+        } finally {
+            handle.close();
+        }
+
+        System.setProperty(AnalyticsPoller.ANALYTICS_POLLING_BATCH_SIZE_PROPERTY, "2");
+        try {
+            final PollingDao pollingDao = new PollingDao(killbillDataSource);
+            final AnalyticsListener analyticsListener = Mockito.mock(AnalyticsListener.class);
+            final AnalyticsPoller poller = new AnalyticsPoller(logService, pollingDao, osgiConfigPropertiesService, analyticsListener, BusinessExecutor.newCachedThreadPool(osgiConfigPropertiesService), clock, new MetricRegistry());
+
+            // The history isn't replayed
+            Assert.assertFalse(poller.poll());
+            Mockito.verifyZeroInteractions(analyticsListener);
+            Assert.assertEquals(pollingDao.getWatermarks().get("invoice_items"), (Long) 1L);
+            Assert.assertEquals(pollingDao.getWatermarks().get("tags"), (Long) 0L);
+
+            final Handle handle2 = dbi.open();
+            try {
+                insert(handle2, "invoice_items", 1L);
+                insert(handle2, "custom_fields", 1L);
+                insert(handle2, "tags", 2L);
+            } finally {
+                handle2.close();
+            }
+
+            Assert.assertFalse(poller.poll());
+            Mockito.verify(analyticsListener).refresh(accountId1, tenantId, 1L, 1L, RefreshScope.INVOICES_AND_PAYMENTS);
+            Mockito.verify(analyticsListener).refresh(accountId1, tenantId, 1L, 1L, RefreshScope.FIELDS);
+            Mockito.verify(analyticsListener).refresh(accountId2, tenantId, 2L, 1L, RefreshScope.ALL);
+            Mockito.verifyNoMoreInteractions(analyticsListener);
+
+            // Backlog larger than the batch size
+            final Handle handle3 = dbi.open();
+            try {
+                insert(handle3, "invoice_items", 2L);
+                insert(handle3, "invoice_items", 2L);
+                insert(handle3, "invoice_items", 2L);
+                // Too recent
+                handle3.execute("insert into invoice_items (account_record_id, tenant_record_id, created_date) values (?, ?, ?)", 1L, 1L, clock.getUTCNow());
+            } finally {
+                handle3.close();
+            }
+
+            Assert.assertTrue(poller.poll());
+            Assert.assertFalse(poller.poll());
+            Mockito.verify(analyticsListener, Mockito.times(2)).refresh(accountId2, tenantId, 2L, 1L, RefreshScope.INVOICES_AND_PAYMENTS);
+            Mockito.verifyNoMoreInteractions(analyticsListener);
+            Assert.assertEquals(pollingDao.getWatermarks().get("invoice_items"), (Long) 5L);
+
+            // Refreshes paused by the circuit breaker: the batch is polled again
+            final Handle handle4 = dbi.open();
+            try {
+                insert(handle4, "invoice_items", 1L);
+            } finally {
+                handle4.close();
+            }
+            Mockito.doThrow(new AnalyticsRefreshPausedException("Paused")).when(analyticsListener).refresh(accountId1, tenantId, 1L, 1L, RefreshScope.INVOICES_AND_PAYMENTS);
+            Assert.assertFalse(poller.poll());
+            Assert.assertEquals(pollingDao.getWatermarks().get("invoice_items"), (Long) 5L);
+
+            Mockito.doNothing().when(analyticsListener).refresh(accountId1, tenantId, 1L, 1L, RefreshScope.INVOICES_AND_PAYMENTS);
+            Assert.assertFalse(poller.poll());
+            Assert.assertEquals(pollingDao.getWatermarks().get("invoice_items"), (Long) 7L);
+        } finally {
+            System.clearProperty(AnalyticsPoller.ANALYTICS_POLLING_BATCH_SIZE_PROPERTY);
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testPollingRequiresReconciliation() throws Exception {
+        Assert.assertFalse(AnalyticsPoller.isEnabled(osgiConfigPropertiesService));
+
+        System.setProperty(AnalyticsPoller.ANALYTICS_POLLING_ENABLED_PROPERTY, "true");
+        try {
+            // Failed refreshes would be lost otherwise
+            Assert.assertFalse(AnalyticsPoller.isEnabled(osgiConfigPropertiesService));
+
+            System.setProperty(AnalyticsReconciliationScanner.ANALYTICS_RECONCILIATION_ENABLED_PROPERTY, "true");
+            Assert.assertTrue(AnalyticsPoller.isEnabled(osgiConfigPropertiesService));
+        } finally {
+            System.clearProperty(AnalyticsPoller.ANALYTICS_POLLING_ENABLED_PROPERTY);
+            System.clearProperty(AnalyticsReconciliationScanner.ANALYTICS_RECONCILIATION_ENABLED_PROPERTY);
+        }
+    }
+
+    private void insert(final Handle handle, final String tableName, final Long accountRecordId) {
+        handle.execute("insert into " + tableName + " (account_record_id, tenant_record_id, created_date) values (?, ?, ?)", accountRecordId, 1L, OLD_DATE);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.UUID;
+
+import org.killbill.billing.plugin.analytics.AccountRefreshGenerations.RefreshScope;
+import org.killbill.billing.plugin.analytics.dao.ReconciliationDao;
+import org.mockito.Mockito;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+
+public class TestAnalyticsReconciliationScanner extends AnalyticsTestSuiteWithEmbeddedDB {
+
+    private static final String OLD_DATE = "2014-01-01 00:00:00";
+
+    @Test(groups = "slow")
+    public void testScan() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final UUID mirroredAccountId = UUID.randomUUID();
+        final UUID newAccountId = UUID.randomUUID();
+
+        // Minimal version of the Kill Bill tables
+        final Handle handle = dbi.open();
+        try {
+            handle.execute("drop table if exists tenants");
+            handle.execute("create table tenants (record_id int(11) unsigned not null auto_increment, id char(36) not null, primary key(record_id))");
+            handle.execute("insert into tenants (id) values (?)", tenantId.toString());
+            handle.execute("drop table if exists accounts");
+            handle.execute("create table accounts (record_id int(11) unsigned not null auto_increment, id char(36) not null, tenant_record_id int(11) unsigned not null default 0, primary key(record_id))");
+            handle.execute("insert into accounts (id, tenant_record_id) values (?, ?)", mirroredAccountId.toString(), 1L);
+            handle.execute("insert into accounts (id, tenant_record_id) values (?, ?)", newAccountId.toString(), 1L);
+            for (final String tableName : AnalyticsReconciliationScanner.getKillbillTableNames(RefreshScope.ALL)) {
+                handle.execute("drop table if exists " + tableName);
+                handle.execute("create table " + tableName + " (record_id int(11) unsigned not null auto_increment, account_record_id int(11) unsigned not null, tenant_record_id int(11) unsigned not null default 0, created_date datetime not null, primary key(record_id))");
+            }
+            handle.execute("insert into invoice_items (account_record_id, tenant_record_id, created_date) values (?, ?, ?)", 1L, 1L, OLD_DATE);
+            handle.execute("insert into invoice_items (account_record_id, tenant_record_id, created_date) values (?, ?, ?)", 1L, 1L, OLD_DATE);
+            handle.execute("insert into invoice_items (account_record_id, tenant_record_id, created_date) values (?, ?, ?)", 2L, 1L, OLD_DATE);
+            // Only the first account has been mirrored
+            handle.execute("insert into analytics_accounts (account_id, report_group, account_record_id, tenant_record_id) values (?, 'default', ?, ?)", mirroredAccountId.toString(), 1L, 1L);
+        } finally {
+            handle.close();
+        }
+
+        System.setProperty(AnalyticsReconciliationScanner.ANALYTICS_RECONCILIATION_CHUNK_SIZE_PROPERTY, "100");
+        try {
+            final ReconciliationDao reconciliationDao = new ReconciliationDao(killbillDataSource);
+            final AnalyticsListener analyticsListener = Mockito.mock(AnalyticsListener.class);
+            final AnalyticsReconciliationScanner scanner = new AnalyticsReconciliationScanner(logService, reconciliationDao, osgiConfigPropertiesService, analyticsListener, clock, new MetricRegistry());
+
+            // The mirrored account is assumed to be up-to-date, the other one needs a full refresh
+            Assert.assertEquals(scanner.scan(), 1);
+            Mockito.verify(analyticsListener).scheduleRefresh(newAccountId, tenantId, 2L, 1L, RefreshScope.ALL);
+            Mockito.verifyNoMoreInteractions(analyticsListener);
+            Assert.assertEquals(reconciliationDao.getHighWaterMarks(1L, 1L).get("invoice_items"), (Long) 2L);
+
+            // Pass completed
+            Assert.assertEquals(scanner.scan(), 0);
+
+            // Simulate a refresh of the new account and a dropped event for the first one
+            reconciliationDao.updateHighWaterMarks(reconciliationDao.getKillbillHighWaterMarks(AnalyticsReconciliationScanner.getKillbillTableNames(RefreshScope.ALL), 2L, 1L), 2L, 1L, clock.getUTCNow());
+            final Handle handle2 = dbi.open();
+            try {
+                handle2.execute("insert into analytics_accounts (account_id, report_group, account_record_id, tenant_record_id) values (?, 'default', ?, ?)", newAccountId.toString(), 2L, 1L);
+                handle2.execute("insert into invoice_items (account_record_id, tenant_record_id, created_date) values (?, ?, ?)", 1L, 1L, OLD_DATE);
+                // Too recent
+                handle2.execute("insert into custom_fields (account_record_id, tenant_record_id, created_date) values (?, ?, ?)", 1L, 1L, clock.getUTCNow());
+            } finally {
+                handle2.close();
+            }
+
+            Assert.assertEquals(scanner.scan(), 1);
+            Mockito.verify(analyticsListener).scheduleRefresh(mirroredAccountId, tenantId, 1L, 1L, RefreshScope.INVOICES_AND_PAYMENTS);
+            Mockito.verifyNoMoreInteractions(analyticsListener);
+
+            // Nothing left for that pass
+            Assert.assertEquals(scanner.scan(), 0);
+            Assert.assertEquals(reconciliationDao.getKillbillHighWaterMarks(ImmutableList.<String>of("invoice_items", "tags"), 1L, 1L).get("invoice_items"), (Long) 4L);
+            Assert.assertEquals(reconciliationDao.getKillbillHighWaterMarks(ImmutableList.<String>of("invoice_items", "tags"), 1L, 1L).get("tags"), (Long) 0L);
+        } finally {
+            System.clearProperty(AnalyticsReconciliationScanner.ANALYTICS_RECONCILIATION_CHUNK_SIZE_PROPERTY);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.analytics.AccountRefreshGenerations.RefreshScope;
+import org.killbill.billing.plugin.analytics.RefreshConcurrencyLimiter.Outcome;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TestRefreshConcurrencyLimiter extends AnalyticsTestSuiteNoDB {
+
+    private static final long BASELINE_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test(groups = "fast")
+    public void testAdditiveIncreaseMultiplicativeDecrease() throws Exception {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final RefreshConcurrencyLimiter limiter = new RefreshConcurrencyLimiter(1, 6, 4, metricRegistry);
+        Assert.assertEquals(limiter.getLimit(), 4);
+        Assert.assertEquals(metricRegistry.getGauges().get(MetricRegistry.name(RefreshConcurrencyLimiter.class, "limit")).getValue(), 4);
+
+        // The limit isn't raised if it isn't used
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire();
+            limiter.release(System.nanoTime() - BASELINE_LATENCY_NANOS, Outcome.SUCCESS);
+        }
+        Assert.assertEquals(limiter.getLimit(), 4);
+
+        // Additive increase, up to the max
+        for (int i = 0; i < 20; i++) {
+            final int limit = limiter.getLimit();
+            for (int j = 0; j < limit; j++) {
+                limiter.acquire();
+            }
+            Assert.assertEquals(limiter.getInFlight(), limit);
+            for (int j = 0; j < limit; j++) {
+                limiter.release(System.nanoTime() - BASELINE_LATENCY_NANOS, Outcome.SUCCESS);
+            }
+        }
+        Assert.assertEquals(limiter.getLimit(), 6);
+        Assert.assertEquals(limiter.getInFlight(), 0);
+        Assert.assertTrue(metricRegistry.getHistograms().get(MetricRegistry.name(RefreshConcurrencyLimiter.class, "latencyMs")).getCount() > 20);
+
+        // Multiplicative decrease, at most once per window
+        final long firstStartNanos = limiter.acquire();
+        final long secondStartNanos = limiter.acquire();
+        limiter.release(secondStartNanos, Outcome.DROPPED);
+        Assert.assertEquals(limiter.getLimit(), 5);
+        limiter.release(firstStartNanos, Outcome.DROPPED);
+        Assert.assertEquals(limiter.getLimit(), 5);
+        Assert.assertEquals(metricRegistry.getCounters().get(MetricRegistry.name(RefreshConcurrencyLimiter.class, "drops")).getCount(), 2);
+
+        // Ignored outcomes don't change anything
+        limiter.release(limiter.acquire(), Outcome.IGNORED);
+        Assert.assertEquals(limiter.getLimit(), 5);
+
+        // Down to the min
+        for (int i = 0; i < 50; i++) {
+            limiter.release(limiter.acquire(), Outcome.DROPPED);
+        }
+        Assert.assertEquals(limiter.getLimit(), 1);
+        Assert.assertEquals(limiter.getInFlight(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testLatencySpike() throws Exception {
+        final RefreshConcurrencyLimiter limiter = new RefreshConcurrencyLimiter(1, 100, 10, new MetricRegistry());
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+            limiter.release(System.nanoTime() - BASELINE_LATENCY_NANOS, Outcome.SUCCESS);
+        }
+        Assert.assertEquals(limiter.getLimit(), 10);
+        Assert.assertTrue(limiter.getBaselineLatencyNanos(null) >= BASELINE_LATENCY_NANOS);
+
+        // The database is struggling: all refreshes are slow
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire();
+            limiter.release(System.nanoTime() - 100 * BASELINE_LATENCY_NANOS, Outcome.SUCCESS);
+        }
+        Assert.assertEquals(limiter.getLimit(), 9);
+    }
+
+    @Test(groups = "fast")
+    public void testMixedLatencies() throws Exception {
+        final RefreshConcurrencyLimiter limiter = new RefreshConcurrencyLimiter(1, 100, 10, new MetricRegistry());
+
+        // Fast fields refreshes, slow full rebuilds, and the occasional large account
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(System.nanoTime() - BASELINE_LATENCY_NANOS, Outcome.SUCCESS, RefreshScope.FIELDS);
+            limiter.acquire();
+            limiter.release(System.nanoTime() - 50 * BASELINE_LATENCY_NANOS, Outcome.SUCCESS, RefreshScope.ALL);
+            if (i % 10 == 0) {
+                limiter.acquire();
+                limiter.release(System.nanoTime() - 20 * BASELINE_LATENCY_NANOS, Outcome.SUCCESS, RefreshScope.FIELDS);
+            }
+        }
+        Assert.assertEquals(limiter.getLimit(), 10);
+        Assert.assertTrue(limiter.getBaselineLatencyNanos(RefreshScope.FIELDS) < limiter.getBaselineLatencyNanos(RefreshScope.ALL));
+
+        // Sustained slowness within a scope is still detected
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire();
+            limiter.release(System.nanoTime() - 200 * BASELINE_LATENCY_NANOS, Outcome.SUCCESS, RefreshScope.ALL);
+        }
+        Assert.assertEquals(limiter.getLimit(), 9);
+    }
+
+    @Test(groups = "fast")
+    public void testIsDropped() throws Exception {
+        Assert.assertFalse(RefreshConcurrencyLimiter.isDropped(null));
+        Assert.assertFalse(RefreshConcurrencyLimiter.isDropped(new AnalyticsRefreshException("Unable to retrieve the account")));
+        Assert.assertFalse(RefreshConcurrencyLimiter.isDropped(new AnalyticsRefreshSupersededException("Refresh superseded")));
+        Assert.assertTrue(RefreshConcurrencyLimiter.isDropped(new AnalyticsRefreshException(new RuntimeException(new SQLTransactionRollbackException("Deadlock")))));
+        Assert.assertTrue(RefreshConcurrencyLimiter.isDropped(new RuntimeException("Lock wait timeout exceeded; try restarting transaction")));
+    }
+}
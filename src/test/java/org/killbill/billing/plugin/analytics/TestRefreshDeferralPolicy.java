@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.analytics.dao.RefreshCostDao;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TestRefreshDeferralPolicy extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testDisabledByDefault() throws Exception {
+        final RefreshCostDao refreshCostDao = Mockito.mock(RefreshCostDao.class);
+        Mockito.when(refreshCostDao.getRowCount(Mockito.<Long>any(), Mockito.<Long>any())).thenReturn(1000000L);
+        final RefreshDeferralPolicy refreshDeferralPolicy = new RefreshDeferralPolicy(osgiConfigPropertiesService, refreshCostDao, new MetricRegistry());
+
+        final DateTime now = new DateTime(2014, 1, 1, 12, 0, 0, DateTimeZone.UTC);
+        Assert.assertEquals(refreshDeferralPolicy.computeRefreshTime(accountRecordId, tenantRecordId, now), now);
+        Mockito.verifyZeroInteractions(refreshCostDao);
+    }
+
+    @Test(groups = "fast")
+    public void testDeferral() throws Exception {
+        System.setProperty(RefreshDeferralPolicy.ANALYTICS_DEFERRAL_ENABLED_PROPERTY, "true");
+        try {
+            // Defaults: 10000 rows threshold, off-peak between 00:00 and 06:00 UTC, 100000 rows per hour
+            final MetricRegistry metricRegistry = new MetricRegistry();
+            final RefreshDeferralPolicy refreshDeferralPolicy = new RefreshDeferralPolicy(osgiConfigPropertiesService, Mockito.mock(RefreshCostDao.class), metricRegistry);
+
+            final DateTime peak = new DateTime(2014, 1, 1, 12, 30, 0, DateTimeZone.UTC);
+            Assert.assertFalse(refreshDeferralPolicy.isOffPeak(peak));
+            Assert.assertTrue(refreshDeferralPolicy.isOffPeak(new DateTime(2014, 1, 2, 0, 0, 0, DateTimeZone.UTC)));
+            Assert.assertFalse(refreshDeferralPolicy.isOffPeak(new DateTime(2014, 1, 2, 6, 0, 0, DateTimeZone.UTC)));
+
+            // Cheap rebuilds go through
+            Assert.assertEquals(refreshDeferralPolicy.computeRefreshTime(100L, peak), peak);
+
+            // Within the budget of the current hour
+            Assert.assertEquals(refreshDeferralPolicy.computeRefreshTime(60000L, peak), peak);
+
+            // Budget exhausted: next hour
+            final DateTime nextHour = refreshDeferralPolicy.computeRefreshTime(60000L, peak);
+            Assert.assertFalse(nextHour.isBefore(new DateTime(2014, 1, 1, 13, 0, 0, DateTimeZone.UTC)));
+            Assert.assertTrue(nextHour.isBefore(new DateTime(2014, 1, 1, 14, 0, 0, DateTimeZone.UTC)));
+
+            // Over the hourly budget: off-peak only
+            final DateTime offPeak = refreshDeferralPolicy.computeRefreshTime(200000L, peak);
+            Assert.assertFalse(offPeak.isBefore(new DateTime(2014, 1, 2, 0, 0, 0, DateTimeZone.UTC)));
+            Assert.assertTrue(offPeak.isBefore(new DateTime(2014, 1, 2, 6, 0, 0, DateTimeZone.UTC)));
+
+            // Nothing is deferred off-peak
+            final DateTime night = new DateTime(2014, 1, 2, 3, 0, 0, DateTimeZone.UTC);
+            Assert.assertEquals(refreshDeferralPolicy.computeRefreshTime(200000L, night), night);
+
+            Assert.assertEquals(metricRegistry.getCounters().get(MetricRegistry.name(RefreshDeferralPolicy.class, "deferredRefreshes")).getCount(), 2);
+        } finally {
+            System.clearProperty(RefreshDeferralPolicy.ANALYTICS_DEFERRAL_ENABLED_PROPERTY);
+        }
+    }
+}
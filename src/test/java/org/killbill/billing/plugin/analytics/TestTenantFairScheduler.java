@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
+public class TestTenantFairScheduler extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testDisabledByDefault() throws Exception {
+        final TenantFairScheduler tenantFairScheduler = new TenantFairScheduler(osgiConfigPropertiesService, clock, new MetricRegistry());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNull(tenantFairScheduler.admit(1L, clock.getUTCNow()));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDeficitRoundRobin() throws Exception {
+        System.setProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_ENABLED_PROPERTY, "true");
+        System.setProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_ROUND_PROPERTY, "60000");
+        System.setProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_QUANTUM_PROPERTY, "2");
+        System.setProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_WEIGHTS_PROPERTY, "2:2");
+        System.setProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_CAPS_PROPERTY, "3:1");
+        try {
+            final DateTime roundStart = new DateTime(2014, 1, 1, 0, 0, 0, DateTimeZone.UTC);
+            clock.setTime(roundStart);
+            final MetricRegistry metricRegistry = new MetricRegistry();
+            final TenantFairScheduler tenantFairScheduler = new TenantFairScheduler(osgiConfigPropertiesService, clock, metricRegistry);
+
+            // A single active tenant gets all the capacity
+            for (int i = 0; i < 5; i++) {
+                Assert.assertNull(tenantFairScheduler.admit(1L, roundStart));
+            }
+
+            // Tenant 2 has a weight of 2
+            for (int i = 0; i < 4; i++) {
+                Assert.assertNull(tenantFairScheduler.admit(2L, roundStart));
+            }
+            Assert.assertEquals(tenantFairScheduler.admit(2L, roundStart), roundStart.plusMinutes(1));
+            Assert.assertEquals(tenantFairScheduler.getBacklog(2L), 1);
+
+            // Tenant 1 is over its share, while tenant 2 is active: jobs are spread across the next rounds
+            Assert.assertEquals(tenantFairScheduler.admit(1L, roundStart), roundStart.plusMinutes(1));
+            Assert.assertEquals(tenantFairScheduler.admit(1L, roundStart), roundStart.plusMinutes(1).plusSeconds(30));
+            Assert.assertEquals(tenantFairScheduler.admit(1L, roundStart), roundStart.plusMinutes(2));
+            Assert.assertEquals(tenantFairScheduler.getBacklog(1L), 3);
+            Assert.assertEquals(metricRegistry.getGauges().get(MetricRegistry.name(TenantFairScheduler.class, "tenant", "1", "backlog")).getValue(), 3L);
+            Assert.assertEquals(metricRegistry.getCounters().get(MetricRegistry.name(TenantFairScheduler.class, "tenant", "1", "deferred")).getCount(), 3);
+            Assert.assertEquals(metricRegistry.getHistograms().get(MetricRegistry.name(TenantFairScheduler.class, "tenant", "1", "latencyMs")).getCount(), 5);
+
+            // Tenant 3 is capped to one refresh per round
+            Assert.assertNull(tenantFairScheduler.admit(3L, roundStart));
+            Assert.assertEquals(tenantFairScheduler.admit(3L, roundStart), roundStart.plusMinutes(1));
+            Assert.assertEquals(tenantFairScheduler.admit(3L, roundStart), roundStart.plusMinutes(2));
+
+            // Next round: quotas are replenished
+            clock.setTime(roundStart.plusMinutes(1));
+            Assert.assertEquals(tenantFairScheduler.getBacklog(1L), 1);
+            Assert.assertNull(tenantFairScheduler.admit(1L, roundStart.plusMinutes(1)));
+            Assert.assertNull(tenantFairScheduler.admit(2L, roundStart.plusMinutes(1)));
+        } finally {
+            System.clearProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_ENABLED_PROPERTY);
+            System.clearProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_ROUND_PROPERTY);
+            System.clearProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_QUANTUM_PROPERTY);
+            System.clearProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_WEIGHTS_PROPERTY);
+            System.clearProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_CAPS_PROPERTY);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testLatencyFromEnqueuedDate() throws Exception {
+        System.setProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_ENABLED_PROPERTY, "true");
+        try {
+            final DateTime now = new DateTime(2014, 1, 1, 0, 5, 0, DateTimeZone.UTC);
+            clock.setTime(now);
+            final MetricRegistry metricRegistry = new MetricRegistry();
+            final TenantFairScheduler tenantFairScheduler = new TenantFairScheduler(osgiConfigPropertiesService, clock, metricRegistry);
+
+            // Enqueued 5 minutes ago, deferred since then
+            Assert.assertNull(tenantFairScheduler.admit(1L, now.minusMinutes(5)));
+            final Histogram latency = metricRegistry.getHistograms().get(MetricRegistry.name(TenantFairScheduler.class, "tenant", "1", "latencyMs"));
+            Assert.assertEquals(latency.getSnapshot().getMax(), 5 * 60 * 1000L);
+        } finally {
+            System.clearProperty(TenantFairScheduler.ANALYTICS_FAIRNESS_ENABLED_PROPERTY);
+        }
+    }
+}
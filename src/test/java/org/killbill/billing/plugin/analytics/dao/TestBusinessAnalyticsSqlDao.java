@@ -43,6 +43,8 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscription;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionEvent;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessTagModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.RefreshFingerprintModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.RefreshFingerprintModelDao.Domain;
 import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -477,4 +479,21 @@ public class TestBusinessAnalyticsSqlDao extends AnalyticsTestSuiteWithEmbeddedD
         analyticsSqlDao.deleteByAccountRecordId(businessTagModelDao.getTableName(), accountRecordId, tenantRecordId, callContext);
         Assert.assertEquals(analyticsSqlDao.getInvoicePaymentTagsByAccountRecordId(accountRecordId, tenantRecordId, callContext).size(), 0);
     }
+
+    @Test(groups = "slow")
+    public void testSqlDaoForRefreshFingerprint() throws Exception {
+        final String domain = Domain.INVOICES_AND_PAYMENTS.toString();
+
+        // Check the record doesn't exist yet
+        Assert.assertNull(analyticsSqlDao.getRefreshFingerprint(domain, accountRecordId, tenantRecordId, callContext));
+
+        // Create and check we can retrieve it
+        analyticsSqlDao.createRefreshFingerprint(domain, "0cc175b9c0f1b6a831c399e269772661", callContext.getCreatedDate(), accountRecordId, tenantRecordId, callContext);
+        Assert.assertEquals(analyticsSqlDao.getRefreshFingerprint(domain, accountRecordId, tenantRecordId, callContext),
+                            new RefreshFingerprintModelDao(Domain.INVOICES_AND_PAYMENTS, "0cc175b9c0f1b6a831c399e269772661", accountRecordId, tenantRecordId));
+
+        // Delete and verify it doesn't exist anymore
+        analyticsSqlDao.deleteRefreshFingerprint(domain, accountRecordId, tenantRecordId, callContext);
+        Assert.assertNull(analyticsSqlDao.getRefreshFingerprint(domain, accountRecordId, tenantRecordId, callContext));
+    }
 }
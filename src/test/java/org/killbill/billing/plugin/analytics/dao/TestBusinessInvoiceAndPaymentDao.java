@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.entitlement.api.SubscriptionBundle;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.InvoicePayment;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.plugin.analytics.AnalyticsRefreshSupersededException;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.analytics.BusinessExecutor;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentBaseModelDao;
+import org.mockito.Mockito;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.skife.jdbi.v2.util.IntegerMapper;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class TestBusinessInvoiceAndPaymentDao extends AnalyticsTestSuiteWithEmbeddedDB {
+
+    private ExecutorService executor;
+    private BusinessContextFactory businessContextFactory;
+    private BusinessInvoiceAndPaymentDao businessInvoiceAndPaymentDao;
+
+    @Override
+    @BeforeMethod(groups = "slow")
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // Stream every account, one invoice (and one payment) per batch
+        Mockito.when(osgiConfigPropertiesService.getString(BusinessInvoiceAndPaymentDao.ANALYTICS_STREAMING_THRESHOLD_PROPERTY)).thenReturn("1");
+        Mockito.when(osgiConfigPropertiesService.getString(BusinessInvoiceAndPaymentDao.ANALYTICS_STREAMING_BATCH_SIZE_PROPERTY)).thenReturn("1");
+
+        businessContextFactory = Mockito.mock(BusinessContextFactory.class);
+        Mockito.when(businessContextFactory.getAccountId()).thenReturn(account.getId());
+        Mockito.when(businessContextFactory.getAccount()).thenReturn(account);
+        Mockito.when(businessContextFactory.getAccountRecordId()).thenReturn(accountRecordId);
+        Mockito.when(businessContextFactory.getTenantRecordId()).thenReturn(tenantRecordId);
+        Mockito.when(businessContextFactory.getReportGroup()).thenReturn(reportGroup);
+        Mockito.when(businessContextFactory.getCurrencyConverter()).thenReturn(currencyConverter);
+        Mockito.when(businessContextFactory.getCallContext()).thenReturn(callContext);
+        Mockito.when(businessContextFactory.getAccountBalance()).thenReturn(BigDecimal.ONE);
+        Mockito.when(businessContextFactory.getAccountCreationAuditLog()).thenReturn(auditLog);
+        Mockito.when(businessContextFactory.getAccountBundles()).thenReturn(ImmutableList.<SubscriptionBundle>of());
+        Mockito.when(businessContextFactory.getAccountInvoicePayments()).thenReturn(ImmutableMap.<UUID, List<InvoicePayment>>of());
+        Mockito.when(businessContextFactory.getInvoiceCreationAuditLog(Mockito.<UUID>any())).thenReturn(auditLog);
+        Mockito.when(businessContextFactory.getInvoiceItemCreationAuditLog(Mockito.<UUID>any())).thenReturn(auditLog);
+        Mockito.when(businessContextFactory.getPaymentMethod(Mockito.<UUID>any())).thenReturn(paymentMethod);
+        Mockito.when(businessContextFactory.getPaymentCreationAuditLog(Mockito.<UUID>any())).thenReturn(auditLog);
+
+        executor = BusinessExecutor.newCachedThreadPool(osgiConfigPropertiesService);
+        businessInvoiceAndPaymentDao = new BusinessInvoiceAndPaymentDao(logService,
+                                                                        killbillDataSource,
+                                                                        osgiConfigPropertiesService,
+                                                                        new BusinessAccountDao(logService, killbillDataSource),
+                                                                        executor,
+                                                                        new MetricRegistry());
+    }
+
+    @AfterMethod(groups = "slow")
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test(groups = "slow")
+    public void testUpdateInBatches() throws Exception {
+        final Invoice firstInvoice = createInvoice();
+        final Invoice secondInvoice = createInvoice();
+        final Invoice thirdInvoice = createInvoice();
+        Mockito.when(businessContextFactory.getAccountInvoices()).thenReturn(ImmutableList.<Invoice>of(firstInvoice, secondInvoice, thirdInvoice));
+        // 2 + 1 transactions
+        Mockito.when(businessContextFactory.getAccountPayments()).thenReturn(ImmutableList.<Payment>of(payment, paymentNoRefund));
+        Assert.assertTrue(businessInvoiceAndPaymentDao.shouldStream(businessContextFactory));
+
+        businessInvoiceAndPaymentDao.update(businessContextFactory, true);
+        Assert.assertEquals(getInvoiceIds(), ImmutableSet.<UUID>of(firstInvoice.getId(), secondInvoice.getId(), thirdInvoice.getId()));
+        Assert.assertEquals(getNbInvoiceItems(), 3);
+        Assert.assertEquals(getNbPaymentTransactions(), 3);
+        Assert.assertNotNull(analyticsSqlDao.getAccountByAccountRecordId(accountRecordId, tenantRecordId, callContext));
+
+        // Refreshing again shouldn't duplicate any record
+        businessInvoiceAndPaymentDao.update(businessContextFactory, true);
+        Assert.assertEquals(getInvoiceIds(), ImmutableSet.<UUID>of(firstInvoice.getId(), secondInvoice.getId(), thirdInvoice.getId()));
+        Assert.assertEquals(getNbInvoiceItems(), 3);
+        Assert.assertEquals(getNbPaymentTransactions(), 3);
+
+        // Records of invoices and payments which are gone should be removed
+        Mockito.when(businessContextFactory.getAccountInvoices()).thenReturn(ImmutableList.<Invoice>of(firstInvoice, thirdInvoice));
+        Mockito.when(businessContextFactory.getAccountPayments()).thenReturn(ImmutableList.<Payment>of(payment));
+        businessInvoiceAndPaymentDao.update(businessContextFactory, true);
+        Assert.assertEquals(getInvoiceIds(), ImmutableSet.<UUID>of(firstInvoice.getId(), thirdInvoice.getId()));
+        Assert.assertEquals(getNbInvoiceItems(), 2);
+        Assert.assertEquals(getNbPaymentTransactions(), 2);
+    }
+
+    @Test(groups = "slow")
+    public void testSupersededUpdateInBatches() throws Exception {
+        final Invoice firstInvoice = createInvoice();
+        final Invoice secondInvoice = createInvoice();
+        Mockito.when(businessContextFactory.getAccountInvoices()).thenReturn(ImmutableList.<Invoice>of(firstInvoice, secondInvoice));
+        Mockito.when(businessContextFactory.getAccountPayments()).thenReturn(ImmutableList.<Payment>of(payment, paymentNoRefund));
+        businessInvoiceAndPaymentDao.update(businessContextFactory, true);
+        Assert.assertEquals(getInvoiceIds(), ImmutableSet.<UUID>of(firstInvoice.getId(), secondInvoice.getId()));
+
+        // A newer refresh is pending once all invoices have been staged
+        final Invoice thirdInvoice = createInvoice();
+        Mockito.when(businessContextFactory.getAccountInvoices()).thenReturn(ImmutableList.<Invoice>of(thirdInvoice));
+        Mockito.when(businessContextFactory.getAccountPayments()).thenReturn(ImmutableList.<Payment>of(payment));
+        Mockito.doThrow(new AnalyticsRefreshSupersededException("Superseded")).when(businessContextFactory).checkNotSuperseded("payments batch");
+        try {
+            businessInvoiceAndPaymentDao.update(businessContextFactory, true);
+            Assert.fail();
+        } catch (AnalyticsRefreshSupersededException e) {
+            // Expected
+        }
+
+        // Readers still see the records of the previous refresh, and nothing is left behind in the staging tables
+        Assert.assertEquals(getInvoiceIds(), ImmutableSet.<UUID>of(firstInvoice.getId(), secondInvoice.getId()));
+        Assert.assertEquals(getNbInvoiceItems(), 2);
+        Assert.assertEquals(getNbPaymentTransactions(), 3);
+        Assert.assertEquals(getNbStagedRecords(), 0);
+    }
+
+    private Invoice createInvoice() {
+        final UUID invoiceId = UUID.randomUUID();
+        final InvoiceItem invoiceItem = createInvoiceItem(invoiceId, InvoiceItemType.EXTERNAL_CHARGE);
+
+        final Invoice invoice = Mockito.mock(Invoice.class);
+        Mockito.when(invoice.getId()).thenReturn(invoiceId);
+        Mockito.when(invoice.getInvoiceItems()).thenReturn(ImmutableList.<InvoiceItem>of(invoiceItem));
+        Mockito.when(invoice.getNumberOfItems()).thenReturn(1);
+        Mockito.when(invoice.getPayments()).thenReturn(ImmutableList.<InvoicePayment>of());
+        Mockito.when(invoice.getAccountId()).thenReturn(account.getId());
+        Mockito.when(invoice.getInvoiceNumber()).thenReturn(42);
+        Mockito.when(invoice.getInvoiceDate()).thenReturn(new LocalDate(2013, 1, 2));
+        Mockito.when(invoice.getTargetDate()).thenReturn(new LocalDate(2013, 1, 2));
+        Mockito.when(invoice.getCurrency()).thenReturn(Currency.EUR);
+        Mockito.when(invoice.getPaidAmount()).thenReturn(BigDecimal.ZERO);
+        Mockito.when(invoice.getOriginalChargedAmount()).thenReturn(BigDecimal.TEN);
+        Mockito.when(invoice.getChargedAmount()).thenReturn(BigDecimal.TEN);
+        Mockito.when(invoice.getCreditedAmount()).thenReturn(BigDecimal.ZERO);
+        Mockito.when(invoice.getRefundedAmount()).thenReturn(BigDecimal.ZERO);
+        Mockito.when(invoice.getBalance()).thenReturn(BigDecimal.TEN);
+        Mockito.when(invoice.isMigrationInvoice()).thenReturn(false);
+        Mockito.when(invoice.getCreatedDate()).thenReturn(new DateTime(2013, 1, 2, 10, 56, 53, DateTimeZone.UTC));
+        return invoice;
+    }
+
+    private Set<UUID> getInvoiceIds() {
+        final Set<UUID> invoiceIds = new HashSet<UUID>();
+        for (final BusinessInvoiceModelDao businessInvoice : analyticsSqlDao.getInvoicesByAccountRecordId(accountRecordId, tenantRecordId, callContext)) {
+            invoiceIds.add(businessInvoice.getInvoiceId());
+        }
+        return invoiceIds;
+    }
+
+    private int getNbInvoiceItems() {
+        return analyticsSqlDao.getInvoiceItemsByAccountRecordId(accountRecordId, tenantRecordId, callContext).size() +
+               analyticsSqlDao.getInvoiceAdjustmentsByAccountRecordId(accountRecordId, tenantRecordId, callContext).size() +
+               analyticsSqlDao.getInvoiceItemAdjustmentsByAccountRecordId(accountRecordId, tenantRecordId, callContext).size() +
+               analyticsSqlDao.getInvoiceItemCreditsByAccountRecordId(accountRecordId, tenantRecordId, callContext).size();
+    }
+
+    private int getNbStagedRecords() {
+        return dbi.withHandle(new HandleCallback<Integer>() {
+            @Override
+            public Integer withHandle(final Handle handle) throws Exception {
+                int nbStagedRecords = 0;
+                for (final String tableName : Lists.<String>asList(BusinessInvoiceModelDao.INVOICES_TABLE_NAME, BusinessInvoiceItemBaseModelDao.ALL_INVOICE_ITEMS_TABLE_NAMES)) {
+                    nbStagedRecords += handle.createQuery("select count(*) from " + BusinessDBIProvider.getStagingTableName(tableName)).map(IntegerMapper.FIRST).first();
+                }
+                for (final String tableName : BusinessPaymentBaseModelDao.ALL_PAYMENTS_TABLE_NAMES) {
+                    nbStagedRecords += handle.createQuery("select count(*) from " + BusinessDBIProvider.getStagingTableName(tableName)).map(IntegerMapper.FIRST).first();
+                }
+                return nbStagedRecords;
+            }
+        });
+    }
+
+    private int getNbPaymentTransactions() {
+        return analyticsSqlDao.getPaymentAuthsByAccountRecordId(accountRecordId, tenantRecordId, callContext).size() +
+               analyticsSqlDao.getPaymentCapturesByAccountRecordId(accountRecordId, tenantRecordId, callContext).size() +
+               analyticsSqlDao.getPaymentPurchasesByAccountRecordId(accountRecordId, tenantRecordId, callContext).size() +
+               analyticsSqlDao.getPaymentRefundsByAccountRecordId(accountRecordId, tenantRecordId, callContext).size() +
+               analyticsSqlDao.getPaymentCreditsByAccountRecordId(accountRecordId, tenantRecordId, callContext).size() +
+               analyticsSqlDao.getPaymentChargebacksByAccountRecordId(accountRecordId, tenantRecordId, callContext).size();
+    }
+}
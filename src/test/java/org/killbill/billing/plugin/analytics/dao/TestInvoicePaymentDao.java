@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.InvoicePayment;
+import org.killbill.billing.invoice.api.InvoicePaymentType;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestInvoicePaymentDao extends AnalyticsTestSuiteWithEmbeddedDB {
+
+    @Test(groups = "slow")
+    public void testBulkLookup() throws Exception {
+        final UUID paymentId = UUID.randomUUID();
+        final UUID invoiceId = UUID.randomUUID();
+        final UUID attemptId = UUID.randomUUID();
+        final UUID refundId = UUID.randomUUID();
+
+        // Minimal version of the Kill Bill table
+        final Handle handle = dbi.open();
+        try {
+            handle.execute("drop table if exists invoice_payments");
+            handle.execute("create table invoice_payments (record_id int(11) unsigned not null auto_increment, id char(36) not null, type varchar(24) not null, invoice_id char(36) not null, payment_id char(36), payment_date datetime not null, amount numeric(15,9) not null, currency varchar(3) not null, processed_currency varchar(3) not null, payment_cookie_id varchar(255) default null, linked_invoice_payment_id char(36) default null, created_date datetime not null, account_record_id int(11) unsigned not null, tenant_record_id int(11) unsigned not null default 0, primary key(record_id))");
+            handle.execute("insert into invoice_payments (id, type, invoice_id, payment_id, payment_date, amount, currency, processed_currency, created_date, account_record_id, tenant_record_id) values (?, 'ATTEMPT', ?, ?, '2014-01-01 10:00:00', 10, 'USD', 'USD', '2014-01-01 10:00:00', 1, 2)",
+                           attemptId.toString(), invoiceId.toString(), paymentId.toString());
+            handle.execute("insert into invoice_payments (id, type, invoice_id, payment_id, payment_date, amount, currency, processed_currency, linked_invoice_payment_id, created_date, account_record_id, tenant_record_id) values (?, 'REFUND', ?, ?, '2014-01-02 10:00:00', -10, 'USD', 'USD', ?, '2014-01-02 10:00:00', 1, 2)",
+                           refundId.toString(), invoiceId.toString(), paymentId.toString(), attemptId.toString());
+            handle.execute("insert into invoice_payments (id, type, invoice_id, payment_id, payment_date, amount, currency, processed_currency, created_date, account_record_id, tenant_record_id) values (?, 'ATTEMPT', ?, ?, '2014-01-01 10:00:00', 5, 'EUR', 'EUR', '2014-01-01 10:00:00', 3, 2)",
+                           UUID.randomUUID().toString(), UUID.randomUUID().toString(), UUID.randomUUID().toString());
+        } finally {
+            handle.close();
+        }
+
+        final InvoicePaymentDao invoicePaymentDao = new InvoicePaymentDao(killbillDataSource);
+        final Map<UUID, List<InvoicePayment>> invoicePaymentsByPaymentId = invoicePaymentDao.getInvoicePaymentsByPaymentId(1L, 2L);
+        Assert.assertEquals(invoicePaymentsByPaymentId.size(), 1);
+
+        final List<InvoicePayment> invoicePayments = invoicePaymentsByPaymentId.get(paymentId);
+        Assert.assertEquals(invoicePayments.size(), 2);
+        Assert.assertEquals(invoicePayments.get(0).getId(), attemptId);
+        Assert.assertEquals(invoicePayments.get(0).getType(), InvoicePaymentType.ATTEMPT);
+        Assert.assertEquals(invoicePayments.get(0).getInvoiceId(), invoiceId);
+        Assert.assertEquals(invoicePayments.get(0).getAmount().compareTo(BigDecimal.TEN), 0);
+        Assert.assertEquals(invoicePayments.get(0).getCurrency(), Currency.USD);
+        Assert.assertNull(invoicePayments.get(0).getLinkedInvoicePaymentId());
+        Assert.assertEquals(invoicePayments.get(1).getId(), refundId);
+        Assert.assertEquals(invoicePayments.get(1).getType(), InvoicePaymentType.REFUND);
+        Assert.assertEquals(invoicePayments.get(1).getLinkedInvoicePaymentId(), attemptId);
+    }
+}
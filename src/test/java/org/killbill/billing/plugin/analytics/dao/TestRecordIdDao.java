@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestRecordIdDao extends AnalyticsTestSuiteWithEmbeddedDB {
+
+    @Test(groups = "slow")
+    public void testBulkLookup() throws Exception {
+        // Minimal version of the Kill Bill table
+        final Handle handle = dbi.open();
+        final UUID invoiceItemId1 = UUID.randomUUID();
+        final UUID invoiceItemId2 = UUID.randomUUID();
+        final UUID otherAccountInvoiceItemId = UUID.randomUUID();
+        try {
+            handle.execute("drop table if exists invoice_items");
+            handle.execute("create table invoice_items (record_id int(11) unsigned not null auto_increment, id char(36) not null, account_record_id int(11) unsigned not null, tenant_record_id int(11) unsigned not null default 0, primary key(record_id))");
+            handle.execute("insert into invoice_items (id, account_record_id, tenant_record_id) values (?, ?, ?)", invoiceItemId1.toString(), 1L, 2L);
+            handle.execute("insert into invoice_items (id, account_record_id, tenant_record_id) values (?, ?, ?)", otherAccountInvoiceItemId.toString(), 3L, 2L);
+            handle.execute("insert into invoice_items (id, account_record_id, tenant_record_id) values (?, ?, ?)", invoiceItemId2.toString(), 1L, 2L);
+        } finally {
+            handle.close();
+        }
+
+        final RecordIdDao recordIdDao = new RecordIdDao(killbillDataSource);
+        final Map<UUID, Long> recordIds = recordIdDao.getRecordIdsForAccount(ObjectType.INVOICE_ITEM, 1L, 2L);
+        Assert.assertEquals(recordIds.size(), 2);
+        Assert.assertEquals(recordIds.get(invoiceItemId1), (Long) 1L);
+        Assert.assertEquals(recordIds.get(invoiceItemId2), (Long) 3L);
+
+        Assert.assertTrue(recordIdDao.getRecordIdsForAccount(ObjectType.INVOICE_ITEM, 1L, 4L).isEmpty());
+        Assert.assertFalse(RecordIdDao.supports(ObjectType.TENANT));
+    }
+}
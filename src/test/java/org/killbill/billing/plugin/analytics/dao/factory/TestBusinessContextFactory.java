@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.invoice.api.InvoicePayment;
+import org.killbill.billing.invoice.api.InvoicePaymentApi;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.dao.InvoicePaymentDao;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestBusinessContextFactory extends AnalyticsTestSuiteNoDB {
+
+    private InvoicePaymentApi invoicePaymentApi;
+
+    @Override
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        super.setUp();
+
+        final PaymentApi paymentApi = Mockito.mock(PaymentApi.class);
+        Mockito.when(paymentApi.getAccountPayments(Mockito.eq(account.getId()), Mockito.anyBoolean(), Mockito.<Iterable<PluginProperty>>any(), Mockito.<TenantContext>any()))
+               .thenReturn(ImmutableList.<Payment>of(payment));
+        Mockito.when(killbillAPI.getPaymentApi()).thenReturn(paymentApi);
+
+        invoicePaymentApi = Mockito.mock(InvoicePaymentApi.class);
+        Mockito.when(invoicePaymentApi.getInvoicePayments(Mockito.eq(payment.getId()), Mockito.<TenantContext>any()))
+               .thenReturn(ImmutableList.<InvoicePayment>of(invoicePayment));
+        Mockito.when(killbillAPI.getInvoicePaymentApi()).thenReturn(invoicePaymentApi);
+    }
+
+    @Test(groups = "fast")
+    public void testInvoicePaymentsBulkLookup() throws Exception {
+        final InvoicePaymentDao invoicePaymentDao = Mockito.mock(InvoicePaymentDao.class);
+        Mockito.when(invoicePaymentDao.getInvoicePaymentsByPaymentId(Mockito.anyLong(), Mockito.anyLong()))
+               .thenReturn(ImmutableMap.<UUID, List<InvoicePayment>>of());
+
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(account.getId(), callContext, null, invoicePaymentDao, logService, killbillAPI, killbillDataSource, osgiConfigPropertiesService, clock);
+        final Map<UUID, List<InvoicePayment>> invoicePayments = businessContextFactory.getAccountInvoicePayments();
+
+        // Same contract as the API: one (possibly empty) entry per payment
+        Assert.assertEquals(invoicePayments.size(), 1);
+        Assert.assertEquals(invoicePayments.get(payment.getId()).size(), 0);
+        Mockito.verify(invoicePaymentApi, Mockito.never()).getInvoicePayments(Mockito.<UUID>any(), Mockito.<TenantContext>any());
+    }
+
+    @Test(groups = "fast")
+    public void testInvoicePaymentsFallbackWhenBulkLookupFails() throws Exception {
+        // E.g. the processed_currency column doesn't exist in that Kill Bill version
+        final InvoicePaymentDao invoicePaymentDao = Mockito.mock(InvoicePaymentDao.class);
+        Mockito.when(invoicePaymentDao.getInvoicePaymentsByPaymentId(Mockito.anyLong(), Mockito.anyLong()))
+               .thenThrow(new RuntimeException("Unknown column 'processed_currency'"));
+
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(account.getId(), callContext, null, invoicePaymentDao, logService, killbillAPI, killbillDataSource, osgiConfigPropertiesService, clock);
+        final Map<UUID, List<InvoicePayment>> invoicePayments = businessContextFactory.getAccountInvoicePayments();
+
+        Assert.assertEquals(invoicePayments.size(), 1);
+        Assert.assertEquals(invoicePayments.get(payment.getId()), ImmutableList.<InvoicePayment>of(invoicePayment));
+        Mockito.verify(invoicePaymentApi).getInvoicePayments(Mockito.eq(payment.getId()), Mockito.<TenantContext>any());
+    }
+}
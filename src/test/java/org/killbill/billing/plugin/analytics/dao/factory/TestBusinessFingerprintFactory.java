@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.entitlement.api.SubscriptionBundle;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoicePayment;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.CurrencyConversionModelDao;
+import org.killbill.billing.plugin.analytics.utils.CurrencyConverter;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestBusinessFingerprintFactory extends AnalyticsTestSuiteNoDB {
+
+    private BusinessContextFactory businessContextFactory;
+    private BusinessAccountModelDao bac;
+    private BusinessFingerprintFactory fingerprintFactory;
+
+    @Override
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        super.setUp();
+
+        businessContextFactory = Mockito.mock(BusinessContextFactory.class);
+        Mockito.when(businessContextFactory.getCurrencyConverter()).thenReturn(currencyConverter);
+        Mockito.when(businessContextFactory.getAccountInvoices()).thenReturn(ImmutableList.<Invoice>of(invoice));
+        Mockito.when(businessContextFactory.getAccountInvoicePayments()).thenReturn(ImmutableMap.<UUID, List<InvoicePayment>>of(payment.getId(), ImmutableList.<InvoicePayment>of(invoicePayment)));
+        Mockito.when(businessContextFactory.getAccountPayments()).thenReturn(ImmutableList.<Payment>of(payment));
+        Mockito.when(businessContextFactory.getAccountBundles()).thenReturn(ImmutableList.<SubscriptionBundle>of(bundle));
+        Mockito.when(businessContextFactory.getPaymentMethod(payment.getPaymentMethodId())).thenReturn(paymentMethod);
+        Mockito.when(businessContextFactory.getPlanFromInvoiceItem(Mockito.<InvoiceItem>any())).thenReturn(plan);
+
+        bac = new BusinessAccountModelDao(account,
+                                          accountRecordId,
+                                          new BigDecimal("1.2345"),
+                                          invoice,
+                                          invoice,
+                                          paymentTransaction,
+                                          3,
+                                          currencyConverter,
+                                          auditLog,
+                                          tenantRecordId,
+                                          reportGroup);
+
+        fingerprintFactory = new BusinessFingerprintFactory();
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintIsStable() throws Exception {
+        final String fingerprint = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+        Assert.assertEquals(fingerprint.length(), 32);
+        Assert.assertEquals(fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory), fingerprint);
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintChangesWithPayments() throws Exception {
+        final String fingerprint = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+
+        // The refund went through
+        Mockito.when(refundTransaction.getTransactionStatus()).thenReturn(TransactionStatus.SUCCESS);
+        Assert.assertFalse(fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory).equals(fingerprint));
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintChangesWithInvoices() throws Exception {
+        final String fingerprint = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+
+        Mockito.when(invoice.getBalance()).thenReturn(BigDecimal.ZERO);
+        Assert.assertFalse(fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory).equals(fingerprint));
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintChangesWithUpdatedDates() throws Exception {
+        final String fingerprint = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+
+        Mockito.when(invoice.getUpdatedDate()).thenReturn(new DateTime(2016, 2, 1, 0, 0, 0, DateTimeZone.UTC));
+        final String fingerprintAfterInvoiceUpdate = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+        Assert.assertFalse(fingerprintAfterInvoiceUpdate.equals(fingerprint));
+
+        Mockito.when(payment.getUpdatedDate()).thenReturn(new DateTime(2016, 2, 1, 0, 0, 0, DateTimeZone.UTC));
+        Assert.assertFalse(fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory).equals(fingerprintAfterInvoiceUpdate));
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintChangesWithPaymentMethodPluginInfo() throws Exception {
+        final String fingerprint = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+
+        Mockito.when(paymentMethod.getPluginDetail().getExternalPaymentMethodId()).thenReturn(UUID.randomUUID().toString());
+        final String fingerprintAfterExternalIdUpdate = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+        Assert.assertFalse(fingerprintAfterExternalIdUpdate.equals(fingerprint));
+
+        // The card was updated
+        Mockito.when(paymentMethod.getPluginDetail().getProperties()).thenReturn(ImmutableList.<PluginProperty>of(new PluginProperty("ccExpirationYear", "2030", false)));
+        Assert.assertFalse(fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory).equals(fingerprintAfterExternalIdUpdate));
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintChangesWithExternalKeys() throws Exception {
+        final String fingerprint = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+
+        Mockito.when(payment.getExternalKey()).thenReturn(UUID.randomUUID().toString());
+        final String fingerprintAfterPaymentUpdate = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+        Assert.assertFalse(fingerprintAfterPaymentUpdate.equals(fingerprint));
+
+        Mockito.when(refundTransaction.getExternalKey()).thenReturn(UUID.randomUUID().toString());
+        Assert.assertFalse(fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory).equals(fingerprintAfterPaymentUpdate));
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintChangesWithPluginReferences() throws Exception {
+        final PaymentTransactionInfoPlugin paymentInfoPlugin = Mockito.mock(PaymentTransactionInfoPlugin.class);
+        Mockito.when(refundTransaction.getPaymentInfoPlugin()).thenReturn(paymentInfoPlugin);
+        final String fingerprint = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+
+        Mockito.when(paymentInfoPlugin.getFirstPaymentReferenceId()).thenReturn(UUID.randomUUID().toString());
+        final String fingerprintAfterFirstReferenceUpdate = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+        Assert.assertFalse(fingerprintAfterFirstReferenceUpdate.equals(fingerprint));
+
+        Mockito.when(paymentInfoPlugin.getSecondPaymentReferenceId()).thenReturn(UUID.randomUUID().toString());
+        Assert.assertFalse(fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory).equals(fingerprintAfterFirstReferenceUpdate));
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintChangesWithBundleExternalKey() throws Exception {
+        final String fingerprint = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+
+        Mockito.when(bundle.getExternalKey()).thenReturn(UUID.randomUUID().toString());
+        Assert.assertFalse(fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory).equals(fingerprint));
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintChangesWithCatalogNames() throws Exception {
+        final String fingerprint = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+
+        // New catalog version, with a renamed product
+        Mockito.when(plan.getProduct().getName()).thenReturn(UUID.randomUUID().toString());
+        Assert.assertFalse(fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory).equals(fingerprint));
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintChangesWithConversionRates() throws Exception {
+        Mockito.when(businessContextFactory.getCurrencyConverter()).thenReturn(createCurrencyConverter(new BigDecimal("0.75")));
+        final String fingerprint = fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory);
+        Assert.assertEquals(fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory), fingerprint);
+
+        // The AUD rate was corrected
+        Mockito.when(businessContextFactory.getCurrencyConverter()).thenReturn(createCurrencyConverter(new BigDecimal("0.76")));
+        Assert.assertFalse(fingerprintFactory.createInvoicesAndPaymentsFingerprint(bac, businessContextFactory).equals(fingerprint));
+    }
+
+    private CurrencyConverter createCurrencyConverter(final BigDecimal audRate) {
+        final CurrencyConversionModelDao audConversion = new CurrencyConversionModelDao("AUD", new LocalDate(1950, 1, 1), new LocalDate(2050, 1, 1), audRate, "USD");
+        return new CurrencyConverter(clock, "USD", ImmutableMap.<String, List<CurrencyConversionModelDao>>of("AUD", ImmutableList.<CurrencyConversionModelDao>of(audConversion)));
+    }
+}
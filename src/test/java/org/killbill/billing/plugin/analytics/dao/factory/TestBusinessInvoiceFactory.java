@@ -205,4 +205,17 @@ public class TestBusinessInvoiceFactory extends AnalyticsTestSuiteNoDB {
                                                                                                      createInvoiceItem(invoiceId, InvoiceItemType.CBA_ADJ, creditAdj.getAmount().negate()))
                                                                       ));
     }
+
+    @Test(groups = "fast")
+    public void testComputeChunkSize() throws Exception {
+        // Small accounts: a single chunk
+        Assert.assertEquals(BusinessInvoiceFactory.computeChunkSize(0, 8), BusinessInvoiceFactory.MIN_CHUNK_SIZE);
+        Assert.assertEquals(BusinessInvoiceFactory.computeChunkSize(10, 8), BusinessInvoiceFactory.MIN_CHUNK_SIZE);
+        Assert.assertEquals(BusinessInvoiceFactory.computeChunkSize(10, 0), BusinessInvoiceFactory.MIN_CHUNK_SIZE);
+
+        // Large accounts: a few tasks per core
+        Assert.assertEquals(BusinessInvoiceFactory.computeChunkSize(32000, 8), 1000);
+        Assert.assertEquals(BusinessInvoiceFactory.computeChunkSize(32001, 8), 1001);
+        Assert.assertEquals(BusinessInvoiceFactory.computeChunkSize(32000, 1), 8000);
+    }
 }
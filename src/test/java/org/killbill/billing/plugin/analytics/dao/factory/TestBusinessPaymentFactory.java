@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoicePayment;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentBaseModelDao;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestBusinessPaymentFactory extends AnalyticsTestSuiteNoDB {
+
+    private BusinessContextFactory businessContextFactory;
+    private BusinessPaymentFactory paymentFactory;
+
+    @Override
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        super.setUp();
+
+        businessContextFactory = Mockito.mock(BusinessContextFactory.class);
+        Mockito.when(businessContextFactory.getAccount()).thenReturn(account);
+        Mockito.when(businessContextFactory.getAccountRecordId()).thenReturn(accountRecordId);
+        Mockito.when(businessContextFactory.getTenantRecordId()).thenReturn(tenantRecordId);
+        Mockito.when(businessContextFactory.getReportGroup()).thenReturn(reportGroup);
+        Mockito.when(businessContextFactory.getCurrencyConverter()).thenReturn(currencyConverter);
+        Mockito.when(businessContextFactory.getAccountInvoices()).thenReturn(ImmutableList.<Invoice>of());
+        Mockito.when(businessContextFactory.getAccountInvoicePayments()).thenReturn(ImmutableMap.<UUID, List<InvoicePayment>>of());
+        // 2 + 1 + 2 transactions
+        Mockito.when(businessContextFactory.getAccountPayments()).thenReturn(ImmutableList.<Payment>of(payment, paymentNoRefund, payment));
+        Mockito.when(businessContextFactory.getPaymentMethod(Mockito.<UUID>any())).thenReturn(paymentMethod);
+        Mockito.when(businessContextFactory.getPaymentCreationAuditLog(Mockito.<UUID>any())).thenReturn(auditLog);
+
+        paymentFactory = new BusinessPaymentFactory();
+    }
+
+    @Test(groups = "fast")
+    public void testCreateBusinessPaymentsInBatches() throws Exception {
+        final Collection<BusinessPaymentBaseModelDao> allBusinessPayments = paymentFactory.createBusinessPayments(businessContextFactory);
+        Assert.assertEquals(allBusinessPayments.size(), 5);
+
+        final List<Integer> batchSizes = new LinkedList<Integer>();
+        final Collection<BusinessPaymentBaseModelDao> businessPayments = new LinkedList<BusinessPaymentBaseModelDao>();
+        paymentFactory.createBusinessPayments(businessContextFactory,
+                                              3,
+                                              new BusinessModelDaosHandler<Collection<BusinessPaymentBaseModelDao>>() {
+                                                  @Override
+                                                  public void handle(final Collection<BusinessPaymentBaseModelDao> batch) {
+                                                      batchSizes.add(batch.size());
+                                                      businessPayments.addAll(batch);
+                                                  }
+                                              });
+
+        // Payments are never split across batches
+        Assert.assertEquals(batchSizes, ImmutableList.<Integer>of(3, 2));
+        Assert.assertEquals(businessPayments.size(), allBusinessPayments.size());
+    }
+}
@@ -20,24 +20,102 @@ package org.killbill.billing.plugin.analytics.dao.factory;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.LocalDate;
+import org.killbill.billing.entitlement.api.SubscriptionBundle;
+import org.killbill.billing.entitlement.api.SubscriptionBundleTimeline;
 import org.killbill.billing.entitlement.api.SubscriptionEvent;
 import org.killbill.billing.entitlement.api.SubscriptionEventType;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.BusinessExecutor;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase.ReportGroup;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import com.google.common.collect.ImmutableList;
 
 public class TestBusinessSubscriptionTransitionFactory extends AnalyticsTestSuiteNoDB {
 
+    private ExecutorService executor;
+
+    @BeforeMethod(groups = "fast")
+    public void createExecutor() throws Exception {
+        executor = BusinessExecutor.newCachedThreadPool(osgiConfigPropertiesService);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void shutdownExecutor() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test(groups = "fast")
+    public void testKeepBundlesOrderWhenBuildingInParallel() throws Exception {
+        final BusinessSubscriptionTransitionFactory factory = new BusinessSubscriptionTransitionFactory(executor);
+
+        // The first bundle completes last
+        final CountDownLatch lastBundleBuilt = new CountDownLatch(1);
+        final List<SubscriptionBundle> bundles = new LinkedList<SubscriptionBundle>();
+        final List<UUID> subscriptionIds = new LinkedList<UUID>();
+        for (int i = 0; i < 4; i++) {
+            final UUID subscriptionId = UUID.randomUUID();
+            subscriptionIds.add(subscriptionId);
+
+            final SubscriptionEvent event = Mockito.mock(SubscriptionEvent.class);
+            Mockito.when(event.getId()).thenReturn(UUID.randomUUID());
+            Mockito.when(event.getEntitlementId()).thenReturn(subscriptionId);
+            Mockito.when(event.getSubscriptionEventType()).thenReturn(SubscriptionEventType.START_ENTITLEMENT);
+            Mockito.when(event.getEffectiveDate()).thenReturn(new LocalDate(2012, 5, 1 + i));
+            Mockito.when(event.getServiceName()).thenReturn(BusinessSubscriptionTransitionFactory.ENTITLEMENT_SERVICE_NAME);
+
+            final boolean first = i == 0;
+            final boolean last = i == 3;
+            final SubscriptionBundleTimeline timeline = Mockito.mock(SubscriptionBundleTimeline.class);
+            Mockito.when(timeline.getSubscriptionEvents()).thenAnswer(new Answer<List<SubscriptionEvent>>() {
+                @Override
+                public List<SubscriptionEvent> answer(final InvocationOnMock invocation) throws Throwable {
+                    if (first) {
+                        Assert.assertTrue(lastBundleBuilt.await(5, TimeUnit.SECONDS));
+                    } else if (last) {
+                        lastBundleBuilt.countDown();
+                    }
+                    return ImmutableList.<SubscriptionEvent>of(event);
+                }
+            });
+
+            final SubscriptionBundle bundle = Mockito.mock(SubscriptionBundle.class);
+            Mockito.when(bundle.getId()).thenReturn(UUID.randomUUID());
+            Mockito.when(bundle.getTimeline()).thenReturn(timeline);
+            bundles.add(bundle);
+        }
+
+        final BusinessContextFactory businessContextFactory = Mockito.mock(BusinessContextFactory.class);
+        Mockito.when(businessContextFactory.getAccount()).thenReturn(account);
+        Mockito.when(businessContextFactory.getAccountRecordId()).thenReturn(accountRecordId);
+        Mockito.when(businessContextFactory.getTenantRecordId()).thenReturn(tenantRecordId);
+        Mockito.when(businessContextFactory.getReportGroup()).thenReturn(ReportGroup.test);
+        Mockito.when(businessContextFactory.getCurrencyConverter()).thenReturn(currencyConverter);
+        Mockito.when(businessContextFactory.getAccountBundles()).thenReturn(bundles);
+
+        final List<BusinessSubscriptionTransitionModelDao> result = ImmutableList.<BusinessSubscriptionTransitionModelDao>copyOf(factory.createBusinessSubscriptionTransitions(businessContextFactory));
+        Assert.assertEquals(result.size(), 4);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(result.get(i).getBundleId(), bundles.get(i).getId());
+            Assert.assertEquals(result.get(i).getSubscriptionId(), subscriptionIds.get(i));
+        }
+    }
+
     @Test(groups = "fast")
     public void testRespectPrevPerService() throws Exception {
-        final BusinessSubscriptionTransitionFactory factory = new BusinessSubscriptionTransitionFactory();
+        final BusinessSubscriptionTransitionFactory factory = new BusinessSubscriptionTransitionFactory(executor);
 
         final UUID subscriptionId1 = UUID.randomUUID();
         final UUID subscriptionId2 = UUID.randomUUID();
@@ -121,7 +199,7 @@ public class TestBusinessSubscriptionTransitionFactory extends AnalyticsTestSuit
         Mockito.when(event7.getServiceName()).thenReturn(BusinessSubscriptionTransitionFactory.BILLING_SERVICE_NAME);
         events.add(event7);
 
-        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(account.getId(), callContext, logService, killbillAPI, killbillDataSource, osgiConfigPropertiesService, clock);
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(account.getId(), callContext, null, null, logService, killbillAPI, killbillDataSource, osgiConfigPropertiesService, clock);
         final List<BusinessSubscriptionTransitionModelDao> result = ImmutableList.<BusinessSubscriptionTransitionModelDao>copyOf(factory.buildTransitionsForBundle(businessContextFactory, account, bundle, events, currencyConverter, accountRecordId, tenantRecordId, ReportGroup.test));
         Assert.assertEquals(result.get(0).getEvent(), "START_ENTITLEMENT_UNSPECIFIED");
         Assert.assertEquals(result.get(0).getSubscriptionId(), subscriptionId1);
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.util.audit.AuditLog;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestCreationAuditLogsSnapshot extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testLookups() throws Exception {
+        final UUID invoiceItemId = UUID.randomUUID();
+        final UUID invoiceItemIdWithoutAuditLog = UUID.randomUUID();
+
+        final Map<UUID, AuditLog> creationAuditLogs = new HashMap<UUID, AuditLog>();
+        creationAuditLogs.put(invoiceItemId, auditLog);
+        creationAuditLogs.put(invoiceItemIdWithoutAuditLog, null);
+
+        final CreationAuditLogsSnapshot snapshot = new CreationAuditLogsSnapshot(ObjectType.INVOICE_ITEM, creationAuditLogs);
+        Assert.assertEquals(snapshot.getObjectType(), ObjectType.INVOICE_ITEM);
+        Assert.assertEquals(snapshot.size(), 2);
+
+        Assert.assertTrue(snapshot.contains(invoiceItemId));
+        Assert.assertEquals(snapshot.get(invoiceItemId), auditLog);
+
+        // Looked-up, but not found
+        Assert.assertTrue(snapshot.contains(invoiceItemIdWithoutAuditLog));
+        Assert.assertNull(snapshot.get(invoiceItemIdWithoutAuditLog));
+
+        // Unknown object
+        final UUID unknownInvoiceItemId = UUID.randomUUID();
+        Assert.assertFalse(snapshot.contains(unknownInvoiceItemId));
+        Assert.assertNull(snapshot.get(unknownInvoiceItemId));
+
+        // The snapshot isn't affected by changes to the source map
+        creationAuditLogs.put(unknownInvoiceItemId, auditLog);
+        Assert.assertFalse(snapshot.contains(unknownInvoiceItemId));
+        Assert.assertEquals(snapshot.size(), 2);
+    }
+}
@@ -27,15 +27,18 @@ import java.util.List;
 import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
 import org.killbill.billing.plugin.analytics.json.Chart;
+import org.killbill.billing.plugin.analytics.json.CounterChart;
 import org.killbill.billing.plugin.analytics.json.DataMarker;
 import org.killbill.billing.plugin.analytics.json.NamedXYTimeSeries;
 import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.ReportDataWriter;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 
 public class TestReportsServlet extends AnalyticsTestSuiteNoDB {
 
@@ -85,6 +88,45 @@ public class TestReportsServlet extends AnalyticsTestSuiteNoDB {
                            );
     }
 
+    @Test(groups = "fast")
+    public void testStreamingSerialization() throws Exception {
+        final List<DataMarker> timeSeries = new ArrayList<DataMarker>();
+        timeSeries.add(new NamedXYTimeSeries("serie1", ImmutableList.<XY>of(new XY("2013-01-01", 11), new XY("2013-01-02", 7))));
+        timeSeries.add(new NamedXYTimeSeries("serie2", ImmutableList.<XY>of(new XY("2013-01-01", 12))));
+        final List<DataMarker> counters = ImmutableList.<DataMarker>of(new CounterChart("USD", 12f), new CounterChart("EUR", 4f));
+        final List<Chart> charts = ImmutableList.<Chart>of(new Chart(ReportType.TIMELINE, "foo", timeSeries),
+                                                           new Chart(ReportType.COUNTERS, "bar", counters));
+
+        final ByteArrayOutputStream jsonOut = new ByteArrayOutputStream();
+        final JsonReportDataWriter jsonWriter = new JsonReportDataWriter(jsonMapper, jsonOut);
+        writeCharts(charts, jsonWriter);
+        jsonWriter.close();
+        Assert.assertEquals(jsonOut.toString(), new String(jsonMapper.writeValueAsBytes(charts)));
+
+        final ByteArrayOutputStream csvOut = new ByteArrayOutputStream();
+        writeCharts(charts, new CsvReportDataWriter(ObjectMapperProvider.getCsvWriter(), csvOut));
+        final ByteArrayOutputStream expectedCsvOut = new ByteArrayOutputStream();
+        ReportsServlet.writeAsCSV(charts, expectedCsvOut);
+        Assert.assertEquals(csvOut.toString(), expectedCsvOut.toString());
+    }
+
+    private void writeCharts(final Iterable<Chart> charts, final ReportDataWriter writer) throws Exception {
+        for (final Chart chart : charts) {
+            writer.startChart(chart.getType(), chart.getTitle());
+            for (final DataMarker marker : chart.getData()) {
+                if (marker instanceof CounterChart) {
+                    writer.writeCounter((CounterChart) marker);
+                } else {
+                    final NamedXYTimeSeries namedXYTimeSeries = (NamedXYTimeSeries) marker;
+                    for (final XY value : namedXYTimeSeries.getValues()) {
+                        writer.writeTimeSeriesValue(namedXYTimeSeries.getName(), value);
+                    }
+                }
+            }
+            writer.endChart();
+        }
+    }
+
 
     @Test(groups = "fast")
     public void testDeserializationReserialization() throws Exception {
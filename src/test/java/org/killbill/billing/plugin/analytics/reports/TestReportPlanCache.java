@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.Map;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+import org.killbill.billing.plugin.analytics.reports.sql.Filters;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestReportPlanCache extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testReportSpecificationsAreShared() throws Exception {
+        final ReportPlanCache reportPlanCache = new ReportPlanCache(10);
+
+        final String rawReportName = "payments_per_day^dimension:currency^metric:sum(amount)";
+        final ReportSpecification reportSpecification = reportPlanCache.getReportSpecification(rawReportName);
+        Assert.assertSame(reportPlanCache.getReportSpecification(rawReportName), reportSpecification);
+        Assert.assertEquals(reportSpecification.getNormalizedSpecification(), new ReportSpecification(rawReportName).getNormalizedSpecification());
+
+        try {
+            reportSpecification.getDimensions().add("state");
+            Assert.fail("Shared specifications should be read-only");
+        } catch (final UnsupportedOperationException e) {
+            Assert.assertEquals(reportSpecification.getDimensions().size(), 1);
+        }
+
+        reportPlanCache.invalidateAll();
+        Assert.assertNotSame(reportPlanCache.getReportSpecification(rawReportName), reportSpecification);
+    }
+
+    @Test(groups = "fast")
+    public void testReportPlansAreIndependentOfTheDateRange() throws Exception {
+        final ReportPlanCache reportPlanCache = new ReportPlanCache(10);
+        final ReportSpecification reportSpecification = reportPlanCache.getReportSpecification("payments_per_day^dimension:currency^metric:sum(amount)");
+
+        final ReportPlan reportPlan = reportPlanCache.getReportPlan("payments_per_day", reportSpecification, new LocalDate(2014, 1, 1), new LocalDate(2014, 2, 1), 1234L);
+        // Different dates and tenant, same statements
+        Assert.assertSame(reportPlanCache.getReportPlan("payments_per_day", reportSpecification, new LocalDate(2013, 5, 1), new LocalDate(2014, 5, 1), 5678L), reportPlan);
+        // Different statements
+        Assert.assertNotSame(reportPlanCache.getReportPlan("payments_per_day", reportSpecification, null, new LocalDate(2014, 2, 1), 1234L), reportPlan);
+        Assert.assertNotSame(reportPlanCache.getReportPlan("payments_per_day_v2", reportSpecification, new LocalDate(2014, 1, 1), new LocalDate(2014, 2, 1), 1234L), reportPlan);
+
+        // The values are bound at execution time
+        final String sql = reportPlan.getSql();
+        Assert.assertTrue(sql.contains("day >= :" + SqlReportDataExtractor.START_DATE_PARAMETER));
+        Assert.assertTrue(sql.contains("day <= :" + SqlReportDataExtractor.END_DATE_PARAMETER));
+        Assert.assertTrue(sql.contains("tenant_record_id = :" + SqlReportDataExtractor.TENANT_RECORD_ID_PARAMETER));
+        Assert.assertFalse(sql.contains("2014"));
+        Assert.assertFalse(sql.contains("1234"));
+
+        Assert.assertTrue(reportPlan.canAggregateByDateGranularity());
+        Assert.assertTrue(reportPlan.getAggregatedSql(DateGranularity.MONTHLY).contains(":" + SqlReportDataExtractor.START_DATE_PARAMETER));
+        Assert.assertFalse(reportPlan.canRankPivots());
+
+        final Map<String, Object> bindParameters = SqlReportDataExtractor.getBindParameters(new LocalDate(2014, 1, 1), null, 1234L);
+        Assert.assertEquals(bindParameters.size(), 2);
+        Assert.assertEquals(bindParameters.get(SqlReportDataExtractor.START_DATE_PARAMETER), "2014-01-01");
+        Assert.assertEquals(bindParameters.get(SqlReportDataExtractor.TENANT_RECORD_ID_PARAMETER), 1234L);
+    }
+
+    @Test(groups = "fast")
+    public void testFiltersAreBindParameters() throws Exception {
+        final ReportPlanCache reportPlanCache = new ReportPlanCache(10);
+        final ReportSpecification reportSpecification = reportPlanCache.getReportSpecification("payments_per_day^dimension:currency^metric:sum(amount)^filter:currency=EUR");
+        final ReportPlan reportPlan = reportPlanCache.getReportPlan("payments_per_day", reportSpecification, null, null, 1234L);
+
+        final String sql = reportPlan.getSql();
+        Assert.assertTrue(sql.contains("`currency` = :" + Filters.FILTER_PARAMETER_PREFIX + "0"));
+        Assert.assertFalse(sql.contains("EUR"));
+
+        final Map<String, Object> bindParameters = reportPlan.getBindParameters(null, null, 1234L);
+        Assert.assertEquals(bindParameters.size(), 2);
+        Assert.assertEquals(bindParameters.get(Filters.FILTER_PARAMETER_PREFIX + "0"), "EUR");
+        Assert.assertEquals(bindParameters.get(SqlReportDataExtractor.TENANT_RECORD_ID_PARAMETER), 1234L);
+
+        // The same statement serves other filter values
+        final ReportSpecification otherReportSpecification = reportPlanCache.getReportSpecification("payments_per_day^dimension:currency^metric:sum(amount)^filter:currency=USD");
+        Assert.assertEquals(reportPlanCache.getReportPlan("payments_per_day", otherReportSpecification, null, null, 1234L).getSql(), sql);
+    }
+}
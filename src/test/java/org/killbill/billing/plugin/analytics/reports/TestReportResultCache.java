@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.List;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.json.Chart;
+import org.killbill.billing.plugin.analytics.json.DataMarker;
+import org.killbill.billing.plugin.analytics.json.NamedXYTimeSeries;
+import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+
+public class TestReportResultCache extends AnalyticsTestSuiteNoDB {
+
+    private final LocalDate startDate = new LocalDate(2014, 1, 1);
+    private final LocalDate endDate = new LocalDate(2014, 2, 1);
+
+    @Test(groups = "fast")
+    public void testKeys() throws Exception {
+        final ReportResultCache.Key key = newKey("payments_per_day^dimension:currency^metric:amount", SmootherType.AVERAGE_WEEKLY);
+        Assert.assertEquals(newKey(" payments_per_day ^ METRIC:amount ^dimension:currency", SmootherType.AVERAGE_WEEKLY), key);
+        Assert.assertEquals(newKey(" payments_per_day ^ METRIC:amount ^dimension:currency", SmootherType.AVERAGE_WEEKLY).hashCode(), key.hashCode());
+
+        Assert.assertFalse(newKey("payments_per_day^dimension:currency^metric:amount", null).equals(key));
+        Assert.assertFalse(newKey("payments_per_day^dimension:currency^metric:fee", SmootherType.AVERAGE_WEEKLY).equals(key));
+        Assert.assertFalse(newKey("payments_per_day^dimension:currency^metric:amount^filter:currency=USD", SmootherType.AVERAGE_WEEKLY).equals(key));
+        Assert.assertFalse(newKey("payments_per_day^dimension:currency^metric:amount", SmootherType.AVERAGE_WEEKLY, 100).equals(key));
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidation() throws Exception {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final ReportResultCache reportResultCache = new ReportResultCache(osgiConfigPropertiesService, metricRegistry);
+
+        final ReportResultCache.Key paymentsKey = newKey("payments_per_day^dimension:currency", null);
+        final ReportResultCache.Key invoicesKey = newKey("invoices_per_day", null);
+        final List<Chart> charts = ImmutableList.<Chart>of(new Chart(ReportType.TIMELINE,
+                                                                     "Payments per day",
+                                                                     ImmutableList.<DataMarker>of(new NamedXYTimeSeries("USD", ImmutableList.<XY>of(new XY("2014-01-01", 1f))))));
+
+        Assert.assertNull(reportResultCache.getIfPresent(paymentsKey));
+        reportResultCache.put(paymentsKey, reportResultCache.getGeneration(), charts);
+        reportResultCache.put(invoicesKey, reportResultCache.getGeneration(), charts);
+        Assert.assertSame(reportResultCache.getIfPresent(paymentsKey), charts);
+        Assert.assertSame(reportResultCache.getIfPresent(invoicesKey), charts);
+
+        // The payments report was refreshed
+        reportResultCache.invalidate("payments_per_day");
+        Assert.assertNull(reportResultCache.getIfPresent(paymentsKey));
+        Assert.assertSame(reportResultCache.getIfPresent(invoicesKey), charts);
+
+        // Refreshed while the data was computed
+        final long generation = reportResultCache.getGeneration();
+        reportResultCache.invalidate("payments_per_day");
+        reportResultCache.put(paymentsKey, generation, charts);
+        Assert.assertNull(reportResultCache.getIfPresent(paymentsKey));
+
+        reportResultCache.invalidateAll();
+        Assert.assertNull(reportResultCache.getIfPresent(invoicesKey));
+
+        Assert.assertEquals(metricRegistry.getCounters().get(MetricRegistry.name(ReportResultCache.class, "hits")).getCount(), 3);
+        Assert.assertEquals(metricRegistry.getCounters().get(MetricRegistry.name(ReportResultCache.class, "misses")).getCount(), 4);
+        Assert.assertEquals(metricRegistry.getGauges().get(MetricRegistry.name(ReportResultCache.class, "size")).getValue(), 0L);
+    }
+
+    @Test(groups = "fast")
+    public void testReportsWithoutRefreshProcedure() throws Exception {
+        final ReportsConfigurationModelDao refreshedReport = new ReportsConfigurationModelDao("payments_per_day", "Payments per day", ReportType.TIMELINE, "report_payments_per_day", "refresh_report_payments_per_day", Frequency.HOURLY, null);
+        // View on top of the analytics tables, changing with each account refresh
+        final ReportsConfigurationModelDao liveReport = new ReportsConfigurationModelDao("accounts_summary", "Accounts summary", ReportType.COUNTERS, "v_report_accounts_summary", null, null, null);
+
+        Assert.assertTrue(ReportResultCache.isCacheable(ImmutableList.<ReportsConfigurationModelDao>of(refreshedReport)));
+        Assert.assertFalse(ReportResultCache.isCacheable(ImmutableList.<ReportsConfigurationModelDao>of(liveReport)));
+        Assert.assertFalse(ReportResultCache.isCacheable(ImmutableList.<ReportsConfigurationModelDao>of(refreshedReport, liveReport)));
+    }
+
+    private ReportResultCache.Key newKey(final String rawReportName, final SmootherType smootherType) {
+        return newKey(rawReportName, smootherType, null);
+    }
+
+    private ReportResultCache.Key newKey(final String rawReportName, final SmootherType smootherType, final Integer maxPoints) {
+        return ReportResultCache.newKey(tenantRecordId, ImmutableList.<ReportSpecification>of(new ReportSpecification(rawReportName)), startDate, endDate, smootherType, maxPoints);
+    }
+}
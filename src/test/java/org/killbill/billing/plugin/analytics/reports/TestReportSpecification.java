@@ -67,4 +67,15 @@ public class TestReportSpecification extends AnalyticsTestSuiteNoDB {
                                                                                   "((currency=EUR & state=PROCESSED) | (currency=USD & state!=ERRORED))" +
                                                                                   ")");
     }
+
+    @Test(groups = "fast")
+    public void testParserTopN() throws Exception {
+        final ReportSpecification reportSpecification = new ReportSpecification("payments_per_day^dimension:currency^metric:sum(amount)^topN:10");
+        Assert.assertEquals(reportSpecification.getTopN(), (Integer) 10);
+        Assert.assertEquals(reportSpecification.getNormalizedSpecification(), "payments_per_day^dimension:currency^metric:sum(amount)^topN:10");
+
+        // Be lenient
+        Assert.assertNull(new ReportSpecification("payments_per_day^dimension:currency^topN:ten").getTopN());
+        Assert.assertNull(new ReportSpecification("payments_per_day^dimension:currency^topN:0").getTopN());
+    }
 }
@@ -29,13 +29,15 @@ import org.killbill.billing.plugin.analytics.reports.scheduler.JobsScheduler;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.codahale.metrics.MetricRegistry;
+
 public class TestReportsConfiguration extends AnalyticsTestSuiteWithEmbeddedDB {
 
     private final Long tenantRecordId = 1234L;
 
     @Test(groups = "slow")
     public void testCrud() throws Exception {
-        final JobsScheduler jobsScheduler = new JobsScheduler(logService, killbillDataSource, clock, notificationQueueService);
+        final JobsScheduler jobsScheduler = new JobsScheduler(logService, killbillDataSource, osgiConfigPropertiesService, clock, notificationQueueService, new ReportResultCache(osgiConfigPropertiesService, new MetricRegistry()));
         final ReportsConfiguration reportsConfiguration = new ReportsConfiguration(killbillDataSource, jobsScheduler);
 
         // Verify initial state
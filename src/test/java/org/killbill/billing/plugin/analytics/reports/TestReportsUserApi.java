@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.analysis.TimeSeriesData;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestReportsUserApi extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testNormalizeAndSortXValues() throws Exception {
+        final TimeSeriesData.Builder dataForReport = new TimeSeriesData.Builder();
+        dataForReport.addValue("serie1", new LocalDate("2013-01-04"), 4f);
+        dataForReport.addValue("serie1", new LocalDate("2013-01-02"), 2f);
+        // Duplicate day: the values are summed
+        dataForReport.addValue("serie1", new LocalDate("2013-01-04"), 5f);
+        dataForReport.addValue("serie2", new LocalDate("2013-01-03"), 3f);
+        final Map<String, TimeSeriesData.Builder> dataForReports = new LinkedHashMap<String, TimeSeriesData.Builder>();
+        dataForReports.put("report1", dataForReport);
+
+        final Map<String, TimeSeriesData> normalizedDataForReports = ReportsUserApi.normalizeAndSortXValues(dataForReports, new LocalDate(2013, 1, 1), null);
+
+        final TimeSeriesData normalizedDataForReport = normalizedDataForReports.get("report1");
+        Assert.assertEquals(normalizedDataForReport.getDates().length, 4);
+        checkValues(normalizedDataForReport.getXYValues("serie1"), "2013-01-01", 0f, "2013-01-02", 2f, "2013-01-03", 0f, "2013-01-04", 9f);
+        checkValues(normalizedDataForReport.getXYValues("serie2"), "2013-01-01", 0f, "2013-01-02", 0f, "2013-01-03", 3f, "2013-01-04", 0f);
+    }
+
+    @Test(groups = "fast")
+    public void testNormalizeAndSortXValuesOutsideOfRange() throws Exception {
+        final TimeSeriesData.Builder dataForReport = new TimeSeriesData.Builder();
+        dataForReport.addValue("serie1", new LocalDate("2013-01-02"), 2f);
+        // After the end date
+        dataForReport.addValue("serie1", new LocalDate("2013-01-05"), 5f);
+        dataForReport.addValue("serie2", new LocalDate("2013-01-03"), 3f);
+        final Map<String, TimeSeriesData.Builder> dataForReports = new LinkedHashMap<String, TimeSeriesData.Builder>();
+        dataForReports.put("report1", dataForReport);
+
+        final Map<String, TimeSeriesData> normalizedDataForReports = ReportsUserApi.normalizeAndSortXValues(dataForReports, new LocalDate(2013, 1, 1), new LocalDate(2013, 1, 3));
+
+        // The values are kept, and the axis (shared by all series of the report) is extended to them
+        final TimeSeriesData normalizedDataForReport = normalizedDataForReports.get("report1");
+        Assert.assertEquals(normalizedDataForReport.getDates().length, 5);
+        checkValues(normalizedDataForReport.getXYValues("serie1"), "2013-01-01", 0f, "2013-01-02", 2f, "2013-01-03", 0f, "2013-01-04", 0f, "2013-01-05", 5f);
+        checkValues(normalizedDataForReport.getXYValues("serie2"), "2013-01-01", 0f, "2013-01-02", 0f, "2013-01-03", 3f, "2013-01-04", 0f, "2013-01-05", 0f);
+    }
+
+    @Test(groups = "fast")
+    public void testNormalizeAndSortXValuesIsIdenticalToNaiveImplementation() throws Exception {
+        final Random random = new Random(42);
+        final LocalDate origin = new LocalDate(2013, 1, 1);
+
+        for (int k = 0; k < 20; k++) {
+            final Map<String, TimeSeriesData.Builder> dataForReports = new LinkedHashMap<String, TimeSeriesData.Builder>();
+            final Map<String, Map<String, List<XY>>> expectedDataForReports = new LinkedHashMap<String, Map<String, List<XY>>>();
+            for (int r = 0; r < 2; r++) {
+                dataForReports.put("report" + r, new TimeSeriesData.Builder());
+                expectedDataForReports.put("report" + r, new LinkedHashMap<String, List<XY>>());
+                for (int p = 0; p < 5; p++) {
+                    final List<XY> values = new LinkedList<XY>();
+                    final int nbValues = 1 + random.nextInt(50);
+                    for (int i = 0; i < nbValues; i++) {
+                        // Duplicate days are likely
+                        final LocalDate date = origin.plusDays(random.nextInt(90));
+                        final float value = (float) random.nextInt(100);
+                        values.add(new XY(date, value));
+                        dataForReports.get("report" + r).addValue("pivot" + p, date, value);
+                    }
+                    expectedDataForReports.get("report" + r).put("pivot" + p, values);
+                }
+            }
+
+            // Values may be outside of [startDate, endDate]
+            final LocalDate startDate = random.nextBoolean() ? origin.plusDays(random.nextInt(10)) : null;
+            final LocalDate endDate = random.nextBoolean() ? origin.plusDays(80 + random.nextInt(20)) : null;
+            final Map<String, TimeSeriesData> normalizedDataForReports = ReportsUserApi.normalizeAndSortXValues(dataForReports, startDate, endDate);
+            naiveNormalizeAndSortXValues(expectedDataForReports, startDate, endDate);
+
+            for (final String reportName : expectedDataForReports.keySet()) {
+                final LocalDate[] dates = normalizedDataForReports.get(reportName).getDates();
+
+                // The axis of the report spans all the points of the original implementation, across series
+                LocalDate firstDate = null;
+                LocalDate lastDate = null;
+                for (final List<XY> expected : expectedDataForReports.get(reportName).values()) {
+                    for (final XY xy : expected) {
+                        if (firstDate == null || xy.getxDate().isBefore(firstDate)) {
+                            firstDate = xy.getxDate();
+                        }
+                        if (lastDate == null || xy.getxDate().isAfter(lastDate)) {
+                            lastDate = xy.getxDate();
+                        }
+                    }
+                }
+                Assert.assertEquals(dates[0], firstDate);
+                Assert.assertEquals(dates[dates.length - 1], lastDate);
+                Assert.assertEquals(dates.length, Days.daysBetween(firstDate, lastDate).getDays() + 1);
+
+                for (final String pivotName : expectedDataForReports.get(reportName).keySet()) {
+                    // Points of the original implementation for the same day are summed, days without any point are 0
+                    final float[] expectedValues = new float[dates.length];
+                    for (final XY xy : expectedDataForReports.get(reportName).get(pivotName)) {
+                        expectedValues[Days.daysBetween(firstDate, xy.getxDate()).getDays()] += xy.getY();
+                    }
+
+                    final List<XY> actual = normalizedDataForReports.get(reportName).getXYValues(pivotName);
+                    Assert.assertEquals(actual.size(), dates.length);
+                    for (int i = 0; i < dates.length; i++) {
+                        Assert.assertEquals(actual.get(i).getX(), firstDate.plusDays(i).toString());
+                        Assert.assertEquals(actual.get(i).getY(), (Float) expectedValues[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testNormalizeAndSortXValuesScalesLinearly() throws Exception {
+        final LocalDate origin = new LocalDate(2013, 1, 1);
+        // 5 years of daily data, 50 pivots
+        final int nbDays = 5 * 365;
+        final int nbPivots = 50;
+
+        // Warm-up
+        for (int i = 0; i < 5; i++) {
+            timeNormalizeAndSortXValues(origin, nbDays, nbPivots);
+        }
+
+        final long nanos = timeNormalizeAndSortXValues(origin, nbDays, nbPivots);
+        final long nanosForTwiceTheDays = timeNormalizeAndSortXValues(origin, 2 * nbDays, nbPivots);
+        // Generous, about 100 times the expected time, to catch a quadratic implementation only
+        Assert.assertTrue(nanos < TimeUnit.SECONDS.toNanos(1), "nanos=" + nanos);
+        // A linear implementation takes about twice as long, a quadratic one four times as long
+        Assert.assertTrue(nanosForTwiceTheDays < 3 * nanos, "nanos=" + nanos + ", nanosForTwiceTheDays=" + nanosForTwiceTheDays);
+    }
+
+    // Best of a few runs, to limit the noise (GC, JIT)
+    private long timeNormalizeAndSortXValues(final LocalDate origin, final int nbDays, final int nbPivots) {
+        long bestNanos = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            final TimeSeriesData.Builder dataForReport = new TimeSeriesData.Builder();
+            for (int p = 0; p < nbPivots; p++) {
+                // Rows come sorted by day from the database
+                for (int d = 0; d < nbDays; d++) {
+                    dataForReport.addValue("pivot" + p, origin.plusDays(d), (float) d);
+                }
+            }
+            final Map<String, TimeSeriesData.Builder> dataForReports = new LinkedHashMap<String, TimeSeriesData.Builder>();
+            dataForReports.put("report", dataForReport);
+
+            final long startNanos = System.nanoTime();
+            final Map<String, TimeSeriesData> normalizedDataForReports = ReportsUserApi.normalizeAndSortXValues(dataForReports, origin, origin.plusDays(nbDays - 1));
+            bestNanos = Math.min(bestNanos, System.nanoTime() - startNanos);
+
+            Assert.assertEquals(normalizedDataForReports.get("report").getDates().length, nbDays);
+        }
+        return bestNanos;
+    }
+
+    private void checkValues(final List<XY> values, final Object... expected) {
+        Assert.assertEquals(values.size() * 2, expected.length);
+        for (int i = 0; i < values.size(); i++) {
+            Assert.assertEquals(values.get(i).getX(), expected[2 * i]);
+            Assert.assertEquals(values.get(i).getY(), expected[2 * i + 1]);
+        }
+    }
+
+    // Original implementation
+    private void naiveNormalizeAndSortXValues(final Map<String, Map<String, List<XY>>> dataForReports, @Nullable final LocalDate startDate, @Nullable final LocalDate endDate) {
+        LocalDate minDate = startDate;
+        LocalDate maxDate = endDate;
+        if (minDate == null || maxDate == null) {
+            for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
+                for (final List<XY> dataForPivot : dataForReport.values()) {
+                    for (final XY xy : dataForPivot) {
+                        if (minDate == null || xy.getxDate().isBefore(minDate)) {
+                            minDate = xy.getxDate();
+                        }
+                        if (maxDate == null || xy.getxDate().isAfter(maxDate)) {
+                            maxDate = xy.getxDate();
+                        }
+                    }
+                }
+            }
+        }
+
+        LocalDate curDate = minDate;
+        while (!curDate.isAfter(maxDate)) {
+            for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
+                for (final List<XY> dataForPivot : dataForReport.values()) {
+                    boolean found = false;
+                    for (final XY xy : dataForPivot) {
+                        found = found || xy.getxDate().compareTo(curDate) == 0;
+                    }
+                    if (!found) {
+                        dataForPivot.add(new XY(curDate, (float) 0));
+                    }
+                }
+            }
+            curDate = curDate.plusDays(1);
+        }
+
+        for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
+            for (final List<XY> dataForPivot : dataForReport.values()) {
+                Collections.sort(dataForPivot,
+                                 new Comparator<XY>() {
+                                     @Override
+                                     public int compare(final XY o1, final XY o2) {
+                                         return o1.getxDate().compareTo(o2.getxDate());
+                                     }
+                                 });
+            }
+        }
+    }
+}
@@ -17,13 +17,19 @@
 
 package org.killbill.billing.plugin.analytics.reports;
 
+import java.util.Map;
+
 import javax.annotation.Nullable;
 
 import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
 public class TestSqlReportDataExtractor extends AnalyticsTestSuiteNoDB {
 
     @Test(groups = "fast")
@@ -281,6 +287,75 @@ public class TestSqlReportDataExtractor extends AnalyticsTestSuiteNoDB {
                                                                "  `state`");
     }
 
+    @Test(groups = "fast")
+    public void testSeriesOrdering() throws Exception {
+        final SqlReportDataExtractor sqlReportDataExtractor = buildSqlReportDataExtractor("payments_per_day^dimension:currency^dimension:state^metric:sum(amount)");
+        final String sql = sqlReportDataExtractor.toString();
+        final String orderedSql = sqlReportDataExtractor.toSeriesOrderedString(ImmutableList.<String>of("currency", "state"));
+
+        // Same query, sorted by series first
+        Assert.assertTrue(orderedSql.startsWith(sql));
+        final String orderBy = orderedSql.substring(sql.length());
+        Assert.assertTrue(orderBy.contains("order by"));
+        Assert.assertTrue(orderBy.indexOf("`currency`") < orderBy.indexOf("`state`"));
+        Assert.assertTrue(orderBy.indexOf("`state`") < orderBy.indexOf("`day`"));
+    }
+
+    @Test(groups = "fast")
+    public void testAggregationByDateGranularity() throws Exception {
+        Assert.assertFalse(buildSqlReportDataExtractor("payments_per_day").canAggregateByDateGranularity());
+        Assert.assertFalse(buildSqlReportDataExtractor("payments_per_day^dimension:currency^metric:avg(amount)").canAggregateByDateGranularity());
+        Assert.assertFalse(buildSqlReportDataExtractor("payments_per_day^dimension:currency^metric:100*sum(fee)").canAggregateByDateGranularity());
+
+        final SqlReportDataExtractor sqlReportDataExtractor = buildSqlReportDataExtractor("payments_per_day^dimension:currency^metric:sum(amount)^metric:count(fee)");
+        Assert.assertTrue(sqlReportDataExtractor.canAggregateByDateGranularity());
+
+        final String weeklySql = sqlReportDataExtractor.toAggregatedString(DateGranularity.WEEKLY);
+        Assert.assertTrue(weeklySql.contains("date_sub(`day`, interval weekday(`day`) day) as `day`"));
+        Assert.assertTrue(weeklySql.contains("min(`day`) as `min_day`"));
+        Assert.assertTrue(weeklySql.contains("max(`day`) as `max_day`"));
+        Assert.assertTrue(weeklySql.contains("group by"));
+        // Group by the truncated day, not by the raw column
+        Assert.assertTrue(weeklySql.substring(weeklySql.indexOf("group by")).contains("date_sub(`day`, interval weekday(`day`) day)"));
+
+        final String monthlySql = sqlReportDataExtractor.toAggregatedString(DateGranularity.MONTHLY);
+        Assert.assertTrue(monthlySql.contains("date_sub(`day`, interval (dayofmonth(`day`) - 1) day) as `day`"));
+    }
+
+    @Test(groups = "fast")
+    public void testTopPivots() throws Exception {
+        Assert.assertFalse(buildSqlReportDataExtractor("payments_per_day^dimension:currency^metric:sum(amount)").canRankPivots());
+        // No aggregation
+        Assert.assertFalse(buildSqlReportDataExtractor("payments_per_day^dimension:currency^metric:amount^topN:2").canRankPivots());
+        // Grouped dimensions only
+        Assert.assertFalse(buildSqlReportDataExtractor("payments_per_day^dimension:currency(USD|EUR)^metric:sum(amount)^topN:2").canRankPivots());
+
+        final SqlReportDataExtractor sqlReportDataExtractor = buildSqlReportDataExtractor("payments_per_day^dimension:currency^dimension:state(PROCESSED|-)^metric:sum(amount)^metric:avg(fee)^topN:2");
+        Assert.assertTrue(sqlReportDataExtractor.canRankPivots());
+
+        // First pass: rank the currencies by total amount
+        final String topPivotsSql = sqlReportDataExtractor.toTopPivotsString();
+        Assert.assertTrue(topPivotsSql.startsWith("select `currency`\n"));
+        Assert.assertTrue(topPivotsSql.contains("state in ("));
+        Assert.assertTrue(topPivotsSql.contains("group by `currency`"));
+        Assert.assertTrue(topPivotsSql.contains("order by sum(`amount`) desc"));
+        Assert.assertTrue(topPivotsSql.contains("limit 2"));
+
+        // Second pass: the other currencies are folded into Other
+        sqlReportDataExtractor.setTopPivots(ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("currency", "USD"),
+                                                                                  ImmutableMap.<String, Object>of("currency", "EUR")));
+        final String sql = sqlReportDataExtractor.toString();
+        Assert.assertTrue(sql.contains("`currency` = 'USD'"));
+        Assert.assertTrue(sql.contains("`currency` = 'EUR'"));
+        Assert.assertTrue(sql.contains("then `currency`"));
+        Assert.assertTrue(sql.contains("else 'Other'"));
+        Assert.assertTrue(sql.contains("end as `currency`"));
+        // Group by the case statement, not by the raw column
+        final String groupBy = sql.substring(sql.indexOf("group by"));
+        Assert.assertTrue(groupBy.contains("else 'Other'"));
+        Assert.assertFalse(groupBy.contains("as `currency`"));
+    }
+
     private SqlReportDataExtractor buildSqlReportDataExtractor(final String rawReportName) {
         return buildSqlReportDataExtractor(rawReportName, null, null);
     }
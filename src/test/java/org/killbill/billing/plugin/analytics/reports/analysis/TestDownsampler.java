@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.analysis;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.json.XY;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestDownsampler extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testShortSeriesAreNotDownsampled() throws Exception {
+        final TimeSeriesData data = buildTimeSeriesData(new float[]{1, 2, 3, 4, 5});
+
+        Assert.assertNull(new Downsampler(5).downsample(data.getDays(), data.getValues("series")));
+        Assert.assertNull(new Downsampler(100).downsample(data.getDays(), data.getValues("series")));
+        Assert.assertEquals(data.getXYValues("series", null).size(), 5);
+    }
+
+    @Test(groups = "fast")
+    public void testPeaksArePreserved() throws Exception {
+        // Flat series, with a single spike and a single dip
+        final float[] values = new float[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 10;
+        }
+        values[123] = 500;
+        values[789] = -500;
+        final TimeSeriesData data = buildTimeSeriesData(values);
+
+        final int[] indexes = new Downsampler(50).downsample(data.getDays(), data.getValues("series"));
+        Assert.assertEquals(indexes.length, 50);
+        Assert.assertEquals(indexes[0], 0);
+        Assert.assertEquals(indexes[49], 999);
+        for (int i = 1; i < indexes.length; i++) {
+            Assert.assertTrue(indexes[i] > indexes[i - 1]);
+        }
+
+        final List<XY> xyValues = data.getXYValues("series", indexes);
+        Assert.assertEquals(xyValues.size(), 50);
+        Assert.assertEquals(xyValues.get(0).getX(), "2013-01-01");
+        Assert.assertEquals(xyValues.get(49).getX(), new LocalDate(2013, 1, 1).plusDays(999).toString());
+
+        boolean foundSpike = false;
+        boolean foundDip = false;
+        for (final XY xy : xyValues) {
+            foundSpike = foundSpike || xy.getY() == 500;
+            foundDip = foundDip || xy.getY() == -500;
+        }
+        Assert.assertTrue(foundSpike);
+        Assert.assertTrue(foundDip);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testTooFewPoints() throws Exception {
+        new Downsampler(2);
+    }
+
+    private TimeSeriesData buildTimeSeriesData(final float[] values) {
+        final int firstDay = TimeSeriesData.toEpochDay(new LocalDate(2013, 1, 1));
+        final int[] days = new int[values.length];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = firstDay + i;
+        }
+
+        final Map<String, float[]> series = new LinkedHashMap<String, float[]>();
+        series.put("series", values);
+        return new TimeSeriesData(days, series);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.analysis;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.joda.time.DateTimeConstants;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestSmoother extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testSumWeekly() throws Exception {
+        // Monday 2013-01-07 to Wednesday 2013-01-23
+        final List<XY> smoothedValues = smooth(SmootherType.SUM_WEEKLY, new LocalDate(2013, 1, 7), 17);
+
+        // The last (incomplete) week is skipped
+        Assert.assertEquals(smoothedValues.size(), 2);
+        Assert.assertEquals(smoothedValues.get(0).getX(), "2013-01-07");
+        Assert.assertEquals(smoothedValues.get(0).getY(), (float) (1 + 2 + 3 + 4 + 5 + 6 + 7));
+        Assert.assertEquals(smoothedValues.get(1).getX(), "2013-01-14");
+        Assert.assertEquals(smoothedValues.get(1).getY(), (float) (8 + 9 + 10 + 11 + 12 + 13 + 14));
+    }
+
+    @Test(groups = "fast")
+    public void testAverageMonthly() throws Exception {
+        // 2013-01-30 to 2013-03-02
+        final List<XY> smoothedValues = smooth(SmootherType.AVERAGE_MONTHLY, new LocalDate(2013, 1, 30), 32);
+
+        Assert.assertEquals(smoothedValues.size(), 2);
+        Assert.assertEquals(smoothedValues.get(0).getX(), "2013-01-01");
+        Assert.assertEquals(smoothedValues.get(0).getY(), (float) (1 + 2) / 2);
+        Assert.assertEquals(smoothedValues.get(1).getX(), "2013-02-01");
+        // Values 3 to 30
+        Assert.assertEquals(smoothedValues.get(1).getY(), (float) 16.5);
+    }
+
+    @Test(groups = "fast")
+    public void testSmoothAggregatedData() throws Exception {
+        final Random random = new Random(42);
+        for (final SmootherType smootherType : SmootherType.values()) {
+            // Sparse daily values, from 2013-01-03 to 2013-04-17
+            final LocalDate firstDate = new LocalDate(2013, 1, 3);
+            final TimeSeriesData.Builder dailyData = new TimeSeriesData.Builder();
+            final Map<String, Map<LocalDate, Integer>> sums = new LinkedHashMap<String, Map<LocalDate, Integer>>();
+            final Map<String, Map<LocalDate, LocalDate[]>> ranges = new LinkedHashMap<String, Map<LocalDate, LocalDate[]>>();
+            for (int i = 0; i < 300; i++) {
+                final String seriesName = "serie" + random.nextInt(3);
+                final LocalDate date = firstDate.plusDays(random.nextInt(105));
+                final int value = random.nextInt(100);
+                dailyData.addValue(seriesName, date, (float) value);
+
+                // What the database would return
+                final LocalDate bucketDate = smootherType.getDateGranularity() == DateGranularity.WEEKLY ? date.withDayOfWeek(DateTimeConstants.MONDAY) : date.withDayOfMonth(1);
+                if (sums.get(seriesName) == null) {
+                    sums.put(seriesName, new LinkedHashMap<LocalDate, Integer>());
+                    ranges.put(seriesName, new LinkedHashMap<LocalDate, LocalDate[]>());
+                }
+                final Integer sum = sums.get(seriesName).get(bucketDate);
+                sums.get(seriesName).put(bucketDate, (sum == null ? 0 : sum) + value);
+                final LocalDate[] range = ranges.get(seriesName).get(bucketDate);
+                if (range == null) {
+                    ranges.get(seriesName).put(bucketDate, new LocalDate[]{date, date});
+                } else {
+                    range[0] = date.isBefore(range[0]) ? date : range[0];
+                    range[1] = date.isAfter(range[1]) ? date : range[1];
+                }
+            }
+
+            final TimeSeriesData.Builder aggregatedData = new TimeSeriesData.Builder();
+            for (final String seriesName : sums.keySet()) {
+                for (final LocalDate bucketDate : sums.get(seriesName).keySet()) {
+                    final LocalDate[] range = ranges.get(seriesName).get(bucketDate);
+                    aggregatedData.addAggregatedValue(seriesName, bucketDate, range[0], range[1], (float) sums.get(seriesName).get(bucketDate));
+                }
+            }
+
+            // Axis starting before, and ending after, the data
+            final int firstDay = TimeSeriesData.toEpochDay(new LocalDate(2013, 1, 1));
+            final int lastDay = TimeSeriesData.toEpochDay(new LocalDate(2013, 4, 30));
+            final Map<String, TimeSeriesData> dataForReports = new LinkedHashMap<String, TimeSeriesData>();
+            dataForReports.put("report", dailyData.build(firstDay, lastDay));
+            final Smoother smoother = smootherType.createSmoother(dataForReports);
+            smoother.smooth();
+            final TimeSeriesData expected = smoother.getDataForReports().get("report");
+            final TimeSeriesData actual = smoother.smooth(aggregatedData, firstDay, lastDay);
+
+            Assert.assertTrue(Arrays.equals(actual.getDays(), expected.getDays()));
+            Assert.assertEquals(actual.getSeriesNames(), expected.getSeriesNames());
+            for (final String seriesName : expected.getSeriesNames()) {
+                // Integer values: no rounding difference
+                Assert.assertTrue(Arrays.equals(actual.getValues(seriesName), expected.getValues(seriesName)));
+            }
+        }
+    }
+
+    private List<XY> smooth(final SmootherType smootherType, final LocalDate startDate, final int nbDays) {
+        final TimeSeriesData.Builder builder = new TimeSeriesData.Builder();
+        for (int i = 0; i < nbDays; i++) {
+            builder.addValue("serie", startDate.plusDays(i), (float) (i + 1));
+        }
+
+        final Map<String, TimeSeriesData> dataForReports = new LinkedHashMap<String, TimeSeriesData>();
+        dataForReports.put("report", builder.build(TimeSeriesData.toEpochDay(startDate), TimeSeriesData.toEpochDay(startDate.plusDays(nbDays - 1))));
+
+        final Smoother smoother = smootherType.createSmoother(dataForReports);
+        smoother.smooth();
+        return smoother.getDataForReports().get("report").getXYValues("serie");
+    }
+}
@@ -18,19 +18,23 @@
 package org.killbill.billing.plugin.analytics.reports.scheduler;
 
 import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.reports.ReportResultCache;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.codahale.metrics.MetricRegistry;
+
 public class TestJobsScheduler extends AnalyticsTestSuiteNoDB {
 
     private JobsScheduler jobsScheduler;
 
     @BeforeMethod(groups = "fast")
     public void createScheduler() throws Exception {
-        jobsScheduler = new JobsScheduler(logService, killbillDataSource, clock, notificationQueueService);
+        jobsScheduler = new JobsScheduler(logService, killbillDataSource, osgiConfigPropertiesService, clock, notificationQueueService, new ReportResultCache(osgiConfigPropertiesService, new MetricRegistry()));
     }
 
     @Test(groups = "fast")
@@ -45,6 +49,27 @@ public class TestJobsScheduler extends AnalyticsTestSuiteNoDB {
         Assert.assertEquals(computeNextRun(Frequency.HOURLY, null).compareTo(new DateTime(2012, 10, 5, 19, 5, 0)), 0);
     }
 
+    @Test(groups = "fast")
+    public void testComputeIncrementalRefreshStartDay() throws Exception {
+        final DateTime now = new DateTime(2012, 10, 5, 18, 33, 46);
+        final AnalyticsReportJob job = new AnalyticsReportJob(null, "report", null, "report_table", "refresh_report", Frequency.DAILY, null);
+
+        // Never refreshed
+        Assert.assertNull(jobsScheduler.computeIncrementalRefreshStartDay(job, null, now));
+
+        // Look back 7 days before the watermark
+        final ReportWatermarkModelDao watermark = new ReportWatermarkModelDao("report", "refresh_report", new LocalDate(2012, 10, 4), now.minusDays(2));
+        Assert.assertEquals(jobsScheduler.computeIncrementalRefreshStartDay(job, watermark, now), new LocalDate(2012, 9, 27));
+
+        // Periodic full rebuild (every 7 days)
+        final ReportWatermarkModelDao oldWatermark = new ReportWatermarkModelDao("report", "refresh_report", new LocalDate(2012, 10, 4), now.minusDays(7));
+        Assert.assertNull(jobsScheduler.computeIncrementalRefreshStartDay(job, oldWatermark, now));
+
+        // The refresh procedure changed
+        final ReportWatermarkModelDao otherWatermark = new ReportWatermarkModelDao("report", "refresh_other_report", new LocalDate(2012, 10, 4), now.minusDays(2));
+        Assert.assertNull(jobsScheduler.computeIncrementalRefreshStartDay(job, otherWatermark, now));
+    }
+
     private DateTime computeNextRun(final Frequency frequency, final Integer refreshHourOfDayGmt) {
         return jobsScheduler.computeNextRun(new AnalyticsReportJob(null, null, null, null, null, frequency, refreshHourOfDayGmt));
     }
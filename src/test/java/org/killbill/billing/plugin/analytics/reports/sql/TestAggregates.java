@@ -32,4 +32,17 @@ public class TestAggregates extends AnalyticsTestSuiteNoDB {
         Assert.assertEquals(Aggregates.of("count(distinct fee)").toString(), "count(distinct \"fee\")");
         Assert.assertEquals(Aggregates.of("sum(fee_with_underscores)").toString(), "sum(\"fee_with_underscores\")");
     }
+
+    @Test(groups = "fast")
+    public void testIsDecomposable() throws Exception {
+        Assert.assertTrue(Aggregates.isDecomposable("sum(fee)"));
+        Assert.assertTrue(Aggregates.isDecomposable("count(fee)"));
+        Assert.assertTrue(Aggregates.isDecomposable(" SUM( fee ) "));
+        Assert.assertFalse(Aggregates.isDecomposable("fee"));
+        Assert.assertFalse(Aggregates.isDecomposable("avg(fee)"));
+        Assert.assertFalse(Aggregates.isDecomposable("max(fee)"));
+        Assert.assertFalse(Aggregates.isDecomposable("count(distinct fee)"));
+        Assert.assertFalse(Aggregates.isDecomposable("100 * sum(fee)"));
+        Assert.assertFalse(Aggregates.isDecomposable("sum(fee) / sum(amount)"));
+    }
 }
@@ -17,6 +17,9 @@
 
 package org.killbill.billing.plugin.analytics.reports.sql;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
 import org.killbill.billing.plugin.analytics.reports.ReportSpecification;
 import org.testng.Assert;
@@ -69,4 +72,18 @@ public class TestFilters extends AnalyticsTestSuiteNoDB {
                                                                                                                          "  )\n" +
                                                                                                                          ")");
     }
+
+    @Test(groups = "fast")
+    public void testBindParameters() throws Exception {
+        final ReportSpecification reportSpecification = new ReportSpecification("payments_per_day^filter:currency=AUD^filter:name~'John Doe'");
+        final Map<String, Object> bindParameters = new HashMap<String, Object>();
+        Assert.assertNotNull(Filters.of(reportSpecification.getFilterExpression(), bindParameters));
+
+        // Values are un-quoted, but not escaped
+        Assert.assertEquals(bindParameters.size(), 2);
+        Assert.assertTrue(bindParameters.values().contains("AUD"));
+        Assert.assertTrue(bindParameters.values().contains("John Doe"));
+        Assert.assertTrue(bindParameters.containsKey(Filters.FILTER_PARAMETER_PREFIX + "0"));
+        Assert.assertTrue(bindParameters.containsKey(Filters.FILTER_PARAMETER_PREFIX + "1"));
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.killbill.billing.catalog.api.Product;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jol.info.GraphLayout;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestBusinessModelInterner extends AnalyticsTestSuiteNoDB {
+
+    private static final int NB_ROWS = 1000;
+
+    @Test(groups = "fast")
+    public void testIntern() throws Exception {
+        Assert.assertNull(BusinessModelInterner.intern(null));
+
+        final String currency = new String("USD");
+        Assert.assertSame(BusinessModelInterner.intern(new String("USD")), BusinessModelInterner.intern(currency));
+        Assert.assertEquals(BusinessModelInterner.intern(currency), "USD");
+    }
+
+    @Test(groups = "fast")
+    public void testFootprint() throws Exception {
+        // Kill Bill returns new instances for each row (deserialized from the database or the cache)
+        final Product product = plan.getProduct();
+        Mockito.when(product.getName()).thenAnswer(newCopy(product.getName()));
+        Mockito.when(product.getCatalogName()).thenAnswer(newCopy(product.getCatalogName()));
+        Mockito.when(phase.getName()).thenAnswer(newCopy(phase.getName()));
+
+        final long bytesPerRowWithoutInterning;
+        BusinessModelInterner.setEnabled(false);
+        try {
+            bytesPerRowWithoutInterning = getBytesPerInvoiceItemRow();
+        } finally {
+            BusinessModelInterner.setEnabled(true);
+        }
+        final long bytesPerRow = getBytesPerInvoiceItemRow();
+
+        // The product name, catalog name and slug (36 characters each, at least 80 bytes per copy) are shared across rows
+        Assert.assertTrue(bytesPerRowWithoutInterning - bytesPerRow >= 3 * 80,
+                          String.format("bytesPerRowWithoutInterning=%s, bytesPerRow=%s", bytesPerRowWithoutInterning, bytesPerRow));
+    }
+
+    private long getBytesPerInvoiceItemRow() {
+        final List<BusinessInvoiceItemBaseModelDao> rows = new ArrayList<BusinessInvoiceItemBaseModelDao>(NB_ROWS);
+        for (int i = 0; i < NB_ROWS; i++) {
+            rows.add(BusinessInvoiceItemBaseModelDao.create(account,
+                                                            accountRecordId,
+                                                            invoice,
+                                                            invoiceItem,
+                                                            itemSource,
+                                                            invoiceItemType,
+                                                            invoiceItemRecordId,
+                                                            secondInvoiceItemRecordId,
+                                                            bundle,
+                                                            plan,
+                                                            phase,
+                                                            currencyConverter,
+                                                            auditLog,
+                                                            tenantRecordId,
+                                                            reportGroup));
+        }
+        return GraphLayout.parseInstance(rows).totalSize() / NB_ROWS;
+    }
+
+    private Answer<String> newCopy(final String value) {
+        return new Answer<String>() {
+            @Override
+            public String answer(final InvocationOnMock invocation) throws Throwable {
+                return new String(value);
+            }
+        };
+    }
+}